@@ -28,6 +28,15 @@ public class Config {
     private static final String FILTER_TAG = "filter";
     private static final String FLOW_CONTROLS_TAG = "flowcontrols";
     private static final String FLOW_CONTROL_TAG = "flowcontrol";
+    private static final String SOFT_FILTERS_TAG = "softfilters";
+    private static final String SOFT_FILTER_TAG = "softfilter";
+    private static final String TX_QUEUE_SIZE_TAG = "txqueuesize";
+    private static final String TX_OVERFLOW_TAG = "txoverflow";
+
+    // TX overflow values
+    private static final String TX_OVERFLOW_DROP_NEWEST = "dropnewest";
+    private static final String TX_OVERFLOW_DROP_OLDEST = "dropoldest";
+    private static final String TX_OVERFLOW_REJECT = "reject";
 
     // General attributes
     private static final String NAME_ATTRIBUTE = "name";
@@ -38,6 +47,11 @@ public class Config {
     private static final String ID_ATTRIBUTE = "id";
     private static final String MASK_ATTRIBUTE = "mask";
 
+    // Soft filter attributes (id alone, id and mask, pgn alone, or pgnLow and pgnHigh)
+    private static final String PGN_ATTRIBUTE = "pgn";
+    private static final String PGN_LOW_ATTRIBUTE = "pgnLow";
+    private static final String PGN_HIGH_ATTRIBUTE = "pgnHigh";
+
     // Flow control attributes
     private static final String SEARCH_ID_ATTRIBUTE = "searchId";
     private static final String RESPONSE_ID_ATTRIBUTE = "responseId";
@@ -55,6 +69,45 @@ public class Config {
         return null;
     }
 
+    // Maps from port 2/3 to 1/2 to match config. Returns null if the port has no soft filters.
+    static VehicleBusSoftFilter getSoftFilter(int canbusPort) {
+        PortConfig config = getPortConfig("CAN" + (canbusPort-1));
+        if (config == null) return null;
+
+        return VehicleBusSoftFilter.create(toArray(config.softFilterIds),
+                toArray(config.softFilterPgnLows), toArray(config.softFilterPgnHighs),
+                toArray(config.softFilterMaskIds), toArray(config.softFilterMasks));
+    }
+
+    // Can be CAN1, CAN2, or J1708. Returns defaultSize if the port does not set a TX queue size.
+    static int getTxQueueSize(String port, int defaultSize) {
+        PortConfig config = getPortConfig(port);
+        if ((config == null) || (config.txQueueSize <= 0)) return defaultSize;
+
+        return config.txQueueSize;
+    }
+
+    // Can be CAN1, CAN2, or J1708. Returns one of the VehicleBusTxQueue.OVERFLOW_* values.
+    static int getTxOverflowPolicy(String port, int defaultPolicy) {
+        PortConfig config = getPortConfig(port);
+        if ((config == null) || (config.txOverflow == null)) return defaultPolicy;
+
+        if (TX_OVERFLOW_DROP_NEWEST.equalsIgnoreCase(config.txOverflow)) return VehicleBusTxQueue.OVERFLOW_DROP_NEWEST;
+        if (TX_OVERFLOW_DROP_OLDEST.equalsIgnoreCase(config.txOverflow)) return VehicleBusTxQueue.OVERFLOW_DROP_OLDEST;
+        if (TX_OVERFLOW_REJECT.equalsIgnoreCase(config.txOverflow)) return VehicleBusTxQueue.OVERFLOW_REJECT;
+
+        Log.e(TAG, "Ignoring unknown TX overflow policy " + config.txOverflow + " for " + port);
+        return defaultPolicy;
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     // Can be CAN1, CAN2, or J1708
     private static PortConfig getPortConfig(String port) {
         // Read current config file
@@ -112,10 +165,16 @@ public class Config {
                 portConfig.autobaud = Boolean.parseBoolean(parser.getAttributeValue(null, VAL_ATTRIBUTE));
             } else if (parser.getEventType() == XmlPullParser.END_TAG && TERMINATION_TAG.equals(name)) {
                 portConfig.termination = Boolean.parseBoolean(parser.getAttributeValue(null, VAL_ATTRIBUTE));
+            } else if (parser.getEventType() == XmlPullParser.END_TAG && TX_QUEUE_SIZE_TAG.equals(name)) {
+                portConfig.txQueueSize = Integer.parseInt(parser.getAttributeValue(null, VAL_ATTRIBUTE));
+            } else if (parser.getEventType() == XmlPullParser.END_TAG && TX_OVERFLOW_TAG.equals(name)) {
+                portConfig.txOverflow = parser.getAttributeValue(null, VAL_ATTRIBUTE);
             } else if (parser.getEventType() == XmlPullParser.START_TAG && FILTERS_TAG.equals(name)) {
                 getFilters(parser, portConfig.filters);
             } else if (parser.getEventType() == XmlPullParser.START_TAG && FLOW_CONTROLS_TAG.equals(name)) {
                 getFlowControl(parser, portConfig.flowControls);
+            } else if (parser.getEventType() == XmlPullParser.START_TAG && SOFT_FILTERS_TAG.equals(name)) {
+                getSoftFilters(parser, portConfig);
             }
 
             eventType = parser.next();
@@ -140,6 +199,36 @@ public class Config {
         }
     }
 
+    private static void getSoftFilters(XmlPullParser parser, PortConfig portConfig) throws XmlPullParserException, IOException {
+        int eventType = parser.getEventType();
+        while(!(eventType == XmlPullParser.END_TAG && SOFT_FILTERS_TAG.equals(parser.getName()))) {
+            if (parser.getEventType() == XmlPullParser.END_TAG && SOFT_FILTER_TAG.equals(parser.getName())) {
+                String id = parser.getAttributeValue(null, ID_ATTRIBUTE);
+                String mask = parser.getAttributeValue(null, MASK_ATTRIBUTE);
+                String pgn = parser.getAttributeValue(null, PGN_ATTRIBUTE);
+                String pgnLow = parser.getAttributeValue(null, PGN_LOW_ATTRIBUTE);
+                String pgnHigh = parser.getAttributeValue(null, PGN_HIGH_ATTRIBUTE);
+
+                if (id != null && mask != null) {
+                    portConfig.softFilterMaskIds.add(Integer.decode(id));
+                    portConfig.softFilterMasks.add(Integer.decode(mask));
+                } else if (id != null) {
+                    portConfig.softFilterIds.add(Integer.decode(id));
+                } else if (pgn != null) {
+                    portConfig.softFilterPgnLows.add(Integer.decode(pgn));
+                    portConfig.softFilterPgnHighs.add(Integer.decode(pgn));
+                } else if (pgnLow != null && pgnHigh != null) {
+                    portConfig.softFilterPgnLows.add(Integer.decode(pgnLow));
+                    portConfig.softFilterPgnHighs.add(Integer.decode(pgnHigh));
+                } else {
+                    Log.e(TAG, "Ignoring soft filter without id or pgn.");
+                }
+            }
+
+            eventType = parser.next();
+        }
+    }
+
     private static void getFlowControl(XmlPullParser parser, ArrayList<VehicleBusHW.CANFlowControl> flowControls) throws XmlPullParserException, IOException {
         Log.d(TAG, "About to parse flow control.");
 
@@ -176,8 +265,15 @@ public class Config {
         boolean silentMode = false;
         boolean autobaud = false;
         boolean termination = false;
+        int txQueueSize = 0; // 0 = default
+        String txOverflow = null; // null = default
         ArrayList<VehicleBusHW.CANHardwareFilter> filters = new ArrayList<>();
         ArrayList<VehicleBusHW.CANFlowControl> flowControls = new ArrayList<>();
+        ArrayList<Integer> softFilterIds = new ArrayList<>();
+        ArrayList<Integer> softFilterPgnLows = new ArrayList<>();
+        ArrayList<Integer> softFilterPgnHighs = new ArrayList<>();
+        ArrayList<Integer> softFilterMaskIds = new ArrayList<>();
+        ArrayList<Integer> softFilterMasks = new ArrayList<>();
 
         PortConfig(){}
 
@@ -36,6 +36,15 @@ public class State {
     public static final int CAN_NUMBER = 209;
     public static final int FLAG_J1708_ON = 210;
     public static final int CAN_FLOW_CONTROLS = 211;
+    public static final int CAN_RX_MODE = 212;
+    public static final int CAN_RX_BATCH_FRAMES = 213;
+    public static final int CAN_RX_BATCH_MS = 214;
+    public static final int CAN_SOFT_FILTER = 215;
+    public static final int FLAG_CAN_J1939_TP = 216;
+
+    // The CAN settings above are for the first CAN port. The same settings for the second port are
+    //  stored at the key + PORT_KEY_OFFSET (see forPort()).
+    public static final int PORT_KEY_OFFSET = 100;
 
     Context context;
     SharedPreferences sharedPref;
@@ -47,6 +56,15 @@ public class State {
         gson = new Gson();
     }
 
+    /**
+     * Returns the key of a CAN setting for the given port (canNumber 2 = CAN1, 3 = CAN2).
+     * The first port keeps the original keys so settings saved by older versions are still found.
+     */
+    public static int forPort(int state_id, int canNumber) {
+        if (canNumber <= VehicleBusCAN.FIRST_CAN_NUMBER) return state_id;
+        return state_id + (canNumber - VehicleBusCAN.FIRST_CAN_NUMBER) * PORT_KEY_OFFSET;
+    }
+
     /**
      * Deletes all state settings and restores factory default.
      */
@@ -117,16 +135,23 @@ public class State {
     }
 
     /**
-     * Writes a Flow Control Array for the given state setting. Returns true if successful, else false.
+     * Writes a Flow Control Array for the first CAN port. Returns true if successful, else false.
      */
     public boolean writeStateFlowControls(final ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
+        return writeStateFlowControls(VehicleBusCAN.FIRST_CAN_NUMBER, flowControls);
+    }
+
+    /**
+     * Writes a Flow Control Array for the given CAN port. Returns true if successful, else false.
+     */
+    public boolean writeStateFlowControls(final int canNumber, final ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
         try {
             SharedPreferences.Editor editor = sharedPref.edit();
             if (flowControls == null) {
-                editor.putString(Integer.toString(CAN_FLOW_CONTROLS), "");
+                editor.putString(Integer.toString(forPort(CAN_FLOW_CONTROLS, canNumber)), "");
             } else {
                 String objStr = gson.toJson(flowControls);
-                editor.putString(Integer.toString(CAN_FLOW_CONTROLS), objStr);
+                editor.putString(Integer.toString(forPort(CAN_FLOW_CONTROLS, canNumber)), objStr);
             }
 
             editor.commit();
@@ -139,10 +164,17 @@ public class State {
     }
 
     /**
-     * Returns an String value for the given state. If state doesn't exist, returns "".
+     * Returns the Flow Control Array of the first CAN port. If state doesn't exist, returns null.
      */
     public ArrayList<VehicleBusHW.CANFlowControl> readStateFlowControls() {
-        String jsonStr = sharedPref.getString(Integer.toString(CAN_FLOW_CONTROLS), "");
+        return readStateFlowControls(VehicleBusCAN.FIRST_CAN_NUMBER);
+    }
+
+    /**
+     * Returns an String value for the given state. If state doesn't exist, returns "".
+     */
+    public ArrayList<VehicleBusHW.CANFlowControl> readStateFlowControls(int canNumber) {
+        String jsonStr = sharedPref.getString(Integer.toString(forPort(CAN_FLOW_CONTROLS, canNumber)), "");
 
         if (!TextUtils.isEmpty(jsonStr)) {
             return gson.fromJson(jsonStr, new TypeToken<List<VehicleBusHW.CANFlowControl>>(){}.getType());
@@ -151,6 +183,43 @@ public class State {
         }
     }
 
+    /**
+     * Writes the software filter of the given CAN port. Returns true if successful, else false.
+     */
+    public boolean writeStateSoftFilter(final int canNumber, final VehicleBusSoftFilter softFilter) {
+        try {
+            SharedPreferences.Editor editor = sharedPref.edit();
+            if (softFilter == null) {
+                editor.putString(Integer.toString(forPort(CAN_SOFT_FILTER, canNumber)), "");
+            } else {
+                String objStr = gson.toJson(softFilter);
+                editor.putString(Integer.toString(forPort(CAN_SOFT_FILTER, canNumber)), objStr);
+            }
+
+            editor.commit();
+        } catch (Exception e) {
+            Log.e(TAG, "Exception: writeStateSoftFilter() " + e.toString(), e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the compiled software filter of the given CAN port. If state doesn't exist, returns null (no software filter).
+     */
+    public VehicleBusSoftFilter readStateSoftFilter(int canNumber) {
+        String jsonStr = sharedPref.getString(Integer.toString(forPort(CAN_SOFT_FILTER, canNumber)), "");
+
+        if (!TextUtils.isEmpty(jsonStr)) {
+            VehicleBusSoftFilter softFilter = gson.fromJson(jsonStr, VehicleBusSoftFilter.class);
+            softFilter.compile();
+            return softFilter;
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Returns an int value for the given state. If state doesn't exist, returns 0.
      */
@@ -0,0 +1,351 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusBinder:
+//  Implements the IVehicleBusService interface returned from VehicleBusService.onBind()
+//  Bound clients register a one-way callback to receive frame batches directly over Binder,
+//      and can submit batches of frames to transmit, without going through system broadcasts.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.os.Bundle;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+
+
+public class VehicleBusBinder extends IVehicleBusService.Stub {
+
+    private static final String TAG = "ATS-VBS-Binder"; // for logging
+
+    VehicleBusService service;
+
+    // RemoteCallbackList takes care of removing callbacks whose client process has died
+    final RemoteCallbackList<IVehicleBusCallback> callbacks = new RemoteCallbackList<IVehicleBusCallback>() {
+        @Override
+        public void onCallbackDied(IVehicleBusCallback callback) {
+            updateSnapshot();
+        }
+    };
+
+    // the registered callbacks, copied out of callbacks whenever they change, so deliveries only read this array
+    //  and the threads of each CAN port never wait for each other (beginBroadcast() can't be nested)
+    volatile IVehicleBusCallback[] callbackSnapshot = new IVehicleBusCallback[0];
+
+
+    ///////////////////////////////////////////////////////
+    // CallbackCall
+    //  one call made to each registered client by broadcast()
+    ///////////////////////////////////////////////////////
+    interface CallbackCall {
+        void call(IVehicleBusCallback callback) throws RemoteException;
+    }
+
+
+    public VehicleBusBinder(VehicleBusService service) {
+        this.service = service;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // hasCallbacks()
+    //  are there any clients that want to receive frames?
+    ///////////////////////////////////////////////////////
+    public boolean hasCallbacks() {
+        return (callbackSnapshot.length > 0);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // updateSnapshot()
+    //  copies the registered callbacks into callbackSnapshot, after a client registers, unregisters or dies
+    ///////////////////////////////////////////////////////
+    void updateSnapshot() {
+
+        synchronized (callbacks) {
+            int n = callbacks.beginBroadcast();
+            IVehicleBusCallback[] snapshot = new IVehicleBusCallback[n];
+            try {
+                for (int i = 0; i < n; i++) {
+                    snapshot[i] = callbacks.getBroadcastItem(i);
+                }
+            } finally {
+                callbacks.finishBroadcast();
+            }
+            callbackSnapshot = snapshot;
+        }
+    } // updateSnapshot()
+
+
+    ///////////////////////////////////////////////////////
+    // broadcast()
+    //  makes the call to every registered client (the calls are one-way, so this never waits for a client)
+    ///////////////////////////////////////////////////////
+    private void broadcast(CallbackCall call) {
+
+        IVehicleBusCallback[] snapshot = callbackSnapshot;
+        for (IVehicleBusCallback callback : snapshot) {
+            try {
+                call.call(callback);
+            } catch (RemoteException e) {
+                // client went away, RemoteCallbackList will drop it
+            }
+        }
+    } // broadcast()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverCanFrames()
+    //  sends a batch of received frames to every registered client
+    //  the arrays must not be changed by the caller afterwards
+    ///////////////////////////////////////////////////////
+    public void deliverCanFrames(final int canNumber, final int count, final int[] ids, final byte[] types,
+                                 final long[] timestamps, final byte[] lengths, final byte[] data) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onCanFrames(canNumber, count, ids, types, timestamps, lengths, data);
+            }
+        });
+    } // deliverCanFrames()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverJ1939Message()
+    //  sends a reassembled J1939 message to every registered client
+    ///////////////////////////////////////////////////////
+    public void deliverJ1939Message(final int canNumber, final int pgn, final int priority, final int source, final int destination,
+                                    final byte[] data, final long timestamp) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onJ1939Message(canNumber, pgn, priority, source, destination, data, timestamp);
+            }
+        });
+    } // deliverJ1939Message()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverJ1939TxResult()
+    //  tells every registered client how a J1939 message that was sent ended
+    ///////////////////////////////////////////////////////
+    public void deliverJ1939TxResult(final int canNumber, final int transferId, final int pgn, final int source, final int destination,
+                                     final int result) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onJ1939TxResult(canNumber, transferId, pgn, source, destination, result);
+            }
+        });
+    } // deliverJ1939TxResult()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverJ1939RequestResult()
+    //  tells every registered client the reply to a requested PGN
+    ///////////////////////////////////////////////////////
+    public void deliverJ1939RequestResult(final int canNumber, final int requestId, final int pgn, final int destination, final int responder,
+                                          final byte[] data, final long timestamp, final int result) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onJ1939RequestResult(canNumber, requestId, pgn, destination, responder, data, timestamp, result);
+            }
+        });
+    } // deliverJ1939RequestResult()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverIsoTpMessage()
+    //  sends a message received on an ISO-TP channel to every registered client
+    ///////////////////////////////////////////////////////
+    public void deliverIsoTpMessage(final int canNumber, final int handle, final byte[] data, final long timestamp) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onIsoTpMessage(canNumber, handle, data, timestamp);
+            }
+        });
+    } // deliverIsoTpMessage()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverIsoTpTxResult()
+    //  tells every registered client how an ISO-TP message that was sent ended
+    ///////////////////////////////////////////////////////
+    public void deliverIsoTpTxResult(final int canNumber, final int handle, final int messageId, final int result) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onIsoTpTxResult(canNumber, handle, messageId, result);
+            }
+        });
+    } // deliverIsoTpTxResult()
+
+
+    ///////////////////////////////////////////////////////
+    // deliverTxComplete()
+    //  tells every registered client what happened to frames that were sent with a txId
+    ///////////////////////////////////////////////////////
+    public void deliverTxComplete(final String bus, final int canNumber, final int count, final int[] txIds, final byte[] results,
+                                  final long[] enqueueTimes, final long[] dequeueTimes, final long[] writeTimes) {
+
+        broadcast(new CallbackCall() {
+            @Override
+            public void call(IVehicleBusCallback callback) throws RemoteException {
+                callback.onTxComplete(bus, canNumber, count, txIds, results, enqueueTimes, dequeueTimes, writeTimes);
+            }
+        });
+    } // deliverTxComplete()
+
+
+    ///////////////////////////////////////////////////////
+    // unregisterAll()
+    //  called when the service is destroyed
+    ///////////////////////////////////////////////////////
+    public void unregisterAll() {
+        callbacks.kill();
+        callbackSnapshot = new IVehicleBusCallback[0];
+    }
+
+
+    ///////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////
+    // IVehicleBusService implementation
+    //  these are called on Binder threads
+    ///////////////////////////////////////////////////////
+    ///////////////////////////////////////////////////////
+
+    @Override
+    public void registerCallback(IVehicleBusCallback callback) {
+        if (callback == null) return;
+        Log.d(TAG, "Registering callback " + callback.asBinder());
+        callbacks.register(callback);
+        updateSnapshot();
+    }
+
+    @Override
+    public void unregisterCallback(IVehicleBusCallback callback) {
+        if (callback == null) return;
+        Log.d(TAG, "Unregistering callback " + callback.asBinder());
+        callbacks.unregister(callback);
+        updateSnapshot();
+    }
+
+    @Override
+    public int sendCanFrames(int canNumber, int count, int[] ids, byte[] lengths, byte[] data) {
+        return sendCanFrameBatch(canNumber, count, ids, null, lengths, data, null);
+    } // sendCanFrames()
+
+    @Override
+    public int sendCanFrameBatch(int canNumber, int count, int[] ids, byte[] types, byte[] lengths, byte[] data, int[] txIds) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return 0; // this port is not running
+
+        VehicleBusWrapper.CANFrame[] frames = VehicleBusCAN.createFrames(count, ids, types, lengths, data);
+        if (frames == null) return 0;
+
+        if (!can.sendFrames(frames, count, txIds)) return 0;
+        return count;
+    } // sendCanFrameBatch()
+
+    @Override
+    public boolean setPeriodicCanFrame(int canNumber, int handle, int id, int type, byte[] data, int periodMs) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false; // this port is not running
+
+        return can.setPeriodicFrame(handle, id, VehicleBusCAN.toFrameType(type), data, periodMs, null);
+    } // setPeriodicCanFrame()
+
+    @Override
+    public boolean cancelPeriodicCanFrame(int canNumber, int handle) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false;
+
+        return can.cancelPeriodicFrame(handle);
+    } // cancelPeriodicCanFrame()
+
+    @Override
+    public boolean sendJ1939Message(int canNumber, int transferId, int priority, int pgn, int source, int destination, byte[] data) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false; // this port is not running
+
+        return can.sendJ1939Message(transferId, priority, pgn, source, destination, data);
+    } // sendJ1939Message()
+
+    @Override
+    public boolean requestJ1939Pgn(int canNumber, int requestId, int pgn, int source, int destination, int timeoutMs, int maxAgeMs) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false; // this port is not running
+
+        return can.requestJ1939Pgn(requestId, pgn, source, destination, timeoutMs, maxAgeMs);
+    } // requestJ1939Pgn()
+
+    @Override
+    public boolean openIsoTpChannel(int canNumber, int handle, int txCanId, int rxCanId, int type, int blockSize, int stMin) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false; // this port is not running
+
+        return can.isoTp.open(handle, txCanId, rxCanId, VehicleBusCAN.toFrameType(type), blockSize, stMin);
+    } // openIsoTpChannel()
+
+    @Override
+    public boolean closeIsoTpChannel(int canNumber, int handle) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false;
+
+        return can.isoTp.close(handle);
+    } // closeIsoTpChannel()
+
+    @Override
+    public boolean sendIsoTpMessage(int canNumber, int handle, int messageId, byte[] data) {
+
+        VehicleBusCAN can = service.getRunningCAN(canNumber);
+        if (can == null) return false; // this port is not running
+
+        return can.sendIsoTpMessage(handle, messageId, data);
+    } // sendIsoTpMessage()
+
+    @Override
+    public SharedMemory getRxRing() {
+        VehicleBusRing ring = service.getRxRing();
+        if (ring == null) return null;
+        return ring.getSharedMemory();
+    } // getRxRing()
+
+    @Override
+    public Bundle getLastValues(int canNumber, int[] ids) {
+        VehicleBusCAN can = service.getCAN(canNumber);
+        if (can == null) return new VehicleBusLastValueCache().snapshot(ids); // CAN is not running, nothing received
+
+        return can.lastValues.snapshot(ids);
+    } // getLastValues()
+
+    @Override
+    public Bundle getTrafficStats(int canNumber) {
+        VehicleBusCAN can = service.getCAN(canNumber);
+        long now = SystemClock.elapsedRealtime();
+        if (can == null) return new VehicleBusTrafficStats().snapshot(now, 0); // CAN is not running, nothing received
+
+        return can.trafficStats.snapshot(now, can.getBitrate());
+    } // getTrafficStats()
+
+} // class VehicleBusBinder
@@ -23,9 +23,12 @@ import android.os.Handler;
 import android.os.SystemClock;
 
 
+import com.google.gson.Gson;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.micronet.dsc.vbs.VehicleBusService.service;
 
@@ -41,10 +44,24 @@ public class VehicleBusCAN {
     public static int DEFAULT_BITRATE = 250000; // a default to use if bitrate is not specified (and used as 1rst option for auto-detect)
     public static int DEFAULT_CAN_NUMBER = 2; //Todo: Updated default value for CanBus Setting, It's String now
 
-    static final int SAFETY_MAX_OUTGOING_QUEUE_SIZE = 10; // just make sure this queue doesn't ever keep growing forever
+    // the CAN ports, each port runs independently of the others
+    public static final int FIRST_CAN_NUMBER = 2; // CAN1
+    public static final int LAST_CAN_NUMBER = 3; // CAN2
+    public static final int MAX_CAN_PORTS = LAST_CAN_NUMBER - FIRST_CAN_NUMBER + 1;
+
+    static final int DEFAULT_TX_QUEUE_SIZE = 64; // frames waiting to be sent, unless configuration.xml sets txqueuesize (also the largest TX batch)
+    static final int SAFETY_MAX_OUTGOING_QUEUE_SIZE = 4096; // just make sure a configured queue can't be unreasonably large
+    static final int MAX_DATA_LENGTH = VehicleBusFrameBuffer.MAX_DATA_LENGTH; // bytes reserved for each frame in a TX batch data block
+
+    final int canNumber; // the port of this bus
+
+    // The threads are started the first time the socket is ready and then given each new socket of the port,
+    //  so restarts (bitrate discovery, promotion to normal mode, filter changes) don't create threads. They exit in stop().
+    volatile CANWriteRunnable canWriteRunnable; // thread for writing (frames to send are queued to it from any thread)
+    CANReadRunnable canReadRunnable; // thread for reading
+    CANDispatchRunnable canDispatchRunnable; // thread for delivering what was read
 
-    static CANWriteRunnable canWriteRunnable; // thread for writing
-    static CANReadRunnable canReadRunnable; // thread for reading
+    static final AtomicInteger liveThreads = new AtomicInteger(); // CAN read, dispatch and write threads running, on all ports
 
 
     Handler callbackHandler = null; // the handler that the runnable will be posted to
@@ -54,7 +71,6 @@ public class VehicleBusCAN {
 
 
     List<VehicleBusWrapper.CANFrame> incomingList = Collections.synchronizedList(new ArrayList<VehicleBusWrapper.CANFrame>());
-    List<VehicleBusWrapper.CANFrame> outgoingList = Collections.synchronizedList(new ArrayList<VehicleBusWrapper.CANFrame>());
 
 
     VehicleBusWrapper busWrapper;
@@ -66,26 +82,242 @@ public class VehicleBusCAN {
     int confirmedBusBitrate = 0; // set to a bitrate that we know is working so we can skip listen-only mode
     int confirmedCanNumber = 0;
 
+    // what start() was called with, to tell whether a new start only changes the filters
+    int startedBitrate = 0;
+    boolean startedAutoDetect = false;
+    ArrayList<VehicleBusHW.CANFlowControl> startedFlowControls;
+
+    // frames received from the first frame in listen-only mode until the socket is in normal mode (dispatch thread only)
+    static final int MAX_PROMOTION_FRAMES = 512; // more than this are dropped
+    static final int MAX_PROMOTION_MS = 3000; // delivered after this long even if normal mode was not reached
+    boolean promoting = false;
+    long promotionStartedRealtime;
+    volatile boolean promotionReady = false; // set when the normal mode socket is ready
+    final VehicleBusWrapper.CANFrame[] promotionFrames = new VehicleBusWrapper.CANFrame[MAX_PROMOTION_FRAMES];
+    final long[] promotionTimes = new long[MAX_PROMOTION_FRAMES];
+    int promotionCount = 0;
+    volatile long promotionFramesKept = 0;
+    volatile long promotionFramesDropped = 0;
+
+    static final int MAX_THREAD_EXIT_MS = 500; // longest the control thread waits for the threads of the previous start to exit
+
+    // gap in reception caused by the last reconfiguration of the port (measured by the dispatch thread)
+    long rxGapMeasuredFor = 0; // the reconfiguration that the gap was measured for
+    volatile int lastRxGapMs = -1; // from the start of the reconfiguration to the first frame received after it
+    volatile int maxRxGapMs = 0;
+
+
+    int rxMode = VehicleBusConstants.CAN_RX_MODE_FRAME; // how received frames are delivered to other applications
+    int rxBatchFrames = VehicleBusRxBatch.DEFAULT_MAX_FRAMES;
+    int rxBatchMs = VehicleBusRxBatch.DEFAULT_MAX_MS;
+
+    // TX queue, from configuration.xml when the write thread is created
+    int txQueueSize = DEFAULT_TX_QUEUE_SIZE;
+    int txOverflowPolicy = VehicleBusTxQueue.OVERFLOW_DROP_NEWEST;
+    volatile VehicleBusRxBatch rxBatch; // collects frames for batch broadcasts and for bound clients
+    VehicleBusTxCompletions txCompletions; // reports what happened to frames sent with a txId
+    volatile VehicleBusSoftFilter softFilter; // null to accept everything that passes the hardware filters
+    // the hardware filters, applied in software when the hardware filters were opened up because they
+    //  can't be changed without re-creating the interface (null when the hardware does the filtering)
+    volatile VehicleBusSoftFilter hardwareSoftFilter;
+    volatile VehicleBusJ1939Tp j1939Tp; // null unless J1939 transport protocol reassembly is on
+    final VehicleBusLastValueCache lastValues = new VehicleBusLastValueCache(); // latest data of each id
+    final VehicleBusTrafficStats trafficStats = new VehicleBusTrafficStats(); // rates and bus load
+    final VehicleBusPeriodicTx periodicTx = new VehicleBusPeriodicTx(); // frames sent every period by the write thread
+    final VehicleBusJ1939TpTx j1939TpTx = new VehicleBusJ1939TpTx(new VehicleBusJ1939TpTx.ResultListener() {
+        @Override
+        public void onJ1939TxResult(int transferId, int pgn, int source, int destination, int result) {
+            deliverJ1939TxResult(transferId, pgn, source, destination, result);
+        }
+    }); // J1939 messages sent by the write thread
+    final VehicleBusJ1939Request j1939Request = new VehicleBusJ1939Request(new VehicleBusJ1939Request.Sender() {
+        @Override
+        public boolean sendFrame(VehicleBusWrapper.CANFrame frame) {
+            return VehicleBusCAN.this.sendFrame(frame);
+        }
+    }, new VehicleBusJ1939Request.ResultListener() {
+        @Override
+        public void onJ1939RequestResult(int requestId, int pgn, int destination, int responder, byte[] data, long timestamp, int result) {
+            deliverJ1939RequestResult(requestId, pgn, destination, responder, data, timestamp, result);
+        }
+    }); // Request PGN and the replies
+    final VehicleBusIsoTp isoTp = new VehicleBusIsoTp(new VehicleBusIsoTp.Listener() {
+        @Override
+        public void onIsoTpMessage(int handle, byte[] data, long timestamp) {
+            deliverIsoTpMessage(handle, data, timestamp);
+        }
+
+        @Override
+        public void onIsoTpTxResult(int handle, int messageId, int result) {
+            deliverIsoTpTxResult(handle, messageId, result);
+        }
+    }); // ISO-TP channels, sent by the write thread
 
-    public VehicleBusCAN(Context context) {
-        busWrapper = VehicleBusWrapper.getInstance();
+
+    public VehicleBusCAN(Context context, int canNumber) {
+        this.canNumber = canNumber;
+        busWrapper = VehicleBusWrapper.getInstance(canNumber);
         busWrapper.isUnitTesting = false;
-        busWrapper.canNumber = DEFAULT_CAN_NUMBER;
         this.context = context;
 
         busDiscoverer = new VehicleBusDiscovery(context, busWrapper, BUS_NAME);
     }
 
-    public VehicleBusCAN(Context context, boolean isUnitTesting) {
-        busWrapper = VehicleBusWrapper.getInstance();
+    public VehicleBusCAN(Context context, boolean isUnitTesting, int canNumber) {
+        this.canNumber = canNumber;
+        busWrapper = VehicleBusWrapper.getInstance(canNumber);
         busWrapper.isUnitTesting = isUnitTesting;
-        busWrapper.canNumber = DEFAULT_CAN_NUMBER;
         this.context = context;
 
         busDiscoverer = new VehicleBusDiscovery(context, busWrapper, BUS_NAME);
     }
 
 
+    //////////////////////////////////////////////////////
+    // isValidCanNumber()
+    //  is this one of the CAN ports?
+    //////////////////////////////////////////////////////
+    public static boolean isValidCanNumber(int canNumber) {
+        return ((canNumber >= FIRST_CAN_NUMBER) && (canNumber <= LAST_CAN_NUMBER));
+    }
+
+    //////////////////////////////////////////////////////
+    // getPortIndex()
+    //  index of the port in arrays that hold something for each port (0 for CAN1)
+    //////////////////////////////////////////////////////
+    public static int getPortIndex(int canNumber) {
+        if (!isValidCanNumber(canNumber)) canNumber = DEFAULT_CAN_NUMBER;
+        return canNumber - FIRST_CAN_NUMBER;
+    }
+
+
+
+    //////////////////////////////////////////////////////
+    // setRxMode()
+    //  sets how received frames are delivered (one broadcast per frame or batched), call this before start()
+    //  rxMode : one of VehicleBusConstants.CAN_RX_MODE_*
+    //  batchFrames, batchMs : when batching, a batch is sent when it holds this many frames or has waited this long
+    //////////////////////////////////////////////////////
+    public void setRxMode(int rxMode, int batchFrames, int batchMs) {
+        this.rxMode = rxMode;
+        this.rxBatchFrames = batchFrames;
+        this.rxBatchMs = batchMs;
+    } // setRxMode()
+
+
+    //////////////////////////////////////////////////////
+    // setSoftFilter()
+    //  sets the software filter that received frames must pass (after the hardware filters) to be delivered
+    //  softFilter : the compiled filter, or null to deliver everything
+    //////////////////////////////////////////////////////
+    public void setSoftFilter(VehicleBusSoftFilter softFilter) {
+        this.softFilter = softFilter;
+    } // setSoftFilter()
+
+    //////////////////////////////////////////////////////
+    // setJ1939Tp()
+    //  turns reassembly of J1939 transport protocol (BAM and RTS/CTS) transfers on or off, call this before start()
+    //  when on, the TP.CM and TP.DT frames are not delivered, only the complete messages
+    //////////////////////////////////////////////////////
+    public void setJ1939Tp(boolean enabled) {
+        j1939Tp = (enabled ? new VehicleBusJ1939Tp() : null);
+    } // setJ1939Tp()
+
+    //////////////////////////////////////////////////////
+    // isSameExceptFilters()
+    //  would starting with these settings only change the filters of this running port?
+    //////////////////////////////////////////////////////
+    public boolean isSameExceptFilters(int bitrate, boolean skip_verify, boolean auto_detect, ArrayList<VehicleBusHW.CANFlowControl> flowControls,
+                                       int rxMode, int rxBatchFrames, int rxBatchMs, boolean j1939Tp) {
+        if ((auto_detect) || (startedAutoDetect) || (busDiscoverer.isInDiscovery())) return false;
+        if (bitrate != startedBitrate) return false;
+        if ((skip_verify) && (confirmedBusBitrate != bitrate)) return false; // must start over in normal mode
+        if ((rxMode != this.rxMode) || (rxBatchFrames != this.rxBatchFrames) || (rxBatchMs != this.rxBatchMs)) return false;
+        if (j1939Tp != (this.j1939Tp != null)) return false;
+
+        Gson gson = new Gson();
+        return gson.toJson(flowControls).equals(gson.toJson(startedFlowControls));
+    } // isSameExceptFilters()
+
+
+    //////////////////////////////////////////////////////
+    // updateFilters()
+    //  changes the hardware and software filters of the running port without closing its socket
+    //  If the library can change the hardware filters in place, it is done on the control thread.
+    //      Otherwise (once) the interface is re-created with hardware filters that pass everything and the
+    //      hardware filters are applied in software from then on, so later changes never touch the interface.
+    //  returns false if the filters can't be changed now (the port must be restarted instead)
+    //////////////////////////////////////////////////////
+    public boolean updateFilters(final VehicleBusWrapper.CANHardwareFilter[] hardwareFilters, VehicleBusSoftFilter newSoftFilter) {
+
+        if ((busWrapper.isUnitTesting) || (busDiscoverer.isInDiscovery())) return false;
+
+        Log.d(TAG, "Updating filters of CAN" + (canNumber - 1));
+
+        softFilter = newSoftFilter;
+
+        if (hardwareSoftFilter != null) {
+            // hardware filters are already open, only the software stage changes
+            hardwareSoftFilter = createHardwareSoftFilter(hardwareFilters);
+            return true;
+        }
+
+        busWrapper.runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                if (busWrapper.reconfigureFilters(hardwareFilters)) return; // done in place
+
+                Log.w(TAG, "CAN" + (canNumber - 1) + " filters can't be changed in place, filtering in software from now on");
+                hardwareSoftFilter = createHardwareSoftFilter(hardwareFilters);
+                busWrapper.doRecreate(VehicleBusWrapper.getWideFilters());
+            }
+        });
+        return true;
+    } // updateFilters()
+
+
+    //////////////////////////////////////////////////////
+    // createHardwareSoftFilter()
+    //  a software filter that passes the same frames as these hardware filters, null if they pass everything
+    //////////////////////////////////////////////////////
+    static VehicleBusSoftFilter createHardwareSoftFilter(VehicleBusWrapper.CANHardwareFilter[] hardwareFilters) {
+        if (hardwareFilters == null) return null;
+
+        int[] ids = new int[hardwareFilters.length];
+        int[] masks = new int[hardwareFilters.length];
+        for (int i = 0; i < hardwareFilters.length; i++) {
+            ids[i] = hardwareFilters[i].getId();
+            masks[i] = hardwareFilters[i].getMask();
+            if (masks[i] == 0) return null; // this one passes everything
+        }
+        return VehicleBusSoftFilter.create(null, null, null, ids, masks);
+    } // createHardwareSoftFilter()
+
+
+    ///////////////////////////////////////////////
+    // getReconfigureMs(), getReconfigureRxGapMs()
+    //  how long the last reconfiguration of the port took until the socket was ready again,
+    //  and until the first frame was received after it (-1 if not done or nothing received yet)
+    ///////////////////////////////////////////////
+    public int getReconfigureMs() {
+        return busWrapper.lastReconfigureMs;
+    }
+
+    public int getReconfigureRxGapMs() {
+        if (rxGapMeasuredFor != busWrapper.reconfigureStartedRealtime) return -1;
+        return lastRxGapMs;
+    }
+
+    ///////////////////////////////////////////////
+    // getSoftFilterRejectCount()
+    //  number of received frames that were discarded by the software filter
+    ///////////////////////////////////////////////
+    public long getSoftFilterRejectCount() {
+        VehicleBusSoftFilter filter = softFilter;
+        if (filter == null) return 0;
+        return filter.getRejectedCount();
+    }
+
 
     //////////////////////////////////////////////////////
     // start() : starts the threads to listen and send CAN frames
@@ -94,22 +326,39 @@ public class VehicleBusCAN {
     //      2) Confirmed (if we previously received frames at this bitrate and haven't switched bitrates or restarted app since)
     //      3) Unconfirmed (all others .. this will start up in listen mode until a frame is received)
     ///////////////////////////////////////////////////////
-    public boolean start(int initial_bitrate, boolean auto_detect, VehicleBusWrapper.CANHardwareFilter[] hardwareFilters, int canNumber, ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
+    public boolean start(int initial_bitrate, boolean auto_detect, VehicleBusWrapper.CANHardwareFilter[] hardwareFilters, ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
 
 
-        Log.v(TAG, "start() @ " + initial_bitrate + "kb " +
+        Log.v(TAG, "start() CAN" + (canNumber - 1) + " @ " + initial_bitrate + "kb " +
                 (auto_detect ? "auto-detect " : (confirmedBusBitrate == initial_bitrate ? "normal " : "verify "))
             );
 
-        // close any prior socket that still exists
-        stop(); // stop any threads and sockets already running
+        startedBitrate = initial_bitrate;
+        startedAutoDetect = auto_detect;
+        startedFlowControls = flowControls;
 
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // if the hardware filters can't be changed later without re-creating the interface, open them up now and filter in software
+        if ((!busWrapper.canReconfigureFilters()) && (createHardwareSoftFilter(hardwareFilters) != null)) {
+            hardwareSoftFilter = createHardwareSoftFilter(hardwareFilters);
+            hardwareFilters = VehicleBusWrapper.getWideFilters();
+        } else {
+            hardwareSoftFilter = null;
         }
 
+        busWrapper.beginReconfigure(); // measures the time until the socket is ready again
+
+        // close any prior socket that still exists, the threads of the port are kept and wait for the new one
+        stopBus();
+
+        // threads cancelled by a previous stop() may still be exiting, the control thread waits for that
+        //  before setting up again (and then only for as long as the interface still needs after its removal)
+        busWrapper.runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                waitThreadsClosed(MAX_THREAD_EXIT_MS);
+            }
+        });
+
         if (busWrapper.isUnitTesting) {
             // since we are unit testing and not on realy device, even creating the CanbusInterface will fail fatally,
             //  so we need to skip this in testing
@@ -117,6 +366,25 @@ public class VehicleBusCAN {
             return false;
         }
 
+        if (txCompletions == null) {
+            txCompletions = new VehicleBusTxCompletions(context, BUS_NAME, canNumber, (service != null ? service.binder : null));
+        }
+
+        // bound clients always receive batches, regardless of how frames are broadcast
+        //  (the batch and its thread are kept from the previous start, only the settings may change)
+        VehicleBusRxBatch batch = rxBatch;
+        if (batch == null) {
+            batch = new VehicleBusRxBatch(context, canNumber,
+                    (service != null ? service.binder : null),
+                    (rxMode == VehicleBusConstants.CAN_RX_MODE_BATCH),
+                    rxBatchFrames, rxBatchMs);
+            rxBatch = batch;
+        } else {
+            batch.configure((rxMode == VehicleBusConstants.CAN_RX_MODE_BATCH), rxBatchFrames, rxBatchMs);
+        }
+        batch.start();
+
+        j1939Request.start(getPortName());
 
         // we need to start up a bus at the intial_bitrate,
         // we should always start in listen-only mode?
@@ -135,8 +403,8 @@ public class VehicleBusCAN {
 
             // we know that this bitrate works since we've already used this bitrate
             // put our sockets into read & write mode
-            busWrapper.setCharacteristics(false, initial_bitrate, hardwareFilters, canNumber, flowControls);// Todo: Added canNumber, monitor this one and make sure it works.
-            if (!busWrapper.start(BUS_NAME, busReadyReadWriteCallback, null)) {
+            busWrapper.setCharacteristics(false, initial_bitrate, hardwareFilters, flowControls);
+            if (!busWrapper.start(BUS_NAME, busReadyReadWriteCallback, busTerminatedCallback)) {
                 Log.e(TAG, "Error starting bus with bus wrapper.");
                 return false;
             }
@@ -147,8 +415,8 @@ public class VehicleBusCAN {
             // put our sockets in read-only mode
             clearConfirmedBitRate(); // erase any prior confirmations of bitrate
             clearConfirmedCanNumber();
-            busWrapper.setCharacteristics(true, initial_bitrate, hardwareFilters, canNumber, flowControls);
-            if (!busWrapper.start(BUS_NAME, busReadyReadOnlyCallback, null)) {
+            busWrapper.setCharacteristics(true, initial_bitrate, hardwareFilters, flowControls);
+            if (!busWrapper.start(BUS_NAME, busReadyReadOnlyCallback, busTerminatedCallback)) {
                 Log.e(TAG, "Error starting bus with bus wrapper.");
                 return false;
             }
@@ -159,6 +427,12 @@ public class VehicleBusCAN {
         try {
             IntentFilter intentFilter = new IntentFilter();
             intentFilter.addAction(VehicleBusConstants.BROADCAST_CAN_TX);
+            intentFilter.addAction(VehicleBusConstants.BROADCAST_CAN_TX_BATCH);
+            intentFilter.addAction(VehicleBusConstants.BROADCAST_CAN_PERIODIC_TX);
+            intentFilter.addAction(VehicleBusConstants.BROADCAST_J1939_TX);
+            intentFilter.addAction(VehicleBusConstants.BROADCAST_J1939_REQUEST);
+            intentFilter.addAction(VehicleBusConstants.BROADCAST_ISOTP_CHANNEL);
+            intentFilter.addAction(VehicleBusConstants.BROADCAST_ISOTP_TX);
             context.registerReceiver(txReceiver, intentFilter);
             Log.v(TAG, "TX Receiver Registered");
         } catch (Exception e) {
@@ -177,10 +451,37 @@ public class VehicleBusCAN {
 
     ///////////////////////////////////////////////////////
     // stop()
-    //  called on shutdown
+    //  called on shutdown, or when the port is stopped
+    //  the read, dispatch and write threads of the port exit
     ///////////////////////////////////////////////////////
     public void stop() {
 
+        stopBus();
+
+        if (canReadRunnable != null)
+            canReadRunnable.cancel();
+        if (canDispatchRunnable != null)
+            canDispatchRunnable.cancel();
+        if (canWriteRunnable != null)
+            canWriteRunnable.cancel();
+
+        VehicleBusRxBatch batch = rxBatch;
+        rxBatch = null;
+        if (batch != null) {
+            batch.stop(); // sends anything still waiting in the batch
+        }
+
+        j1939Request.stop(); // requests still waiting are cancelled
+
+    } // stop()
+
+
+    ///////////////////////////////////////////////////////
+    // stopBus()
+    //  closes the socket and stops receiving Tx requests, but keeps the threads of the port:
+    //  they wait for the socket of the next start
+    ///////////////////////////////////////////////////////
+    void stopBus() {
 
         try {
             context.unregisterReceiver(txReceiver);
@@ -197,11 +498,51 @@ public class VehicleBusCAN {
         }
 
         if (canReadRunnable != null)
-            canReadRunnable.cancelThread = true;
+            canReadRunnable.bind(null);
         if (canWriteRunnable != null)
-            canWriteRunnable.cancelThread = true;
+            canWriteRunnable.bind(null);
+
+        VehicleBusRxBatch batch = rxBatch;
+        if (batch != null) {
+            batch.flush(); // sends anything still waiting in the batch
+        }
+
+        if (txCompletions != null) {
+            txCompletions.flush();
+        }
+
+        j1939Request.cancel(); // requests still waiting are cancelled
+
+    } // stopBus()
 
-    } // stop()
+
+    ///////////////////////////////////////////////////////
+    // waitThreadsClosed()
+    //  waits (up to maxMs) for the read, dispatch and write threads that were cancelled by stop() to exit
+    //  returns true if they all did
+    ///////////////////////////////////////////////////////
+    boolean waitThreadsClosed(int maxMs) {
+        long deadline = SystemClock.elapsedRealtime() + maxMs;
+        while (!areThreadsClosed()) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                Log.w(TAG, "CAN" + (canNumber - 1) + " threads did not exit within " + maxMs + " ms");
+                return false;
+            }
+            SystemClock.sleep(5);
+        }
+        return true;
+    } // waitThreadsClosed()
+
+    boolean areThreadsClosed() {
+        if (busWrapper.isUnitTesting) return true; // threads are never started
+        CANReadRunnable reader = canReadRunnable;
+        CANDispatchRunnable dispatcher = canDispatchRunnable;
+        CANWriteRunnable writer = canWriteRunnable;
+        // threads that were not cancelled are kept for the next start
+        return ((reader == null) || (!reader.cancelThread) || (reader.isClosed)) &&
+                ((dispatcher == null) || (!dispatcher.cancelThread) || (dispatcher.isClosed)) &&
+                ((writer == null) || (!writer.cancelThread) || (writer.isClosed));
+    } // areThreadsClosed()
 
 
     ///////////////////////////////////////////////////////
@@ -225,6 +566,10 @@ public class VehicleBusCAN {
 //                Log.v(TAG, "busReadyReadWriteCallback()");
                 startReading();
                 startWriting();
+
+                // frames held while being promoted from listen-only mode can be delivered now
+                promotionReady = true;
+                if (canDispatchRunnable != null) canDispatchRunnable.rxQueue.wakeConsumer();
 //                Log.v(TAG, "busReadyReadWriteCallback() END");
             } catch (Exception e) {
                 Log.e(TAG + ".busReadyReadWriteCallback", "Exception: " + e.toString(), e);
@@ -233,6 +578,25 @@ public class VehicleBusCAN {
     }; // busReadyReadWriteCallback()
 
 
+    ///////////////////////////////////////////////////////////
+    // busTerminatedCallback()
+    //  This is called when the socket was closed, the threads wait for the next one
+    ///////////////////////////////////////////////////////////
+    private Runnable busTerminatedCallback = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (canReadRunnable != null)
+                    canReadRunnable.bind(null);
+                if (canWriteRunnable != null)
+                    canWriteRunnable.bind(null);
+            } catch (Exception e) {
+                Log.e(TAG + ".busTerminatedCallback", "Exception: " + e.toString(), e);
+            }
+        } // run()
+    }; // busTerminatedCallback()
+
+
     ///////////////////////////////////////////////////////////
     // busReadyReadOnlyCallback()
     //  This is called when a listen-only socket is ready
@@ -255,7 +619,8 @@ public class VehicleBusCAN {
 
     ///////////////////////////////////////////////////////////
     // startReading()
-    //  starts a new read thread after a read thread is previously opened
+    //  reads from the socket that is now ready
+    //  the read thread (with its queue and dispatch thread) is only started the first time, after that it is given the new socket
     ///////////////////////////////////////////////////////////
     boolean startReading() {
 
@@ -265,25 +630,30 @@ public class VehicleBusCAN {
 
         if (canSocket == null) return false;
 
-        // Safety: make sure we cancel any previous thread if we are starting a new one
-        if (canReadRunnable != null)
-            canReadRunnable.cancelThread = true;
-
-        canReadRunnable = new CANReadRunnable(canSocket);
-
-        // If we aren't unit testing, then start the thread
-        if (!busWrapper.isUnitTesting) {
-            Thread clientThread = new Thread(canReadRunnable);
-            clientThread.start();
+        if ((canReadRunnable == null) || (canReadRunnable.cancelThread)) {
+            VehicleBusRxQueue rxQueue = new VehicleBusRxQueue(VehicleBusRxQueue.DEFAULT_CAPACITY);
+            canReadRunnable = new CANReadRunnable(rxQueue);
+            canDispatchRunnable = new CANDispatchRunnable(rxQueue);
+
+            // If we aren't unit testing, then start the thread
+            if (!busWrapper.isUnitTesting) {
+                Thread dispatchThread = new Thread(canDispatchRunnable, "CAN" + (canNumber - 1) + "-Dispatch");
+                dispatchThread.start();
+                Thread clientThread = new Thread(canReadRunnable, "CAN" + (canNumber - 1) + "-Read");
+                clientThread.start();
+            }
         }
 
+        canReadRunnable.bind(canSocket);
+
         return true;
     } // startReading()
 
 
     ///////////////////////////////////////////////////////////
     // startWriting()
-    //  starts a new write thread after a read thread is previously opened
+    //  writes to the socket that is now ready
+    //  the write thread is only started the first time, after that it is given the new socket
     ///////////////////////////////////////////////////////////
     boolean startWriting() {
 
@@ -293,22 +663,34 @@ public class VehicleBusCAN {
 
         if ( canSocket == null) return false;
 
-        // Safety: make sure we cancel any previous thread if we are starting a new one
-        if (canWriteRunnable != null)
-            canWriteRunnable.cancelThread = true;
+        if ((canWriteRunnable == null) || (canWriteRunnable.cancelThread)) {
+            // size and overflow policy of the TX queue
+            txQueueSize = Math.min(Config.getTxQueueSize(getPortName(), DEFAULT_TX_QUEUE_SIZE), SAFETY_MAX_OUTGOING_QUEUE_SIZE);
+            txOverflowPolicy = Config.getTxOverflowPolicy(getPortName(), VehicleBusTxQueue.OVERFLOW_DROP_NEWEST);
+            canWriteRunnable = new CANWriteRunnable();
 
-        canWriteRunnable = new CANWriteRunnable(canSocket);
-
-        // If we aren't unit testing, then start the thread
-        if (!busWrapper.isUnitTesting) {
-            Thread clientThread = new Thread(canWriteRunnable);
-            clientThread.start();
+            // If we aren't unit testing, then start the thread
+            if (!busWrapper.isUnitTesting) {
+                Thread clientThread = new Thread(canWriteRunnable, "CAN" + (canNumber - 1) + "-Write");
+                clientThread.start();
+            }
         }
 
+        canWriteRunnable.bind(canSocket);
+
         return true;
     } // startWriting()
 
 
+    ///////////////////////////////////////////////
+    // getLiveThreadCount()
+    //  CAN read, dispatch and write threads that are running in the process (all ports, including ones still exiting)
+    ///////////////////////////////////////////////
+    public static int getLiveThreadCount() {
+        return liveThreads.get();
+    }
+
+
     ///////////////////////////////////////////////
     // isWriteReady()
     //  Are we capable of writing frames to the CAN bus
@@ -343,6 +725,65 @@ public class VehicleBusCAN {
     }
 
 
+    ///////////////////////////////////////////////
+    // getRxQueueHighWaterMark()
+    //  the most received frames that were ever waiting for the dispatch thread at once (since the port was started)
+    ///////////////////////////////////////////////
+    public int getRxQueueHighWaterMark() {
+        CANReadRunnable reader = canReadRunnable;
+        if (reader == null) return 0;
+        return reader.rxQueue.getHighWaterMark();
+    }
+
+    ///////////////////////////////////////////////
+    // getRxQueueOverflowCount()
+    //  number of received frames dropped because the dispatch thread fell behind (since the port was started)
+    ///////////////////////////////////////////////
+    public long getRxQueueOverflowCount() {
+        CANReadRunnable reader = canReadRunnable;
+        if (reader == null) return 0;
+        return reader.rxQueue.getOverflowCount();
+    }
+
+    ///////////////////////////////////////////////
+    // getTxLatencyAvgMicros(), getTxLatencyMaxMicros()
+    //  time from a frame being queued to send until it was written to the socket (since the port was started)
+    ///////////////////////////////////////////////
+    public long getTxLatencyAvgMicros() {
+        CANWriteRunnable writer = canWriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getLatencyAvgMicros();
+    }
+
+    public long getTxLatencyMaxMicros() {
+        CANWriteRunnable writer = canWriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getLatencyMaxMicros();
+    }
+
+    ///////////////////////////////////////////////
+    // getTxDroppedNewestCount(), getTxDroppedOldestCount(), getTxRejectedCount()
+    //  frames lost because the TX queue was full, for each overflow policy (since the port was started)
+    ///////////////////////////////////////////////
+    public long getTxDroppedNewestCount() {
+        CANWriteRunnable writer = canWriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getDroppedNewestCount();
+    }
+
+    public long getTxDroppedOldestCount() {
+        CANWriteRunnable writer = canWriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getDroppedOldestCount();
+    }
+
+    public long getTxRejectedCount() {
+        CANWriteRunnable writer = canWriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getRejectedCount();
+    }
+
+
     ///////////////////////////////////////////////////////
     // getBitrate()
     //  return the current bitrate from our wrapper
@@ -352,13 +793,15 @@ public class VehicleBusCAN {
     }
 
     public int getCanNumber() {
-        if (busWrapper != null) {
-            VehicleBusHW.CANSocket socket = busWrapper.getCANSocket();
-            if (socket != null) {
-                return socket.canNumber;
-            }
-        }
-        return -1;
+        return canNumber;
+    }
+
+    ///////////////////////////////////////////////////////
+    // getPortName()
+    //  the name of this port in configuration.xml
+    ///////////////////////////////////////////////////////
+    String getPortName() {
+        return "CAN" + (canNumber - 1);
     }
 
 
@@ -366,15 +809,22 @@ public class VehicleBusCAN {
     ///////////////////////////////////////////////////////////////////
     // abortTransmits()
     //  stop attempting to send any Tx packets in progress (maybe our address was changed, etc..)
+    //  called by the write thread
     ///////////////////////////////////////////////////////////////////
-    void abortTransmits() {
+    void abortTransmits(VehicleBusTxQueue<VehicleBusWrapper.CANFrame> txQueue, VehicleBusTxScheduler txScheduler) {
 
         // TODO: kill any frames in the CAN queue (must happen within 50 ms)
         // Is this implemented in CAN API yet?
 
-        // kill any frames in our queue
-        synchronized (outgoingList) {
-            outgoingList.clear();
+        // kill any frames in our queue (reporting the ones with a txId)
+        txQueue.clear();
+        while (!txScheduler.isEmpty()) {
+            int txId = txScheduler.peekTxId();
+            long enqueueNanos = txScheduler.peekEnqueueNanos();
+            txScheduler.remove();
+            if (txCompletions != null) {
+                txCompletions.add(txId, VehicleBusConstants.TX_RESULT_ABORTED, enqueueNanos, 0, 0);
+            }
         }
     } // abortTransmits
 
@@ -396,21 +846,32 @@ public class VehicleBusCAN {
         State state;
         state = new State(context);
 
-        state.writeState(State.CAN_CONFIRMED_BITRATE, confirmedBusBitrate ); // this is our discovered bitrate
+        state.writeState(State.forPort(State.CAN_CONFIRMED_BITRATE, canNumber), confirmedBusBitrate ); // this is our discovered bitrate
     }
 
     /**
      * setConfirmedCanNumber()
      *  sets the canNumber as confirmed, so we don't need to start in listening mode next time.
      * **/
-    void setConfirmedCanNumber(int canNumber){
-        confirmedCanNumber = canNumber;
+    void setConfirmedCanNumber(int confirmedNumber){
+        confirmedCanNumber = confirmedNumber;
 
         Log.v(TAG, "CAN Number " + confirmedCanNumber + " is confirmed");
         State state;
         state = new State(context);
 
-        state.writeState(State.CAN_CONFIRMED_NUMBER, confirmedCanNumber);
+        state.writeState(State.forPort(State.CAN_CONFIRMED_NUMBER, canNumber), confirmedCanNumber);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////
+    // forgetConfirmed()
+    //  a port that is started again only uses a confirmation that is loaded or set for this start
+    //  (the saved confirmation is not changed)
+    ///////////////////////////////////////////////////////////////////
+    void forgetConfirmed() {
+        confirmedBusBitrate = 0;
+        confirmedCanNumber = 0;
     }
 
 
@@ -428,7 +889,7 @@ public class VehicleBusCAN {
         State state;
         state = new State(context);
 
-        state.writeState(State.CAN_CONFIRMED_BITRATE, confirmedBusBitrate ); // this is our discovered bitrate
+        state.writeState(State.forPort(State.CAN_CONFIRMED_BITRATE, canNumber), confirmedBusBitrate ); // this is our discovered bitrate
     }
 
     /**
@@ -441,7 +902,7 @@ public class VehicleBusCAN {
         State state;
         state = new State(context);
 
-        state.writeState(State.CAN_CONFIRMED_NUMBER, confirmedCanNumber);
+        state.writeState(State.forPort(State.CAN_CONFIRMED_NUMBER, canNumber), confirmedCanNumber);
     }
 
 
@@ -455,7 +916,7 @@ public class VehicleBusCAN {
         State state;
         state = new State(context);
 
-        confirmedBusBitrate = state.readState(State.CAN_CONFIRMED_BITRATE); // this is our discovered bitrate
+        confirmedBusBitrate = state.readState(State.forPort(State.CAN_CONFIRMED_BITRATE, canNumber)); // this is our discovered bitrate
 
         Log.v(TAG, "Loaded confirmed CAN bitrate " + confirmedBusBitrate);
     }
@@ -469,17 +930,26 @@ public class VehicleBusCAN {
         State state;
         state =new State(context);
 
-        confirmedCanNumber = state.readState(State.CAN_CONFIRMED_NUMBER);
+        confirmedCanNumber = state.readState(State.forPort(State.CAN_CONFIRMED_NUMBER, canNumber));
 
         Log.v(TAG, "Loaded confirmed can number " + confirmedCanNumber);
     }
 
 
     ///////////////////////////////////////////////////////////////////
-    // receiveFrame() : called by CAN thread when something is received
+    // receiveFrame() : called by CAN dispatch thread when something is received
+    //  elapsedRealtime : the time the read thread received the frame
     ///////////////////////////////////////////////////////////////////
-    void receiveFrame(VehicleBusWrapper.CANFrame frame) {
-
+    void receiveFrame(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
+
+        // the first frame received after a reconfiguration ends the gap in reception
+        long reconfigureStarted = busWrapper.reconfigureStartedRealtime;
+        if ((reconfigureStarted != rxGapMeasuredFor) && (elapsedRealtime >= reconfigureStarted)) {
+            int gap = (int) (elapsedRealtime - reconfigureStarted);
+            lastRxGapMs = gap;
+            if (gap > maxRxGapMs) maxRxGapMs = gap;
+            rxGapMeasuredFor = reconfigureStarted;
+        }
 
         // Are we unconfirmed ?
         if (confirmedBusBitrate == 0) {
@@ -495,31 +965,463 @@ public class VehicleBusCAN {
             setConfirmedBitRate(busWrapper.getCANBitrate()); // remember that we are good at this bitrate;
 
             // restart everything in read/write mode
+            //  (the library only sets listen-only mode when creating the interface, so it is re-created)
+            promotionReady = false;
             busWrapper.setNormalMode();
-            busWrapper.restart(BUS_NAME, busReadyReadWriteCallback, null);
+            busWrapper.restart(BUS_NAME, busReadyReadWriteCallback, busTerminatedCallback);
 
+            // this frame, and whatever else is received until we are in normal mode, is delivered then
+            promoting = true;
+            promotionStartedRealtime = SystemClock.elapsedRealtime();
+            holdPromotionFrame(frame, elapsedRealtime);
+
+        } else if (promoting) {
+            holdPromotionFrame(frame, elapsedRealtime);
         } else {
-            // broadcast this frame to other applications
-            broadcastRx(frame);
+            deliverFrame(frame, elapsedRealtime);
         }
 
 
     } // receiveFrame()
 
 
+    ///////////////////////////////////////////////////////////////////
+    // holdPromotionFrame() : called by CAN dispatch thread
+    //  keeps a copy of a frame received while being promoted from listen-only to normal mode
+    ///////////////////////////////////////////////////////////////////
+    void holdPromotionFrame(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
+
+        if (promotionCount == MAX_PROMOTION_FRAMES) {
+            promotionFramesDropped++;
+            return;
+        }
+
+        // the frame belongs to the RX queue, so it is copied
+        byte[] data = frame.getData();
+        promotionFrames[promotionCount] = new VehicleBusWrapper.CANFrame(frame.getId(),
+                (data == null ? new byte[0] : data.clone()),
+                VehicleBusWrapper.CANFrameType.downcast(frame.getType()));
+        promotionTimes[promotionCount] = elapsedRealtime;
+        promotionCount++;
+    } // holdPromotionFrame()
+
+
+    ///////////////////////////////////////////////////////////////////
+    // checkPromotion() : called by CAN dispatch thread
+    //  delivers the frames held during promotion once the socket is in normal mode
+    //  (or after MAX_PROMOTION_MS, or when the thread is stopping, so they are never kept for good)
+    ///////////////////////////////////////////////////////////////////
+    void checkPromotion(boolean stopping) {
+
+        if (!promoting) return;
+        if ((!promotionReady) && (!stopping) &&
+                (SystemClock.elapsedRealtime() - promotionStartedRealtime < MAX_PROMOTION_MS)) return;
+
+        Log.d(TAG, "CAN" + (canNumber - 1) + " in normal mode" + (promotionReady ? "" : " (or gave up waiting)") +
+                ", delivering " + promotionCount + " frames received during promotion");
+
+        promoting = false;
+        for (int i = 0; i < promotionCount; i++) {
+            deliverFrame(promotionFrames[i], promotionTimes[i]);
+            promotionFrames[i] = null;
+        }
+        promotionFramesKept += promotionCount;
+        promotionCount = 0;
+    } // checkPromotion()
+
+
+    ///////////////////////////////////////////////////////////////////
+    // deliverFrame() : called by CAN dispatch thread
+    //  does everything that is done with a received frame once the bitrate is confirmed
+    ///////////////////////////////////////////////////////////////////
+    void deliverFrame(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
+
+        // frames the hardware filters would have blocked if they had not been opened up
+        boolean isExtended = (VehicleBusWrapper.CANFrameType.downcast(frame.getType()) == VehicleBusWrapper.CANFrameType.EXTENDED);
+        VehicleBusSoftFilter hwFilter = hardwareSoftFilter;
+        if ((hwFilter != null) && (!hwFilter.accept(frame.getId(), isExtended))) return;
+
+        // statistics are kept on everything that is received, whether it is delivered or not
+        byte[] data = frame.getData();
+        trafficStats.update(frame.getId(), isExtended, (data == null ? 0 : data.length), elapsedRealtime);
+
+        // replies to the PGNs we requested
+        j1939Request.receive(frame.getId(), isExtended, frame.getData(), elapsedRealtime);
+
+        // CTS, EOM and abort frames for the J1939 messages we are sending
+        if (j1939TpTx.receive(frame.getId(), isExtended, frame.getData())) {
+            CANWriteRunnable writer = canWriteRunnable;
+            if (writer != null) writer.txQueue.wakeConsumer();
+        }
+
+        // ISO-TP frames of an open channel are only delivered as part of a complete message
+        int isoTpResult = isoTp.receive(frame.getId(), isExtended, frame.getData(), elapsedRealtime);
+        if (isoTpResult != VehicleBusIsoTp.RESULT_NOT_ISOTP) {
+            if (isoTpResult == VehicleBusIsoTp.RESULT_WAKE_WRITER) {
+                CANWriteRunnable writer = canWriteRunnable;
+                if (writer != null) writer.txQueue.wakeConsumer();
+            }
+            return;
+        }
+
+        // transport protocol frames are only delivered as part of a complete message
+        //  (before the software filter, so the filter does not need to include the TP PGNs;
+        //  the complete message is checked against it with the PGN it carries)
+        VehicleBusJ1939Tp tp = j1939Tp;
+        if (tp != null) {
+            int result = tp.receive(frame.getId(), isExtended, frame.getData(), elapsedRealtime);
+            if (result == VehicleBusJ1939Tp.RESULT_COMPLETE) {
+                deliverJ1939Message(tp);
+            }
+            if (result != VehicleBusJ1939Tp.RESULT_NOT_TP) return;
+        }
+
+        // any frame confirms the bitrate above, but only frames that pass the software filter are delivered
+        VehicleBusSoftFilter filter = softFilter;
+        if ((filter != null) && (!filter.accept(frame.getId(), isExtended))) return;
+
+        lastValues.update(frame.getId(), isExtended, frame.getData(), elapsedRealtime);
+
+        if (rxMode == VehicleBusConstants.CAN_RX_MODE_FRAME) {
+            // broadcast this frame to other applications
+            broadcastRx(frame, elapsedRealtime);
+        }
+
+        VehicleBusRxBatch batch = rxBatch;
+        if ((batch != null) && (batch.isWanted())) {
+            // add this frame to the next batch sent to other applications
+            batch.add(frame, elapsedRealtime);
+        }
+
+        VehicleBusRing ring = (service != null ? service.rxRing : null);
+        if (ring != null) {
+            // copy this frame to the shared memory ring for clients that read it directly
+            ring.write((canNumber == FIRST_CAN_NUMBER ? VehicleBusConstants.RING_BUS_CAN : VehicleBusConstants.RING_BUS_CAN2),
+                    frame.getId(),
+                    (isExtended ? VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED : VehicleBusConstants.CAN_FRAME_TYPE_STANDARD),
+                    (isExtended ? (frame.getId() >> 26) & 0x07 : 0),
+                    frame.getData(), elapsedRealtime);
+        }
+    } // deliverFrame()
+
+
     ///////////////////////////////////////////////////////////////////
     // sendFrame() : safe to call from a different thread than the CAN threads
-    //  queues a frame to be sent by the write thread
+    //  queues a frame to be sent by the write thread, which is woken up right away
+    //  returns false if the frame was dropped (write thread not running or too much already queued)
     ///////////////////////////////////////////////////////////////////
-    void sendFrame(VehicleBusWrapper.CANFrame frame) {
+    boolean sendFrame(VehicleBusWrapper.CANFrame frame) {
+        return sendFrame(frame, VehicleBusTxCompletions.NO_TX_ID);
+    }
+
+    // txId : reported with what happened to the frame (see VehicleBusTxCompletions), NO_TX_ID if not wanted
+    boolean sendFrame(VehicleBusWrapper.CANFrame frame, int txId) {
 
         Log.vv(TAG, "SendFrame()");
-        synchronized (outgoingList) {
-            if (outgoingList.size() < SAFETY_MAX_OUTGOING_QUEUE_SIZE) {
-                outgoingList.add(frame);
+        CANWriteRunnable writer = canWriteRunnable;
+        if ((writer == null) || (!writer.isReady)) {
+            // not in normal mode yet, or no socket
+            if (txId != VehicleBusTxCompletions.NO_TX_ID) reportNotQueued(new int[] {txId}, 1);
+            return false;
+        }
+
+        if (writer.txQueue.offer(frame, txId)) return true;
+
+        if (writer.txQueue.getOverflowPolicy() == VehicleBusTxQueue.OVERFLOW_REJECT) {
+            broadcastTxNack(1, new int[] {frame.getId()});
+        }
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // sendFrames() : safe to call from a different thread than the CAN threads
+    //  queues the first count frames to be sent back to back by the write thread
+    //  returns false if none were queued (write thread not running or not enough room for all of them)
+    ///////////////////////////////////////////////////////////////////
+    boolean sendFrames(VehicleBusWrapper.CANFrame[] frames, int count) {
+        return sendFrames(frames, count, null);
+    }
+
+    // txIds : the txId of each frame (see VehicleBusTxCompletions), or null if not wanted
+    boolean sendFrames(VehicleBusWrapper.CANFrame[] frames, int count, int[] txIds) {
+
+        Log.vv(TAG, "SendFrames()");
+        if ((txIds != null) && (txIds.length < count)) txIds = null;
+
+        CANWriteRunnable writer = canWriteRunnable;
+        if ((writer == null) || (!writer.isReady)) {
+            // not in normal mode yet, or no socket
+            if (txIds != null) reportNotQueued(txIds, count);
+            return false;
+        }
+
+        if (writer.txQueue.offerAll(frames, count, txIds)) return true;
+
+        if (writer.txQueue.getOverflowPolicy() == VehicleBusTxQueue.OVERFLOW_REJECT) {
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = frames[i].getId();
             }
+            broadcastTxNack(count, ids);
         }
-        Log.vv(TAG, "SendFrame() END");
+        return false;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // reportNotQueued()
+    //  reports frames with these txIds as dropped when there is no write thread ready to queue them for
+    //  (sent right away, the write thread may not be there to flush them)
+    ///////////////////////////////////////////////////////////////////
+    void reportNotQueued(int[] txIds, int count) {
+
+        VehicleBusTxCompletions completions = txCompletions;
+        if (completions == null) return;
+
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            completions.add(txIds[i], VehicleBusConstants.TX_RESULT_DROPPED, now, 0, 0);
+        }
+        completions.flush();
+    } // reportNotQueued()
+
+    ///////////////////////////////////////////////////////////////////
+    // setPeriodicFrame() : safe to call from any thread
+    //  registers a frame to be sent every periodMs by the write thread (while it is running), or changes
+    //  the registration with this handle. Registrations stay until cancelled or this port is stopped.
+    //  updater : called right before each time the frame is sent, to change its data (may be null)
+    //  returns false if the parameters are not valid
+    ///////////////////////////////////////////////////////////////////
+    boolean setPeriodicFrame(int handle, int id, VehicleBusWrapper.CANFrameType type, byte[] data, int periodMs,
+                             VehicleBusPeriodicTx.PayloadUpdater updater) {
+
+        if (!periodicTx.set(handle, id, type, data, periodMs, updater)) return false;
+
+        // the write thread may be parked for longer than it takes this frame to be due
+        CANWriteRunnable writer = canWriteRunnable;
+        if (writer != null) writer.txQueue.wakeConsumer();
+        return true;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // cancelPeriodicFrame() : safe to call from any thread
+    //  returns false if there was no registration with this handle
+    ///////////////////////////////////////////////////////////////////
+    boolean cancelPeriodicFrame(int handle) {
+        return periodicTx.cancel(handle);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // sendJ1939Message() : safe to call from any thread
+    //  queues a J1939 message to be sent by the write thread, with the transport protocol if it is longer than 8 bytes
+    //  (BAM if destination is global, RTS/CTS otherwise). The result is sent with deliverJ1939TxResult().
+    //  transferId : chosen by the caller, given back with the result
+    //  returns false if the message is not valid, it can't be queued, or the write thread is not running
+    ///////////////////////////////////////////////////////////////////
+    boolean sendJ1939Message(int transferId, int priority, int pgn, int source, int destination, byte[] data) {
+
+        CANWriteRunnable writer = canWriteRunnable;
+        if ((writer == null) || (!writer.isReady)) return false; // not in normal mode yet, or no socket
+
+        if (!j1939TpTx.send(transferId, priority, pgn, source, destination, data)) return false;
+
+        writer.txQueue.wakeConsumer();
+        return true;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // deliverJ1939TxResult()
+    //  tells other applications how a J1939 message they asked to send ended
+    //  called by the write thread
+    ///////////////////////////////////////////////////////////////////
+    void deliverJ1939TxResult(int transferId, int pgn, int source, int destination, int result) {
+
+        Log.v(TAG, "J1939 message --> PGN " + String.format("%04X", pgn) + " to " + destination + " result " + result);
+
+        Intent ibroadcast = new Intent();
+        ibroadcast.setAction(VehicleBusConstants.BROADCAST_J1939_TX_RESULT);
+
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, SystemClock.elapsedRealtime()); // ms since boot
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_TRANSFER_ID, transferId);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PGN, pgn);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_SOURCE, source);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DESTINATION, destination);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_RESULT, result);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+        context.sendBroadcast(ibroadcast);
+
+        VehicleBusBinder binder = (service != null ? service.binder : null);
+        if (binder != null) {
+            binder.deliverJ1939TxResult(canNumber, transferId, pgn, source, destination, result);
+        }
+    } // deliverJ1939TxResult()
+
+    ///////////////////////////////////////////////////////////////////
+    // requestJ1939Pgn() : safe to call from any thread
+    //  asks destination for the pgn with the Request PGN, or answers from the cached reply if it is not older than maxAgeMs
+    //  The result is sent with deliverJ1939RequestResult().
+    //  returns false if the request is not valid or can't be sent (then there is no result)
+    ///////////////////////////////////////////////////////////////////
+    boolean requestJ1939Pgn(int requestId, int pgn, int source, int destination, int timeoutMs, int maxAgeMs) {
+        return j1939Request.request(requestId, pgn, source, destination, timeoutMs, maxAgeMs);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // deliverJ1939RequestResult()
+    //  tells other applications the reply to a PGN they requested
+    ///////////////////////////////////////////////////////////////////
+    void deliverJ1939RequestResult(int requestId, int pgn, int destination, int responder, byte[] data, long timestamp, int result) {
+
+        Intent ibroadcast = new Intent();
+        ibroadcast.setAction(VehicleBusConstants.BROADCAST_J1939_REQUEST_RESULT);
+
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, timestamp);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_REQUEST_ID, requestId);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PGN, pgn);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DESTINATION, destination);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_RESPONDER, responder);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DATA, data);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_RESULT, result);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+        context.sendBroadcast(ibroadcast);
+
+        VehicleBusBinder binder = (service != null ? service.binder : null);
+        if (binder != null) {
+            binder.deliverJ1939RequestResult(canNumber, requestId, pgn, destination, responder, data, timestamp, result);
+        }
+    } // deliverJ1939RequestResult()
+
+    ///////////////////////////////////////////////////////////////////
+    // sendIsoTpMessage() : safe to call from any thread
+    //  queues a message to be sent by the write thread on an open ISO-TP channel (see VehicleBusIsoTp)
+    //  The result is sent with deliverIsoTpTxResult().
+    //  returns false if there is no such channel, the message is not valid, or the write thread is not running
+    ///////////////////////////////////////////////////////////////////
+    boolean sendIsoTpMessage(int handle, int messageId, byte[] data) {
+
+        CANWriteRunnable writer = canWriteRunnable;
+        if ((writer == null) || (!writer.isReady)) return false; // not in normal mode yet, or no socket
+
+        if (!isoTp.send(handle, messageId, data)) return false;
+
+        writer.txQueue.wakeConsumer();
+        return true;
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // deliverIsoTpMessage()
+    //  sends a message received on an ISO-TP channel to other applications
+    //  called by the dispatch thread
+    ///////////////////////////////////////////////////////////////////
+    void deliverIsoTpMessage(int handle, byte[] data, long timestamp) {
+
+        Log.v(TAG, "ISO-TP message <-- channel " + handle + " (" + data.length + " bytes)");
+
+        if (rxMode != VehicleBusConstants.CAN_RX_MODE_NONE) {
+            Intent ibroadcast = new Intent();
+            ibroadcast.setAction(VehicleBusConstants.BROADCAST_ISOTP_RX);
+
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, timestamp);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_HANDLE, handle);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_DATA, data);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+            context.sendBroadcast(ibroadcast);
+        }
+
+        VehicleBusBinder binder = (service != null ? service.binder : null);
+        if ((binder != null) && (binder.hasCallbacks())) {
+            binder.deliverIsoTpMessage(canNumber, handle, data, timestamp);
+        }
+    } // deliverIsoTpMessage()
+
+    ///////////////////////////////////////////////////////////////////
+    // deliverIsoTpTxResult()
+    //  tells other applications how an ISO-TP message they asked to send ended
+    //  called by the write thread
+    ///////////////////////////////////////////////////////////////////
+    void deliverIsoTpTxResult(int handle, int messageId, int result) {
+
+        Log.v(TAG, "ISO-TP message --> channel " + handle + " result " + result);
+
+        Intent ibroadcast = new Intent();
+        ibroadcast.setAction(VehicleBusConstants.BROADCAST_ISOTP_TX_RESULT);
+
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, SystemClock.elapsedRealtime()); // ms since boot
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_HANDLE, handle);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_MESSAGE_ID, messageId);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_RESULT, result);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+        context.sendBroadcast(ibroadcast);
+
+        VehicleBusBinder binder = (service != null ? service.binder : null);
+        if (binder != null) {
+            binder.deliverIsoTpTxResult(canNumber, handle, messageId, result);
+        }
+    } // deliverIsoTpTxResult()
+
+    ///////////////////////////////////////////////////////////////////
+    // broadcastTxNack()
+    //  tells other applications that frames they asked to send were rejected because the TX queue was full
+    ///////////////////////////////////////////////////////////////////
+    void broadcastTxNack(int count, int[] ids) {
+
+        Log.w(TAG, "TX queue full, rejected " + count + " frame(s)");
+
+        Intent ibroadcast = new Intent();
+        ibroadcast.setAction(VehicleBusConstants.BROADCAST_CAN_TX_NACK);
+
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, SystemClock.elapsedRealtime()); // ms since boot
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT, count);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS, ids);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+        context.sendBroadcast(ibroadcast);
+    } // broadcastTxNack()
+
+    ///////////////////////////////////////////////////////////////////
+    // createFrames()
+    //  creates the frames of a TX batch (cantxbatch broadcast or IVehicleBusService.sendCanFrames())
+    //  types : CAN_FRAME_TYPE_* of each frame, or null if all are extended
+    //  returns null if the arrays do not describe count valid frames
+    ///////////////////////////////////////////////////////////////////
+    static VehicleBusWrapper.CANFrame[] createFrames(int count, int[] ids, byte[] types, byte[] lengths, byte[] data) {
+
+        if ((ids == null) || (lengths == null) || (data == null)) return null;
+        if ((count <= 0) || (count > ids.length) || (count > lengths.length)) return null;
+        if ((types != null) && (count > types.length)) return null;
+        if (count > SAFETY_MAX_OUTGOING_QUEUE_SIZE) {
+            Log.e(TAG, "TX batch of " + count + " frames is larger than the maximum " + SAFETY_MAX_OUTGOING_QUEUE_SIZE);
+            return null;
+        }
+
+        VehicleBusWrapper.CANFrame[] frames = new VehicleBusWrapper.CANFrame[count];
+        for (int i = 0; i < count; i++) {
+            int length = lengths[i];
+            if ((length <= 0) || (length > MAX_DATA_LENGTH) || ((i * MAX_DATA_LENGTH) + length > data.length)) {
+                Log.e(TAG, "TX batch frame " + i + " has invalid length " + length);
+                return null;
+            }
+
+            byte[] frameData = new byte[length];
+            System.arraycopy(data, i * MAX_DATA_LENGTH, frameData, 0, length);
+
+            int type = (types != null ? types[i] : VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED);
+            frames[i] = new VehicleBusWrapper.CANFrame(ids[i], frameData, toFrameType(type));
+        }
+
+        return frames;
+    } // createFrames()
+
+    ///////////////////////////////////////////////////////////////////
+    // toFrameType()
+    //  type : one of the CAN_FRAME_TYPE_* values (anything else is extended)
+    ///////////////////////////////////////////////////////////////////
+    static VehicleBusWrapper.CANFrameType toFrameType(int type) {
+        if (type == VehicleBusConstants.CAN_FRAME_TYPE_STANDARD) return VehicleBusWrapper.CANFrameType.STANDARD;
+        return VehicleBusWrapper.CANFrameType.EXTENDED;
     }
 
 
@@ -532,9 +1434,7 @@ public class VehicleBusCAN {
             incomingList.clear();
         }
 
-        synchronized (outgoingList) {
-            outgoingList.clear();
-        }
+        // frames to send are only discarded by the write thread, see abortTransmits()
     } //clearQueues()
 
 
@@ -549,26 +1449,52 @@ public class VehicleBusCAN {
     ////////////////////////////////////////////////////////
     class CANWriteRunnable implements Runnable {
 
+        static final long IDLE_PARK_NS = 100 * 1000000L; // wake up at least this often to check for cancel
 
         volatile boolean cancelThread = false;
         volatile boolean isClosed = false;
         volatile boolean isReady = false;
         //CanbusInterface canInterface;
-        VehicleBusWrapper.CANSocket canWriteSocket;
+        volatile VehicleBusWrapper.CANSocket canWriteSocket; // the socket being written, null while there is none
+        final VehicleBusTxQueue<VehicleBusWrapper.CANFrame> txQueue = new VehicleBusTxQueue<VehicleBusWrapper.CANFrame>(txQueueSize, txOverflowPolicy, txCompletions);
+        final VehicleBusTxCompletions completions = txCompletions;
+        // frames taken from txQueue, written highest priority first (only used by this thread)
+        final VehicleBusTxScheduler txScheduler = new VehicleBusTxScheduler(txQueueSize);
+
+        CANWriteRunnable() {
+        }
 
-        CANWriteRunnable(VehicleBusWrapper.CANSocket socket) {
-//                CanbusInterface new_canInterface) {
+        // bind() : writes to this socket from now on (null to stop writing until the next one)
+        synchronized void bind(VehicleBusWrapper.CANSocket socket) {
+            VehicleBusWrapper.CANSocket current = canWriteSocket;
+            if ((socket != null) && (socket.isSameSocket(current))) return; // nothing changed
             canWriteSocket = socket;
+            txQueue.wakeConsumer();
+        }
+
+        void cancel() {
+            cancelThread = true;
+            txQueue.wakeConsumer();
         }
 
         public void run() {
 
+            liveThreads.incrementAndGet();
             VehicleBusWrapper.CANFrame outFrame = null;
 
             while (!cancelThread) {
 
+                VehicleBusWrapper.CANSocket socket = canWriteSocket;
+                if (socket == null) {
+                    // wait for the next socket
+                    isReady = false;
+                    if (completions != null) completions.flush();
+                    txQueue.await(IDLE_PARK_NS);
+                    continue;
+                }
+
                 // remove anything in our outgoing queues and connections
-                abortTransmits();
+                abortTransmits(txQueue, txScheduler);
 
                 if (!cancelThread) {
                     // Notify the main thread that we are ready for write
@@ -579,32 +1505,70 @@ public class VehicleBusCAN {
                     Log.v(TAG, "CAN-Write thread ready");
                     isReady = true;
 
+                    // periodic frames start over with this socket, J1939 and ISO-TP transfers from a previous socket are given up
+                    periodicTx.restart(System.nanoTime());
+                    j1939TpTx.cancelAll();
+                    isoTp.cancelAll();
+
                 }
 
 
-                while (!cancelThread) {
+                while ((!cancelThread) && (canWriteSocket == socket)) {
+
+                    // periodic frames that are due compete with everything else in the scheduler
+                    long nowNanos = System.nanoTime();
+                    periodicTx.collectDue(nowNanos, txScheduler);
+                    j1939TpTx.service(nowNanos, txScheduler);
+                    isoTp.service(nowNanos, txScheduler);
+
+                    // move everything queued since the last write into the scheduler, so the
+                    //  frame we write next is the highest priority one waiting (a batch only once it fits as a whole)
+                    while (txScheduler.getRoom() >= txQueue.peekBatchSize()) {
+                        VehicleBusWrapper.CANFrame queuedFrame = txQueue.poll();
+                        if (queuedFrame == null) break;
+                        txScheduler.add(queuedFrame, txQueue.getPolledEnqueueNanos(), txQueue.getPolledTxId(), txQueue.getPolledBatchLeft());
+                    }
+
+                    if (completions != null) completions.flushIfDue(nowNanos);
 
-                    // try and send a packet
-                    outFrame = null;
-                    // get what we need to send
-                    synchronized (outgoingList) {
-                        if (outgoingList.size() > 0) {
-                            outFrame = outgoingList.get(0);
-                            outgoingList.remove(0);
+                    // get what we need to send, or wait until something is queued or a periodic frame is due
+                    if (txScheduler.isEmpty()) {
+                        long parkNanos = isoTp.getNanosUntilNext(nowNanos,
+                                j1939TpTx.getNanosUntilNext(nowNanos, periodicTx.getNanosUntilNext(nowNanos, IDLE_PARK_NS)));
+                        if (parkNanos > 0) {
+                            if (completions != null) completions.flush(); // nothing more to write for now
+                            txQueue.await(parkNanos);
                         }
+                        continue;
                     }
-                    if (outFrame == null) {
-                        android.os.SystemClock.sleep(5); // we can wait 5 ms if nothing to send.
-                    } else {
-                        Log.v(TAG, "frame --> " + String.format("%02x", outFrame.getId()) + " : " + Log.bytesToHex(outFrame.getData(), outFrame.getData().length));
-                        try {
-                            canWriteSocket.write(outFrame);
-
-                            //Log.d(TAG, "Write Returns");
-                        } catch (Exception e) {
-                            // exceptions are expected if the interface is closed
-                            Log.v(TAG, "Exception on write socket. Canceling Thread");
-                            cancelThread = true;
+                    long enqueueNanos = txScheduler.peekEnqueueNanos();
+                    int txId = txScheduler.peekTxId();
+                    outFrame = txScheduler.remove();
+                    long dequeueNanos = System.nanoTime();
+
+                    if (Log.LOGLEVEL_VERBOSE_VERBOSE) {
+                        Log.vv(TAG, "frame --> " + String.format("%02x", outFrame.getId()) + " : " + Log.bytesToHex(outFrame.getData(), outFrame.getData().length));
+                    }
+                    try {
+                        socket.write(outFrame);
+                        long writtenNanos = System.nanoTime();
+                        // paced transport frames count their interval from here
+                        j1939TpTx.frameWritten(outFrame, writtenNanos);
+                        isoTp.frameWritten(outFrame, writtenNanos);
+                        txQueue.recordWritten(enqueueNanos);
+                        if (completions != null) {
+                            completions.add(txId, VehicleBusConstants.TX_RESULT_WRITTEN, enqueueNanos, dequeueNanos, writtenNanos);
+                        }
+
+                        //Log.d(TAG, "Write Returns");
+                    } catch (Exception e) {
+                        // exceptions are expected if the interface is closed, wait for the next socket
+                        Log.v(TAG, "Exception on write socket. Waiting for a new socket");
+                        if (completions != null) {
+                            completions.add(txId, VehicleBusConstants.TX_RESULT_WRITE_FAILED, enqueueNanos, dequeueNanos, System.nanoTime());
+                        }
+                        synchronized (this) {
+                            if (canWriteSocket == socket) canWriteSocket = null;
                         }
                     }
                 } // thread not canceled
@@ -612,8 +1576,10 @@ public class VehicleBusCAN {
             } // thread not cancelled
 
             isReady = false;
-            Log.v(TAG, "CAN Write Thread terminated");
+            Log.v(TAG, "CAN Write Thread terminated (" + txQueue.getWrittenCount() + " frames written, latency avg " +
+                    txQueue.getLatencyAvgMicros() + " us max " + txQueue.getLatencyMaxMicros() + " us)");
             isClosed = true;
+            liveThreads.decrementAndGet();
 
         } // run
     } // CAN Write communications (runnable)
@@ -623,86 +1589,196 @@ public class VehicleBusCAN {
 
 
     ////////////////////////////////////////////////////////
-    // CANRunnable : this is the code that runs on another thread and
-    //  handles CAN sending and receiving
+    // CANReadRunnable : this is the code that runs on another thread and
+    //  handles CAN receiving. It only reads and timestamps frames and hands them to the
+    //  dispatch thread, so nothing done with a frame can delay the next socket read.
+    //  Reads time out every READ_TIMEOUT_MS, so a cancel or a new socket is always seen, even on a quiet bus.
     ////////////////////////////////////////////////////////
     class CANReadRunnable implements Runnable {
 
+        static final long READ_TIMEOUT_MS = 100;
 
         volatile boolean cancelThread = false;
         volatile boolean isClosed = false;
         volatile boolean isReady = false;
 
         //CanbusInterface canInterface;
-        VehicleBusWrapper.CANSocket canReadSocket;
+        volatile VehicleBusWrapper.CANSocket canReadSocket; // the socket being read, null while there is none
+        VehicleBusRxQueue rxQueue;
+        final Object bindLock = new Object();
 
-        CANReadRunnable(VehicleBusWrapper.CANSocket new_canSocket) {
+        CANReadRunnable(VehicleBusRxQueue queue) {
 //            CanbusInterface new_canInterface) {
             //canInterface = new_canInterface;
-            canReadSocket = new_canSocket;
+            rxQueue = queue;
+        }
+
+        // bind() : reads from this socket from now on (null to stop reading until the next one)
+        void bind(VehicleBusWrapper.CANSocket socket) {
+            synchronized (bindLock) {
+                VehicleBusWrapper.CANSocket current = canReadSocket;
+                if ((socket != null) && (socket.isSameSocket(current))) return; // nothing changed
+                canReadSocket = socket;
+                bindLock.notifyAll();
+            }
+        }
+
+        void cancel() {
+            cancelThread = true;
+            bind(null);
         }
 
         public void run() {
 
+            liveThreads.incrementAndGet();
+            VehicleBusWrapper.CANSocket boundSocket = null;
 
             while (!cancelThread) {
 
-                // also remove anything that was incoming on last bus (so we know what bus it arrived on)
-                synchronized (incomingList) {
-                    incomingList.clear();
+                VehicleBusWrapper.CANSocket socket = canReadSocket;
+
+                if (socket == null) {
+                    // wait for the next socket
+                    isReady = false;
+                    boundSocket = null;
+                    synchronized (bindLock) {
+                        if ((canReadSocket == null) && (!cancelThread)) {
+                            try {
+                                bindLock.wait(READ_TIMEOUT_MS);
+                            } catch (InterruptedException e) {
+                                // check again
+                            }
+                        }
+                    }
+                    continue;
                 }
 
+                if (socket != boundSocket) {
+                    boundSocket = socket;
 
-                VehicleBusWrapper.CANFrame inFrame = null;
-
+                    // also remove anything that was incoming on last bus (so we know what bus it arrived on)
+                    synchronized (incomingList) {
+                        incomingList.clear();
+                    }
 
-                if (!cancelThread) {
                     // Notify the main thread that we are ready for read
                     if ((callbackHandler != null) && (readyRxRunnable != null)) {
                         callbackHandler.post(readyRxRunnable);
                     }
                     Log.v(TAG, "CAN-Read thread ready" );
                     isReady = true;
-
                 }
 
-                while (!cancelThread)  {
-                    // try and receive a packet
-                    inFrame = null;
-                    try {
+                // try and receive a packet directly into the next queue slot
+                VehicleBusWrapper.CANFrame inFrame = rxQueue.claim();
+                boolean received = false;
+                try {
 
-                        //Log.v(TAG, "Reading... ");
-                        inFrame = canReadSocket.read();
-                        //Log.v(TAG, "Done Reading... ");
+                    //Log.v(TAG, "Reading... ");
+                    received = socket.read(inFrame, READ_TIMEOUT_MS);
+                    //Log.v(TAG, "Done Reading... ");
 
-                    } catch (Exception e) {
-                        // exceptions are expected if the interface is closed
-                        Log.v(TAG, "Exception on read socket. Canceling Thread: " + e.getMessage());
-                        cancelThread = true;
+                } catch (Exception e) {
+                    // exceptions are expected if the interface is closed, wait for the next socket
+                    Log.v(TAG, "Exception on read socket. Waiting for a new socket: " + e.getMessage());
+                    synchronized (bindLock) {
+                        if (canReadSocket == socket) canReadSocket = null;
                     }
+                }
 
 
-                    if (inFrame != null) {
+                if (received) {
+                    // hand off to the dispatch thread, if it has fallen too far behind the frame is counted and dropped
+                    rxQueue.publish(inFrame, SystemClock.elapsedRealtime());
+                }
 
-                        Log.v(TAG, "frame  <-- " + String.format("%02x", inFrame.getId()) +
-                                " : " +
-                                Log.bytesToHex(inFrame.getData(), inFrame.getData().length));
+            } // thread not cancelled
+
+            isReady = false;
+            Log.v(TAG, "CAN Read Thread terminated");
+            isClosed = true;
+            liveThreads.decrementAndGet();
 
-                        receiveFrame(inFrame);
+            if (rxQueue.getOverflowCount() > 0) {
+                Log.w(TAG, "CAN Read queue overflowed: " + rxQueue.getOverflowCount() + " frames dropped, high water mark " + rxQueue.getHighWaterMark());
+            }
 
-                    }
+        } // run
+    } // CAN Read communications (runnable)
 
-                } // thread not canceled
 
+    ////////////////////////////////////////////////////////
+    // CANDispatchRunnable : this is the code that runs on another thread and
+    //  delivers the frames queued by the read thread
+    ////////////////////////////////////////////////////////
+    class CANDispatchRunnable implements Runnable {
+
+        static final long IDLE_PARK_NS = 100 * 1000000L; // wake up at least this often to check for cancel
+
+        volatile boolean cancelThread = false;
+        volatile boolean isClosed = false;
+
+        VehicleBusRxQueue rxQueue;
+
+        CANDispatchRunnable(VehicleBusRxQueue queue) {
+            rxQueue = queue;
+        }
+
+        void cancel() {
+            cancelThread = true;
+            rxQueue.wakeConsumer();
+        }
+
+        public void run() {
+
+            liveThreads.incrementAndGet();
+            Log.v(TAG, "CAN-Dispatch thread ready");
 
+            // once canceled, still deliver whatever the read thread had already queued
+            while ((!cancelThread) || (!rxQueue.isEmpty())) {
+
+                try {
+                    checkPromotion(false);
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception delivering frames held during promotion: " + e.toString(), e);
+                }
+
+                VehicleBusWrapper.CANFrame inFrame = rxQueue.peek();
+
+                if (inFrame == null) {
+                    rxQueue.await(IDLE_PARK_NS);
+                    continue;
+                }
+
+                // formatting every frame allocates, so this is only done at the extra verbose level
+                if (Log.LOGLEVEL_VERBOSE_VERBOSE) {
+                    Log.vv(TAG, "frame  <-- " + String.format("%02x", inFrame.getId()) +
+                            " : " +
+                            Log.bytesToHex(inFrame.getData(), inFrame.getData().length));
+                }
+
+                try {
+                    // the frame belongs to the queue, so nothing may keep it after this returns
+                    receiveFrame(inFrame, rxQueue.polledTimestamp);
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception dispatching frame: " + e.toString(), e);
+                } finally {
+                    rxQueue.release();
+                }
             } // thread not cancelled
 
-            isReady = false;
-            Log.v(TAG, "CAN Read Thread terminated");
+            try {
+                checkPromotion(true);
+            } catch (Exception e) {
+                Log.e(TAG, "Exception delivering frames held during promotion: " + e.toString(), e);
+            }
+
+            Log.v(TAG, "CAN Dispatch Thread terminated");
             isClosed = true;
+            liveThreads.decrementAndGet();
 
         } // run
-    } // CAN Read communications (runnable)
+    } // CAN Dispatch (runnable)
 
 
 
@@ -710,7 +1786,7 @@ public class VehicleBusCAN {
     // broadcastRx()
     //  send a local broadcast that we received a CAN frame from the bus
     ///////////////////////////////////////////////
-    void broadcastRx(VehicleBusWrapper.CANFrame frame) {
+    void broadcastRx(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
 
 
 
@@ -724,8 +1800,6 @@ public class VehicleBusCAN {
         //}
 
 
-        long elapsedRealtime = SystemClock.elapsedRealtime(); // ms since boot
-
         Intent ibroadcast = new Intent();
         //ibroadcast.setPackage(VehicleBusConstants.PACKAGE_NAME_ATS);
         ibroadcast.setAction(VehicleBusConstants.BROADCAST_CAN_RX);
@@ -735,15 +1809,55 @@ public class VehicleBusCAN {
         //ibroadcast.putExtra("password", VehicleBusService.BROADCAST_PASSWORD);
         ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_ID, frame.getId());
         ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_DATA, frame.getData());
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
 
         context.sendBroadcast(ibroadcast);
     } // broadcastRx
 
 
+    ///////////////////////////////////////////////////////////////////
+    // deliverJ1939Message()
+    //  sends the message just completed by the J1939 reassembly to other applications
+    ///////////////////////////////////////////////////////////////////
+    void deliverJ1939Message(VehicleBusJ1939Tp tp) {
+
+        // the software filter decides on the id the message would have had as a single frame
+        VehicleBusSoftFilter filter = softFilter;
+        if ((filter != null) &&
+                (!filter.accept(VehicleBusJ1939TpTx.getId(tp.completedPriority, tp.completedPgn, tp.completedDestination, tp.completedSource), true))) {
+            return;
+        }
+
+        Log.v(TAG, "J1939 message <-- PGN " + String.format("%04X", tp.completedPgn) + " from " + tp.completedSource +
+                " (" + tp.completedData.length + " bytes)");
+
+        if (rxMode != VehicleBusConstants.CAN_RX_MODE_NONE) {
+            Intent ibroadcast = new Intent();
+            ibroadcast.setAction(VehicleBusConstants.BROADCAST_J1939_RX);
+
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, tp.completedTimestamp);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PGN, tp.completedPgn);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PRIORITY, tp.completedPriority);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_SOURCE, tp.completedSource);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DESTINATION, tp.completedDestination);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DATA, tp.completedData);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+            context.sendBroadcast(ibroadcast);
+        }
+
+        VehicleBusBinder binder = (service != null ? service.binder : null);
+        if ((binder != null) && (binder.hasCallbacks())) {
+            binder.deliverJ1939Message(canNumber, tp.completedPgn, tp.completedPriority, tp.completedSource, tp.completedDestination,
+                    tp.completedData, tp.completedTimestamp);
+        }
+    } // deliverJ1939Message()
+
+
 
     ///////////////////////////////////////////////
     // TxReceiver()
-    //  receive a local broadcast to transmit a CAN frame over the bus
+    //  receive a local broadcast to transmit a CAN frame (or a batch of frames) over the bus
     ///////////////////////////////////////////////
     TxReceiver txReceiver = new TxReceiver();
     class TxReceiver extends BroadcastReceiver {
@@ -761,12 +1875,106 @@ public class VehicleBusCAN {
                     return;
                 }
 */
+                // every running port receives this, only the port it is meant for sends it
+                int txCanNumber = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, 0);
+                if ((txCanNumber == 0) && (service != null)) txCanNumber = service.getDefaultCanNumber();
+                if (txCanNumber != canNumber) return;
+
+                if (VehicleBusConstants.BROADCAST_J1939_TX.equals(intent.getAction())) {
+                    int transferId = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_TRANSFER_ID, 0);
+                    int priority = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PRIORITY, 6);
+                    int pgn = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PGN, -1);
+                    int source = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_SOURCE, -1);
+                    int destination = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DESTINATION, VehicleBusJ1939Tp.GLOBAL_ADDRESS);
+                    byte[] data = intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DATA);
+                    if (!sendJ1939Message(transferId, priority, pgn, source, destination, data)) {
+                        Log.e(TAG, "J1939 TX of PGN " + pgn + " was not queued");
+                        deliverJ1939TxResult(transferId, pgn, source, destination, VehicleBusConstants.J1939_TX_RESULT_INVALID);
+                    }
+                    return;
+                }
+
+                if (VehicleBusConstants.BROADCAST_ISOTP_CHANNEL.equals(intent.getAction())) {
+                    int handle = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_HANDLE, -1);
+                    int txCanId = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_TX_CAN_ID, -1);
+                    if (handle == -1) {
+                        Log.e(TAG, "Received ISO-TP channel without a handle");
+                    } else if (txCanId == -1) {
+                        isoTp.close(handle);
+                    } else if (!isoTp.open(handle, txCanId,
+                            intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_RX_CAN_ID, -1),
+                            toFrameType(intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_TYPE, VehicleBusConstants.CAN_FRAME_TYPE_STANDARD)),
+                            intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_BLOCK_SIZE, 0),
+                            intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_ST_MIN, 0))) {
+                        Log.e(TAG, "Received invalid ISO-TP channel " + handle);
+                    }
+                    return;
+                }
+
+                if (VehicleBusConstants.BROADCAST_ISOTP_TX.equals(intent.getAction())) {
+                    int handle = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_HANDLE, -1);
+                    int messageId = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_ISOTP_MESSAGE_ID, 0);
+                    if (!sendIsoTpMessage(handle, messageId, intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_DATA))) {
+                        Log.e(TAG, "ISO-TP message on channel " + handle + " was not queued");
+                        deliverIsoTpTxResult(handle, messageId, VehicleBusConstants.ISOTP_RESULT_INVALID);
+                    }
+                    return;
+                }
+
+                if (VehicleBusConstants.BROADCAST_J1939_REQUEST.equals(intent.getAction())) {
+                    int requestId = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_REQUEST_ID, 0);
+                    int pgn = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_PGN, -1);
+                    int source = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_SOURCE, -1);
+                    int destination = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_DESTINATION, VehicleBusJ1939Tp.GLOBAL_ADDRESS);
+                    int timeoutMs = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_TIMEOUT_MS, 0);
+                    int maxAgeMs = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_J1939_MAX_AGE_MS, VehicleBusJ1939Request.DEFAULT_MAX_AGE_MS);
+                    if (!requestJ1939Pgn(requestId, pgn, source, destination, timeoutMs, maxAgeMs)) {
+                        Log.e(TAG, "J1939 request of PGN " + pgn + " was not sent");
+                        deliverJ1939RequestResult(requestId, pgn, destination, -1, null, 0, VehicleBusConstants.J1939_REQUEST_RESULT_NOT_SENT);
+                    }
+                    return;
+                }
+
+                if (VehicleBusConstants.BROADCAST_CAN_PERIODIC_TX.equals(intent.getAction())) {
+                    int handle = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_PERIODIC_HANDLE, -1);
+                    int periodMs = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_PERIODIC_MS, 0);
+                    if (handle == -1) {
+                        Log.e(TAG, "Received periodic CAN TX without a handle");
+                    } else if (periodMs == 0) {
+                        cancelPeriodicFrame(handle);
+                    } else {
+                        int id = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_ID, -1);
+                        int type = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_TYPE, VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED);
+                        byte[] data = intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_DATA);
+                        if ((id == -1) || (!setPeriodicFrame(handle, id, toFrameType(type), data, periodMs, null))) {
+                            Log.e(TAG, "Received invalid periodic CAN TX " + handle);
+                        }
+                    }
+                    return;
+                }
+
+                if (VehicleBusConstants.BROADCAST_CAN_TX_BATCH.equals(intent.getAction())) {
+                    int count = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT, 0);
+                    VehicleBusWrapper.CANFrame[] frames = createFrames(count,
+                            intent.getIntArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS),
+                            intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TYPES),
+                            intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_LENGTHS),
+                            intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_DATA));
+                    if (frames == null) {
+                        Log.e(TAG, "Received invalid CAN TX batch");
+                    } else if (!sendFrames(frames, count, intent.getIntArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_IDS))) {
+                        Log.w(TAG, "CAN TX batch of " + count + " frames was not queued");
+                    }
+                    return;
+                }
+
                 int id = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_ID, -1);
                 byte[] data = intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_DATA);
 
                 if ((id != -1) && (data != null) && (data.length > 0)) {
-                    VehicleBusWrapper.CANFrame frame = new VehicleBusWrapper.CANFrame(id, data, VehicleBusWrapper.CANFrameType.EXTENDED);
-                    sendFrame(frame);
+                    int type = intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_TYPE, VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED);
+                    VehicleBusWrapper.CANFrame frame = new VehicleBusWrapper.CANFrame(id, data, toFrameType(type));
+                    sendFrame(frame, intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_ID, VehicleBusTxCompletions.NO_TX_ID));
                 }
             } catch (Exception e) {
                 Log.e(TAG, ".txReceiver Exception : " + e.toString(), e);
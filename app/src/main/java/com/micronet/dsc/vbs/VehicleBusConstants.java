@@ -66,13 +66,79 @@ public final class VehicleBusConstants {
     public static final String SERVICE_EXTRA_HARDWAREFILTER_MASKS = "hardwareFilterMasks";
 
     //  Extra: "canPortNumber" (int). Defines which port that user wants to open for CanBus. Can1 = 2 / Can2 = 3.
-    //      use with START action only
+    //      Each port runs independently, so both can be started at once (one START for each).
+    //      With the STOP action, stops only this port. If not given, STOP stops all CAN ports.
     public static final String SERVICE_EXTRA_CAN_NUMBER = "canNumber";
 
     //  Extra: "flowControl" (boolean). Defines whether flow control should be used from /sdcard/VBS/config.xml.
     //      use with START action only
     public static final String SERVICE_EXTRA_FLOW_CONTROL = "flowControl";
 
+    //  Extra: "rxMode" (int). Defines how received CAN frames are delivered. One of the CAN_RX_MODE_* values below.
+    //      use with START action only
+    public static final String SERVICE_EXTRA_RX_MODE = "rxMode";
+
+    //  Extra: "rxBatchFrames" (int). Maximum number of frames in a canrxbatch broadcast before it is sent (default 64)
+    //      use with START action only
+    public static final String SERVICE_EXTRA_RX_BATCH_FRAMES = "rxBatchFrames";
+
+    //  Extra: "rxBatchMs" (int). Maximum time in ms a frame waits in a batch before the batch is sent (default 20)
+    //      use with START action only
+    public static final String SERVICE_EXTRA_RX_BATCH_MS = "rxBatchMs";
+
+    //  Extra: "softFilterIds" (array of ints). Software filter: CAN ids that are accepted exactly.
+    //      Received frames that match none of the software filters are discarded (after the hardware filters).
+    //      If no software filters are given, everything that passes the hardware filters is accepted.
+    //      use with START action only
+    public static final String SERVICE_EXTRA_SOFTFILTER_IDS = "softFilterIds";
+
+    //  Extra: "softFilterPgnLows" (array of ints). Software filter: lowest J1939 PGN of each accepted PGN range
+    //      use with START action only
+    public static final String SERVICE_EXTRA_SOFTFILTER_PGN_LOWS = "softFilterPgnLows";
+
+    //  Extra: "softFilterPgnHighs" (array of ints). Software filter: highest J1939 PGN of each accepted PGN range (inclusive)
+    //      use with START action only
+    public static final String SERVICE_EXTRA_SOFTFILTER_PGN_HIGHS = "softFilterPgnHighs";
+
+    //  Extra: "softFilterMaskIds" (array of ints). Software filter: ids that are accepted when compared under the matching mask
+    //      use with START action only
+    public static final String SERVICE_EXTRA_SOFTFILTER_MASK_IDS = "softFilterMaskIds";
+
+    //  Extra: "softFilterMasks" (array of ints). Software filter: masks corresponding to softFilterMaskIds
+    //      use with START action only
+    public static final String SERVICE_EXTRA_SOFTFILTER_MASKS = "softFilterMasks";
+
+    //  Extra: "softFilterConfig" (boolean). If true and no software filter extras are given, use the <softfilters>
+    //      of the port in /sdcard/VBS/configuration.xml.
+    //      use with START action only
+    public static final String SERVICE_EXTRA_SOFTFILTER_CONFIG = "softFilterConfig";
+
+    //  Extra: "j1939Tp" (boolean). If true, VBS reassembles J1939 transport protocol transfers (BAM and RTS/CTS)
+    //      and sends each complete message in one j1939rx broadcast instead of forwarding the TP.CM and TP.DT frames.
+    //      use with START action only
+    public static final String SERVICE_EXTRA_J1939_TP = "j1939Tp";
+
+
+    //////////////////////////////////////
+    // Values for the rxMode extra
+    //////////////////////////////////////
+
+    // one canrx broadcast for every received frame (default)
+    public static final int CAN_RX_MODE_FRAME = 0;
+    // received frames are collected and sent in canrxbatch broadcasts
+    public static final int CAN_RX_MODE_BATCH = 1;
+    // received frames are not broadcast, they are only delivered to clients bound to the service (see IVehicleBusService)
+    //  clients that only need the latest value of each id can poll IVehicleBusService.getLastValues() instead
+    public static final int CAN_RX_MODE_NONE = 2;
+
+
+    //////////////////////////////////////
+    // Values for the types extra
+    //////////////////////////////////////
+
+    public static final int CAN_FRAME_TYPE_STANDARD = 0; // 11-bit id
+    public static final int CAN_FRAME_TYPE_EXTENDED = 1; // 29-bit id
+
 
     //////////////////////////////////////
     // Broadcasts To or From the VBS Service
@@ -81,16 +147,89 @@ public final class VehicleBusConstants {
     // Broadcast: canrx : contains a Received CAN packet from the bus
     public static final String BROADCAST_CAN_RX = "com.micronet.dsc.vbs.canrx";
 
+    // Broadcast: canrxbatch : contains several Received CAN packets from the bus (rxMode = CAN_RX_MODE_BATCH)
+    public static final String BROADCAST_CAN_RX_BATCH = "com.micronet.dsc.vbs.canrxbatch";
+
+    // Broadcast: j1939rx : contains a complete J1939 multi-packet message reassembled from the bus (see j1939Tp extra)
+    public static final String BROADCAST_J1939_RX = "com.micronet.dsc.vbs.j1939rx";
+
     // Broadcast: cantx : broadcast this to ask VBS to transmit a CAN packet on the bus
     public static final String BROADCAST_CAN_TX = "com.micronet.dsc.vbs.cantx";
 
+    // Broadcast: cantxbatch : broadcast this to ask VBS to transmit several CAN packets on the bus, in order
+    //  uses the count, ids, types, lengths, dataBlock and canNumber extras
+    //  either the whole batch is queued or (if it does not fit) none of it, and the frames are written back to back
+    public static final String BROADCAST_CAN_TX_BATCH = "com.micronet.dsc.vbs.cantxbatch";
+
+    // Broadcast: canperiodic : broadcast this to ask VBS to send a CAN packet every periodMs, until cancelled
+    //  uses the handle, id, type, data, periodMs and canNumber extras. Sending it again with the same handle
+    //      changes that frame (if only the data changes, it keeps its schedule). periodMs 0 cancels it.
+    public static final String BROADCAST_CAN_PERIODIC_TX = "com.micronet.dsc.vbs.canperiodic";
+
+    // Broadcast: j1939tx : broadcast this to ask VBS to send a J1939 message of up to 1785 bytes
+    //  uses the pgn, priority (default 6), source, destination (default 255 = global), data, transferId and canNumber extras
+    //  longer than 8 bytes is sent with the transport protocol: BAM to global, RTS/CTS to an address
+    //  the result is sent back with j1939txresult
+    public static final String BROADCAST_J1939_TX = "com.micronet.dsc.vbs.j1939tx";
+
+    // Broadcast: j1939txresult : sent by VBS when a j1939tx message was sent or failed
+    //  has the transferId, pgn, source, destination, result and canNumber extras
+    public static final String BROADCAST_J1939_TX_RESULT = "com.micronet.dsc.vbs.j1939txresult";
+
+    // Broadcast: j1939request : broadcast this to ask VBS for a PGN with the J1939 Request PGN (59904) and wait for the reply
+    //  uses the pgn, source (our address), destination (default 255 = global), requestId, timeoutMs, maxAgeMs and canNumber extras
+    //  if the same PGN was received from that node less than maxAgeMs ago (default 1000, 0 = don't) that reply is used
+    //      and nothing is sent on the bus. The reply (single frame or transport protocol) is sent back with j1939requestresult
+    public static final String BROADCAST_J1939_REQUEST = "com.micronet.dsc.vbs.j1939request";
+
+    // Broadcast: j1939requestresult : sent by VBS with the reply to a j1939request, or why there is none
+    //  has the requestId, pgn, destination, responder, data, timestamp, result and canNumber extras
+    public static final String BROADCAST_J1939_REQUEST_RESULT = "com.micronet.dsc.vbs.j1939requestresult";
+
+    // Broadcast: isotpchannel : broadcast this to open an ISO-TP (ISO 15765-2) channel, or to close it
+    //  uses the handle, txCanId, rxCanId, type (default standard), blockSize, stMin and canNumber extras
+    //  without the txCanId extra the channel with this handle is closed. Frames received on the rxCanId of an open channel
+    //  are only delivered as complete isotprx messages (the rxCanId must pass the hardware filters)
+    public static final String BROADCAST_ISOTP_CHANNEL = "com.micronet.dsc.vbs.isotpchannel";
+
+    // Broadcast: isotptx : broadcast this to send a message of up to 4095 bytes on an open ISO-TP channel
+    //  uses the handle, messageId, data and canNumber extras, the result is sent back with isotptxresult
+    public static final String BROADCAST_ISOTP_TX = "com.micronet.dsc.vbs.isotptx";
+
+    // Broadcast: isotptxresult : sent by VBS when an isotptx message was sent or failed
+    //  has the handle, messageId, result and canNumber extras
+    public static final String BROADCAST_ISOTP_TX_RESULT = "com.micronet.dsc.vbs.isotptxresult";
+
+    // Broadcast: isotprx : contains a complete message received on an open ISO-TP channel
+    //  has the handle, data, timestamp and canNumber extras
+    public static final String BROADCAST_ISOTP_RX = "com.micronet.dsc.vbs.isotprx";
+
+    // Broadcast: txcomplete : sent by VBS with what happened to frames that were sent with a txId (cantx, cantxbatch, j1708tx)
+    //  has the bus, canNumber, count, txIds, results, enqueueTimes, dequeueTimes and writeTimes extras
+    //  completions are collected and sent together, at most 20 ms after the first one while frames are being written
+    public static final String BROADCAST_TX_COMPLETE = "com.micronet.dsc.vbs.txcomplete";
+
+    // Broadcast: cantxnack : sent by VBS when frames asked to be sent were rejected because the TX queue was full
+    //  (only when configuration.xml sets txoverflow to "reject" for the port), has the count, ids and canNumber extras
+    public static final String BROADCAST_CAN_TX_NACK = "com.micronet.dsc.vbs.cantxnack";
+
     // Broadcast: j1708rx : contains a Received J1708 packet from the bus
     public static final String BROADCAST_J1708_RX = "com.micronet.dsc.vbs.j1708rx";
 
     // Broadcast: j1708tx : broadcast this to ask VBS to transmit a J1708 packet on the bus
     public static final String BROADCAST_J1708_TX = "com.micronet.dsc.vbs.j1708tx";
 
+    // Broadcast: j1708txnack : sent by VBS when a J1708 packet asked to be sent was rejected because the TX queue was full
+    //  (only when configuration.xml sets txoverflow to "reject" for J1708), has the priority and id extras
+    public static final String BROADCAST_J1708_TX_NACK = "com.micronet.dsc.vbs.j1708txnack";
+
+    // Broadcast: canbusstate : sent by VBS when the interface of a CAN port changes state, has the canNumber,
+    //  state (one of the CAN_BUS_STATE_* values) and elapsedRealtime (when it changed) extras
+    //  (and setupFailed when it is CLOSED)
+    public static final String BROADCAST_CAN_BUS_STATE = "com.micronet.dsc.vbs.canbusstate";
+
     // Broadcast: status : sent regularly by VBS with the status of the buses. Useful for telling if VBS crashed
+    //  when more than one CAN port is running, one status is sent for each port (see the canNumber extra)
     public static final String BROADCAST_STATUS = "com.micronet.dsc.vbs.status";
 
     //////////////////////////////////////
@@ -105,11 +244,58 @@ public final class VehicleBusConstants {
     public static final String BROADCAST_EXTRA_STATUS_CANBITRATE ="canBitrate";
     // Extra "canNumber" (int): what is the can number?
     public static final String BROADCAST_EXTRA_STATUS_CANNUMBER ="canNumber";
+    // Extra "canRxQueueHighWater" (int): the most received frames that were ever waiting to be delivered at once
+    public static final String BROADCAST_EXTRA_STATUS_CANRX_QUEUE_HIGHWATER = "canRxQueueHighWater";
+    // Extra "canRxQueueOverflows" (long): number of received frames dropped because delivery fell behind the bus
+    public static final String BROADCAST_EXTRA_STATUS_CANRX_QUEUE_OVERFLOWS = "canRxQueueOverflows";
+    // Extra "canSoftFilterRejects" (long): number of received frames discarded by the software filter
+    public static final String BROADCAST_EXTRA_STATUS_CANRX_SOFTFILTER_REJECTS = "canSoftFilterRejects";
+    // Extra "canBusLoadBps" (long): estimated bits per second on the CAN bus
+    public static final String BROADCAST_EXTRA_STATUS_CAN_BUSLOAD_BPS = "canBusLoadBps";
+    // Extra "canBusLoadPercent" (float): canBusLoadBps as a percentage of the bitrate
+    public static final String BROADCAST_EXTRA_STATUS_CAN_BUSLOAD_PERCENT = "canBusLoadPercent";
+    // Extra "canTxLatencyAvgUs" (long): average time in microseconds from a CAN frame being queued to send until it was written
+    public static final String BROADCAST_EXTRA_STATUS_CANTX_LATENCY_AVG = "canTxLatencyAvgUs";
+    // Extra "canTxLatencyMaxUs" (long): longest time in microseconds from a CAN frame being queued to send until it was written
+    public static final String BROADCAST_EXTRA_STATUS_CANTX_LATENCY_MAX = "canTxLatencyMaxUs";
+    // Extra "canTxDroppedNewest" (long): CAN frames not queued to send because the TX queue was full (txoverflow "dropnewest")
+    public static final String BROADCAST_EXTRA_STATUS_CANTX_DROPPED_NEWEST = "canTxDroppedNewest";
+    // Extra "canTxDroppedOldest" (long): queued CAN frames discarded to make room for newer ones (txoverflow "dropoldest")
+    public static final String BROADCAST_EXTRA_STATUS_CANTX_DROPPED_OLDEST = "canTxDroppedOldest";
+    // Extra "canTxRejected" (long): CAN frames rejected with a cantxnack because the TX queue was full (txoverflow "reject")
+    public static final String BROADCAST_EXTRA_STATUS_CANTX_REJECTED = "canTxRejected";
+    // Extra "canReconfigureMs" (int): ms the last bitrate/mode change or restart of the port took until its socket was ready (-1 if in progress)
+    public static final String BROADCAST_EXTRA_STATUS_CAN_RECONFIGURE_MS = "canReconfigureMs";
+    // Extra "canReconfigureRxGapMs" (int): ms from the start of the last reconfiguration until a frame was received again (-1 if none yet)
+    public static final String BROADCAST_EXTRA_STATUS_CAN_RECONFIGURE_RX_GAP_MS = "canReconfigureRxGapMs";
+    // Extra "canReconfigureInPlace" (boolean): was the last reconfiguration done without closing the socket?
+    public static final String BROADCAST_EXTRA_STATUS_CAN_RECONFIGURE_IN_PLACE = "canReconfigureInPlace";
+    // Extra "canLiveThreads" (int): CAN read, dispatch and write threads running in VBS, on all ports (3 per running port)
+    public static final String BROADCAST_EXTRA_STATUS_CAN_LIVE_THREADS = "canLiveThreads";
+    // Extra "canBusState" (int): the state of the interface of the port, one of the CAN_BUS_STATE_* values
+    public static final String BROADCAST_EXTRA_STATUS_CAN_BUS_STATE = "canBusState";
+    // Extra "canBusStateSince" (long): elapsedRealtime when the port entered canBusState
+    public static final String BROADCAST_EXTRA_STATUS_CAN_BUS_STATE_SINCE = "canBusStateSince";
+    // Extra "canBusSetupFailed" (boolean): the port is CLOSED because its interface or socket could not be opened
+    public static final String BROADCAST_EXTRA_STATUS_CAN_BUS_SETUP_FAILED = "canBusSetupFailed";
     // Extra "j1708rx" (boolean): are we able to receive on J1708 yet?
     public static final String BROADCAST_EXTRA_STATUS_J1708RX ="j1708rx";
     // Extra "j1708tx" (boolean): are we able to transmit on J1708 yet?
     public static final String BROADCAST_EXTRA_STATUS_J1708TX = "j1708tx";
+    // Extra "j1708TxLatencyAvgUs" (long): average time in microseconds from a J1708 frame being queued to send until it was written
+    public static final String BROADCAST_EXTRA_STATUS_J1708TX_LATENCY_AVG = "j1708TxLatencyAvgUs";
+    // Extra "j1708TxLatencyMaxUs" (long): longest time in microseconds from a J1708 frame being queued to send until it was written
+    public static final String BROADCAST_EXTRA_STATUS_J1708TX_LATENCY_MAX = "j1708TxLatencyMaxUs";
+    // Extra "j1708TxDroppedNewest", "j1708TxDroppedOldest", "j1708TxRejected" (long): same as the canTx counts, for J1708
+    public static final String BROADCAST_EXTRA_STATUS_J1708TX_DROPPED_NEWEST = "j1708TxDroppedNewest";
+    public static final String BROADCAST_EXTRA_STATUS_J1708TX_DROPPED_OLDEST = "j1708TxDroppedOldest";
+    public static final String BROADCAST_EXTRA_STATUS_J1708TX_REJECTED = "j1708TxRejected";
+
 
+    // Extra "state" (int): the new state in a canbusstate, one of the CAN_BUS_STATE_* values
+    public static final String BROADCAST_EXTRA_CAN_BUS_STATE = "state";
+    // Extra "setupFailed" (boolean): in a canbusstate with the CLOSED state, true if the interface or socket could not be opened
+    public static final String BROADCAST_EXTRA_CAN_BUS_SETUP_FAILED = "setupFailed";
 
     // Extra "elapsedRealtime" (long): contains the time that VBS received the packet
     public static final String BROADCAST_EXTRA_TIMESTAMP ="elapsedRealtime";
@@ -118,6 +304,92 @@ public final class VehicleBusConstants {
     public static final String BROADCAST_EXTRA_CAN_ID = "id";
     // Extra "data" (byte array): Contains the data for the frame rx/tx
     public static final String BROADCAST_EXTRA_CAN_DATA ="data";
+    // Extra "canNumber" (int): the port a frame was received on (canrx, canrxbatch, j1939rx), or should be sent on (cantx)
+    //  if not given with cantx, the frame is sent on the lowest numbered port that is running
+    public static final String BROADCAST_EXTRA_CAN_NUMBER = "canNumber";
+
+    // Extra "txId" (int): chosen by the sender of a cantx or j1708tx frame to be told what happened to it (txcomplete)
+    //      0 or not given: not reported
+    public static final String BROADCAST_EXTRA_TX_ID = "txId";
+    // Extra "txIds" (int array): the txId of each frame of a cantxbatch (and of each completion in a txcomplete)
+    public static final String BROADCAST_EXTRA_TX_IDS = "txIds";
+    // Extra "bus" (String): the bus of a txcomplete, "CAN" or "J1708" (the canNumber extra is 0 for J1708)
+    public static final String BROADCAST_EXTRA_TX_BUS = "bus";
+    // Extra "count" (int): Contains the number of completions in a txcomplete
+    public static final String BROADCAST_EXTRA_TX_COUNT = "count";
+    // Extra "results" (byte array): what happened to each frame of a txcomplete, one of the TX_RESULT_* values
+    public static final String BROADCAST_EXTRA_TX_RESULTS = "results";
+    // Extras "enqueueTimes", "dequeueTimes", "writeTimes" (long arrays): when each frame of a txcomplete was queued,
+    //      taken by the write thread, and written (write returned), in microseconds of System.nanoTime(). 0 if it never got that far.
+    //      dequeue - enqueue is time spent waiting in VBS, write - dequeue is time spent in the write (bus busy)
+    public static final String BROADCAST_EXTRA_TX_ENQUEUE_TIMES = "enqueueTimes";
+    public static final String BROADCAST_EXTRA_TX_DEQUEUE_TIMES = "dequeueTimes";
+    public static final String BROADCAST_EXTRA_TX_WRITE_TIMES = "writeTimes";
+
+    // Extra "type" (int): Contains the frame type of a cantx or canperiodic frame, one of the CAN_FRAME_TYPE_* values (default extended)
+    //      (and of the ids of an isotpchannel, default standard)
+    public static final String BROADCAST_EXTRA_CAN_TYPE = "type";
+    // Extra "handle" (int): chosen by the sender to identify a canperiodic frame (one per port), must not be -1
+    public static final String BROADCAST_EXTRA_CAN_PERIODIC_HANDLE = "handle";
+    // Extra "periodMs" (int): how often to send a canperiodic frame (1 to 3600000 ms), 0 to cancel it
+    public static final String BROADCAST_EXTRA_CAN_PERIODIC_MS = "periodMs";
+
+    // Extra "count" (int): Contains the number of frames in a canrxbatch or cantxbatch
+    public static final String BROADCAST_EXTRA_CAN_BATCH_COUNT = "count";
+    // Extra "ids" (int array): Contains the frame ID of each frame in a canrxbatch or cantxbatch
+    public static final String BROADCAST_EXTRA_CAN_BATCH_IDS = "ids";
+    // Extra "types" (byte array): Contains the frame type of each frame in a canrxbatch or cantxbatch, one of the CAN_FRAME_TYPE_* values
+    //      a cantxbatch without it is all extended frames
+    public static final String BROADCAST_EXTRA_CAN_BATCH_TYPES = "types";
+    // Extra "elapsedRealtimes" (long array): Contains the time that VBS received each frame in a canrxbatch
+    public static final String BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS = "elapsedRealtimes";
+    // Extra "lengths" (byte array): Contains the data length of each frame in a canrxbatch or cantxbatch
+    public static final String BROADCAST_EXTRA_CAN_BATCH_LENGTHS = "lengths";
+    // Extra "dataBlock" (byte array): Contains the data of all frames in a canrxbatch or cantxbatch, 8 bytes reserved for each frame
+    //      (the data for frame n starts at n * 8 and is lengths[n] bytes long)
+    public static final String BROADCAST_EXTRA_CAN_BATCH_DATA = "dataBlock";
+    // Extra "frameCounts" (long array): Contains the number of frames received with each id (IVehicleBusService.getLastValues() only)
+    public static final String BROADCAST_EXTRA_CAN_CACHE_COUNTS = "frameCounts";
+
+    // Extra "pgn" (int): Contains the PGN of a j1939rx message
+    public static final String BROADCAST_EXTRA_J1939_PGN = "pgn";
+    // Extra "priority" (int): Contains the priority of the TP frames that carried a j1939rx message
+    public static final String BROADCAST_EXTRA_J1939_PRIORITY = "priority";
+    // Extra "source" (int): Contains the source address of a j1939rx message
+    public static final String BROADCAST_EXTRA_J1939_SOURCE = "source";
+    // Extra "destination" (int): Contains the destination address of a j1939rx message (255 for global / BAM)
+    public static final String BROADCAST_EXTRA_J1939_DESTINATION = "destination";
+    // Extra "data" (byte array): Contains the complete data of a j1939rx or j1939tx message
+    public static final String BROADCAST_EXTRA_J1939_DATA = "data";
+    // Extra "transferId" (int): chosen by the sender of a j1939tx message, and given back with its j1939txresult
+    public static final String BROADCAST_EXTRA_J1939_TRANSFER_ID = "transferId";
+    // Extra "result" (int): how a j1939tx (or j1939request, isotptx) ended, J1939_TX_RESULT_SUCCESS, a J1939-21 abort reason (1 to 255)
+    //      if the transfer was aborted, or one of the other J1939_TX_RESULT_* values
+    public static final String BROADCAST_EXTRA_J1939_RESULT = "result";
+
+    // Extra "requestId" (int): chosen by the sender of a j1939request, and given back with its j1939requestresult
+    public static final String BROADCAST_EXTRA_J1939_REQUEST_ID = "requestId";
+    // Extra "timeoutMs" (int): how long a j1939request waits for the reply to start (default 1250)
+    public static final String BROADCAST_EXTRA_J1939_TIMEOUT_MS = "timeoutMs";
+    // Extra "maxAgeMs" (int): how old a cached reply may be to answer a j1939request (default 1000, 0 = always send the request)
+    public static final String BROADCAST_EXTRA_J1939_MAX_AGE_MS = "maxAgeMs";
+    // Extra "responder" (int): the address the reply of a j1939requestresult came from (-1 if there is no reply)
+    public static final String BROADCAST_EXTRA_J1939_RESPONDER = "responder";
+
+    // Extra "handle" (int): chosen by the sender to identify an isotpchannel (one per port), must not be -1
+    //      also sent with each isotprx message and isotptxresult
+    public static final String BROADCAST_EXTRA_ISOTP_HANDLE = "handle";
+    // Extra "txCanId" (int): the CAN id an isotpchannel sends on
+    public static final String BROADCAST_EXTRA_ISOTP_TX_CAN_ID = "txCanId";
+    // Extra "rxCanId" (int): the CAN id the other node of an isotpchannel answers on
+    public static final String BROADCAST_EXTRA_ISOTP_RX_CAN_ID = "rxCanId";
+    // Extra "blockSize" (int): consecutive frames the other node of an isotpchannel may send before waiting for our flow control (default 0 = all)
+    public static final String BROADCAST_EXTRA_ISOTP_BLOCK_SIZE = "blockSize";
+    // Extra "stMin" (int): minimum gap we ask for between consecutive frames of an isotpchannel, ISO 15765-2 encoding
+    //      (0-127 ms, 0xF1-0xF9 for 100-900 us, default 0)
+    public static final String BROADCAST_EXTRA_ISOTP_ST_MIN = "stMin";
+    // Extra "messageId" (int): chosen by the sender of an isotptx message, and given back with its isotptxresult
+    public static final String BROADCAST_EXTRA_ISOTP_MESSAGE_ID = "messageId";
 
     // Extra "id" (int): Contains the frame ID to rx/tx
     public static final String BROADCAST_EXTRA_J1708_ID = "id";
@@ -125,4 +397,112 @@ public final class VehicleBusConstants {
     public static final String BROADCAST_EXTRA_J1708_DATA = "data";
     // Extra "priority" (int): Contains a priority for this frame rx/tx
     public static final String BROADCAST_EXTRA_J1708_PRIORITY = "priority";
+
+
+    // Values for the canbusstate state extra (and the canBusState status extra)
+    public static final int CAN_BUS_STATE_CLOSED = 0; // no interface
+    public static final int CAN_BUS_STATE_CREATING = 1; // the interface and socket are being created
+    public static final int CAN_BUS_STATE_LISTEN = 2; // open in listen-only mode (verifying or discovering the bitrate, or J1708 only)
+    public static final int CAN_BUS_STATE_NORMAL = 3; // open in normal mode, frames can be sent
+    public static final int CAN_BUS_STATE_CLOSING = 4; // the socket and interface are being removed
+
+    // Values for the txcomplete results extra
+    public static final int TX_RESULT_WRITTEN = 0; // written to the bus
+    public static final int TX_RESULT_WRITE_FAILED = 1; // the write failed (the bus is being restarted)
+    public static final int TX_RESULT_DROPPED = 2; // not queued because the TX queue was full (txoverflow "dropnewest"), or CAN was not ready to send
+    public static final int TX_RESULT_DROPPED_OLDEST = 3; // discarded from the queue to make room for newer frames (txoverflow "dropoldest")
+    public static final int TX_RESULT_REJECTED = 4; // not queued because the TX queue was full, a cantxnack was also sent (txoverflow "reject")
+    public static final int TX_RESULT_ABORTED = 5; // discarded from the queue because the bus was restarted
+
+    // Values for the j1939txresult result extra (positive values are J1939-21 abort reasons, 3 = timeout)
+    public static final int J1939_TX_RESULT_SUCCESS = 0; // all packets were sent (and acknowledged, for RTS/CTS)
+    public static final int J1939_TX_RESULT_INVALID = -1; // the message was not valid, or CAN was not running
+    public static final int J1939_TX_RESULT_BUSY = -2; // a transfer from this source to this destination was already in progress
+    public static final int J1939_TX_RESULT_CANCELLED = -3; // CAN was restarted before the transfer ended
+    public static final int J1939_TX_RESULT_QUEUE_FULL = -4; // the TX queue had no room for the first frame
+    public static final int J1939_TX_RESULT_ABORTED = -5; // the receiver aborted without giving a reason
+
+
+    // Values for the j1939requestresult result extra
+    public static final int J1939_REQUEST_RESULT_REPLY = 0; // the node replied, data has the reply
+    public static final int J1939_REQUEST_RESULT_CACHED = 1; // answered with a reply received less than maxAgeMs ago, nothing was sent
+    public static final int J1939_REQUEST_RESULT_TIMEOUT = -1; // no reply in time
+    public static final int J1939_REQUEST_RESULT_NACK = -2; // the node answered with a NACK (or access denied / cannot respond)
+    public static final int J1939_REQUEST_RESULT_CANCELLED = -3; // CAN was stopped before the reply
+    public static final int J1939_REQUEST_RESULT_NOT_SENT = -4; // the request could not be queued (also when the parameters are not valid)
+
+
+    // Values for the isotptxresult result extra
+    public static final int ISOTP_RESULT_SUCCESS = 0; // all frames were sent
+    public static final int ISOTP_RESULT_INVALID = -1; // the message or a flow control frame was not valid, or CAN was not running
+    public static final int ISOTP_RESULT_TIMEOUT = -2; // no flow control from the receiver in time (or too many WAIT frames)
+    public static final int ISOTP_RESULT_OVERFLOW = -3; // the receiver answered that the message is too long for it
+    public static final int ISOTP_RESULT_CANCELLED = -4; // the channel was closed or CAN was restarted before the message was sent
+
+
+    //////////////////////////////////////
+    // Contents of IVehicleBusService.getTrafficStats()
+    //  (also has canBusLoadBps and canBusLoadPercent like the status broadcast)
+    //////////////////////////////////////
+
+    // "count" (int): number of CAN ids
+    public static final String STATS_EXTRA_COUNT = "count";
+    // "ids" (int array): the CAN ids
+    public static final String STATS_EXTRA_IDS = "ids";
+    // "types" (byte array): the frame type of each id, one of the CAN_FRAME_TYPE_* values
+    public static final String STATS_EXTRA_TYPES = "types";
+    // "frameCounts" (long array): frames received with each id
+    public static final String STATS_EXTRA_FRAME_COUNTS = "frameCounts";
+    // "rates" (float array): average frames per second of each id since it was first received
+    public static final String STATS_EXTRA_RATES = "rates";
+    // "minGaps", "maxGaps" (long arrays): shortest and longest time between two frames of each id (ms)
+    public static final String STATS_EXTRA_MIN_GAPS = "minGaps";
+    public static final String STATS_EXTRA_MAX_GAPS = "maxGaps";
+    // "avgGaps" (float array): moving average of the time between frames of each id (ms)
+    public static final String STATS_EXTRA_AVG_GAPS = "avgGaps";
+    // "jitters" (float array): moving average of how far each gap was from avgGaps (ms)
+    public static final String STATS_EXTRA_JITTERS = "jitters";
+    // "totalFrames" (long): frames received on the bus since CAN was started
+    public static final String STATS_EXTRA_TOTAL_FRAMES = "totalFrames";
+
+
+    //////////////////////////////////////
+    // Shared memory RX ring (see IVehicleBusService.getRxRing() and VehicleBusRingReader)
+    //  All values are little-endian.
+    //////////////////////////////////////
+
+    // Header: magic (int), version (int), record size (int), capacity in records (int), write sequence (long)
+    //  The write sequence is the number of records written so far; record n is stored in slot (n % capacity).
+    public static final int RING_MAGIC = 0x52534256; // "VBSR"
+    public static final int RING_VERSION = 1;
+    public static final int RING_HEADER_SIZE = 64;
+    public static final int RING_HEADER_OFFSET_MAGIC = 0;
+    public static final int RING_HEADER_OFFSET_VERSION = 4;
+    public static final int RING_HEADER_OFFSET_RECORD_SIZE = 8;
+    public static final int RING_HEADER_OFFSET_CAPACITY = 12;
+    public static final int RING_HEADER_OFFSET_WRITE_SEQ = 16;
+
+    // Record: sequence (long), elapsedRealtime (long), id (int), bus (byte), data length (byte), priority (short),
+    //      checksum (int), type (byte), reserved (3 bytes), data (24 bytes), reserved (8 bytes)
+    //  priority is the J1708 priority, or the J1939 priority (id bits 26 to 28) of a 29-bit CAN id (0 for 11-bit).
+    //  type is CAN_FRAME_TYPE_STANDARD or CAN_FRAME_TYPE_EXTENDED for CAN (0 for J1708).
+    //  The sequence is RING_SEQ_WRITING while the record is being written.
+    //  The checksum (VehicleBusRingReader.recordChecksum()) lets a reader detect a record that changed while it was copied.
+    public static final int RING_RECORD_SIZE = 64;
+    public static final int RING_RECORD_OFFSET_SEQ = 0;
+    public static final int RING_RECORD_OFFSET_TIMESTAMP = 8;
+    public static final int RING_RECORD_OFFSET_ID = 16;
+    public static final int RING_RECORD_OFFSET_BUS = 20;
+    public static final int RING_RECORD_OFFSET_LENGTH = 21;
+    public static final int RING_RECORD_OFFSET_PRIORITY = 22;
+    public static final int RING_RECORD_OFFSET_CHECKSUM = 24;
+    public static final int RING_RECORD_OFFSET_TYPE = 28;
+    public static final int RING_RECORD_OFFSET_DATA = 32;
+    public static final int RING_RECORD_MAX_DATA = 24;
+    public static final long RING_SEQ_WRITING = -1;
+
+    // Values for the record bus
+    public static final int RING_BUS_CAN = 1;
+    public static final int RING_BUS_J1708 = 2;
+    public static final int RING_BUS_CAN2 = 3; // the second CAN port, RING_BUS_CAN is the first
 }
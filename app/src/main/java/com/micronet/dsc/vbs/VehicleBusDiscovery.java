@@ -28,7 +28,7 @@ public class VehicleBusDiscovery {
 
 
     public static final int DISCOVER_BUS_WAIT_MS = 5000; // wait 5 seconds on each bus  (must be > the 3+seconds it can take to switch bus speeds)
-    public static final int DISCOVER_MAX_WINDOWS = 3; // We must limit the number of bitrate switches since each check creates threads that may not ever go away
+    public static final int DISCOVER_MAX_WINDOWS = 3; // We limit the number of bitrate switches so a silent bus does not re-create the interface forever
                                                       // an odd number ensures we end up on bus we started on (most likely to be the correct bus
 
 
@@ -56,7 +56,7 @@ public class VehicleBusDiscovery {
     Runnable busDiscoverReadyCallback; // called when a discover socket is setup and we should start thread to listen for packets
 
 
-    int on_window_num = 0; // how many times we've checked across all buses (we need to limit this b/c it can create threads)
+    int on_window_num = 0; // how many times we've checked across all buses (limited by DISCOVER_MAX_WINDOWS)
 
 
     public VehicleBusDiscovery(Context context, VehicleBusWrapper busWrapper, String bus_name) {
@@ -98,7 +98,7 @@ public class VehicleBusDiscovery {
     ////////////////////////////////////////////////////////
     public boolean startDiscovery(Runnable busDiscoverReadyCallback) {
 
-        Log.v(TAG, "Starting CAN bitrate Discovery");
+        Log.v(TAG, "Starting CAN" + (busWrapper.canNumber - 1) + " bitrate Discovery");
 
         on_window_num = 0; // we haven't checked any so far
 
@@ -164,7 +164,7 @@ public class VehicleBusDiscovery {
 
         int discovered_bitrate = busWrapper.getCANBitrate();
 
-        Log.v(TAG, "Discovered CAN bitrate " + discovered_bitrate);
+        Log.v(TAG, "Discovered CAN" + (busWrapper.canNumber - 1) + " bitrate " + discovered_bitrate);
 
         if (mainHandler != null)
             mainHandler.removeCallbacks(discoverBusTask); // remove any pending timers
@@ -177,8 +177,8 @@ public class VehicleBusDiscovery {
         State state;
         state = new State(context);
 
-        state.writeState(State.CAN_BITRATE, discovered_bitrate ); // this is our discovered bitrate
-        state.writeState(State.FLAG_CAN_AUTODETECT, 0); // no longer in auto-detect
+        state.writeState(State.forPort(State.CAN_BITRATE, busWrapper.canNumber), discovered_bitrate ); // this is our discovered bitrate
+        state.writeState(State.forPort(State.FLAG_CAN_AUTODETECT, busWrapper.canNumber), 0); // no longer in auto-detect
 
 
         // remember we are not discovering
@@ -205,8 +205,6 @@ public class VehicleBusDiscovery {
     ///////////////////////////////////////////////////////////////
     void changeBitrate(int new_bitrate) {
 
-        int canNumber = VehicleBusService.CAN_NUMBER;
-
         if (new_bitrate == 500000) {
             discoveryStage = DISCOVERY_STAGE_500;
         } else {
@@ -216,7 +214,7 @@ public class VehicleBusDiscovery {
 
 
         // restart on new bit rate, keep with discovery callbacks
-        busWrapper.setCharacteristics(true, new_bitrate, hardwareFilters, canNumber, flowControls);
+        busWrapper.setCharacteristics(true, new_bitrate, hardwareFilters, flowControls);
     }
 
 
@@ -0,0 +1,177 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusFrameBuffer:
+//  Holds a fixed number of CAN frames as parallel primitive arrays instead of frame objects
+//      ids[]        : the CAN id
+//      flags[]      : data length (DLC) in the low 4 bits, FLAG_EXTENDED for 29-bit ids
+//      timestamps[] : elapsedRealtime when the frame was received
+//      payloads[]   : the (up to) 8 data bytes packed into one long, byte 0 in the lowest 8 bits
+//  Because of the byte order of payloads[], copying it into a little-endian buffer gives
+//      exactly the 8-bytes-per-frame data block used by the canrxbatch broadcast and IVehicleBusCallback.
+//  Not thread safe, the owner must synchronize.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+public class VehicleBusFrameBuffer {
+
+    public static final int MAX_DATA_LENGTH = 8; // CAN classic payload
+
+    public static final int FLAGS_LENGTH_MASK = 0x0F;
+    public static final int FLAG_EXTENDED = 0x80;
+
+    final int capacity;
+    int count = 0;
+
+    final int[] ids;
+    final byte[] flags;
+    final long[] timestamps;
+    final long[] payloads;
+
+
+    public VehicleBusFrameBuffer(int capacity) {
+        this.capacity = capacity;
+        ids = new int[capacity];
+        flags = new byte[capacity];
+        timestamps = new long[capacity];
+        payloads = new long[capacity];
+    }
+
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isFull() {
+        return (count >= capacity);
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // add()
+    //  appends a frame, returns false if the buffer is already full
+    ///////////////////////////////////////////////////////
+    public boolean add(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
+        return add(frame.getId(), (VehicleBusWrapper.CANFrameType.downcast(frame.getType()) == VehicleBusWrapper.CANFrameType.EXTENDED), frame.getData(), elapsedRealtime);
+    }
+
+    public boolean add(int id, boolean extended, byte[] data, long elapsedRealtime) {
+        if (count >= capacity) return false;
+
+        int length = (data == null ? 0 : Math.min(data.length, MAX_DATA_LENGTH));
+
+        ids[count] = id;
+        flags[count] = (byte) (length | (extended ? FLAG_EXTENDED : 0));
+        timestamps[count] = elapsedRealtime;
+        payloads[count] = pack(data, length);
+        count++;
+        return true;
+    } // add()
+
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public int getLength(int index) {
+        return flags[index] & FLAGS_LENGTH_MASK;
+    }
+
+    public boolean isExtended(int index) {
+        return ((flags[index] & FLAG_EXTENDED) != 0);
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public long getPayload(int index) {
+        return payloads[index];
+    }
+
+    ///////////////////////////////////////////////////////
+    // getData()
+    //  copies the data bytes of a frame into the given array, returns the number of bytes
+    ///////////////////////////////////////////////////////
+    public int getData(int index, byte[] into) {
+        int length = Math.min(getLength(index), into.length);
+        unpack(payloads[index], into, 0, length);
+        return length;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // copyIds(), copyTypes(), copyTimestamps(), copyLengths(), copyDataBlock()
+    //  create the arrays that are sent to other applications for the frames in this buffer
+    ///////////////////////////////////////////////////////
+    public int[] copyIds() {
+        int[] out = new int[count];
+        System.arraycopy(ids, 0, out, 0, count);
+        return out;
+    }
+
+    // the frame type of each frame, as VehicleBusConstants.CAN_FRAME_TYPE_*
+    public byte[] copyTypes() {
+        byte[] out = new byte[count];
+        for (int i = 0; i < count; i++) {
+            out[i] = (byte) ((flags[i] & FLAG_EXTENDED) != 0 ? VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED : VehicleBusConstants.CAN_FRAME_TYPE_STANDARD);
+        }
+        return out;
+    }
+
+    public long[] copyTimestamps() {
+        long[] out = new long[count];
+        System.arraycopy(timestamps, 0, out, 0, count);
+        return out;
+    }
+
+    public byte[] copyLengths() {
+        byte[] out = new byte[count];
+        for (int i = 0; i < count; i++) {
+            out[i] = (byte) (flags[i] & FLAGS_LENGTH_MASK);
+        }
+        return out;
+    }
+
+    public byte[] copyDataBlock() {
+        byte[] out = new byte[count * MAX_DATA_LENGTH];
+        ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(payloads, 0, count);
+        return out;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // pack()
+    //  packs up to 8 data bytes into a long, byte 0 in the lowest 8 bits
+    ///////////////////////////////////////////////////////
+    public static long pack(byte[] data, int length) {
+        long payload = 0;
+        for (int i = 0; i < length; i++) {
+            payload |= (data[i] & 0xFFL) << (i * 8);
+        }
+        return payload;
+    }
+
+    ///////////////////////////////////////////////////////
+    // unpack()
+    //  the reverse of pack()
+    ///////////////////////////////////////////////////////
+    public static void unpack(long payload, byte[] into, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            into[offset + i] = (byte) (payload >>> (i * 8));
+        }
+    }
+
+} // class VehicleBusFrameBuffer
@@ -0,0 +1,98 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusIdTable:
+//  Open addressing for the hash tables keyed by CAN id (VehicleBusSoftFilter, VehicleBusLastValueCache,
+//      VehicleBusTrafficStats), so looking up an id allocates nothing.
+//  A table is an int[] of ids whose length is a power of 2, with EMPTY_SLOT where unused, probed linearly.
+//      Each user keeps its values in its own arrays, indexed by the same slots.
+//  Tables are kept at most half full so probes stay short: check needsGrow() before adding an id.
+//  Tables that keep 11-bit and 29-bit frames with the same id apart use key() instead of the id.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.Arrays;
+
+
+class VehicleBusIdTable {
+
+    static final int EMPTY_SLOT = -1; // CAN ids are at most 29 bits, so this is never an id (or a key)
+    static final int KEY_EXTENDED = 0x80000000; // set in the key of a 29-bit id
+
+    private VehicleBusIdTable() {
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // newKeys()
+    //  an empty table, capacity must be a power of 2
+    ///////////////////////////////////////////////////////
+    static int[] newKeys(int capacity) {
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY_SLOT);
+        return keys;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // getCapacity()
+    //  the smallest capacity (a power of 2, at least minCapacity) that holds count ids at most half full
+    ///////////////////////////////////////////////////////
+    static int getCapacity(int count, int minCapacity) {
+        int capacity = minCapacity;
+        while (capacity < count * 2) capacity <<= 1;
+        return capacity;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // needsGrow()
+    //  would adding one more id to a table holding size ids make it more than half full
+    ///////////////////////////////////////////////////////
+    static boolean needsGrow(int[] keys, int size) {
+        return ((size + 1) * 2 > keys.length);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // key(), getId(), isExtended()
+    //  the key of an id with its frame type, and back
+    ///////////////////////////////////////////////////////
+    static int key(int id, boolean extended) {
+        return (extended ? (id | KEY_EXTENDED) : id);
+    }
+
+    static int getId(int key) {
+        return (key & ~KEY_EXTENDED);
+    }
+
+    static boolean isExtended(int key) {
+        return ((key & KEY_EXTENDED) != 0);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // find()
+    //  returns the slot holding this id, or the empty slot where it would go
+    ///////////////////////////////////////////////////////
+    static int find(int[] keys, int id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        int key;
+        while (((key = keys[slot]) != EMPTY_SLOT) && (key != id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+
+    static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+} // class VehicleBusIdTable
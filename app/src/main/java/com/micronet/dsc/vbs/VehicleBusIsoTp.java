@@ -0,0 +1,640 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusIsoTp:
+//  ISO 15765-2 (ISO-TP) segmentation and reassembly for diagnostic messages of up to 4095 bytes
+//  Each logical channel is opened with a handle and a pair of CAN ids (normal addressing, 11-bit or 29-bit):
+//      txCanId is what we send on, rxCanId is what the other node answers on.
+//  Receiving (CAN dispatch thread): single frames are delivered right away, a first frame is answered
+//      with a flow control frame (our block size and STmin), consecutive frames are collected in order,
+//      and a flow control frame is sent again after each block. Frames of an open channel are not delivered
+//      as raw frames, only as complete messages.
+//  Sending (CAN write thread, like VehicleBusJ1939TpTx): messages are queued with send() from any thread and
+//      sent one at a time per channel: a single frame, or a first frame and then consecutive frames
+//      paced by the block size and STmin from the receiver's flow control frames.
+//      Only one consecutive frame of a message is in the TX scheduler at a time, and STmin counts from
+//      when the write thread actually wrote the previous one (frameWritten()), not from when it was queued.
+//  Flow control frames are also written by the write thread, so everything sent for a channel goes through
+//      the same TX scheduler. All frames are padded to 8 bytes.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class VehicleBusIsoTp {
+
+    private static final String TAG = "ATS-VBS-IsoTp"; // for logging
+
+    // protocol control information (high nibble of the first byte)
+    static final int PCI_SINGLE = 0;
+    static final int PCI_FIRST = 1;
+    static final int PCI_CONSECUTIVE = 2;
+    static final int PCI_FLOW_CONTROL = 3;
+
+    // flow status of a flow control frame
+    static final int FS_CONTINUE = 0;
+    static final int FS_WAIT = 1;
+    static final int FS_OVERFLOW = 2;
+
+    static final int MAX_MESSAGE_SIZE = 4095;
+    static final int MAX_SINGLE_FRAME = 7;
+    static final int FIRST_FRAME_BYTES = 6;
+    static final int CONSECUTIVE_FRAME_BYTES = 7;
+    static final byte PADDING = (byte) 0xCC;
+
+    // ISO 15765-2 timeouts
+    static final int TIMEOUT_N_BS_MS = 1000; // sender waiting for a flow control frame
+    static final int TIMEOUT_N_CR_MS = 1000; // receiver waiting for the next consecutive frame
+    static final int MAX_WAIT_FRAMES = 10; // flow control WAIT frames accepted in a row before giving up
+
+    static final int SAFETY_MAX_CHANNELS = 32;
+    static final int SAFETY_MAX_TRANSFERS = 64; // messages queued or being sent
+
+    static final long NANOS_PER_MS = 1000000L;
+
+    // results of receive()
+    public static final int RESULT_NOT_ISOTP = 0; // not for an open channel, deliver it normally
+    public static final int RESULT_CONSUMED = 1; // part of a message, nothing more to do
+    public static final int RESULT_WAKE_WRITER = 2; // consumed, and the write thread has something to send or a flow control to handle
+
+    // transfer states
+    static final int STATE_WAIT_FC = 1;
+    static final int STATE_SEND_CF = 2;
+
+
+    ///////////////////////////////////////////////////////
+    // Listener
+    //  onIsoTpMessage() is called on the dispatch thread with each complete message received
+    //  onIsoTpTxResult() is called on the write thread when a message was sent or failed
+    ///////////////////////////////////////////////////////
+    public interface Listener {
+        void onIsoTpMessage(int handle, byte[] data, long timestamp);
+        void onIsoTpTxResult(int handle, int messageId, int result);
+    }
+
+
+    static class Channel {
+        final int handle;
+        final int txCanId;
+        final int rxCanId;
+        final VehicleBusWrapper.CANFrameType type;
+        final int blockSize; // sent in our flow control frames, 0 = no limit
+        final int stMin; // sent in our flow control frames (ISO 15765-2 encoding)
+        volatile boolean closed = false;
+
+        // reassembly, only used by the dispatch thread
+        byte[] rxData;
+        int rxLength;
+        int rxNextSequence;
+        int rxBlockCount;
+        long rxLastFrame; // elapsedRealtime
+        long rxStarted;
+
+        Channel(int handle, int txCanId, int rxCanId, VehicleBusWrapper.CANFrameType type, int blockSize, int stMin) {
+            this.handle = handle;
+            this.txCanId = txCanId;
+            this.rxCanId = rxCanId;
+            this.type = type;
+            this.blockSize = blockSize;
+            this.stMin = stMin;
+        }
+    }
+
+    static class Transfer {
+        Channel channel;
+        int messageId;
+        byte[] data;
+
+        // only used by the write thread
+        int state;
+        int offset; // next byte to send
+        int sequence; // sequence number of the next consecutive frame
+        int blockRemaining; // consecutive frames left in this block, 0 = no limit
+        long stMinNanos;
+        int waitCount;
+        long deadlineNanos; // next consecutive frame (STATE_SEND_CF) or timeout (STATE_WAIT_FC)
+        VehicleBusWrapper.CANFrame pendingFrame; // consecutive frame in the scheduler but not yet written
+    }
+
+    static class FlowControl {
+        Channel channel;
+        byte[] data;
+    }
+
+
+    final Listener listener;
+
+    final ConcurrentHashMap<Integer, Channel> channels = new ConcurrentHashMap<Integer, Channel>(); // by handle
+    final ConcurrentHashMap<Long, Channel> channelsByRxId = new ConcurrentHashMap<Long, Channel>(); // by rxKey()
+    volatile int channelCount = 0; // checked by receive() to ignore frames quickly
+
+    final ConcurrentLinkedQueue<Transfer> requested = new ConcurrentLinkedQueue<Transfer>();
+    final ConcurrentLinkedQueue<FlowControl> received = new ConcurrentLinkedQueue<FlowControl>(); // flow control from the receiver of our messages
+    final ConcurrentLinkedQueue<VehicleBusWrapper.CANFrame> outgoing = new ConcurrentLinkedQueue<VehicleBusWrapper.CANFrame>(); // our flow control frames
+    final AtomicInteger transferCount = new AtomicInteger(0);
+
+    // only used by the write thread
+    final ArrayList<Transfer> queued = new ArrayList<Transfer>(); // waiting for the channel
+    final ArrayList<Transfer> active = new ArrayList<Transfer>(); // at most one per channel
+
+    volatile long sentCount = 0;
+    volatile long failedCount = 0;
+    volatile long receivedCount = 0;
+    volatile long rxErrorCount = 0;
+
+
+    public VehicleBusIsoTp(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // open() : safe to call from any thread
+    //  opens a channel, or replaces the channel with this handle (a message it was sending is given up)
+    //  blockSize : consecutive frames the other node may send before waiting for our next flow control (0 = all)
+    //  stMin : minimum gap we ask for between consecutive frames (0-127 ms, or 0xF1-0xF9 for 100-900 us)
+    //  returns false if the parameters are not valid or the rxCanId is already used by another channel
+    ///////////////////////////////////////////////////////
+    public synchronized boolean open(int handle, int txCanId, int rxCanId, VehicleBusWrapper.CANFrameType type, int blockSize, int stMin) {
+
+        int maxId = (type == VehicleBusWrapper.CANFrameType.EXTENDED ? 0x1FFFFFFF : 0x7FF);
+        if ((txCanId < 0) || (txCanId > maxId) || (rxCanId < 0) || (rxCanId > maxId) || (txCanId == rxCanId)) return false;
+        if ((blockSize < 0) || (blockSize > 0xFF)) return false;
+        if (!((stMin >= 0) && (stMin <= 0x7F)) && !((stMin >= 0xF1) && (stMin <= 0xF9))) return false;
+
+        Channel other = channelsByRxId.get(rxKey(rxCanId, type));
+        if ((other != null) && (other.handle != handle)) return false;
+
+        if ((!channels.containsKey(handle)) && (channels.size() >= SAFETY_MAX_CHANNELS)) {
+            Log.e(TAG, "Too many ISO-TP channels, ignoring handle " + handle);
+            return false;
+        }
+
+        close(handle);
+
+        Channel channel = new Channel(handle, txCanId, rxCanId, type, blockSize, stMin);
+        channels.put(handle, channel);
+        channelsByRxId.put(rxKey(rxCanId, type), channel);
+        channelCount = channels.size();
+
+        Log.v(TAG, "ISO-TP channel " + handle + ": tx " + String.format("%X", txCanId) + " rx " + String.format("%X", rxCanId));
+        return true;
+    } // open()
+
+
+    ///////////////////////////////////////////////////////
+    // close() : safe to call from any thread
+    //  returns false if there was no such channel
+    ///////////////////////////////////////////////////////
+    public synchronized boolean close(int handle) {
+        Channel channel = channels.remove(handle);
+        if (channel == null) return false;
+
+        channel.closed = true; // the write thread gives up its messages
+        channelsByRxId.remove(rxKey(channel.rxCanId, channel.type));
+        channelCount = channels.size();
+        return true;
+    } // close()
+
+
+    ///////////////////////////////////////////////////////
+    // send() : safe to call from any thread
+    //  queues a message to be sent on the channel, the result is given to the listener later
+    //  messageId : chosen by the caller, given back with the result
+    //  returns false if there is no such channel, the message is not valid, or too many are already waiting
+    ///////////////////////////////////////////////////////
+    public boolean send(int handle, int messageId, byte[] data) {
+
+        if ((data == null) || (data.length == 0) || (data.length > MAX_MESSAGE_SIZE)) return false;
+
+        Channel channel = channels.get(handle);
+        if (channel == null) return false;
+
+        if (transferCount.incrementAndGet() > SAFETY_MAX_TRANSFERS) {
+            transferCount.decrementAndGet();
+            Log.w(TAG, "Too many ISO-TP messages waiting, not sending on channel " + handle);
+            return false;
+        }
+
+        Transfer transfer = new Transfer();
+        transfer.channel = channel;
+        transfer.messageId = messageId;
+        transfer.data = data.clone();
+
+        requested.add(transfer);
+        return true;
+    } // send()
+
+
+    ///////////////////////////////////////////////////////
+    // receive() : called by the dispatch thread for every received frame
+    //  returns one of the RESULT_* values
+    ///////////////////////////////////////////////////////
+    public int receive(int id, boolean extended, byte[] data, long elapsedRealtime) {
+
+        if (channelCount == 0) return RESULT_NOT_ISOTP;
+
+        Channel channel = channelsByRxId.get(rxKey(id, (extended ? VehicleBusWrapper.CANFrameType.EXTENDED : VehicleBusWrapper.CANFrameType.STANDARD)));
+        if (channel == null) return RESULT_NOT_ISOTP;
+
+        if ((data == null) || (data.length == 0)) return RESULT_CONSUMED;
+
+        int pci = (data[0] >> 4) & 0x0F;
+        switch (pci) {
+            case PCI_SINGLE: {
+                int length = data[0] & 0x0F;
+                if ((length == 0) || (length > MAX_SINGLE_FRAME) || (length > data.length - 1)) {
+                    rxErrorCount++;
+                    return RESULT_CONSUMED;
+                }
+                channel.rxData = null; // a new message ends one in progress
+                byte[] message = new byte[length];
+                System.arraycopy(data, 1, message, 0, length);
+                deliver(channel, message, elapsedRealtime);
+                return RESULT_CONSUMED;
+            }
+
+            case PCI_FIRST: {
+                if (data.length < 8) {
+                    rxErrorCount++;
+                    return RESULT_CONSUMED;
+                }
+                int length = ((data[0] & 0x0F) << 8) | (data[1] & 0xFF);
+                if (length <= MAX_SINGLE_FRAME) {
+                    rxErrorCount++;
+                    return RESULT_CONSUMED;
+                }
+                channel.rxData = null;
+                if (length > MAX_MESSAGE_SIZE) {
+                    queueFlowControl(channel, FS_OVERFLOW);
+                    return RESULT_WAKE_WRITER;
+                }
+                channel.rxData = new byte[length];
+                channel.rxLength = FIRST_FRAME_BYTES;
+                System.arraycopy(data, 2, channel.rxData, 0, FIRST_FRAME_BYTES);
+                channel.rxNextSequence = 1;
+                channel.rxBlockCount = 0;
+                channel.rxLastFrame = elapsedRealtime;
+                channel.rxStarted = elapsedRealtime;
+                queueFlowControl(channel, FS_CONTINUE);
+                return RESULT_WAKE_WRITER;
+            }
+
+            case PCI_CONSECUTIVE: {
+                byte[] message = channel.rxData;
+                if (message == null) return RESULT_CONSUMED; // we did not see the first frame
+
+                if ((elapsedRealtime - channel.rxLastFrame > TIMEOUT_N_CR_MS) || ((data[0] & 0x0F) != channel.rxNextSequence)) {
+                    Log.w(TAG, "ISO-TP channel " + channel.handle + " message lost after " + channel.rxLength + "/" + message.length + " bytes");
+                    channel.rxData = null;
+                    rxErrorCount++;
+                    return RESULT_CONSUMED;
+                }
+
+                int count = Math.min(Math.min(CONSECUTIVE_FRAME_BYTES, data.length - 1), message.length - channel.rxLength);
+                System.arraycopy(data, 1, message, channel.rxLength, count);
+                channel.rxLength += count;
+                channel.rxNextSequence = (channel.rxNextSequence + 1) & 0x0F;
+                channel.rxLastFrame = elapsedRealtime;
+
+                if (channel.rxLength >= message.length) {
+                    channel.rxData = null;
+                    deliver(channel, message, channel.rxStarted);
+                    return RESULT_CONSUMED;
+                }
+
+                channel.rxBlockCount++;
+                if ((channel.blockSize > 0) && (channel.rxBlockCount >= channel.blockSize)) {
+                    channel.rxBlockCount = 0;
+                    queueFlowControl(channel, FS_CONTINUE);
+                    return RESULT_WAKE_WRITER;
+                }
+                return RESULT_CONSUMED;
+            }
+
+            case PCI_FLOW_CONTROL: {
+                if (data.length < 3) return RESULT_CONSUMED;
+                FlowControl flowControl = new FlowControl();
+                flowControl.channel = channel;
+                flowControl.data = data.clone();
+                received.add(flowControl);
+                return RESULT_WAKE_WRITER;
+            }
+
+            default:
+                return RESULT_CONSUMED;
+        }
+    } // receive()
+
+
+    ///////////////////////////////////////////////////////
+    // service()
+    //  called by the write thread
+    //  sends our flow control frames, starts queued messages, handles received flow control and timeouts,
+    //  and adds the frames that are due to the scheduler (if it is full they are added on a later pass)
+    ///////////////////////////////////////////////////////
+    void service(long nowNanos, VehicleBusTxScheduler txScheduler) {
+
+        VehicleBusWrapper.CANFrame frame;
+        while ((!txScheduler.isFull()) && ((frame = outgoing.poll()) != null)) {
+            txScheduler.add(frame, nowNanos);
+        }
+
+        Transfer transfer;
+        while ((transfer = requested.poll()) != null) {
+            queued.add(transfer);
+        }
+
+        FlowControl flowControl;
+        while ((flowControl = received.poll()) != null) {
+            handleFlowControl(flowControl, nowNanos);
+        }
+
+        // start the next message of each channel that is free
+        for (int i = 0; i < queued.size(); ) {
+            transfer = queued.get(i);
+            if (transfer.channel.closed) {
+                queued.remove(i);
+                finish(transfer, VehicleBusConstants.ISOTP_RESULT_CANCELLED);
+            } else if ((!isBusy(transfer.channel)) && (!txScheduler.isFull())) {
+                queued.remove(i);
+                start(transfer, nowNanos, txScheduler);
+            } else {
+                i++;
+            }
+        }
+
+        for (int i = active.size() - 1; i >= 0; i--) {
+            transfer = active.get(i);
+            if (transfer.channel.closed) {
+                finish(transfer, VehicleBusConstants.ISOTP_RESULT_CANCELLED);
+                continue;
+            }
+            if (transfer.pendingFrame != null) continue; // the deadline starts when it is written
+            if (transfer.deadlineNanos > nowNanos) continue;
+
+            if (transfer.state == STATE_WAIT_FC) {
+                Log.w(TAG, "ISO-TP channel " + transfer.channel.handle + " timed out waiting for flow control");
+                finish(transfer, VehicleBusConstants.ISOTP_RESULT_TIMEOUT);
+                continue;
+            }
+
+            // STATE_SEND_CF: the next consecutive frame, the deadline for the one after it is set once this is written
+            if ((transfer.state == STATE_SEND_CF) && (!txScheduler.isFull())) {
+                transfer.pendingFrame = createConsecutive(transfer);
+                txScheduler.add(transfer.pendingFrame, nowNanos);
+                transfer.offset += CONSECUTIVE_FRAME_BYTES;
+                transfer.sequence = (transfer.sequence + 1) & 0x0F;
+
+                if (transfer.offset >= transfer.data.length) {
+                    finish(transfer, VehicleBusConstants.ISOTP_RESULT_SUCCESS);
+                    continue;
+                }
+                if ((transfer.blockRemaining > 0) && (--transfer.blockRemaining == 0)) {
+                    transfer.state = STATE_WAIT_FC;
+                }
+            }
+        }
+    } // service()
+
+
+    ///////////////////////////////////////////////////////
+    // frameWritten()
+    //  called by the write thread after it wrote a frame
+    //  starts STmin (or the flow control timeout at the end of a block) if it was a consecutive frame of ours
+    ///////////////////////////////////////////////////////
+    void frameWritten(VehicleBusWrapper.CANFrame frame, long writtenNanos) {
+
+        for (int i = 0; i < active.size(); i++) {
+            Transfer transfer = active.get(i);
+            if (transfer.pendingFrame != frame) continue;
+
+            transfer.pendingFrame = null;
+            if (transfer.state == STATE_WAIT_FC) {
+                transfer.deadlineNanos = writtenNanos + TIMEOUT_N_BS_MS * NANOS_PER_MS;
+            } else {
+                transfer.deadlineNanos = writtenNanos + transfer.stMinNanos;
+            }
+            return;
+        }
+    } // frameWritten()
+
+
+    ///////////////////////////////////////////////////////
+    // getNanosUntilNext()
+    //  called by the write thread
+    //  how long until something needs to be sent (0 if now), or maxNanos if nothing is due before then
+    ///////////////////////////////////////////////////////
+    long getNanosUntilNext(long nowNanos, long maxNanos) {
+
+        if ((!requested.isEmpty()) || (!received.isEmpty()) || (!outgoing.isEmpty())) return 0;
+
+        long wait = maxNanos;
+        for (int i = 0; i < active.size(); i++) {
+            if (active.get(i).pendingFrame != null) continue; // waits for the write, not for time
+            long until = active.get(i).deadlineNanos - nowNanos;
+            if (until < wait) wait = until;
+        }
+        for (int i = 0; i < queued.size(); i++) {
+            if (!isBusy(queued.get(i).channel)) return 0;
+        }
+        return Math.max(0, wait);
+    } // getNanosUntilNext()
+
+
+    ///////////////////////////////////////////////////////
+    // cancelAll()
+    //  called by the write thread when it starts or stops: every message being sent ends as cancelled
+    //  (channels stay open)
+    ///////////////////////////////////////////////////////
+    void cancelAll() {
+
+        Transfer transfer;
+        while ((transfer = requested.poll()) != null) {
+            queued.add(transfer);
+        }
+        received.clear();
+        outgoing.clear();
+
+        for (int i = queued.size() - 1; i >= 0; i--) {
+            finish(queued.remove(i), VehicleBusConstants.ISOTP_RESULT_CANCELLED);
+        }
+        for (int i = active.size() - 1; i >= 0; i--) {
+            finish(active.get(i), VehicleBusConstants.ISOTP_RESULT_CANCELLED);
+        }
+    } // cancelAll()
+
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public long getRxErrorCount() {
+        return rxErrorCount;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // start()
+    //  sends the single frame or the first frame of a message
+    ///////////////////////////////////////////////////////
+    void start(Transfer transfer, long nowNanos, VehicleBusTxScheduler txScheduler) {
+
+        active.add(transfer);
+        byte[] frameData = newFrameData();
+
+        if (transfer.data.length <= MAX_SINGLE_FRAME) {
+            frameData[0] = (byte) ((PCI_SINGLE << 4) | transfer.data.length);
+            System.arraycopy(transfer.data, 0, frameData, 1, transfer.data.length);
+            txScheduler.add(new VehicleBusWrapper.CANFrame(transfer.channel.txCanId, frameData, transfer.channel.type), nowNanos);
+            finish(transfer, VehicleBusConstants.ISOTP_RESULT_SUCCESS);
+            return;
+        }
+
+        frameData[0] = (byte) ((PCI_FIRST << 4) | (transfer.data.length >> 8));
+        frameData[1] = (byte) transfer.data.length;
+        System.arraycopy(transfer.data, 0, frameData, 2, FIRST_FRAME_BYTES);
+        txScheduler.add(new VehicleBusWrapper.CANFrame(transfer.channel.txCanId, frameData, transfer.channel.type), nowNanos);
+
+        transfer.offset = FIRST_FRAME_BYTES;
+        transfer.sequence = 1;
+        transfer.state = STATE_WAIT_FC;
+        transfer.deadlineNanos = nowNanos + TIMEOUT_N_BS_MS * NANOS_PER_MS;
+    } // start()
+
+
+    ///////////////////////////////////////////////////////
+    // handleFlowControl()
+    //  a flow control frame from the node we are sending to
+    ///////////////////////////////////////////////////////
+    void handleFlowControl(FlowControl flowControl, long nowNanos) {
+
+        Transfer transfer = null;
+        for (int i = 0; i < active.size(); i++) {
+            if (active.get(i).channel == flowControl.channel) {
+                transfer = active.get(i);
+                break;
+            }
+        }
+        if ((transfer == null) || (transfer.state != STATE_WAIT_FC)) return; // not expecting one
+
+        switch (flowControl.data[0] & 0x0F) {
+            case FS_CONTINUE:
+                transfer.state = STATE_SEND_CF;
+                transfer.blockRemaining = flowControl.data[1] & 0xFF;
+                transfer.stMinNanos = getStMinNanos(flowControl.data[2] & 0xFF);
+                transfer.waitCount = 0;
+                transfer.deadlineNanos = nowNanos;
+                break;
+
+            case FS_WAIT:
+                if (++transfer.waitCount > MAX_WAIT_FRAMES) {
+                    finish(transfer, VehicleBusConstants.ISOTP_RESULT_TIMEOUT);
+                } else {
+                    transfer.deadlineNanos = nowNanos + TIMEOUT_N_BS_MS * NANOS_PER_MS;
+                }
+                break;
+
+            case FS_OVERFLOW:
+                Log.w(TAG, "ISO-TP channel " + transfer.channel.handle + ": message of " + transfer.data.length + " bytes is too long for the receiver");
+                finish(transfer, VehicleBusConstants.ISOTP_RESULT_OVERFLOW);
+                break;
+
+            default:
+                finish(transfer, VehicleBusConstants.ISOTP_RESULT_INVALID);
+                break;
+        }
+    } // handleFlowControl()
+
+
+    void finish(Transfer transfer, int result) {
+        active.remove(transfer);
+        transferCount.decrementAndGet();
+
+        if (result == VehicleBusConstants.ISOTP_RESULT_SUCCESS) {
+            sentCount++;
+        } else {
+            failedCount++;
+        }
+
+        if (listener != null) {
+            listener.onIsoTpTxResult(transfer.channel.handle, transfer.messageId, result);
+        }
+    } // finish()
+
+
+    void deliver(Channel channel, byte[] message, long timestamp) {
+        receivedCount++;
+        if (listener != null) {
+            listener.onIsoTpMessage(channel.handle, message, timestamp);
+        }
+    }
+
+
+    // a flow control frame for the write thread to send
+    void queueFlowControl(Channel channel, int flowStatus) {
+        byte[] frameData = newFrameData();
+        frameData[0] = (byte) ((PCI_FLOW_CONTROL << 4) | flowStatus);
+        frameData[1] = (byte) channel.blockSize;
+        frameData[2] = (byte) channel.stMin;
+        outgoing.add(new VehicleBusWrapper.CANFrame(channel.txCanId, frameData, channel.type));
+    }
+
+    VehicleBusWrapper.CANFrame createConsecutive(Transfer transfer) {
+        byte[] frameData = newFrameData();
+        frameData[0] = (byte) ((PCI_CONSECUTIVE << 4) | transfer.sequence);
+        System.arraycopy(transfer.data, transfer.offset, frameData, 1,
+                Math.min(CONSECUTIVE_FRAME_BYTES, transfer.data.length - transfer.offset));
+        return new VehicleBusWrapper.CANFrame(transfer.channel.txCanId, frameData, transfer.channel.type);
+    }
+
+    boolean isBusy(Channel channel) {
+        for (int i = 0; i < active.size(); i++) {
+            if (active.get(i).channel == channel) return true;
+        }
+        return false;
+    }
+
+    static byte[] newFrameData() {
+        byte[] frameData = new byte[8];
+        for (int i = 0; i < frameData.length; i++) {
+            frameData[i] = PADDING;
+        }
+        return frameData;
+    }
+
+    ///////////////////////////////////////////////////////
+    // getStMinNanos()
+    //  separation time asked for by the receiver (reserved values mean the longest, 127 ms)
+    ///////////////////////////////////////////////////////
+    static long getStMinNanos(int stMin) {
+        if (stMin <= 0x7F) return stMin * NANOS_PER_MS;
+        if ((stMin >= 0xF1) && (stMin <= 0xF9)) return (stMin - 0xF0) * 100000L;
+        return 0x7F * NANOS_PER_MS;
+    }
+
+    static long rxKey(int id, VehicleBusWrapper.CANFrameType type) {
+        return (type == VehicleBusWrapper.CANFrameType.EXTENDED ? (1L << 32) : 0) | (id & 0xFFFFFFFFL);
+    }
+
+} // class VehicleBusIsoTp
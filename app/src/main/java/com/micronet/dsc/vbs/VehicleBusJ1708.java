@@ -30,11 +30,19 @@ public class VehicleBusJ1708 {
     private static final String TAG = "ATS-VBS-J1708"; // for logging
 
 
-    static final int SAFETY_MAX_OUTGOING_QUEUE_SIZE = 10; // just make sure this queue doesn't ever keep growing forever
+    static final int DEFAULT_TX_QUEUE_SIZE = 10; // frames waiting to be sent, unless configuration.xml sets txqueuesize
+    static final int SAFETY_MAX_OUTGOING_QUEUE_SIZE = 1024; // just make sure a configured queue can't be unreasonably large
 
-    static J1708WriteRunnable j1708WriteRunnable; // current thread for writing
+    static final String PORT_NAME = "J1708"; // the name of this port in configuration.xml
+
+    static volatile J1708WriteRunnable j1708WriteRunnable; // current thread for writing (frames to send are queued to it from any thread)
     static J1708ReadRunnable j1708ReadRunnable; // current thread for reading
 
+    // TX queue, from configuration.xml when start() is called
+    int txQueueSize = DEFAULT_TX_QUEUE_SIZE;
+    int txOverflowPolicy = VehicleBusTxQueue.OVERFLOW_DROP_NEWEST;
+    VehicleBusTxCompletions txCompletions; // reports what happened to frames sent with a txId
+
 
     Handler callbackHandler = null; // the handler that the runnable will be posted to
     Runnable receiveRunnable = null; // runnable to be posted to handler when a frame is received
@@ -43,7 +51,6 @@ public class VehicleBusJ1708 {
 
 
     List<VehicleBusWrapper.J1708Frame> incomingList = Collections.synchronizedList(new ArrayList<VehicleBusWrapper.J1708Frame>());
-    List<VehicleBusWrapper.J1708Frame> outgoingList = Collections.synchronizedList(new ArrayList<VehicleBusWrapper.J1708Frame>());
 
     VehicleBusWrapper busWrapper;
 
@@ -83,18 +90,46 @@ public class VehicleBusJ1708 {
 
     ///////////////////////////////////////////////////////////////////
     // sendFrame() : safe to callfrom a different Thread than the CAN threads
+    //  queues a frame to be sent by the write thread, which is woken up right away
+    //  returns false if the frame was dropped (write thread not running or too much already queued)
     ///////////////////////////////////////////////////////////////////
-    public void sendFrame(VehicleBusWrapper.J1708Frame frame) {
+    public boolean sendFrame(VehicleBusWrapper.J1708Frame frame) {
+        return sendFrame(frame, VehicleBusTxCompletions.NO_TX_ID);
+    }
+
+    // txId : reported with what happened to the frame (see VehicleBusTxCompletions), NO_TX_ID if not wanted
+    public boolean sendFrame(VehicleBusWrapper.J1708Frame frame, int txId) {
 
         Log.vv(TAG, "SendFrame()");
-        synchronized (outgoingList ) {
-            if (outgoingList.size() < SAFETY_MAX_OUTGOING_QUEUE_SIZE) {
-                outgoingList.add(frame);
-            }
+        J1708WriteRunnable writer = j1708WriteRunnable;
+        if (writer == null) return false;
+
+        if (writer.txQueue.offer(frame, txId)) return true;
+
+        if (writer.txQueue.getOverflowPolicy() == VehicleBusTxQueue.OVERFLOW_REJECT) {
+            broadcastTxNack(frame);
         }
-        Log.vv(TAG, "SendFrame() END");
+        return false;
     }
 
+    ///////////////////////////////////////////////////////////////////
+    // broadcastTxNack()
+    //  tells other applications that a frame they asked to send was rejected because the TX queue was full
+    ///////////////////////////////////////////////////////////////////
+    void broadcastTxNack(VehicleBusWrapper.J1708Frame frame) {
+
+        Log.w(TAG, "TX queue full, rejected frame " + frame.getId());
+
+        Intent ibroadcast = new Intent();
+        ibroadcast.setAction(VehicleBusConstants.BROADCAST_J1708_TX_NACK);
+
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, SystemClock.elapsedRealtime()); // ms since boot
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1708_PRIORITY, frame.getPriority());
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1708_ID, frame.getId());
+
+        context.sendBroadcast(ibroadcast);
+    } // broadcastTxNack()
+
 
     ///////////////////////////////////////////////////////////////////
     // clearQueues()
@@ -105,9 +140,7 @@ public class VehicleBusJ1708 {
             incomingList.clear();
         }
 
-        synchronized(outgoingList ) {
-            outgoingList.clear();
-        }
+        // frames to send are only discarded by the write thread, see abortTransmits()
     } //clearQueues()
 
 
@@ -147,6 +180,11 @@ public class VehicleBusJ1708 {
         stop(); // stop any threads already running
 
 
+        // size and overflow policy of the TX queue
+        txQueueSize = Math.min(Config.getTxQueueSize(PORT_NAME, DEFAULT_TX_QUEUE_SIZE), SAFETY_MAX_OUTGOING_QUEUE_SIZE);
+        txOverflowPolicy = Config.getTxOverflowPolicy(PORT_NAME, VehicleBusTxQueue.OVERFLOW_DROP_NEWEST);
+        txCompletions = new VehicleBusTxCompletions(context, PORT_NAME, 0, (VehicleBusService.service != null ? VehicleBusService.service.binder : null));
+
         if (busWrapper.isUnitTesting) {
             // since we are unit testing and not on realy device, even creating the CanbusInterface will fail fatally,
             //  so we need to skip this in testing
@@ -196,7 +234,11 @@ public class VehicleBusJ1708 {
         if (j1708ReadRunnable != null)
             j1708ReadRunnable.cancelThread = true;
         if (j1708WriteRunnable != null)
-            j1708WriteRunnable.cancelThread = true;
+            j1708WriteRunnable.cancel();
+
+        if (txCompletions != null) {
+            txCompletions.flush();
+        }
 
         busWrapper.stop(BUS_NAME);
     }
@@ -282,7 +324,7 @@ public class VehicleBusJ1708 {
 
         // Safety: make sure we cancel any previous thread if we are starting a new one
         if (j1708WriteRunnable != null) {
-            j1708WriteRunnable.cancelThread = true;
+            j1708WriteRunnable.cancel();
           //  Log.v(TAG, "canceling j708 write thread ");
         }
 
@@ -310,6 +352,44 @@ public class VehicleBusJ1708 {
         return false;
     }
 
+    ///////////////////////////////////////////////
+    // getTxLatencyAvgMicros(), getTxLatencyMaxMicros()
+    //  time from a frame being queued to send until it was written to the socket (since the write thread started)
+    ///////////////////////////////////////////////
+    public long getTxLatencyAvgMicros() {
+        J1708WriteRunnable writer = j1708WriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getLatencyAvgMicros();
+    }
+
+    public long getTxLatencyMaxMicros() {
+        J1708WriteRunnable writer = j1708WriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getLatencyMaxMicros();
+    }
+
+    ///////////////////////////////////////////////
+    // getTxDroppedNewestCount(), getTxDroppedOldestCount(), getTxRejectedCount()
+    //  frames lost because the TX queue was full, for each overflow policy (since the write thread started)
+    ///////////////////////////////////////////////
+    public long getTxDroppedNewestCount() {
+        J1708WriteRunnable writer = j1708WriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getDroppedNewestCount();
+    }
+
+    public long getTxDroppedOldestCount() {
+        J1708WriteRunnable writer = j1708WriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getDroppedOldestCount();
+    }
+
+    public long getTxRejectedCount() {
+        J1708WriteRunnable writer = j1708WriteRunnable;
+        if (writer == null) return 0;
+        return writer.txQueue.getRejectedCount();
+    }
+
     public boolean isReadReady() {
         try {
             if ((j1708ReadRunnable != null) &&
@@ -327,13 +407,12 @@ public class VehicleBusJ1708 {
     ///////////////////////////////////////////////////////////////////
     // abortTransmits()
     //  stop attempting to send any Tx packets in progress (maybe our address was changed, etc..)
+    //  called by the write thread
     ///////////////////////////////////////////////////////////////////
-    public void abortTransmits() {
+    public void abortTransmits(VehicleBusTxQueue<VehicleBusWrapper.J1708Frame> txQueue) {
 
         // kill any frames in our queue
-        synchronized (outgoingList) {
-            outgoingList.clear();
-        }
+        txQueue.clear();
     } // abortTransmits
 
 
@@ -352,17 +431,26 @@ public class VehicleBusJ1708 {
     public class J1708WriteRunnable implements Runnable {
 
 
+        static final long IDLE_PARK_NS = 100 * 1000000L; // wake up at least this often to check for cancel
+
         volatile boolean cancelThread = false;
         volatile boolean isClosed = false;
         volatile boolean isReady = false;
 
         VehicleBusWrapper.J1708Socket j1708WriteSocket;
+        final VehicleBusTxQueue<VehicleBusWrapper.J1708Frame> txQueue = new VehicleBusTxQueue<VehicleBusWrapper.J1708Frame>(txQueueSize, txOverflowPolicy, txCompletions);
+        final VehicleBusTxCompletions completions = txCompletions;
 
         J1708WriteRunnable(VehicleBusWrapper.J1708Socket socket) {
 
             j1708WriteSocket = socket;
         }
 
+        void cancel() {
+            cancelThread = true;
+            txQueue.wakeConsumer();
+        }
+
         public void run() {
 
             VehicleBusWrapper.J1708Frame outFrame = null;
@@ -370,7 +458,7 @@ public class VehicleBusJ1708 {
             while (!cancelThread) {
 
                 // remove anything in our outgoing queues and connections
-                abortTransmits();
+                abortTransmits(txQueue);
 
                 if (!cancelThread) {
                     // Notify the main thread that we are ready for write
@@ -386,34 +474,41 @@ public class VehicleBusJ1708 {
 
                 while (!cancelThread) {
 
-                    // try and send a packet
-                    outFrame = null;
-                    // get what we need to send
-                    synchronized (outgoingList) {
-                        if (outgoingList.size() > 0) {
-                            outFrame = outgoingList.get(0);
-                            outgoingList.remove(0);
-                        }
-                    }
+                    // get what we need to send, or wait until something is queued
+                    outFrame = txQueue.poll();
                     if (outFrame == null) {
-                        android.os.SystemClock.sleep(5); // we can wait 5 ms if nothing to send.
-                    } else {
-                        Log.v(TAG, "frame --> " + String.format("%02x", outFrame.getId()) + " : " + Log.bytesToHex(outFrame.getData(), outFrame.getData().length));
-                        try {
-                            j1708WriteSocket.writeJ1708(outFrame);
-                            //Log.d(TAG, "Write Returns");
-                        } catch (Exception e) {
-                            // exceptions are expected if the interface is closed
-                            Log.v(TAG, "Exception on write socket. Canceling Thread");
-                            cancelThread = true;
+                        if (completions != null) completions.flush(); // nothing more to write for now
+                        txQueue.await(IDLE_PARK_NS);
+                        continue;
+                    }
+                    long dequeueNanos = System.nanoTime();
+                    if (completions != null) completions.flushIfDue(dequeueNanos);
+
+                    Log.v(TAG, "frame --> " + String.format("%02x", outFrame.getId()) + " : " + Log.bytesToHex(outFrame.getData(), outFrame.getData().length));
+                    try {
+                        j1708WriteSocket.writeJ1708(outFrame);
+                        txQueue.recordWritten();
+                        if (completions != null) {
+                            completions.add(txQueue.getPolledTxId(), VehicleBusConstants.TX_RESULT_WRITTEN,
+                                    txQueue.getPolledEnqueueNanos(), dequeueNanos, System.nanoTime());
                         }
+                        //Log.d(TAG, "Write Returns");
+                    } catch (Exception e) {
+                        // exceptions are expected if the interface is closed
+                        Log.v(TAG, "Exception on write socket. Canceling Thread");
+                        if (completions != null) {
+                            completions.add(txQueue.getPolledTxId(), VehicleBusConstants.TX_RESULT_WRITE_FAILED,
+                                    txQueue.getPolledEnqueueNanos(), dequeueNanos, System.nanoTime());
+                        }
+                        cancelThread = true;
                     }
                 } // thread not canceled
 
             } // thread not cancelled
 
             isReady = false;
-            Log.v(TAG, "J1708 Write Thread terminated");
+            Log.v(TAG, "J1708 Write Thread terminated (" + txQueue.getWrittenCount() + " frames written, latency avg " +
+                    txQueue.getLatencyAvgMicros() + " us max " + txQueue.getLatencyMaxMicros() + " us)");
             isClosed = true;
 
         } // run
@@ -531,6 +626,12 @@ public class VehicleBusJ1708 {
         ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_J1708_DATA, frame.getData());
 
         context.sendBroadcast(ibroadcast);
+
+        VehicleBusRing ring = (VehicleBusService.service != null ? VehicleBusService.service.rxRing : null);
+        if (ring != null) {
+            // copy this frame to the shared memory ring for clients that read it directly
+            ring.write(VehicleBusConstants.RING_BUS_J1708, frame.getId(), 0, frame.getPriority(), frame.getData(), elapsedRealtime);
+        }
     } // broadcastRx
 
 
@@ -555,7 +656,7 @@ public class VehicleBusJ1708 {
 
                 if ((priority != -1) && (id != -1) && (data != null) && (data.length > 0)) {
                     VehicleBusWrapper.J1708Frame frame = new VehicleBusWrapper.J1708Frame(priority, id, data);
-                    sendFrame(frame);
+                    sendFrame(frame, intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_ID, VehicleBusTxCompletions.NO_TX_ID));
                 }
             } catch (Exception e) {
                 Log.e(TAG, ".txReceiver Exception : " + e.toString(), e);
@@ -0,0 +1,523 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusJ1939Request:
+//  Asks other nodes for a PGN with the J1939 Request PGN (59904 / 0xEA00) and waits for the reply,
+//      so clients don't have to send the request themselves and watch the whole RX stream for the answer.
+//  The reply is matched by PGN and by the source address it came from (any address for a request to global).
+//      It may be a single frame or a transport protocol transfer: BAM, or RTS/CTS to the address we requested from
+//      (then we send the CTS and the EOM acknowledgement). A NACK (Acknowledgment PGN 0xE800) for the PGN ends the request.
+//  Every reply is cached, so a request for the same PGN from the same node within maxAgeMs of the last reply is
+//      answered from the cache without touching the bus. A request for a PGN that is already being requested
+//      from the same node waits for that reply instead of sending another request.
+//  request() may be called from any thread, receive() is called by the CAN dispatch thread, and timeouts run
+//      on our own thread. Results are given to the listener on any of those threads.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+
+public class VehicleBusJ1939Request {
+
+    private static final String TAG = "ATS-VBS-J1939Req"; // for logging
+
+    static final int PGN_REQUEST = 0xEA00; // 59904
+    static final int PF_REQUEST = 0xEA;
+    static final int PF_ACK = 0xE8; // Acknowledgment PGN 0xE800
+    static final int REQUEST_PRIORITY = 6;
+
+    // control bytes of the Acknowledgment PGN that mean the node will not answer
+    static final int ACK_NACK = 1;
+    static final int ACK_ACCESS_DENIED = 2;
+    static final int ACK_CANNOT_RESPOND = 3;
+
+    public static final int DEFAULT_TIMEOUT_MS = 1250; // J1939-21 Tr (200 ms) for the start of the reply, plus room for a TP transfer
+    public static final int DEFAULT_MAX_AGE_MS = 1000;
+    static final int MAX_TIMEOUT_MS = 60000;
+    static final int TIMEOUT_TP_MS = VehicleBusJ1939Tp.TIMEOUT_RTS_CTS_MS; // deadline moves out this much on each TP frame of the reply
+    static final int MAX_PACKETS_PER_CTS = 16;
+
+    static final int CACHE_MAX_AGE_MS = 60000; // replies older than this are forgotten
+    static final int SAFETY_MAX_CACHE_ENTRIES = 256;
+    static final int SAFETY_MAX_REQUESTS = 64; // requests waiting for a reply
+
+
+    ///////////////////////////////////////////////////////
+    // Sender
+    //  queues a frame to be written (the request, and our CTS and EOM acknowledgements)
+    ///////////////////////////////////////////////////////
+    public interface Sender {
+        boolean sendFrame(VehicleBusWrapper.CANFrame frame);
+    }
+
+    ///////////////////////////////////////////////////////
+    // ResultListener
+    //  called once for each request()
+    //  responder : the address the reply came from, data is null unless the result is a reply
+    ///////////////////////////////////////////////////////
+    public interface ResultListener {
+        void onJ1939RequestResult(int requestId, int pgn, int destination, int responder, byte[] data, long timestamp, int result);
+    }
+
+
+    // a PGN being requested from one address (or global)
+    static class Pending {
+        int pgn;
+        int source; // our address
+        int destination;
+        long deadline; // elapsedRealtime
+        ArrayList<Integer> requestIds = new ArrayList<Integer>();
+
+        // RTS/CTS reply in progress (only for a request to an address)
+        int tpPackets;
+        int tpMaxPerCts;
+        int tpLastCtsPacket; // last packet our current CTS asked for
+    }
+
+    static class CacheEntry {
+        int responder;
+        byte[] data;
+        long timestamp; // elapsedRealtime the reply started to arrive
+    }
+
+
+    final Sender sender;
+    final ResultListener listener;
+
+    // guarded by this
+    final ArrayList<Pending> pending = new ArrayList<Pending>();
+    final HashMap<Long, CacheEntry> cache = new HashMap<Long, CacheEntry>(); // by cacheKey(), global holds the latest reply from anyone
+    volatile int pendingCount = 0; // checked by receive() without locking
+
+    // reassembly of the TP replies, only used by the dispatch thread
+    final VehicleBusJ1939Tp tp = new VehicleBusJ1939Tp();
+
+    HandlerThread timeoutThread;
+    volatile Handler timeoutHandler;
+
+    // statistics
+    volatile long sentCount = 0;
+    volatile long cachedCount = 0;
+    volatile long timeoutCount = 0;
+
+
+    public VehicleBusJ1939Request(Sender sender, ResultListener listener) {
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // start()
+    //  starts the thread that ends requests that were not answered in time
+    //  (if it is already running from a previous start it is kept)
+    ///////////////////////////////////////////////////////
+    public void start(String portName) {
+        if (timeoutThread != null) return;
+
+        timeoutThread = new HandlerThread(portName + "-J1939Req");
+        timeoutThread.start();
+        timeoutHandler = new Handler(timeoutThread.getLooper());
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // stop()
+    //  cancels everything still waiting for a reply and stops the thread
+    ///////////////////////////////////////////////////////
+    public void stop() {
+
+        Handler handler = timeoutHandler;
+        timeoutHandler = null;
+        if (handler != null) handler.removeCallbacksAndMessages(null);
+        if (timeoutThread != null) {
+            timeoutThread.quit();
+            timeoutThread = null;
+        }
+
+        cancel();
+    } // stop()
+
+
+    ///////////////////////////////////////////////////////
+    // cancel()
+    //  cancels everything still waiting for a reply and forgets the cache (the next start may be a different bus)
+    //  the thread keeps running for the next start
+    ///////////////////////////////////////////////////////
+    public void cancel() {
+
+        Handler handler = timeoutHandler;
+        if (handler != null) handler.removeCallbacks(timeoutTask);
+
+        ArrayList<Pending> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<Pending>(pending);
+            pending.clear();
+            pendingCount = 0;
+            cache.clear();
+        }
+        for (Pending p : cancelled) {
+            finish(p, -1, null, 0, VehicleBusConstants.J1939_REQUEST_RESULT_CANCELLED);
+        }
+    } // cancel()
+
+
+    ///////////////////////////////////////////////////////
+    // request() : safe to call from any thread
+    //  requests the pgn from destination (255 = global) as source, or answers from the cache
+    //  timeoutMs : how long to wait for the reply to start (0 = DEFAULT_TIMEOUT_MS)
+    //  maxAgeMs : how old a cached reply may be to be used (0 = always ask the bus)
+    //  returns false if the parameters are not valid or the request could not be sent (then there is no result)
+    ///////////////////////////////////////////////////////
+    public boolean request(int requestId, int pgn, int source, int destination, int timeoutMs, int maxAgeMs) {
+
+        if ((pgn < 0) || (pgn > 0x3FFFF)) return false;
+        if ((source < 0) || (source > 0xFD) || (destination < 0) || (destination > 0xFF)) return false;
+        if ((timeoutMs < 0) || (timeoutMs > MAX_TIMEOUT_MS) || (maxAgeMs < 0)) return false;
+        if (timeoutMs == 0) timeoutMs = DEFAULT_TIMEOUT_MS;
+
+        Handler handler = timeoutHandler;
+        if (handler == null) return false; // not started
+
+        long now = SystemClock.elapsedRealtime();
+        CacheEntry cached = null;
+        Pending p;
+
+        synchronized (this) {
+            if (maxAgeMs > 0) {
+                CacheEntry entry = cache.get(cacheKey(pgn, destination));
+                if ((entry != null) && (now - entry.timestamp <= maxAgeMs)) cached = entry;
+            }
+
+            if (cached == null) {
+                p = findPending(pgn, destination);
+                if (p != null) {
+                    // already asked, this request gets the same reply
+                    p.requestIds.add(requestId);
+                    return true;
+                }
+
+                if (pending.size() >= SAFETY_MAX_REQUESTS) {
+                    Log.w(TAG, "Too many J1939 requests waiting, not requesting PGN " + pgn);
+                    return false;
+                }
+
+                p = new Pending();
+                p.pgn = pgn;
+                p.source = source;
+                p.destination = destination;
+                p.deadline = now + timeoutMs;
+                p.requestIds.add(requestId);
+                pending.add(p);
+                pendingCount = pending.size();
+            } else {
+                p = null;
+            }
+        }
+
+        if (cached != null) {
+            cachedCount++;
+            listener.onJ1939RequestResult(requestId, pgn, destination, cached.responder, cached.data, cached.timestamp,
+                    VehicleBusConstants.J1939_REQUEST_RESULT_CACHED);
+            return true;
+        }
+
+        byte[] data = new byte[] {(byte) pgn, (byte) (pgn >> 8), (byte) (pgn >> 16)};
+        int id = (REQUEST_PRIORITY << 26) | (PF_REQUEST << 16) | (destination << 8) | source;
+        if (!sender.sendFrame(new VehicleBusWrapper.CANFrame(id, data, VehicleBusWrapper.CANFrameType.EXTENDED))) {
+            synchronized (this) {
+                pending.remove(p);
+                pendingCount = pending.size();
+                p.requestIds.remove(0); // ours, the caller is told by the return value
+            }
+            // anyone who joined in the meantime is told it failed
+            if (!p.requestIds.isEmpty()) finish(p, -1, null, 0, VehicleBusConstants.J1939_REQUEST_RESULT_NOT_SENT);
+            return false;
+        }
+
+        sentCount++;
+        Log.v(TAG, "Request PGN " + String.format("%04X", pgn) + " from " + destination);
+        handler.postDelayed(timeoutTask, timeoutMs);
+        return true;
+    } // request()
+
+
+    ///////////////////////////////////////////////////////
+    // receive()
+    //  called by the CAN dispatch thread with every received frame, looks for replies to our requests
+    //  (the frame is still delivered normally)
+    ///////////////////////////////////////////////////////
+    public void receive(int id, boolean extended, byte[] data, long elapsedRealtime) {
+
+        if ((pendingCount == 0) || (!extended) || (data == null)) return;
+
+        int dp = (id >> 24) & 0x03;
+        int pf = (id >> 16) & 0xFF;
+        int ps = (id >> 8) & 0xFF;
+        int responder = id & 0xFF;
+
+        if ((pf == VehicleBusJ1939Tp.PF_TP_CM) || (pf == VehicleBusJ1939Tp.PF_TP_DT)) {
+            receiveTp(pf, ps, responder, id, data, elapsedRealtime);
+            return;
+        }
+
+        if (pf == PF_ACK) {
+            if (data.length < 8) return;
+            int control = data[0] & 0xFF;
+            if ((control != ACK_NACK) && (control != ACK_ACCESS_DENIED) && (control != ACK_CANNOT_RESPOND)) return;
+            int pgn = (data[5] & 0xFF) | ((data[6] & 0xFF) << 8) | ((data[7] & 0x03) << 16);
+            Pending p = takePending(pgn, responder, true);
+            if (p != null) finish(p, responder, null, elapsedRealtime, VehicleBusConstants.J1939_REQUEST_RESULT_NACK);
+            return;
+        }
+
+        // single frame reply, a PDU1 reply must be to us or to global
+        int pgn;
+        if (pf < 240) {
+            pgn = (dp << 16) | (pf << 8);
+            if ((ps != VehicleBusJ1939Tp.GLOBAL_ADDRESS) && (!isOurAddress(ps))) return;
+        } else {
+            pgn = (dp << 16) | (pf << 8) | ps;
+        }
+
+        complete(pgn, responder, data.clone(), elapsedRealtime);
+    } // receive()
+
+
+    ///////////////////////////////////////////////////////
+    // receiveTp()
+    //  follows transport protocol replies, and answers the RTS/CTS ones that are sent to us
+    ///////////////////////////////////////////////////////
+    void receiveTp(int pf, int ps, int responder, int id, byte[] data, long elapsedRealtime) {
+
+        if (data.length < 8) return;
+
+        Pending rtsCts = null; // the request this is an RTS/CTS reply to
+        VehicleBusWrapper.CANFrame answer = null;
+
+        synchronized (this) {
+            if (pf == VehicleBusJ1939Tp.PF_TP_CM) {
+                int control = data[0] & 0xFF;
+                // (an aborted reply is dropped by the reassembly, the request waits until its timeout in case the node tries again)
+                if ((control == VehicleBusJ1939Tp.CM_BAM) || (control == VehicleBusJ1939Tp.CM_RTS)) {
+                    int pgn = (data[5] & 0xFF) | ((data[6] & 0xFF) << 8) | ((data[7] & 0x03) << 16);
+                    Pending p = findPending(pgn, responder);
+                    if (p == null) return; // not a reply we are waiting for, don't track it
+                    if (control == VehicleBusJ1939Tp.CM_RTS) {
+                        if (ps != p.source) return; // sent to someone else
+                        p.tpPackets = data[3] & 0xFF;
+                        p.tpMaxPerCts = data[4] & 0xFF;
+                        if ((p.tpMaxPerCts == 0) || (p.tpMaxPerCts > MAX_PACKETS_PER_CTS)) p.tpMaxPerCts = MAX_PACKETS_PER_CTS;
+                        answer = makeCts(p, responder, 1);
+                    }
+                    p.deadline = Math.max(p.deadline, SystemClock.elapsedRealtime() + TIMEOUT_TP_MS);
+                }
+            } else {
+                // data: the next CTS once all the packets of this one are in
+                Pending p = findRtsCts(responder, ps);
+                if (p != null) {
+                    p.deadline = Math.max(p.deadline, SystemClock.elapsedRealtime() + TIMEOUT_TP_MS);
+                    int sequence = data[0] & 0xFF;
+                    if ((sequence == p.tpLastCtsPacket) && (sequence < p.tpPackets)) {
+                        answer = makeCts(p, responder, sequence + 1);
+                    }
+                    rtsCts = p;
+                }
+            }
+        }
+
+        int result = tp.receive(id, true, data, elapsedRealtime);
+
+        if (result == VehicleBusJ1939Tp.RESULT_COMPLETE) {
+            if (rtsCts != null) {
+                // acknowledge the whole message
+                int size = tp.completedData.length;
+                byte[] eom = new byte[] {(byte) VehicleBusJ1939Tp.CM_EOM_ACK, (byte) size, (byte) (size >> 8), (byte) rtsCts.tpPackets,
+                        (byte) 0xFF, (byte) tp.completedPgn, (byte) (tp.completedPgn >> 8), (byte) (tp.completedPgn >> 16)};
+                answer = new VehicleBusWrapper.CANFrame(makeTpCmId(rtsCts.source, responder), eom, VehicleBusWrapper.CANFrameType.EXTENDED);
+            }
+            complete(tp.completedPgn, tp.completedSource, tp.completedData, tp.completedTimestamp);
+        }
+
+        if (answer != null) sender.sendFrame(answer);
+    } // receiveTp()
+
+
+    ///////////////////////////////////////////////////////
+    // makeCts()
+    //  asks the responder for the packets starting at firstPacket, called with the lock held
+    ///////////////////////////////////////////////////////
+    VehicleBusWrapper.CANFrame makeCts(Pending p, int responder, int firstPacket) {
+        int count = Math.min(p.tpMaxPerCts, p.tpPackets - firstPacket + 1);
+        p.tpLastCtsPacket = firstPacket + count - 1;
+        byte[] cts = new byte[] {(byte) VehicleBusJ1939Tp.CM_CTS, (byte) count, (byte) firstPacket, (byte) 0xFF, (byte) 0xFF,
+                (byte) p.pgn, (byte) (p.pgn >> 8), (byte) (p.pgn >> 16)};
+        return new VehicleBusWrapper.CANFrame(makeTpCmId(p.source, responder), cts, VehicleBusWrapper.CANFrameType.EXTENDED);
+    }
+
+    static int makeTpCmId(int source, int destination) {
+        return (7 << 26) | (VehicleBusJ1939Tp.PF_TP_CM << 16) | (destination << 8) | source;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // complete()
+    //  a reply for pgn arrived from responder: cache it and end the requests waiting for it
+    ///////////////////////////////////////////////////////
+    void complete(int pgn, int responder, byte[] data, long timestamp) {
+
+        Pending p;
+        synchronized (this) {
+            if (findPending(pgn, responder) == null) return; // nobody asked (the cache only holds replies to requests)
+
+            CacheEntry entry = new CacheEntry();
+            entry.responder = responder;
+            entry.data = data;
+            entry.timestamp = timestamp;
+            if ((cache.size() >= SAFETY_MAX_CACHE_ENTRIES) && (!cache.containsKey(cacheKey(pgn, responder)))) {
+                pruneCache(SystemClock.elapsedRealtime());
+            }
+            cache.put(cacheKey(pgn, responder), entry);
+            cache.put(cacheKey(pgn, VehicleBusJ1939Tp.GLOBAL_ADDRESS), entry);
+
+            p = takePending(pgn, responder, false);
+        }
+
+        // a request to global ends with the first reply, but a request to this node may also be waiting
+        while (p != null) {
+            finish(p, responder, data, timestamp, VehicleBusConstants.J1939_REQUEST_RESULT_REPLY);
+            p = takePending(pgn, responder, false);
+        }
+    } // complete()
+
+
+    ///////////////////////////////////////////////////////
+    // finish()
+    //  gives the result to each request waiting for p
+    ///////////////////////////////////////////////////////
+    void finish(Pending p, int responder, byte[] data, long timestamp, int result) {
+        Log.v(TAG, "Request PGN " + String.format("%04X", p.pgn) + " from " + p.destination + " result " + result);
+        for (int requestId : p.requestIds) {
+            listener.onJ1939RequestResult(requestId, p.pgn, p.destination, responder, data, timestamp, result);
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // timeoutTask
+    //  ends the requests whose deadline has passed
+    ///////////////////////////////////////////////////////
+    final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Pending> expired = null;
+            long next = Long.MAX_VALUE;
+            long now = SystemClock.elapsedRealtime();
+
+            synchronized (VehicleBusJ1939Request.this) {
+                Iterator<Pending> iterator = pending.iterator();
+                while (iterator.hasNext()) {
+                    Pending p = iterator.next();
+                    if (p.deadline <= now) {
+                        iterator.remove();
+                        if (expired == null) expired = new ArrayList<Pending>();
+                        expired.add(p);
+                    } else if (p.deadline < next) {
+                        next = p.deadline;
+                    }
+                }
+                pendingCount = pending.size();
+                pruneCache(now);
+            }
+
+            if (expired != null) {
+                for (Pending p : expired) {
+                    timeoutCount++;
+                    finish(p, -1, null, 0, VehicleBusConstants.J1939_REQUEST_RESULT_TIMEOUT);
+                }
+            }
+
+            // deadlines that moved out for a TP reply
+            Handler handler = timeoutHandler;
+            if ((handler != null) && (next != Long.MAX_VALUE)) {
+                handler.removeCallbacks(this);
+                handler.postDelayed(this, next - now);
+            }
+        }
+    }; // timeoutTask
+
+
+    // called with the lock held
+    Pending findPending(int pgn, int address) {
+        for (Pending p : pending) {
+            if ((p.pgn == pgn) && ((p.destination == address) || (p.destination == VehicleBusJ1939Tp.GLOBAL_ADDRESS))) return p;
+        }
+        return null;
+    }
+
+    // called with the lock held: the request that responder is sending an RTS/CTS reply for to address
+    Pending findRtsCts(int responder, int address) {
+        for (Pending p : pending) {
+            if ((p.destination == responder) && (p.source == address) && (p.tpPackets > 0)) return p;
+        }
+        return null;
+    }
+
+    // removes the request for pgn that responder answers, exact: only a request to that node (a NACK does not end a global request)
+    synchronized Pending takePending(int pgn, int responder, boolean exact) {
+        for (int i = 0; i < pending.size(); i++) {
+            Pending p = pending.get(i);
+            if ((p.pgn == pgn) && ((p.destination == responder) || ((!exact) && (p.destination == VehicleBusJ1939Tp.GLOBAL_ADDRESS)))) {
+                pending.remove(i);
+                pendingCount = pending.size();
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // called with the lock held
+    boolean isOurAddress(int address) {
+        for (Pending p : pending) {
+            if (p.source == address) return true;
+        }
+        return false;
+    }
+
+    // called with the lock held
+    void pruneCache(long now) {
+        Iterator<CacheEntry> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().timestamp > CACHE_MAX_AGE_MS) iterator.remove();
+        }
+    }
+
+    static long cacheKey(int pgn, int address) {
+        return ((long) pgn << 8) | address;
+    }
+
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getCachedCount() {
+        return cachedCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+} // class VehicleBusJ1939Request
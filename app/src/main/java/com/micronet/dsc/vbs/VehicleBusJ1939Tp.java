@@ -0,0 +1,264 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusJ1939Tp:
+//  Passive J1939-21 transport protocol reassembly (we only listen, we never send CTS or acknowledgements)
+//  Follows BAM transfers (to global) and RTS/CTS transfers (to a specific address) on the bus,
+//      and turns the TP.CM and TP.DT frames of each transfer into one complete message.
+//  Sessions are tracked per source/destination address pair, so transfers from different
+//      nodes can be in progress at the same time. A session that goes quiet for too long is dropped.
+//  Not thread safe: only called from the CAN dispatch thread.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.util.SparseArray;
+
+
+public class VehicleBusJ1939Tp {
+
+    private static final String TAG = "ATS-VBS-J1939Tp"; // for logging
+
+    // PDU format (PF) of the transport protocol PGNs
+    static final int PF_TP_CM = 0xEC; // PGN 0xEC00, connection management
+    static final int PF_TP_DT = 0xEB; // PGN 0xEB00, data transfer
+
+    // TP.CM control bytes
+    static final int CM_RTS = 16;
+    static final int CM_CTS = 17;
+    static final int CM_EOM_ACK = 19;
+    static final int CM_BAM = 32;
+    static final int CM_ABORT = 255;
+
+    static final int GLOBAL_ADDRESS = 0xFF;
+    static final int BYTES_PER_PACKET = 7;
+    static final int MAX_MESSAGE_SIZE = 255 * BYTES_PER_PACKET; // 1785
+
+    // J1939-21 receiver timeouts
+    static final int TIMEOUT_BAM_MS = 750; // T1: between data packets of a BAM
+    static final int TIMEOUT_RTS_CTS_MS = 1250; // T2/T3: while waiting for data or for a CTS
+
+    static final int SAFETY_MAX_SESSIONS = 64; // stop tracking new transfers if something is flooding the bus
+
+    // results of receive()
+    public static final int RESULT_NOT_TP = 0; // not a transport protocol frame, deliver it normally
+    public static final int RESULT_CONSUMED = 1; // part of a transfer, nothing more to do
+    public static final int RESULT_COMPLETE = 2; // this frame completed a transfer, the completed* fields hold the message
+
+
+    ///////////////////////////////////////////////////////
+    // Session : one transfer in progress
+    ///////////////////////////////////////////////////////
+    static class Session {
+        int source;
+        int destination; // GLOBAL_ADDRESS for BAM
+        int priority;
+        int pgn;
+        int size; // bytes
+        int packets; // total packets
+        int receivedPackets; // number of distinct packets received so far
+        boolean[] received;
+        byte[] data;
+        long lastActivity;
+        long started;
+    }
+
+    // keyed by (source << 8) | destination
+    SparseArray<Session> sessions = new SparseArray<Session>();
+
+    // the last completed message, valid after receive() returns RESULT_COMPLETE
+    public int completedPgn;
+    public int completedPriority;
+    public int completedSource;
+    public int completedDestination;
+    public byte[] completedData;
+    public long completedTimestamp; // when the first frame of the transfer was received
+
+    // statistics
+    long completedCount = 0;
+    long timeoutCount = 0;
+    long abortCount = 0;
+
+
+    ///////////////////////////////////////////////////////
+    // receive()
+    //  passes a received frame through the reassembly
+    //  returns one of the RESULT_* values
+    ///////////////////////////////////////////////////////
+    public int receive(int id, boolean extended, byte[] data, long elapsedRealtime) {
+
+        if (!extended) return RESULT_NOT_TP; // J1939 is 29-bit only
+
+        int pf = (id >> 16) & 0xFF;
+        if ((pf != PF_TP_CM) && (pf != PF_TP_DT)) return RESULT_NOT_TP;
+
+        int destination = (id >> 8) & 0xFF;
+        int source = id & 0xFF;
+        int priority = (id >> 26) & 0x07;
+
+        expireSessions(elapsedRealtime);
+
+        if ((data == null) || (data.length < 8)) return RESULT_CONSUMED; // TP frames are always 8 bytes
+
+        if (pf == PF_TP_CM) {
+            receiveCM(source, destination, priority, data, elapsedRealtime);
+            return RESULT_CONSUMED;
+        }
+
+        return receiveDT(source, destination, data, elapsedRealtime);
+    } // receive()
+
+
+    ///////////////////////////////////////////////////////
+    // receiveCM()
+    //  handles a connection management frame
+    ///////////////////////////////////////////////////////
+    void receiveCM(int source, int destination, int priority, byte[] data, long elapsedRealtime) {
+
+        int control = data[0] & 0xFF;
+        int pgn = (data[5] & 0xFF) | ((data[6] & 0xFF) << 8) | ((data[7] & 0x03) << 16);
+
+        switch (control) {
+            case CM_BAM:
+            case CM_RTS:
+                int size = (data[1] & 0xFF) | ((data[2] & 0xFF) << 8);
+                int packets = data[3] & 0xFF;
+
+                if (control == CM_BAM) destination = GLOBAL_ADDRESS;
+
+                if ((size < 9) || (size > MAX_MESSAGE_SIZE) || (packets != (size + BYTES_PER_PACKET - 1) / BYTES_PER_PACKET)) {
+                    Log.w(TAG, "Ignoring TP from " + source + " with invalid size " + size + " / " + packets + " packets");
+                    sessions.remove(key(source, destination));
+                    return;
+                }
+
+                if ((sessions.get(key(source, destination)) == null) && (sessions.size() >= SAFETY_MAX_SESSIONS)) {
+                    Log.w(TAG, "Too many TP sessions, ignoring transfer from " + source);
+                    return;
+                }
+
+                // a new announcement replaces any transfer already in progress between these nodes
+                Session session = new Session();
+                session.source = source;
+                session.destination = destination;
+                session.priority = priority;
+                session.pgn = pgn;
+                session.size = size;
+                session.packets = packets;
+                session.received = new boolean[packets];
+                session.data = new byte[packets * BYTES_PER_PACKET];
+                session.lastActivity = elapsedRealtime;
+                session.started = elapsedRealtime;
+                sessions.put(key(source, destination), session);
+                break;
+
+            case CM_CTS:
+            case CM_EOM_ACK:
+                // sent by the receiving node, so the transfer is from the destination of this frame
+                Session ctsSession = sessions.get(key(destination, source));
+                if (ctsSession != null) ctsSession.lastActivity = elapsedRealtime;
+                break;
+
+            case CM_ABORT:
+                // either side may abort
+                if (sessions.get(key(source, destination)) != null) {
+                    sessions.remove(key(source, destination));
+                    abortCount++;
+                } else if (sessions.get(key(destination, source)) != null) {
+                    sessions.remove(key(destination, source));
+                    abortCount++;
+                }
+                break;
+
+            default:
+                break;
+        }
+    } // receiveCM()
+
+
+    ///////////////////////////////////////////////////////
+    // receiveDT()
+    //  handles a data transfer frame
+    ///////////////////////////////////////////////////////
+    int receiveDT(int source, int destination, byte[] data, long elapsedRealtime) {
+
+        Session session = sessions.get(key(source, destination));
+        if (session == null) return RESULT_CONSUMED; // we did not see the start of this transfer
+
+        int sequence = data[0] & 0xFF; // 1 .. packets
+        if ((sequence < 1) || (sequence > session.packets)) return RESULT_CONSUMED;
+
+        session.lastActivity = elapsedRealtime;
+
+        // with RTS/CTS a packet may be sent again if the receiver asks for it
+        if (!session.received[sequence - 1]) {
+            session.received[sequence - 1] = true;
+            session.receivedPackets++;
+        }
+        System.arraycopy(data, 1, session.data, (sequence - 1) * BYTES_PER_PACKET, BYTES_PER_PACKET);
+
+        if (session.receivedPackets < session.packets) return RESULT_CONSUMED;
+
+        // complete
+        sessions.remove(key(source, destination));
+        completedCount++;
+
+        completedPgn = session.pgn;
+        completedPriority = session.priority;
+        completedSource = session.source;
+        completedDestination = session.destination;
+        completedTimestamp = session.started;
+        completedData = new byte[session.size];
+        System.arraycopy(session.data, 0, completedData, 0, session.size);
+
+        return RESULT_COMPLETE;
+    } // receiveDT()
+
+
+    ///////////////////////////////////////////////////////
+    // expireSessions()
+    //  drops any transfer that has been quiet for longer than its timeout
+    ///////////////////////////////////////////////////////
+    void expireSessions(long elapsedRealtime) {
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            Session session = sessions.valueAt(i);
+            int timeout = (session.destination == GLOBAL_ADDRESS ? TIMEOUT_BAM_MS : TIMEOUT_RTS_CTS_MS);
+            if (elapsedRealtime - session.lastActivity > timeout) {
+                Log.v(TAG, "TP from " + session.source + " to " + session.destination + " for PGN " + session.pgn +
+                        " timed out with " + session.receivedPackets + "/" + session.packets + " packets");
+                sessions.removeAt(i);
+                timeoutCount++;
+            }
+        }
+    } // expireSessions()
+
+
+    ///////////////////////////////////////////////////////
+    // clear()
+    //  forgets all transfers in progress (e.g. when the bus restarts)
+    ///////////////////////////////////////////////////////
+    public void clear() {
+        sessions.clear();
+    }
+
+
+    static int key(int source, int destination) {
+        return (source << 8) | destination;
+    }
+
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getAbortCount() {
+        return abortCount;
+    }
+
+} // class VehicleBusJ1939Tp
@@ -0,0 +1,432 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusJ1939TpTx:
+//  Sends J1939 messages longer than 8 bytes with the J1939-21 transport protocol
+//      to global: TP.CM BAM, then a TP.DT every BAM_PACKET_INTERVAL_MS, counted from when the previous
+//          frame was actually written (frameWritten()), with only one of them in the scheduler at a time
+//      to an address: TP.CM RTS, then the TP.DT packets each CTS asks for, until the EOM acknowledgement
+//  Messages of 8 bytes or less are sent as a single frame.
+//  Messages are queued with send() from any thread. TP.CM frames from the other nodes (CTS, EOM, abort)
+//      are passed in with receive() from the dispatch thread.
+//  Everything else runs on the CAN write thread: each pass it calls service(), which puts the frames that
+//      are due in the scheduler, and parks no longer than getNanosUntilNext().
+//  When a transfer ends the listener is told the result: success, the abort reason, or a J1939_TX_RESULT_* error.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class VehicleBusJ1939TpTx {
+
+    private static final String TAG = "ATS-VBS-J1939TpTx"; // for logging
+
+    static final int BAM_PACKET_INTERVAL_MS = 50; // J1939-21 allows 50 to 200 ms between BAM packets
+    static final int TIMEOUT_T3_MS = 1250; // waiting for a CTS or the EOM acknowledgement
+    static final int TIMEOUT_T4_MS = 1050; // waiting after a CTS that asked us to hold
+
+    static final int ABORT_REASON_TIMEOUT = 3;
+
+    static final int SAFETY_MAX_TRANSFERS = 32; // transfers queued or in progress
+
+    static final long NANOS_PER_MS = 1000000L;
+
+    // transfer states
+    static final int STATE_BAM = 1; // sending DT packets on a timer
+    static final int STATE_WAIT_CTS = 2;
+    static final int STATE_SEND_CTS = 3; // sending the packets a CTS asked for
+    static final int STATE_WAIT_EOM = 4;
+
+
+    ///////////////////////////////////////////////////////
+    // ResultListener
+    //  called on the write thread when a transfer ends
+    ///////////////////////////////////////////////////////
+    public interface ResultListener {
+        void onJ1939TxResult(int transferId, int pgn, int source, int destination, int result);
+    }
+
+
+    static class Transfer {
+        int transferId;
+        int priority;
+        int pgn;
+        int source;
+        int destination;
+        byte[] data;
+        int packets;
+
+        // only used by the write thread
+        int state;
+        int nextPacket; // 1 .. packets
+        int lastPacket; // last packet of the current CTS
+        long deadlineNanos; // next packet (STATE_BAM, STATE_SEND_CTS) or timeout (STATE_WAIT_*)
+        VehicleBusWrapper.CANFrame pendingFrame; // BAM frame in the scheduler but not yet written
+    }
+
+    static class Control {
+        int source;
+        int destination;
+        byte[] data;
+    }
+
+
+    final ResultListener listener;
+
+    final ConcurrentLinkedQueue<Transfer> requested = new ConcurrentLinkedQueue<Transfer>();
+    final ConcurrentLinkedQueue<Control> controls = new ConcurrentLinkedQueue<Control>();
+    final AtomicInteger transferCount = new AtomicInteger(0); // queued or in progress, checked by receive() to ignore TP.CM frames quickly
+
+    // only used by the write thread
+    final ArrayList<Transfer> active = new ArrayList<Transfer>();
+
+    volatile long completedCount = 0;
+    volatile long abortedCount = 0;
+
+
+    public VehicleBusJ1939TpTx(ResultListener listener) {
+        this.listener = listener;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // send() : safe to call from any thread
+    //  queues a message to be sent, the result is given to the listener later
+    //  returns false if the message is not valid or too many transfers are already waiting
+    ///////////////////////////////////////////////////////
+    public boolean send(int transferId, int priority, int pgn, int source, int destination, byte[] data) {
+
+        if ((data == null) || (data.length == 0) || (data.length > VehicleBusJ1939Tp.MAX_MESSAGE_SIZE)) return false;
+        if ((priority < 0) || (priority > 7) || (pgn < 0) || (pgn > 0x3FFFF)) return false;
+        if ((source < 0) || (source > 0xFD) || (destination < 0) || (destination > 0xFF)) return false;
+        if ((data.length > 8) && (isPdu2(pgn)) && (destination != VehicleBusJ1939Tp.GLOBAL_ADDRESS)) return false; // PDU2 PGNs can only go to global
+        if (transferCount.incrementAndGet() > SAFETY_MAX_TRANSFERS) {
+            transferCount.decrementAndGet();
+            Log.w(TAG, "Too many J1939 transfers, not sending PGN " + pgn);
+            return false;
+        }
+
+        Transfer transfer = new Transfer();
+        transfer.transferId = transferId;
+        transfer.priority = priority;
+        transfer.pgn = pgn;
+        transfer.source = source;
+        transfer.destination = destination;
+        transfer.data = data.clone();
+        transfer.packets = (data.length + VehicleBusJ1939Tp.BYTES_PER_PACKET - 1) / VehicleBusJ1939Tp.BYTES_PER_PACKET;
+
+        requested.add(transfer);
+        return true;
+    } // send()
+
+
+    ///////////////////////////////////////////////////////
+    // receive() : called by the dispatch thread for every received frame
+    //  passes on TP.CM frames sent to one of our transfers
+    //  returns true if the write thread should be woken up to handle it
+    ///////////////////////////////////////////////////////
+    public boolean receive(int id, boolean extended, byte[] data) {
+
+        if ((transferCount.get() == 0) || (!extended)) return false;
+        if (((id >> 16) & 0xFF) != VehicleBusJ1939Tp.PF_TP_CM) return false;
+        if ((data == null) || (data.length < 8)) return false;
+
+        int control = data[0] & 0xFF;
+        if ((control != VehicleBusJ1939Tp.CM_CTS) && (control != VehicleBusJ1939Tp.CM_EOM_ACK) &&
+                (control != VehicleBusJ1939Tp.CM_ABORT)) return false;
+
+        Control c = new Control();
+        c.source = id & 0xFF;
+        c.destination = (id >> 8) & 0xFF;
+        c.data = data.clone();
+        controls.add(c);
+        return true;
+    } // receive()
+
+
+    ///////////////////////////////////////////////////////
+    // service()
+    //  called by the write thread
+    //  starts new transfers, handles received TP.CM frames and timeouts, and adds the frames
+    //  that are due to the scheduler (if it is full they are added on a later pass)
+    ///////////////////////////////////////////////////////
+    void service(long nowNanos, VehicleBusTxScheduler txScheduler) {
+
+        Transfer transfer;
+        while ((transfer = requested.poll()) != null) {
+            start(transfer, nowNanos, txScheduler);
+        }
+
+        Control control;
+        while ((control = controls.poll()) != null) {
+            handleControl(control, nowNanos);
+        }
+
+        for (int i = active.size() - 1; i >= 0; i--) {
+            transfer = active.get(i);
+            if (transfer.pendingFrame != null) continue; // the interval starts when it is written
+            if (transfer.deadlineNanos > nowNanos) continue;
+
+            switch (transfer.state) {
+                case STATE_BAM:
+                    if (txScheduler.isFull()) break;
+                    transfer.pendingFrame = createDT(transfer, transfer.nextPacket);
+                    txScheduler.add(transfer.pendingFrame, nowNanos);
+                    transfer.nextPacket++;
+                    if (transfer.nextPacket > transfer.packets) {
+                        finish(transfer, VehicleBusConstants.J1939_TX_RESULT_SUCCESS);
+                    }
+                    break;
+
+                case STATE_SEND_CTS:
+                    while ((transfer.nextPacket <= transfer.lastPacket) && (!txScheduler.isFull())) {
+                        txScheduler.add(createDT(transfer, transfer.nextPacket), nowNanos);
+                        transfer.nextPacket++;
+                    }
+                    if (transfer.nextPacket > transfer.lastPacket) {
+                        // the receiver asks for more with another CTS, or acknowledges the end
+                        transfer.state = (transfer.lastPacket >= transfer.packets ? STATE_WAIT_EOM : STATE_WAIT_CTS);
+                        transfer.deadlineNanos = nowNanos + TIMEOUT_T3_MS * NANOS_PER_MS;
+                    }
+                    break;
+
+                case STATE_WAIT_CTS:
+                case STATE_WAIT_EOM:
+                    Log.w(TAG, "J1939 transfer of PGN " + transfer.pgn + " to " + transfer.destination + " timed out");
+                    if (!txScheduler.isFull()) {
+                        txScheduler.add(createAbort(transfer, ABORT_REASON_TIMEOUT), nowNanos);
+                    }
+                    finish(transfer, ABORT_REASON_TIMEOUT);
+                    break;
+            }
+        }
+    } // service()
+
+
+    ///////////////////////////////////////////////////////
+    // frameWritten()
+    //  called by the write thread after it wrote a frame
+    //  starts the interval to the next BAM packet if it was the TP.CM or a TP.DT of a BAM transfer
+    ///////////////////////////////////////////////////////
+    void frameWritten(VehicleBusWrapper.CANFrame frame, long writtenNanos) {
+
+        for (int i = 0; i < active.size(); i++) {
+            Transfer transfer = active.get(i);
+            if (transfer.pendingFrame != frame) continue;
+
+            transfer.pendingFrame = null;
+            transfer.deadlineNanos = writtenNanos + BAM_PACKET_INTERVAL_MS * NANOS_PER_MS;
+            return;
+        }
+    } // frameWritten()
+
+
+    ///////////////////////////////////////////////////////
+    // getNanosUntilNext()
+    //  called by the write thread
+    //  how long until a transfer needs attention (0 if one does now), or maxNanos if nothing is due before then
+    ///////////////////////////////////////////////////////
+    long getNanosUntilNext(long nowNanos, long maxNanos) {
+
+        if ((!requested.isEmpty()) || (!controls.isEmpty())) return 0;
+
+        long wait = maxNanos;
+        for (int i = 0; i < active.size(); i++) {
+            if (active.get(i).pendingFrame != null) continue; // waits for the write, not for time
+            long until = active.get(i).deadlineNanos - nowNanos;
+            if (until < wait) wait = until;
+        }
+        return Math.max(0, wait);
+    } // getNanosUntilNext()
+
+
+    ///////////////////////////////////////////////////////
+    // cancelAll()
+    //  called by the write thread when it starts or stops: every transfer ends as cancelled
+    ///////////////////////////////////////////////////////
+    void cancelAll() {
+
+        Transfer transfer;
+        while ((transfer = requested.poll()) != null) {
+            active.add(transfer);
+        }
+        controls.clear();
+
+        for (int i = active.size() - 1; i >= 0; i--) {
+            finish(active.get(i), VehicleBusConstants.J1939_TX_RESULT_CANCELLED);
+        }
+    } // cancelAll()
+
+
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    public long getAbortedCount() {
+        return abortedCount;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // start()
+    //  sends the first frame of a new transfer
+    ///////////////////////////////////////////////////////
+    void start(Transfer transfer, long nowNanos, VehicleBusTxScheduler txScheduler) {
+
+        active.add(transfer);
+
+        if (transfer.data.length <= 8) {
+            // fits in one frame, no transport protocol needed
+            if (txScheduler.isFull()) {
+                finish(transfer, VehicleBusConstants.J1939_TX_RESULT_QUEUE_FULL);
+                return;
+            }
+            txScheduler.add(new VehicleBusWrapper.CANFrame(getId(transfer.priority, transfer.pgn, transfer.destination, transfer.source),
+                    transfer.data, VehicleBusWrapper.CANFrameType.EXTENDED), nowNanos);
+            finish(transfer, VehicleBusConstants.J1939_TX_RESULT_SUCCESS);
+            return;
+        }
+
+        // J1939-21 allows one transfer at a time from a source to a destination (or to global)
+        for (int i = 0; i < active.size(); i++) {
+            Transfer other = active.get(i);
+            if ((other != transfer) && (other.source == transfer.source) && (other.destination == transfer.destination)) {
+                finish(transfer, VehicleBusConstants.J1939_TX_RESULT_BUSY);
+                return;
+            }
+        }
+
+        if (txScheduler.isFull()) {
+            finish(transfer, VehicleBusConstants.J1939_TX_RESULT_QUEUE_FULL);
+            return;
+        }
+
+        transfer.nextPacket = 1;
+        if (transfer.destination == VehicleBusJ1939Tp.GLOBAL_ADDRESS) {
+            transfer.pendingFrame = createCM(transfer, VehicleBusJ1939Tp.CM_BAM, transfer.data.length & 0xFF, (transfer.data.length >> 8) & 0xFF,
+                    transfer.packets, 0xFF);
+            txScheduler.add(transfer.pendingFrame, nowNanos);
+            transfer.state = STATE_BAM;
+        } else {
+            txScheduler.add(createCM(transfer, VehicleBusJ1939Tp.CM_RTS, transfer.data.length & 0xFF, (transfer.data.length >> 8) & 0xFF,
+                    transfer.packets, 0xFF), nowNanos);
+            transfer.state = STATE_WAIT_CTS;
+            transfer.deadlineNanos = nowNanos + TIMEOUT_T3_MS * NANOS_PER_MS;
+        }
+
+        Log.v(TAG, "J1939 transfer of PGN " + transfer.pgn + " (" + transfer.data.length + " bytes) from " + transfer.source +
+                " to " + transfer.destination + " started");
+    } // start()
+
+
+    ///////////////////////////////////////////////////////
+    // handleControl()
+    //  a CTS, EOM acknowledgement or abort from the node we are sending to
+    ///////////////////////////////////////////////////////
+    void handleControl(Control control, long nowNanos) {
+
+        int pgn = (control.data[5] & 0xFF) | ((control.data[6] & 0xFF) << 8) | ((control.data[7] & 0x03) << 16);
+
+        Transfer transfer = null;
+        for (int i = 0; i < active.size(); i++) {
+            Transfer t = active.get(i);
+            if ((t.source == control.destination) && (t.destination == control.source) && (t.pgn == pgn) &&
+                    (t.state != STATE_BAM)) {
+                transfer = t;
+                break;
+            }
+        }
+        if (transfer == null) return; // not one of ours
+
+        switch (control.data[0] & 0xFF) {
+            case VehicleBusJ1939Tp.CM_CTS:
+                int count = control.data[1] & 0xFF;
+                int next = control.data[2] & 0xFF;
+                if (count == 0) {
+                    // hold the connection open
+                    transfer.state = STATE_WAIT_CTS;
+                    transfer.deadlineNanos = nowNanos + TIMEOUT_T4_MS * NANOS_PER_MS;
+                } else if ((next >= 1) && (next <= transfer.packets)) {
+                    transfer.state = STATE_SEND_CTS;
+                    transfer.nextPacket = next;
+                    transfer.lastPacket = Math.min(transfer.packets, next + count - 1);
+                    transfer.deadlineNanos = nowNanos;
+                }
+                break;
+
+            case VehicleBusJ1939Tp.CM_EOM_ACK:
+                if (transfer.state == STATE_WAIT_EOM) {
+                    finish(transfer, VehicleBusConstants.J1939_TX_RESULT_SUCCESS);
+                }
+                break;
+
+            case VehicleBusJ1939Tp.CM_ABORT:
+                int reason = control.data[1] & 0xFF;
+                Log.w(TAG, "J1939 transfer of PGN " + transfer.pgn + " aborted by " + transfer.destination + " reason " + reason);
+                finish(transfer, (reason == 0 ? VehicleBusConstants.J1939_TX_RESULT_ABORTED : reason));
+                break;
+        }
+    } // handleControl()
+
+
+    void finish(Transfer transfer, int result) {
+        active.remove(transfer);
+        transferCount.decrementAndGet();
+
+        if (result == VehicleBusConstants.J1939_TX_RESULT_SUCCESS) {
+            completedCount++;
+        } else {
+            abortedCount++;
+        }
+
+        if (listener != null) {
+            listener.onJ1939TxResult(transfer.transferId, transfer.pgn, transfer.source, transfer.destination, result);
+        }
+    } // finish()
+
+
+    static boolean isPdu2(int pgn) {
+        return (((pgn >> 8) & 0xFF) >= 0xF0);
+    }
+
+    ///////////////////////////////////////////////////////
+    // getId()
+    //  29-bit id of a frame with this PGN (the destination goes in the PS byte of a PDU1 PGN)
+    ///////////////////////////////////////////////////////
+    static int getId(int priority, int pgn, int destination, int source) {
+        if (isPdu2(pgn)) {
+            return (priority << 26) | (pgn << 8) | source;
+        }
+        return (priority << 26) | ((pgn & 0x3FF00) << 8) | (destination << 8) | source;
+    }
+
+    VehicleBusWrapper.CANFrame createCM(Transfer transfer, int control, int b1, int b2, int b3, int b4) {
+        byte[] data = new byte[] {(byte) control, (byte) b1, (byte) b2, (byte) b3, (byte) b4,
+                (byte) transfer.pgn, (byte) (transfer.pgn >> 8), (byte) (transfer.pgn >> 16)};
+        int id = getId(transfer.priority, VehicleBusJ1939Tp.PF_TP_CM << 8, transfer.destination, transfer.source);
+        return new VehicleBusWrapper.CANFrame(id, data, VehicleBusWrapper.CANFrameType.EXTENDED);
+    }
+
+    VehicleBusWrapper.CANFrame createAbort(Transfer transfer, int reason) {
+        return createCM(transfer, VehicleBusJ1939Tp.CM_ABORT, reason, 0xFF, 0xFF, 0xFF);
+    }
+
+    VehicleBusWrapper.CANFrame createDT(Transfer transfer, int packet) {
+        byte[] data = new byte[8];
+        data[0] = (byte) packet;
+        int offset = (packet - 1) * VehicleBusJ1939Tp.BYTES_PER_PACKET;
+        for (int i = 0; i < VehicleBusJ1939Tp.BYTES_PER_PACKET; i++) {
+            data[i + 1] = (offset + i < transfer.data.length ? transfer.data[offset + i] : (byte) 0xFF);
+        }
+        int id = getId(transfer.priority, VehicleBusJ1939Tp.PF_TP_DT << 8, transfer.destination, transfer.source);
+        return new VehicleBusWrapper.CANFrame(id, data, VehicleBusWrapper.CANFrameType.EXTENDED);
+    }
+
+} // class VehicleBusJ1939TpTx
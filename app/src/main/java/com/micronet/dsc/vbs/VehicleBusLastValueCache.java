@@ -0,0 +1,198 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusLastValueCache:
+//  Remembers the latest data received for each CAN id (11-bit and 29-bit ids are kept apart),
+//      with the time it was received and how many frames with that id have been received.
+//  Clients that only need current values poll a snapshot (IVehicleBusService.getLastValues())
+//      instead of receiving every frame.
+//  Stored in an open-addressing hash map (VehicleBusIdTable) of primitive arrays so updating allocates nothing.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+
+public class VehicleBusLastValueCache {
+
+    private static final String TAG = "ATS-VBS-LastValues"; // for logging
+
+    static final int INITIAL_CAPACITY = 256;
+    static final int SAFETY_MAX_IDS = 8192; // ids beyond this are not cached (something is flooding the bus)
+
+    static final int MAX_DATA_LENGTH = VehicleBusFrameBuffer.MAX_DATA_LENGTH;
+
+    int[] keys; // VehicleBusIdTable.key() of the id and frame type
+    long[] payloads; // packed as in VehicleBusFrameBuffer
+    byte[] lengths;
+    long[] timestamps;
+    long[] counts;
+    int size = 0;
+
+    long droppedIdCount = 0; // frames not cached because the cache was full
+
+
+    public VehicleBusLastValueCache() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    void allocate(int capacity) {
+        keys = VehicleBusIdTable.newKeys(capacity);
+        payloads = new long[capacity];
+        lengths = new byte[capacity];
+        timestamps = new long[capacity];
+        counts = new long[capacity];
+        size = 0;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // update()
+    //  stores the data of a received frame
+    //  called by the CAN dispatch thread for every received frame
+    ///////////////////////////////////////////////////////
+    public synchronized void update(int id, boolean extended, byte[] data, long elapsedRealtime) {
+
+        int key = VehicleBusIdTable.key(id, extended);
+        int slot = VehicleBusIdTable.find(keys, key);
+
+        if (keys[slot] == VehicleBusIdTable.EMPTY_SLOT) {
+            // new id
+            if (size >= SAFETY_MAX_IDS) {
+                droppedIdCount++;
+                return;
+            }
+            if (VehicleBusIdTable.needsGrow(keys, size)) {
+                grow();
+                slot = VehicleBusIdTable.find(keys, key);
+            }
+            keys[slot] = key;
+            counts[slot] = 0;
+            size++;
+        }
+
+        int length = (data == null ? 0 : Math.min(data.length, MAX_DATA_LENGTH));
+        payloads[slot] = VehicleBusFrameBuffer.pack(data, length);
+        lengths[slot] = (byte) length;
+        timestamps[slot] = elapsedRealtime;
+        counts[slot]++;
+    } // update()
+
+
+    ///////////////////////////////////////////////////////
+    // snapshot()
+    //  returns the cached values for the given ids (or for all ids if ids is null) as of one moment
+    //  ids that were never received are left out, an id received as both 11-bit and 29-bit is in it twice
+    //  the Bundle uses the same keys and layout as the canrxbatch broadcast, plus the frame count of each id
+    ///////////////////////////////////////////////////////
+    public Bundle snapshot(int[] ids) {
+
+        int[] outIds;
+        byte[] outTypes;
+        long[] outTimestamps;
+        long[] outCounts;
+        byte[] outLengths;
+        long[] outPayloads;
+        int n = 0;
+
+        synchronized (this) {
+            int max = (ids == null ? size : Math.min(ids.length * 2, size));
+            outIds = new int[max];
+            outTypes = new byte[max];
+            outTimestamps = new long[max];
+            outCounts = new long[max];
+            outLengths = new byte[max];
+            outPayloads = new long[max];
+
+            if (ids == null) {
+                for (int slot = 0; slot < keys.length; slot++) {
+                    if (keys[slot] == VehicleBusIdTable.EMPTY_SLOT) continue;
+                    outIds[n] = VehicleBusIdTable.getId(keys[slot]);
+                    outTypes[n] = getType(keys[slot]);
+                    outTimestamps[n] = timestamps[slot];
+                    outCounts[n] = counts[slot];
+                    outLengths[n] = lengths[slot];
+                    outPayloads[n] = payloads[slot];
+                    n++;
+                }
+            } else {
+                for (int i = 0; (i < ids.length * 2) && (n < max); i++) {
+                    // each id as 11-bit, then as 29-bit
+                    int slot = VehicleBusIdTable.find(keys, VehicleBusIdTable.key(ids[i / 2], (i % 2 == 1)));
+                    if (keys[slot] == VehicleBusIdTable.EMPTY_SLOT) continue;
+                    outIds[n] = VehicleBusIdTable.getId(keys[slot]);
+                    outTypes[n] = getType(keys[slot]);
+                    outTimestamps[n] = timestamps[slot];
+                    outCounts[n] = counts[slot];
+                    outLengths[n] = lengths[slot];
+                    outPayloads[n] = payloads[slot];
+                    n++;
+                }
+            }
+        } // sync
+
+        byte[] dataBlock = new byte[n * MAX_DATA_LENGTH];
+        for (int i = 0; i < n; i++) {
+            VehicleBusFrameBuffer.unpack(outPayloads[i], dataBlock, i * MAX_DATA_LENGTH, MAX_DATA_LENGTH);
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT, n);
+        bundle.putIntArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS, Arrays.copyOf(outIds, n));
+        bundle.putByteArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TYPES, Arrays.copyOf(outTypes, n));
+        bundle.putLongArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS, Arrays.copyOf(outTimestamps, n));
+        bundle.putByteArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_LENGTHS, Arrays.copyOf(outLengths, n));
+        bundle.putByteArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_DATA, dataBlock);
+        bundle.putLongArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_CACHE_COUNTS, Arrays.copyOf(outCounts, n));
+        return bundle;
+    } // snapshot()
+
+
+    static byte getType(int key) {
+        return (byte) (VehicleBusIdTable.isExtended(key) ? VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED : VehicleBusConstants.CAN_FRAME_TYPE_STANDARD);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // clear()
+    //  forgets everything (e.g. when the bus is stopped)
+    ///////////////////////////////////////////////////////
+    public synchronized void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+
+    void grow() {
+        int[] oldKeys = keys;
+        long[] oldPayloads = payloads;
+        byte[] oldLengths = lengths;
+        long[] oldTimestamps = timestamps;
+        long[] oldCounts = counts;
+
+        allocate(oldKeys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == VehicleBusIdTable.EMPTY_SLOT) continue;
+            int slot = VehicleBusIdTable.find(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            payloads[slot] = oldPayloads[i];
+            lengths[slot] = oldLengths[i];
+            timestamps[slot] = oldTimestamps[i];
+            counts[slot] = oldCounts[i];
+            size++;
+        }
+
+        Log.v(TAG, "Grew to " + keys.length + " slots for " + size + " ids");
+    } // grow()
+
+} // class VehicleBusLastValueCache
@@ -0,0 +1,298 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusPeriodicTx:
+//  CAN frames that VBS transmits on its own every period (heartbeats, repeated commands),
+//      so a client registers a frame once instead of sending an Intent every 10-100 ms.
+//  Registrations are made, updated and cancelled by handle from any thread.
+//  The frames are sent by the CAN write thread: it asks collectDue() for the frames that are due and
+//      parks no longer than getNanosUntilNext(), so a frame is written as soon as its time comes.
+//  Hashed timer wheel: WHEEL_SLOTS slots of TICK_NS each, a registration sits in the slot of its next
+//      deadline tick. A deadline further away than one turn of the wheel just stays in its slot for more turns.
+//  Deadlines advance by the period from the previous deadline, not from when the frame was written, so
+//      the schedule does not drift.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+public class VehicleBusPeriodicTx {
+
+    private static final String TAG = "ATS-VBS-PERIODIC"; // for logging
+
+    static final int WHEEL_SLOTS = 256; // power of 2
+    static final int WHEEL_MASK = WHEEL_SLOTS - 1;
+    static final long TICK_NS = 1000000L; // 1 ms
+
+    static final int MIN_PERIOD_MS = 1;
+    static final int MAX_PERIOD_MS = 3600000;
+    static final int SAFETY_MAX_REGISTRATIONS = 256;
+
+
+    ///////////////////////////////////////////////////////
+    // PayloadUpdater
+    //  lets code inside VBS change the data of a periodic frame right before each time it is sent
+    //  (called on the write thread, must be quick)
+    ///////////////////////////////////////////////////////
+    public interface PayloadUpdater {
+        void update(int handle, byte[] data);
+    }
+
+
+    static class Registration {
+        final int handle;
+        final int id;
+        final VehicleBusWrapper.CANFrameType type;
+        final long periodNanos;
+        final PayloadUpdater updater;
+        volatile byte[] data; // may be replaced by update() while registered
+        volatile boolean cancelled = false;
+
+        // only used by the write thread
+        long deadlineNanos;
+        Registration nextInSlot;
+
+        Registration(int handle, int id, VehicleBusWrapper.CANFrameType type, byte[] data, int periodMs, PayloadUpdater updater) {
+            this.handle = handle;
+            this.id = id;
+            this.type = type;
+            this.data = data;
+            this.periodNanos = periodMs * 1000000L;
+            this.updater = updater;
+        }
+    }
+
+
+    // all current registrations by handle
+    final ConcurrentHashMap<Integer, Registration> registrations = new ConcurrentHashMap<Integer, Registration>();
+
+    // registrations the write thread has not put in the wheel yet
+    final ConcurrentLinkedQueue<Registration> added = new ConcurrentLinkedQueue<Registration>();
+
+    // wheel: only used by the write thread
+    final Registration[] slots = new Registration[WHEEL_SLOTS];
+    long cursorTick = -1; // ticks up to this one were already checked (-1 = restart() not called yet)
+    int wheelCount = 0;
+
+    volatile long sentCount = 0;
+    volatile long missedCount = 0; // periods skipped because the write thread could not keep up
+
+
+    ///////////////////////////////////////////////////////
+    // set()
+    //  registers a frame to be sent every periodMs, or changes the registration with this handle
+    //  if only the data changes, the frame keeps its schedule; otherwise it is first sent right away
+    //  returns false if the parameters are not valid or there are too many registrations
+    ///////////////////////////////////////////////////////
+    public boolean set(int handle, int id, VehicleBusWrapper.CANFrameType type, byte[] data, int periodMs, PayloadUpdater updater) {
+
+        if ((data == null) || (data.length == 0) || (data.length > VehicleBusFrameBuffer.MAX_DATA_LENGTH)) return false;
+        if ((periodMs < MIN_PERIOD_MS) || (periodMs > MAX_PERIOD_MS)) return false;
+
+        Registration existing = registrations.get(handle);
+        if ((existing != null) && (existing.id == id) && (existing.type == type) &&
+                (existing.periodNanos == periodMs * 1000000L) && (existing.updater == updater)) {
+            existing.data = data.clone();
+            return true;
+        }
+
+        if ((existing == null) && (registrations.size() >= SAFETY_MAX_REGISTRATIONS)) {
+            Log.e(TAG, "Too many periodic frames, ignoring handle " + handle);
+            return false;
+        }
+
+        Registration registration = new Registration(handle, id, type, data.clone(), periodMs, updater);
+        Registration previous = registrations.put(handle, registration);
+        if (previous != null) previous.cancelled = true;
+        added.add(registration);
+
+        Log.v(TAG, "Periodic frame " + handle + ": id " + String.format("%X", id) + " every " + periodMs + " ms");
+        return true;
+    } // set()
+
+
+    ///////////////////////////////////////////////////////
+    // cancel()
+    //  stops sending the frame with this handle
+    //  returns false if there was no such registration
+    ///////////////////////////////////////////////////////
+    public boolean cancel(int handle) {
+        Registration registration = registrations.remove(handle);
+        if (registration == null) return false;
+
+        registration.cancelled = true;
+        Log.v(TAG, "Periodic frame " + handle + " cancelled");
+        return true;
+    } // cancel()
+
+
+    ///////////////////////////////////////////////////////
+    // cancelAll()
+    ///////////////////////////////////////////////////////
+    public void cancelAll() {
+        for (Registration registration : registrations.values()) {
+            registration.cancelled = true;
+        }
+        registrations.clear();
+    }
+
+
+    public int size() {
+        return registrations.size();
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getMissedCount() {
+        return missedCount;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // restart()
+    //  called by a write thread when it starts: every registration is sent right away and then every period
+    ///////////////////////////////////////////////////////
+    void restart(long nowNanos) {
+
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            slots[i] = null;
+        }
+        wheelCount = 0;
+        added.clear();
+        cursorTick = nowNanos / TICK_NS;
+
+        for (Registration registration : registrations.values()) {
+            if (registration.cancelled) continue;
+            registration.deadlineNanos = nowNanos;
+            insert(registration);
+        }
+    } // restart()
+
+
+    ///////////////////////////////////////////////////////
+    // collectDue()
+    //  called by the write thread
+    //  adds the frames that are due to the scheduler (stops if it is full) and schedules their next time
+    ///////////////////////////////////////////////////////
+    void collectDue(long nowNanos, VehicleBusTxScheduler txScheduler) {
+
+        // new registrations are sent right away
+        Registration registration;
+        while ((registration = added.poll()) != null) {
+            if (registration.cancelled) continue;
+            registration.deadlineNanos = nowNanos;
+            insert(registration);
+        }
+
+        if (wheelCount == 0) {
+            cursorTick = nowNanos / TICK_NS;
+            return;
+        }
+
+        long nowTick = nowNanos / TICK_NS;
+        long firstTick = cursorTick;
+        if (nowTick - firstTick >= WHEEL_SLOTS) firstTick = nowTick - WHEEL_SLOTS + 1; // every slot is checked anyway
+
+        ArrayList<Registration> due = null;
+
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            int slot = (int) (tick & WHEEL_MASK);
+            Registration previous = null;
+            Registration r = slots[slot];
+            while (r != null) {
+                Registration next = r.nextInSlot;
+                if ((r.cancelled) || (r.deadlineNanos <= nowNanos)) {
+                    // take it out of this slot
+                    if (previous == null) slots[slot] = next; else previous.nextInSlot = next;
+                    r.nextInSlot = null;
+                    wheelCount--;
+                    if (!r.cancelled) {
+                        if (due == null) due = new ArrayList<Registration>();
+                        due.add(r);
+                    }
+                } else {
+                    previous = r;
+                }
+                r = next;
+            }
+        }
+
+        // the current tick is checked again next time, its later deadlines are not due yet
+        cursorTick = nowTick;
+
+        if (due == null) return;
+
+        for (Registration r : due) {
+            if (!txScheduler.isFull()) {
+                byte[] data = r.data.clone();
+                if (r.updater != null) {
+                    try {
+                        r.updater.update(r.handle, data);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Periodic frame " + r.handle + " update exception : " + e.toString(), e);
+                    }
+                }
+                txScheduler.add(new VehicleBusWrapper.CANFrame(r.id, data, r.type), r.deadlineNanos);
+                sentCount++;
+            } else {
+                missedCount++;
+            }
+
+            // next deadline, skipping any periods that have already passed
+            r.deadlineNanos += r.periodNanos;
+            if (r.deadlineNanos <= nowNanos) {
+                long behind = (nowNanos - r.deadlineNanos) / r.periodNanos + 1;
+                missedCount += behind;
+                r.deadlineNanos += behind * r.periodNanos;
+            }
+            insert(r);
+        }
+    } // collectDue()
+
+
+    ///////////////////////////////////////////////////////
+    // getNanosUntilNext()
+    //  called by the write thread
+    //  how long until the next frame is due (0 if one is due now), or maxNanos if nothing is due before then
+    ///////////////////////////////////////////////////////
+    long getNanosUntilNext(long nowNanos, long maxNanos) {
+
+        if (!added.isEmpty()) return 0;
+        if (wheelCount == 0) return maxNanos;
+
+        long nowTick = nowNanos / TICK_NS;
+        long lastTick = (nowNanos + maxNanos) / TICK_NS;
+        if (lastTick - nowTick >= WHEEL_SLOTS) lastTick = nowTick + WHEEL_SLOTS - 1;
+
+        // the first slot with a deadline in this turn of the wheel holds the next deadline
+        for (long tick = nowTick; tick <= lastTick; tick++) {
+            long earliest = Long.MAX_VALUE;
+            for (Registration r = slots[(int) (tick & WHEEL_MASK)]; r != null; r = r.nextInSlot) {
+                if ((r.deadlineNanos / TICK_NS == tick) && (r.deadlineNanos < earliest)) earliest = r.deadlineNanos;
+            }
+            if (earliest != Long.MAX_VALUE) {
+                return Math.max(0, Math.min(earliest - nowNanos, maxNanos));
+            }
+        }
+
+        return maxNanos;
+    } // getNanosUntilNext()
+
+
+    void insert(Registration registration) {
+        int slot = (int) ((registration.deadlineNanos / TICK_NS) & WHEEL_MASK);
+        registration.nextInSlot = slots[slot];
+        slots[slot] = registration;
+        wheelCount++;
+    }
+
+} // class VehicleBusPeriodicTx
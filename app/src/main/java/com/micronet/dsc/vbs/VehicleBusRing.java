@@ -0,0 +1,167 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusRing:
+//  Writer side of the shared-memory ring that received CAN and J1708 frames are copied into.
+//  The region is handed to a client once (IVehicleBusService.getRxRing()) and the client then reads
+//      frames at its own pace with VehicleBusRingReader, without any IPC per frame.
+//  The writer never waits for readers: a reader that falls more than a ring behind loses frames,
+//      and the sequence numbers tell it exactly how many.
+//
+//  See VehicleBusConstants for the layout of the region.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+public class VehicleBusRing {
+
+    private static final String TAG = "ATS-VBS-Ring"; // for logging
+
+    public static final int DEFAULT_CAPACITY = 4096; // records (about 256 KB)
+
+    SharedMemory sharedMemory;
+    ByteBuffer buffer; // our read-write mapping of the region
+
+    int capacity;
+    long writeSeq = 0; // sequence number of the next record
+
+
+    ///////////////////////////////////////////////////////
+    // create()
+    //  creates a new ring, returns null if the shared memory could not be created
+    ///////////////////////////////////////////////////////
+    public static VehicleBusRing create(String name, int capacity) {
+
+        try {
+            return new VehicleBusRing(name, capacity);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Unable to create shared memory ring " + name + ": " + e.toString());
+            return null;
+        }
+    } // create()
+
+
+    VehicleBusRing(String name, int capacity) throws ErrnoException {
+        sharedMemory = SharedMemory.create(name, getSize(capacity));
+        ByteBuffer mapped = sharedMemory.mapReadWrite();
+
+        // clients may only map the region read-only (our existing mapping is not affected)
+        sharedMemory.setProtect(OsConstants.PROT_READ);
+
+        format(mapped, capacity);
+
+        Log.d(TAG, "Created ring " + name + " with " + capacity + " records");
+    }
+
+    // a ring in an ordinary buffer of getSize(capacity) bytes, for testing without shared memory
+    VehicleBusRing(ByteBuffer buffer, int capacity) {
+        format(buffer, capacity);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // getSize()
+    //  the number of bytes a ring of capacity records takes
+    ///////////////////////////////////////////////////////
+    static int getSize(int capacity) {
+        return VehicleBusConstants.RING_HEADER_SIZE + (capacity * VehicleBusConstants.RING_RECORD_SIZE);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // format()
+    //  writes the header and marks every record as not written yet
+    ///////////////////////////////////////////////////////
+    void format(ByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(VehicleBusConstants.RING_HEADER_OFFSET_MAGIC, VehicleBusConstants.RING_MAGIC);
+        buffer.putInt(VehicleBusConstants.RING_HEADER_OFFSET_VERSION, VehicleBusConstants.RING_VERSION);
+        buffer.putInt(VehicleBusConstants.RING_HEADER_OFFSET_RECORD_SIZE, VehicleBusConstants.RING_RECORD_SIZE);
+        buffer.putInt(VehicleBusConstants.RING_HEADER_OFFSET_CAPACITY, capacity);
+        buffer.putLong(VehicleBusConstants.RING_HEADER_OFFSET_WRITE_SEQ, 0);
+
+        for (int i = 0; i < capacity; i++) {
+            buffer.putLong(VehicleBusConstants.RING_HEADER_SIZE + (i * VehicleBusConstants.RING_RECORD_SIZE) + VehicleBusConstants.RING_RECORD_OFFSET_SEQ,
+                    VehicleBusConstants.RING_SEQ_WRITING);
+        }
+    } // format()
+
+
+    ///////////////////////////////////////////////////////
+    // getSharedMemory()
+    //  the region to hand over to a client
+    ///////////////////////////////////////////////////////
+    public SharedMemory getSharedMemory() {
+        return sharedMemory;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // write()
+    //  copies a frame into the next record of the ring
+    //  safe to call from both the CAN and J1708 threads
+    //  type : VehicleBusConstants.CAN_FRAME_TYPE_* for CAN, 0 for J1708
+    ///////////////////////////////////////////////////////
+    public synchronized void write(int bus, int id, int type, int priority, byte[] data, long elapsedRealtime) {
+
+        if (buffer == null) return; // closed
+
+        long seq = writeSeq;
+        int offset = VehicleBusConstants.RING_HEADER_SIZE + (int) (seq % capacity) * VehicleBusConstants.RING_RECORD_SIZE;
+
+        int length = (data == null ? 0 : Math.min(data.length, VehicleBusConstants.RING_RECORD_MAX_DATA));
+
+        // mark the record as being written so a reader does not take half of it
+        //  (plain buffer writes are not ordered for other processes, so readers also check the checksum)
+        buffer.putLong(offset + VehicleBusConstants.RING_RECORD_OFFSET_SEQ, VehicleBusConstants.RING_SEQ_WRITING);
+
+        buffer.putLong(offset + VehicleBusConstants.RING_RECORD_OFFSET_TIMESTAMP, elapsedRealtime);
+        buffer.putInt(offset + VehicleBusConstants.RING_RECORD_OFFSET_ID, id);
+        buffer.put(offset + VehicleBusConstants.RING_RECORD_OFFSET_BUS, (byte) bus);
+        buffer.put(offset + VehicleBusConstants.RING_RECORD_OFFSET_LENGTH, (byte) length);
+        buffer.putShort(offset + VehicleBusConstants.RING_RECORD_OFFSET_PRIORITY, (short) priority);
+        buffer.put(offset + VehicleBusConstants.RING_RECORD_OFFSET_TYPE, (byte) type);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + VehicleBusConstants.RING_RECORD_OFFSET_DATA + i, data[i]);
+        }
+        buffer.putInt(offset + VehicleBusConstants.RING_RECORD_OFFSET_CHECKSUM,
+                VehicleBusRingReader.recordChecksum(seq, elapsedRealtime, id, bus, type, length, priority, data));
+
+        // the record is complete
+        buffer.putLong(offset + VehicleBusConstants.RING_RECORD_OFFSET_SEQ, seq);
+        writeSeq = seq + 1;
+        buffer.putLong(VehicleBusConstants.RING_HEADER_OFFSET_WRITE_SEQ, writeSeq);
+    } // write()
+
+
+    ///////////////////////////////////////////////////////
+    // close()
+    //  releases our mapping (clients keep their own)
+    ///////////////////////////////////////////////////////
+    public synchronized void close() {
+        if (buffer != null) {
+            if (sharedMemory != null) SharedMemory.unmap(buffer);
+            buffer = null;
+        }
+        if (sharedMemory != null) {
+            sharedMemory.close();
+            sharedMemory = null;
+        }
+    } // close()
+
+} // class VehicleBusRing
@@ -0,0 +1,218 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusRingReader:
+//  Consumer side of the shared-memory RX ring written by VehicleBusRing.
+//  A client gets the SharedMemory from IVehicleBusService.getRxRing() and polls next() at its own pace.
+//
+//  If the reader falls more than a full ring behind the writer, the oldest frames are overwritten.
+//      next() then skips ahead and reports exactly how many frames were lost.
+//
+//  This class only depends on VehicleBusConstants so it can be copied into client applications.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+public class VehicleBusRingReader {
+
+    ///////////////////////////////////////////////////////
+    // Frame
+    //  one record copied out of the ring, re-used for every call to next()
+    ///////////////////////////////////////////////////////
+    public static class Frame {
+        public long seq; // sequence number of this frame
+        public long lostBefore; // number of frames lost between the previous frame and this one
+        public long elapsedRealtime; // time that VBS received the frame
+        public int bus; // RING_BUS_CAN, RING_BUS_CAN2 or RING_BUS_J1708
+        public int id;
+        public int type; // VehicleBusConstants.CAN_FRAME_TYPE_* (CAN only)
+        public int priority; // J1708 priority, or J1939 priority of a 29-bit CAN id
+        public int length;
+        public final byte[] data = new byte[VehicleBusConstants.RING_RECORD_MAX_DATA];
+    }
+
+
+    SharedMemory sharedMemory;
+    ByteBuffer buffer;
+    int capacity;
+
+    long nextSeq; // sequence number of the next frame we want
+    long lostCount = 0; // total frames lost since this reader was created
+
+
+    ///////////////////////////////////////////////////////
+    // VehicleBusRingReader()
+    //  maps the ring and starts reading with the next frame that is written
+    ///////////////////////////////////////////////////////
+    public VehicleBusRingReader(SharedMemory sharedMemory) throws ErrnoException {
+        this.sharedMemory = sharedMemory;
+        attach(sharedMemory.mapReadOnly());
+    }
+
+    // a reader of a ring in an ordinary buffer, for testing without shared memory
+    VehicleBusRingReader(ByteBuffer buffer) {
+        attach(buffer);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // attach()
+    //  checks the header of the mapped ring, throws IllegalArgumentException if it is not one we can read
+    ///////////////////////////////////////////////////////
+    void attach(ByteBuffer mapped) {
+        buffer = mapped;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if ((buffer.getInt(VehicleBusConstants.RING_HEADER_OFFSET_MAGIC) != VehicleBusConstants.RING_MAGIC) ||
+            (buffer.getInt(VehicleBusConstants.RING_HEADER_OFFSET_VERSION) != VehicleBusConstants.RING_VERSION) ||
+            (buffer.getInt(VehicleBusConstants.RING_HEADER_OFFSET_RECORD_SIZE) != VehicleBusConstants.RING_RECORD_SIZE)) {
+            if (sharedMemory != null) SharedMemory.unmap(buffer);
+            buffer = null;
+            throw new IllegalArgumentException("Not a compatible VBS ring");
+        }
+
+        capacity = buffer.getInt(VehicleBusConstants.RING_HEADER_OFFSET_CAPACITY);
+        nextSeq = getWriteSeq();
+    } // attach()
+
+
+    ///////////////////////////////////////////////////////
+    // getWriteSeq()
+    //  the number of frames the writer has written so far
+    ///////////////////////////////////////////////////////
+    public long getWriteSeq() {
+        return buffer.getLong(VehicleBusConstants.RING_HEADER_OFFSET_WRITE_SEQ);
+    }
+
+    ///////////////////////////////////////////////////////
+    // getLostCount()
+    //  total number of frames this reader missed because it fell behind
+    ///////////////////////////////////////////////////////
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    ///////////////////////////////////////////////////////
+    // available()
+    //  number of frames waiting to be read (can be more than the ring holds if we have fallen behind)
+    ///////////////////////////////////////////////////////
+    public long available() {
+        return getWriteSeq() - nextSeq;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // next()
+    //  copies the next frame into the given frame
+    //  returns false if there is no new frame yet
+    ///////////////////////////////////////////////////////
+    public boolean next(Frame frame) {
+
+        long lost = 0;
+
+        while (true) {
+            long writeSeq = getWriteSeq();
+            if (nextSeq >= writeSeq) {
+                lostCount += lost;
+                return false; // nothing new
+            }
+
+            // Have we been lapped? Then jump to the oldest frame still in the ring
+            if (writeSeq - nextSeq > capacity) {
+                lost += (writeSeq - capacity) - nextSeq;
+                nextSeq = writeSeq - capacity;
+            }
+
+            int offset = VehicleBusConstants.RING_HEADER_SIZE + (int) (nextSeq % capacity) * VehicleBusConstants.RING_RECORD_SIZE;
+
+            long seqBefore = buffer.getLong(offset + VehicleBusConstants.RING_RECORD_OFFSET_SEQ);
+
+            if (seqBefore != nextSeq) {
+                if ((seqBefore == VehicleBusConstants.RING_SEQ_WRITING) || (seqBefore < nextSeq)) {
+                    // the writer has not finished this record yet
+                    lostCount += lost;
+                    return false;
+                }
+                // the record was already overwritten by a newer one, so we were lapped while reading
+                continue;
+            }
+
+            frame.elapsedRealtime = buffer.getLong(offset + VehicleBusConstants.RING_RECORD_OFFSET_TIMESTAMP);
+            frame.id = buffer.getInt(offset + VehicleBusConstants.RING_RECORD_OFFSET_ID);
+            frame.bus = buffer.get(offset + VehicleBusConstants.RING_RECORD_OFFSET_BUS);
+            frame.length = buffer.get(offset + VehicleBusConstants.RING_RECORD_OFFSET_LENGTH);
+            frame.priority = buffer.getShort(offset + VehicleBusConstants.RING_RECORD_OFFSET_PRIORITY);
+            frame.type = buffer.get(offset + VehicleBusConstants.RING_RECORD_OFFSET_TYPE);
+            int checksum = buffer.getInt(offset + VehicleBusConstants.RING_RECORD_OFFSET_CHECKSUM);
+            if ((frame.length < 0) || (frame.length > VehicleBusConstants.RING_RECORD_MAX_DATA)) frame.length = 0;
+            for (int i = 0; i < frame.length; i++) {
+                frame.data[i] = buffer.get(offset + VehicleBusConstants.RING_RECORD_OFFSET_DATA + i);
+            }
+
+            long seqAfter = buffer.getLong(offset + VehicleBusConstants.RING_RECORD_OFFSET_SEQ);
+            if (seqAfter != seqBefore) {
+                // the writer overwrote this record while we copied it
+                continue;
+            }
+
+            if (checksum != recordChecksum(seqBefore, frame.elapsedRealtime, frame.id, frame.bus, frame.type, frame.length, frame.priority, frame.data)) {
+                // we saw part of a write that is still in progress, try again later
+                lostCount += lost;
+                return false;
+            }
+
+            frame.seq = nextSeq;
+            frame.lostBefore = lost;
+            lostCount += lost;
+            nextSeq++;
+            return true;
+        } // while
+    } // next()
+
+
+    ///////////////////////////////////////////////////////
+    // recordChecksum()
+    //  FNV-1a style hash over the contents of a record, used by both the writer and the readers
+    ///////////////////////////////////////////////////////
+    public static int recordChecksum(long seq, long elapsedRealtime, int id, int bus, int type, int length, int priority, byte[] data) {
+        int h = 0x811C9DC5;
+        h = (h ^ (int) seq) * 0x01000193;
+        h = (h ^ (int) (seq >>> 32)) * 0x01000193;
+        h = (h ^ (int) elapsedRealtime) * 0x01000193;
+        h = (h ^ (int) (elapsedRealtime >>> 32)) * 0x01000193;
+        h = (h ^ id) * 0x01000193;
+        h = (h ^ ((bus & 0xFF) | ((length & 0xFF) << 8) | ((priority & 0xFFFF) << 16))) * 0x01000193;
+        h = (h ^ (type & 0xFF)) * 0x01000193;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ (data[i] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    } // recordChecksum()
+
+
+    ///////////////////////////////////////////////////////
+    // close()
+    //  releases the mapping
+    ///////////////////////////////////////////////////////
+    public void close() {
+        if (buffer != null) {
+            if (sharedMemory != null) SharedMemory.unmap(buffer);
+            buffer = null;
+        }
+        if (sharedMemory != null) {
+            sharedMemory.close();
+            sharedMemory = null;
+        }
+    } // close()
+
+} // class VehicleBusRingReader
@@ -0,0 +1,199 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusRxBatch:
+//  Collects received CAN frames and sends them to other applications in a single canrxbatch broadcast
+//      and/or to the clients bound through VehicleBusBinder
+//  The batch is sent when it holds maxFrames frames or when the oldest frame has waited maxMs
+//  Frames are collected in a VehicleBusFrameBuffer, so adding a frame only stores primitives
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+
+public class VehicleBusRxBatch {
+
+    private static final String TAG = "ATS-VBS-RxBatch"; // for logging
+
+    public static final int DEFAULT_MAX_FRAMES = 64;
+    public static final int DEFAULT_MAX_MS = 20;
+
+    static final int SAFETY_MAX_FRAMES = 1024; // keep a single broadcast well under the binder transaction limit
+    static final int MAX_DATA_LENGTH = VehicleBusFrameBuffer.MAX_DATA_LENGTH; // bytes reserved for each frame in the data block
+
+    Context context;
+    int canNumber; // the port the frames were received on
+    VehicleBusBinder binder; // bound clients that also receive each batch (may be null)
+    volatile boolean broadcast; // do we also send each batch as a canrxbatch broadcast?
+
+    int maxFrames;
+    int maxMs;
+
+    // the batch currently being collected
+    VehicleBusFrameBuffer frames;
+
+    HandlerThread flushThread;
+    Handler flushHandler;
+
+
+    public VehicleBusRxBatch(Context context, int canNumber, VehicleBusBinder binder, boolean broadcast, int maxFrames, int maxMs) {
+        this.context = context;
+        this.canNumber = canNumber;
+        this.binder = binder;
+
+        configure(broadcast, maxFrames, maxMs);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // configure()
+    //  changes how batches are sent, anything already waiting is sent first
+    ///////////////////////////////////////////////////////
+    public synchronized void configure(boolean broadcast, int maxFrames, int maxMs) {
+
+        if (maxFrames <= 0) maxFrames = DEFAULT_MAX_FRAMES;
+        if (maxFrames > SAFETY_MAX_FRAMES) maxFrames = SAFETY_MAX_FRAMES;
+        if (maxMs <= 0) maxMs = DEFAULT_MAX_MS;
+
+        if (frames != null) {
+            if ((broadcast == this.broadcast) && (maxFrames == this.maxFrames) && (maxMs == this.maxMs)) return;
+            flush();
+        }
+
+        this.broadcast = broadcast;
+        this.maxFrames = maxFrames;
+        this.maxMs = maxMs;
+
+        if ((frames == null) || (frames.capacity != maxFrames)) {
+            frames = new VehicleBusFrameBuffer(maxFrames);
+        }
+    } // configure()
+
+
+    ///////////////////////////////////////////////////////
+    // start()
+    //  starts the thread that sends batches once they have waited long enough
+    //  (if it is already running from a previous start it is kept)
+    ///////////////////////////////////////////////////////
+    public void start() {
+        Log.v(TAG, "start() " + maxFrames + " frames or " + maxMs + " ms");
+
+        if (flushThread != null) return;
+
+        flushThread = new HandlerThread("CAN" + (canNumber - 1) + "-RxBatch");
+        flushThread.start();
+        flushHandler = new Handler(flushThread.getLooper());
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // stop()
+    //  sends anything still waiting and stops the thread
+    ///////////////////////////////////////////////////////
+    public void stop() {
+        flush();
+
+        if (flushHandler != null) {
+            flushHandler.removeCallbacks(flushTask);
+            flushHandler = null;
+        }
+        if (flushThread != null) {
+            flushThread.quit();
+            flushThread = null;
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // isWanted()
+    //  is anyone going to receive the batch? If not, frames do not need to be added
+    ///////////////////////////////////////////////////////
+    public boolean isWanted() {
+        return (broadcast || ((binder != null) && (binder.hasCallbacks())));
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // add()
+    //  adds a received frame to the batch, sending the batch if it is now full
+    //  called by the CAN dispatch thread
+    ///////////////////////////////////////////////////////
+    public synchronized void add(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
+
+        frames.add(frame, elapsedRealtime);
+
+        if (frames.isFull()) {
+            flush();
+        } else if ((frames.size() == 1) && (flushHandler != null)) {
+            // first frame of a new batch: this is the frame that will wait the longest
+            flushHandler.postDelayed(flushTask, maxMs);
+        }
+    } // add()
+
+
+    ///////////////////////////////////////////////////////
+    // flush()
+    //  sends everything in the batch now
+    ///////////////////////////////////////////////////////
+    public synchronized void flush() {
+
+        if (flushHandler != null) {
+            flushHandler.removeCallbacks(flushTask);
+        }
+
+        if (frames.size() == 0) return; // nothing to send
+
+        int sendCount = frames.size();
+        int[] sendIds = frames.copyIds();
+        byte[] sendTypes = frames.copyTypes();
+        long[] sendTimestamps = frames.copyTimestamps();
+        byte[] sendLengths = frames.copyLengths();
+        byte[] sendData = frames.copyDataBlock();
+
+        frames.clear();
+
+        if (broadcast) {
+            Intent ibroadcast = new Intent();
+            ibroadcast.setAction(VehicleBusConstants.BROADCAST_CAN_RX_BATCH);
+
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT, sendCount);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS, sendIds);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TYPES, sendTypes);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS, sendTimestamps);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_LENGTHS, sendLengths);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_DATA, sendData);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+
+            context.sendBroadcast(ibroadcast);
+        }
+
+        if ((binder != null) && (binder.hasCallbacks())) {
+            binder.deliverCanFrames(canNumber, sendCount, sendIds, sendTypes, sendTimestamps, sendLengths, sendData);
+        }
+    } // flush()
+
+
+    ///////////////////////////////////////////////////////
+    // flushTask()
+    //  sends the batch once the first frame in it has waited maxMs
+    ///////////////////////////////////////////////////////
+    private Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (Exception e) {
+                Log.e(TAG + ".flushTask", "Exception: " + e.toString(), e);
+            }
+        }
+    }; // flushTask()
+
+} // class VehicleBusRxBatch
@@ -0,0 +1,190 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusRxQueue:
+//  Bounded single-producer/single-consumer ring that hands received CAN frames from the read thread
+//      (which only reads and timestamps) to the dispatch thread (which delivers them to other applications)
+//  Neither side ever takes a lock. If the dispatch thread falls too far behind, new frames are dropped
+//      and counted instead of blocking the read thread.
+//  Every slot owns a frame object that is re-used, so passing frames through the queue allocates nothing:
+//      the producer fills the frame returned by claim() and then publish()es it,
+//      the consumer works on the frame returned by peek() and then release()s it.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class VehicleBusRxQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024; // must be a power of 2
+
+    final int capacity;
+    final int mask;
+
+    final VehicleBusWrapper.CANFrame[] frames;
+    final long[] timestamps;
+
+    // head is only written by the consumer and tail only by the producer
+    //  release() uses lazySet(), which publishes the slot before the new index without a full fence;
+    //  publish() needs the full fence of set() so its read of consumerWaiting can't move before the new tail
+    //  (otherwise a consumer that just found the queue empty and is about to park would not be woken)
+    final AtomicLong head = new AtomicLong(0); // next slot to be read
+    final AtomicLong tail = new AtomicLong(0); // next slot to be written
+
+    // consumer parking
+    volatile Thread consumerThread;
+    volatile boolean consumerWaiting = false;
+
+    // statistics, only written by the producer
+    volatile int highWaterMark = 0; // the most frames that were ever waiting at once
+    volatile long overflowCount = 0; // frames dropped because the queue was full
+
+    // set by the consumer in peek(), the time the frame it returned was received
+    long polledTimestamp;
+
+
+    // used by the producer when the queue is full, so it can still read (and discard) the frame
+    final VehicleBusWrapper.CANFrame overflowFrame = newFrame();
+
+
+    public VehicleBusRxQueue(int capacity) {
+        // round up to a power of 2 so we can mask instead of divide
+        int size = 1;
+        while (size < capacity) size <<= 1;
+
+        this.capacity = size;
+        this.mask = size - 1;
+        frames = new VehicleBusWrapper.CANFrame[size];
+        timestamps = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            frames[i] = newFrame();
+        }
+    }
+
+    static VehicleBusWrapper.CANFrame newFrame() {
+        return new VehicleBusWrapper.CANFrame(0, new byte[0], VehicleBusWrapper.CANFrameType.EXTENDED);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // claim()
+    //  called by the producer (read thread) only
+    //  returns the frame to fill in for the next slot
+    //  if the queue is full, this returns a scratch frame and the following publish() drops it
+    ///////////////////////////////////////////////////////
+    public VehicleBusWrapper.CANFrame claim() {
+
+        long t = tail.get();
+        if (t - head.get() >= capacity) return overflowFrame;
+
+        return frames[(int) t & mask];
+    } // claim()
+
+
+    ///////////////////////////////////////////////////////
+    // publish()
+    //  called by the producer (read thread) only, after the frame from claim() was filled in
+    //  returns false if the queue was full and the frame was dropped
+    ///////////////////////////////////////////////////////
+    public boolean publish(VehicleBusWrapper.CANFrame frame, long elapsedRealtime) {
+
+        if (frame == overflowFrame) {
+            overflowCount++;
+            return false;
+        }
+
+        long t = tail.get();
+        int size = (int) (t - head.get());
+
+        timestamps[(int) t & mask] = elapsedRealtime;
+        tail.set(t + 1);
+
+        if (size + 1 > highWaterMark) highWaterMark = size + 1;
+
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+        return true;
+    } // publish()
+
+
+    ///////////////////////////////////////////////////////
+    // peek()
+    //  called by the consumer (dispatch thread) only
+    //  returns the next frame (and sets polledTimestamp), or null if the queue is empty
+    //  the frame stays owned by the queue: it may not be kept after release() is called
+    ///////////////////////////////////////////////////////
+    public VehicleBusWrapper.CANFrame peek() {
+
+        long h = head.get();
+        if (h == tail.get()) return null; // empty
+
+        int i = (int) h & mask;
+        polledTimestamp = timestamps[i];
+        return frames[i];
+    } // peek()
+
+
+    ///////////////////////////////////////////////////////
+    // release()
+    //  called by the consumer (dispatch thread) only
+    //  hands the slot of the last peek()ed frame back to the producer
+    ///////////////////////////////////////////////////////
+    public void release() {
+        head.lazySet(head.get() + 1);
+    } // release()
+
+
+    ///////////////////////////////////////////////////////
+    // await()
+    //  called by the consumer (dispatch thread) only
+    //  parks until a frame is offered or the timeout expires
+    ///////////////////////////////////////////////////////
+    public void await(long timeoutNanos) {
+
+        consumerThread = Thread.currentThread();
+        consumerWaiting = true;
+
+        // re-check after announcing that we are waiting so we can't miss an unpark
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+
+        consumerWaiting = false;
+    } // await()
+
+
+    ///////////////////////////////////////////////////////
+    // wakeConsumer()
+    //  lets a parked consumer notice that it was cancelled
+    ///////////////////////////////////////////////////////
+    public void wakeConsumer() {
+        Thread thread = consumerThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+
+    public boolean isEmpty() {
+        return (head.get() == tail.get());
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+} // class VehicleBusRxQueue
@@ -29,6 +29,8 @@ import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.NotificationCompat;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import static android.content.Intent.FLAG_ACTIVITY_NEW_TASK;
@@ -54,18 +56,20 @@ public class VehicleBusService extends Service {
     static final int VBUS_J1708 = 2;
 
     static int processId = 0;
-    static int CAN_NUMBER = 0;
 
     Handler mainHandler = null;
     VehicleBusJ1708 my_j1708;
-    VehicleBusCAN my_can;
+    VehicleBusCAN[] my_can = new VehicleBusCAN[VehicleBusCAN.MAX_CAN_PORTS]; // one for each CAN port, see getPortIndex()
 
-    boolean hasStartedCAN = false;
+    boolean[] hasStartedCAN = new boolean[VehicleBusCAN.MAX_CAN_PORTS];
     boolean hasStartedJ1708 = false;
     boolean isUnitTesting = false;
 
     static VehicleBusService service = null;
 
+    VehicleBusBinder binder; // returned to clients that bind to this service
+    volatile VehicleBusRing rxRing; // shared-memory ring of received frames, created when a client first asks for it
+
     public static boolean sentPermissionRequest = false;
 
     public VehicleBusService() {
@@ -73,8 +77,8 @@ public class VehicleBusService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
-        // TODO: Return the communication channel to the service.
-        throw new UnsupportedOperationException("Not yet implemented");
+        Log.d(TAG, "Client bound to service");
+        return binder;
     }
 
     @Override
@@ -82,6 +86,7 @@ public class VehicleBusService extends Service {
         Log.i(TAG, "Service Created: VBS device=" + BuildConfig.BUILD_DEVICE + " version=" + BuildConfig.VERSION_NAME);
         processId = android.os.Process.myPid();
         mainHandler  = new Handler();
+        binder = new VehicleBusBinder(this);
         service = this;
     }
 
@@ -156,9 +161,23 @@ public class VehicleBusService extends Service {
                 int canNumber = intent.getIntExtra(VehicleBusConstants.SERVICE_EXTRA_CAN_NUMBER, VehicleBusCAN.DEFAULT_CAN_NUMBER);
                 int[] ids = intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_HARDWAREFILTER_IDS);
                 int[] masks = intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_HARDWAREFILTER_MASKS);
-
-                CAN_NUMBER = canNumber; // Setting the CAN_NUMBER to match the canNumber, this is used for other classes
-                Log.d(TAG, "CAN_NUMBER = " + CAN_NUMBER);
+                int rxMode = intent.getIntExtra(VehicleBusConstants.SERVICE_EXTRA_RX_MODE, VehicleBusConstants.CAN_RX_MODE_FRAME);
+                int rxBatchFrames = intent.getIntExtra(VehicleBusConstants.SERVICE_EXTRA_RX_BATCH_FRAMES, VehicleBusRxBatch.DEFAULT_MAX_FRAMES);
+                int rxBatchMs = intent.getIntExtra(VehicleBusConstants.SERVICE_EXTRA_RX_BATCH_MS, VehicleBusRxBatch.DEFAULT_MAX_MS);
+                boolean j1939Tp = intent.getBooleanExtra(VehicleBusConstants.SERVICE_EXTRA_J1939_TP, false);
+                boolean softFilterConfig = intent.getBooleanExtra(VehicleBusConstants.SERVICE_EXTRA_SOFTFILTER_CONFIG, false);
+                VehicleBusSoftFilter softFilter = VehicleBusSoftFilter.create(
+                        intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_SOFTFILTER_IDS),
+                        intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_SOFTFILTER_PGN_LOWS),
+                        intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_SOFTFILTER_PGN_HIGHS),
+                        intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_SOFTFILTER_MASK_IDS),
+                        intent.getIntArrayExtra(VehicleBusConstants.SERVICE_EXTRA_SOFTFILTER_MASKS));
+
+                if (!VehicleBusCAN.isValidCanNumber(canNumber)) {
+                    Log.e(TAG, "Error, invalid canNumber " + canNumber + ". Ignoring start.");
+                    return START_NOT_STICKY;
+                }
+                Log.d(TAG, "canNumber = " + canNumber);
 
                 ArrayList<VehicleBusHW.CANFlowControl> flowControls = null;
                 if (flowControl) {
@@ -170,12 +189,29 @@ public class VehicleBusService extends Service {
                     }
                 }
 
+                if ((softFilter == null) && (softFilterConfig)) {
+                    softFilter = Config.getSoftFilter(canNumber);
+                    if (softFilter != null) {
+                        Log.d(TAG, "Using soft filters from configuration.xml.");
+                    } else {
+                        Log.d(TAG, "Soft filters are null.");
+                    }
+                }
+
                 // Remember Canbus settings.
-                saveCAN(true, bitrate, auto_detect, ids, masks, canNumber, flowControls);
+                saveCAN(true, bitrate, auto_detect, ids, masks, canNumber, flowControls, rxMode, rxBatchFrames, rxBatchMs, softFilter, j1939Tp);
+
+                // If only the filters changed, they are changed on the running port without restarting it
+                VehicleBusCAN runningCan = getRunningCAN(canNumber);
+                if ((runningCan != null) &&
+                        (runningCan.isSameExceptFilters(bitrate, skip_verify, auto_detect, flowControls, rxMode, rxBatchFrames, rxBatchMs, j1939Tp)) &&
+                        (runningCan.updateFilters(createCombinedFilters(ids, masks), softFilter))) {
+                    Log.d(TAG, "CAN" + (canNumber - 1) + " filters changed without restarting");
+                    return START_NOT_STICKY;
+                }
 
-                // Start Canbus.
-                stopCAN(false);
-                startCAN(bitrate, skip_verify, auto_detect, ids, masks, canNumber,false, flowControls);
+                // Start Canbus. Any other CAN port keeps running, and if this port is running it is restarted with its threads.
+                startCAN(bitrate, skip_verify, auto_detect, ids, masks, canNumber,false, flowControls, rxMode, rxBatchFrames, rxBatchMs, softFilter, j1939Tp);
             }
         } else if (action.equals(VehicleBusConstants.SERVICE_ACTION_STOP)) {
             Log.i(TAG, "Vehicle Bus Service Stopped: " + bus);
@@ -183,12 +219,24 @@ public class VehicleBusService extends Service {
             // ignore J1708 requests for now, J1708 is stopped same time as CAN
             if (bus.equals(CAN_LABEL)) {
 
-                saveCAN(false, 0, false, null, null, 0, null); // Todo: addCanBus. Ask about this, do I need anything else to tell the service to close canPort?
-                if (!isAnythingElseOn(VBUS_CAN)) {
+                // stop just the given port, or all CAN ports if no port is given
+                int canNumber = intent.getIntExtra(VehicleBusConstants.SERVICE_EXTRA_CAN_NUMBER, 0);
+                boolean stopAllPorts = !VehicleBusCAN.isValidCanNumber(canNumber);
+
+                for (int stopNumber = VehicleBusCAN.FIRST_CAN_NUMBER; stopNumber <= VehicleBusCAN.LAST_CAN_NUMBER; stopNumber++) {
+                    if ((stopAllPorts) || (stopNumber == canNumber)) {
+                        saveCAN(false, 0, false, null, null, stopNumber, null, 0, 0, 0, null, false);
+                    }
+                }
+
+                if ((!isAnythingElseOn(VBUS_CAN)) &&
+                        ((stopAllPorts) || (!isAnyOtherCANStarted(canNumber)))) {
                     setBackground();
                     stopSelf(); // nothing on, stop everything and exit
+                } else if (stopAllPorts) {
+                    stopAllCAN(true); // just stop the CAN
                 } else {
-                    stopCAN(true); // just stop the CAN
+                    stopCAN(canNumber, true); // just stop this CAN port
                 }
             } else if (bus.equals(J1708_LABEL)) {
                 saveJ1708(false);
@@ -217,7 +265,15 @@ public class VehicleBusService extends Service {
 
         Log.v(TAG, "Destroying Service");
         stopJ1708(false);
-        stopCAN(false);
+        stopAllCAN(false);
+        binder.unregisterAll();
+
+        synchronized (this) {
+            if (rxRing != null) {
+                rxRing.close();
+                rxRing = null;
+            }
+        }
     } // OnDestroy()
 
     /**
@@ -228,7 +284,10 @@ public class VehicleBusService extends Service {
         Log.i(TAG, "Vehicle Bus Service Starting: (From Saved File)" );
 
         State state = new State(getApplicationContext());
-        boolean enCan = state.readStateBool(State.FLAG_CAN_ON) ;
+        boolean enCan = false;
+        for (int canNumber = VehicleBusCAN.FIRST_CAN_NUMBER; canNumber <= VehicleBusCAN.LAST_CAN_NUMBER; canNumber++) {
+            if (state.readStateBool(State.forPort(State.FLAG_CAN_ON, canNumber))) enCan = true;
+        }
         boolean enJ1708 = state.readStateBool(State.FLAG_J1708_ON);
 
         // Check if both engines are off.
@@ -241,33 +300,19 @@ public class VehicleBusService extends Service {
         stopAll();
 
         // Enable Canbus. Always do this before J1708 to prevent re-creating CAN bus when starting J1708.
-        if (enCan) {
-            // Read all saved state configurations of port.
-            int bitrate = state.readState(State.CAN_BITRATE);
-            if (bitrate == 0) bitrate = VehicleBusCAN.DEFAULT_BITRATE;
-            boolean auto_detect = state.readStateBool(State.FLAG_CAN_AUTODETECT);
-            int canNumber = state.readState(State.CAN_NUMBER);
-            String idstring = state.readStateString(State.CAN_FILTER_IDS);
-            String maskstring = state.readStateString(State.CAN_FILTER_MASKS);
-
-            String[] idsplits = idstring.split(",");
-            String[] masksplits = maskstring.split(",");
-
-            int[] ids = new int[idsplits.length];
-            int[] masks = new int[masksplits.length];
-            for (int i=0; i < idsplits.length && i < masksplits.length; i++) {
-                try {
-                    ids[i] = Integer.parseInt(idsplits[i]);
-                    masks[i] = Integer.parseInt(masksplits[i]);
-                } catch (Exception e) {
-                    Log.e(TAG, "CAN Masks or IDs are not a number! Aborting start.");
-                    return false; // we can't start, not sure what to do, we don't want to start without any filters
-                }
+        for (int canNumber = VehicleBusCAN.FIRST_CAN_NUMBER; canNumber <= VehicleBusCAN.LAST_CAN_NUMBER; canNumber++) {
+            if (!state.readStateBool(State.forPort(State.FLAG_CAN_ON, canNumber))) continue;
+
+            int savedCanNumber = state.readState(State.forPort(State.CAN_NUMBER, canNumber));
+            if ((VehicleBusCAN.isValidCanNumber(savedCanNumber)) && (savedCanNumber != canNumber)) {
+                // saved before the ports could run at the same time, when every port was saved under the first port.
+                //  Use it for the port it was saved for, unless that port has since saved its own settings.
+                if (state.readStateBool(State.forPort(State.FLAG_CAN_ON, savedCanNumber))) continue;
+            } else {
+                savedCanNumber = canNumber;
             }
 
-            ArrayList<VehicleBusHW.CANFlowControl> flowControls = state.readStateFlowControls();
-
-            startCAN(bitrate, false, auto_detect, ids, masks, canNumber,true, flowControls);
+            if (!startCANFromState(state, canNumber, savedCanNumber)) return false;
         }
 
         if (enJ1708) { // enable J1708 bus now b/c it can get tacked onto CAN.
@@ -277,6 +322,47 @@ public class VehicleBusService extends Service {
         return true;
     } // startFromFile()
 
+    /**
+     * Start one CAN port from its saved state.
+     * @param keyCanNumber the port whose state keys hold the settings
+     * @param canNumber the port to start
+     * @return true if this was successful, false if there was a problem.
+     */
+    boolean startCANFromState(State state, int keyCanNumber, int canNumber) {
+        // Read all saved state configurations of port.
+        int bitrate = state.readState(State.forPort(State.CAN_BITRATE, keyCanNumber));
+        if (bitrate == 0) bitrate = VehicleBusCAN.DEFAULT_BITRATE;
+        boolean auto_detect = state.readStateBool(State.forPort(State.FLAG_CAN_AUTODETECT, keyCanNumber));
+        String idstring = state.readStateString(State.forPort(State.CAN_FILTER_IDS, keyCanNumber));
+        String maskstring = state.readStateString(State.forPort(State.CAN_FILTER_MASKS, keyCanNumber));
+
+        String[] idsplits = idstring.split(",");
+        String[] masksplits = maskstring.split(",");
+
+        int[] ids = new int[idsplits.length];
+        int[] masks = new int[masksplits.length];
+        for (int i=0; i < idsplits.length && i < masksplits.length; i++) {
+            try {
+                ids[i] = Integer.parseInt(idsplits[i]);
+                masks[i] = Integer.parseInt(masksplits[i]);
+            } catch (Exception e) {
+                Log.e(TAG, "CAN Masks or IDs are not a number! Aborting start.");
+                return false; // we can't start, not sure what to do, we don't want to start without any filters
+            }
+        }
+
+        ArrayList<VehicleBusHW.CANFlowControl> flowControls = state.readStateFlowControls(keyCanNumber);
+
+        int rxMode = state.readState(State.forPort(State.CAN_RX_MODE, keyCanNumber));
+        int rxBatchFrames = state.readState(State.forPort(State.CAN_RX_BATCH_FRAMES, keyCanNumber));
+        int rxBatchMs = state.readState(State.forPort(State.CAN_RX_BATCH_MS, keyCanNumber));
+        VehicleBusSoftFilter softFilter = state.readStateSoftFilter(keyCanNumber);
+        boolean j1939Tp = state.readStateBool(State.forPort(State.FLAG_CAN_J1939_TP, keyCanNumber));
+
+        startCAN(bitrate, false, auto_detect, ids, masks, canNumber,true, flowControls, rxMode, rxBatchFrames, rxBatchMs, softFilter, j1939Tp);
+        return true;
+    } // startCANFromState()
+
     /**
      * @return true if any other bus is on, other than the one specified.
      */
@@ -285,12 +371,50 @@ public class VehicleBusService extends Service {
             case VBUS_CAN:
                 return hasStartedJ1708;
             case VBUS_J1708:
-                return hasStartedCAN;
+                return isAnyOtherCANStarted(0);
             default:
-                return hasStartedCAN || hasStartedJ1708;
+                return isAnyOtherCANStarted(0) || hasStartedJ1708;
         }
     } // isAnythingElseOn()
 
+    /**
+     * @return true if any CAN port is on, other than the one specified (0 to check all ports).
+     */
+    boolean isAnyOtherCANStarted(int canNumber) {
+        for (int otherNumber = VehicleBusCAN.FIRST_CAN_NUMBER; otherNumber <= VehicleBusCAN.LAST_CAN_NUMBER; otherNumber++) {
+            if ((otherNumber != canNumber) && (hasStartedCAN[VehicleBusCAN.getPortIndex(otherNumber)])) return true;
+        }
+        return false;
+    } // isAnyOtherCANStarted()
+
+    /**
+     * @return the CAN bus of the given port (which may be stopped), or null if that port was never started.
+     */
+    VehicleBusCAN getCAN(int canNumber) {
+        if (!VehicleBusCAN.isValidCanNumber(canNumber)) return null;
+        return my_can[VehicleBusCAN.getPortIndex(canNumber)];
+    } // getCAN()
+
+    /**
+     * @return the CAN bus of the given port, or null if that port is not running.
+     */
+    VehicleBusCAN getRunningCAN(int canNumber) {
+        if (!VehicleBusCAN.isValidCanNumber(canNumber)) return null;
+        if (!hasStartedCAN[VehicleBusCAN.getPortIndex(canNumber)]) return null;
+        return my_can[VehicleBusCAN.getPortIndex(canNumber)];
+    } // getRunningCAN()
+
+    /**
+     * @return the lowest numbered CAN port that is running, this is where frames go if no port was named.
+     *  DEFAULT_CAN_NUMBER if no port is running.
+     */
+    int getDefaultCanNumber() {
+        for (int canNumber = VehicleBusCAN.FIRST_CAN_NUMBER; canNumber <= VehicleBusCAN.LAST_CAN_NUMBER; canNumber++) {
+            if (hasStartedCAN[VehicleBusCAN.getPortIndex(canNumber)]) return canNumber;
+        }
+        return VehicleBusCAN.DEFAULT_CAN_NUMBER;
+    } // getDefaultCanNumber()
+
     ////////////////////////////////////////////////////////////////
     // stopAll()
     //  stop both the CAN and the J1708 bus if they are running
@@ -301,32 +425,56 @@ public class VehicleBusService extends Service {
 
         // my_can or my_j1708 is only used to provide us access to the underlying wrapper stopAll() call
         // make sure we can use either one, because one or the other might be null if that bus is not running.
+        // each CAN port has its own wrapper, J1708 shares the wrapper of the default port.
 
-        if (my_can != null) {
-            my_can.stopAll();
-        } else if (my_j1708 != null) {
+        boolean stoppedDefault = false;
+        for (VehicleBusCAN can : my_can) {
+            if (can != null) {
+                can.stopAll();
+                if (can.getCanNumber() == VehicleBusCAN.DEFAULT_CAN_NUMBER) stoppedDefault = true;
+            }
+        }
+        if ((!stoppedDefault) && (my_j1708 != null)) {
             my_j1708.stopAll();
         }
 
         // stop all buses
         stopJ1708(true);
-        stopCAN(true);
+        stopAllCAN(true);
     } //stopAll()
 
+    ////////////////////////////////////////////////////////////////
+    // getRxRing()
+    //  returns the shared-memory ring of received frames, creating it the first time
+    ////////////////////////////////////////////////////////////////
+    synchronized VehicleBusRing getRxRing() {
+        if (rxRing == null) {
+            rxRing = VehicleBusRing.create("vbs-rx", VehicleBusRing.DEFAULT_CAPACITY);
+        }
+        return rxRing;
+    } // getRxRing()
+
     ////////////////////////////////////////////////////////////////
     // saveCAN()
     // save CAN information to file so we can load it up on restart.
     ////////////////////////////////////////////////////////////////
-    void saveCAN(boolean enabled, int bitrate, boolean auto_detect, int[] ids, int masks[], int canNumber, ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
+    void saveCAN(boolean enabled, int bitrate, boolean auto_detect, int[] ids, int masks[], int canNumber, ArrayList<VehicleBusHW.CANFlowControl> flowControls,
+                 int rxMode, int rxBatchFrames, int rxBatchMs, VehicleBusSoftFilter softFilter, boolean j1939Tp) {
         Context context = getApplicationContext();
         State state = new State(context);
 
-        state.writeState(State.FLAG_CAN_ON, ( enabled ?  1 : 0));
-        if (enabled) {
+        state.writeState(State.forPort(State.FLAG_CAN_ON, canNumber), ( enabled ?  1 : 0));
+        if (!enabled) {
+            // settings saved before the ports could run at the same time are under the first port, stop those too
+            int firstPortNumber = state.readState(State.CAN_NUMBER);
+            if ((canNumber != VehicleBusCAN.FIRST_CAN_NUMBER) && (firstPortNumber == canNumber)) {
+                state.writeState(State.FLAG_CAN_ON, 0);
+            }
+        } else {
             // Save more info about the CAN.
-            state.writeState(State.CAN_BITRATE, bitrate);
-            state.writeState(State.FLAG_CAN_AUTODETECT, (auto_detect ? 1 : 0));
-            state.writeState(State.CAN_NUMBER, canNumber);
+            state.writeState(State.forPort(State.CAN_BITRATE, canNumber), bitrate);
+            state.writeState(State.forPort(State.FLAG_CAN_AUTODETECT, canNumber), (auto_detect ? 1 : 0));
+            state.writeState(State.forPort(State.CAN_NUMBER, canNumber), canNumber);
 
             String idstring = "";
             String maskstring = "";
@@ -345,9 +493,14 @@ public class VehicleBusService extends Service {
                     maskstring += mask;
                 }
             }
-            state.writeStateString(State.CAN_FILTER_IDS, idstring);
-            state.writeStateString(State.CAN_FILTER_MASKS, maskstring);
-            state.writeStateFlowControls(flowControls);
+            state.writeStateString(State.forPort(State.CAN_FILTER_IDS, canNumber), idstring);
+            state.writeStateString(State.forPort(State.CAN_FILTER_MASKS, canNumber), maskstring);
+            state.writeStateFlowControls(canNumber, flowControls);
+            state.writeState(State.forPort(State.CAN_RX_MODE, canNumber), rxMode);
+            state.writeState(State.forPort(State.CAN_RX_BATCH_FRAMES, canNumber), rxBatchFrames);
+            state.writeState(State.forPort(State.CAN_RX_BATCH_MS, canNumber), rxBatchMs);
+            state.writeStateSoftFilter(canNumber, softFilter);
+            state.writeState(State.forPort(State.FLAG_CAN_J1939_TP, canNumber), (j1939Tp ? 1 : 0));
         }
     }
 
@@ -361,15 +514,23 @@ public class VehicleBusService extends Service {
     //  masks[] : corresponding can masks to use with the ids
     //  load_last_confirmed: whether or not we should load the last confirmed bitrate from file
     //      when service receives the "restart" action, then we will load this from file, otherwise we only use what is in memory
+    //  rxMode: how received frames are delivered, one of VehicleBusConstants.CAN_RX_MODE_*
+    //  rxBatchFrames, rxBatchMs: size and time limits for each batch when rxMode is CAN_RX_MODE_BATCH
+    //  softFilter: software filter applied to received frames after the hardware filters, or null to accept everything
+    //  j1939Tp: if true then J1939 transport protocol transfers are reassembled and delivered as complete messages
+    //  any other CAN port that is running is not affected
     ////////////////////////////////////////////////////////////////
-    void startCAN(int bitrate, boolean skip_verify, boolean auto_detect, int[] ids, int masks[], int canNumber, boolean load_last_confirmed, ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
-        Log.d(TAG, "+startCAN():");
+    void startCAN(int bitrate, boolean skip_verify, boolean auto_detect, int[] ids, int masks[], int canNumber, boolean load_last_confirmed, ArrayList<VehicleBusHW.CANFlowControl> flowControls,
+                  int rxMode, int rxBatchFrames, int rxBatchMs, VehicleBusSoftFilter softFilter, boolean j1939Tp) {
+        Log.d(TAG, "+startCAN(): CAN" + (canNumber - 1));
 
-        if (hasStartedCAN) {
-            Log.w(TAG, "CAN already started. Ignoring subsequent Start.");
+        int portIndex = VehicleBusCAN.getPortIndex(canNumber);
+        boolean restarting = hasStartedCAN[portIndex];
+        if (restarting) {
+            Log.d(TAG, "CAN" + (canNumber - 1) + " already started. Restarting it.");
         }
 
-        hasStartedCAN = true; // don't start again
+        hasStartedCAN[portIndex] = true; // don't start again
         Context context = getApplicationContext();
 
 /*
@@ -385,20 +546,30 @@ public class VehicleBusService extends Service {
         VehicleBusWrapper.CANHardwareFilter[] canHardwareFilters = createCombinedFilters(ids, masks);
 
 
-        my_can = new VehicleBusCAN(context, isUnitTesting);
+        // the port keeps its VehicleBusCAN (and the threads of it) from one start to the next
+        VehicleBusCAN can = my_can[portIndex];
+        if (can == null) {
+            can = new VehicleBusCAN(context, isUnitTesting, canNumber);
+            my_can[portIndex] = can;
+        } else {
+            can.forgetConfirmed();
+        }
+        can.setRxMode(rxMode, rxBatchFrames, rxBatchMs);
+        can.setSoftFilter(softFilter);
+        can.setJ1939Tp(j1939Tp);
 
         if (load_last_confirmed) {
-            my_can.loadConfirmedBitRate();
-            my_can.loadConfirmedCanNumber();
+            can.loadConfirmedBitRate();
+            can.loadConfirmedCanNumber();
         }
 
         if (skip_verify) {
             // we've requested to treat this bitrate as confirmed
-            my_can.setConfirmedBitRate(bitrate);
-            my_can.setConfirmedCanNumber(canNumber);
+            can.setConfirmedBitRate(bitrate);
+            can.setConfirmedCanNumber(canNumber);
         }
 
-        if (!my_can.start(bitrate, auto_detect, canHardwareFilters, canNumber, flowControls)) {
+        if (!can.start(bitrate, auto_detect, canHardwareFilters, flowControls)) {
             Log.e(TAG, "Error starting bus with bus wrapper.");
             return;
         }
@@ -410,7 +581,7 @@ public class VehicleBusService extends Service {
         }
 */
 
-        if (!isAnythingElseOn(VBUS_CAN)) {
+        if ((!restarting) && (!isAnythingElseOn(VBUS_CAN)) && (!isAnyOtherCANStarted(canNumber))) {
             // if we haven't started J1708, we need to start status broadcasts
 
             if (mainHandler != null) {
@@ -424,45 +595,49 @@ public class VehicleBusService extends Service {
 
     ////////////////////////////////////////////////////////////////
     // stopCAN()
-    //  stop the CAN bus
+    //  stop one CAN port
     ////////////////////////////////////////////////////////////////
-    void stopCAN(boolean show_error) {
+    void stopCAN(int canNumber, boolean show_error) {
 
+        int portIndex = VehicleBusCAN.getPortIndex(canNumber);
 
-        if (!hasStartedCAN) {
+        if (!hasStartedCAN[portIndex]) {
             if (show_error) {
-                Log.w(TAG, "CAN not started. Ignoring Stop.");
+                Log.w(TAG, "CAN" + (canNumber - 1) + " not started. Ignoring Stop.");
             }
             return;
         }
 
+        forceStopCAN(canNumber);
 
+    } // stopCAN()
 
-        // remove callbacks first in case the stop() jams
-        if (!isAnythingElseOn(VBUS_CAN)) {
-            mainHandler.removeCallbacks(statusTask);
-        }
-
-        if (my_can != null) {
-            my_can.stop();
+    ////////////////////////////////////////////////////////////////
+    // stopAllCAN()
+    //  stop every CAN port
+    ////////////////////////////////////////////////////////////////
+    void stopAllCAN(boolean show_error) {
+        // only complain about a port that is not running if none of them are
+        boolean noneStarted = !isAnyOtherCANStarted(0);
+        for (int canNumber = VehicleBusCAN.FIRST_CAN_NUMBER; canNumber <= VehicleBusCAN.LAST_CAN_NUMBER; canNumber++) {
+            stopCAN(canNumber, (show_error && noneStarted));
         }
+    } // stopAllCAN()
 
-        hasStartedCAN = false;
+    void forceStopCAN(int canNumber) {
 
-    } // stopCAN()
-
-    void forceStopCAN() {
+        int portIndex = VehicleBusCAN.getPortIndex(canNumber);
 
         // remove callbacks first in case the stop() jams
-        if (!isAnythingElseOn(VBUS_CAN)) {
+        if ((!isAnythingElseOn(VBUS_CAN)) && (!isAnyOtherCANStarted(canNumber))) {
             mainHandler.removeCallbacks(statusTask);
         }
 
-        if (my_can != null) {
-            my_can.stop();
+        if (my_can[portIndex] != null) {
+            my_can[portIndex].stop();
         }
 
-        hasStartedCAN = false;
+        hasStartedCAN[portIndex] = false;
 
     } // forceStopCAN()
 
@@ -616,6 +791,23 @@ public class VehicleBusService extends Service {
     ///////////////////////////////////////////////////////////////
     void broadcastStatus() {
 
+        // one status for each CAN port that is running, or one for J1708 if no CAN port is
+        boolean sent = false;
+        for (int canNumber = VehicleBusCAN.FIRST_CAN_NUMBER; canNumber <= VehicleBusCAN.LAST_CAN_NUMBER; canNumber++) {
+            VehicleBusCAN can = getRunningCAN(canNumber);
+            if (can == null) continue;
+            broadcastStatus(can);
+            sent = true;
+        }
+
+        if (!sent) {
+            broadcastStatus(null);
+        }
+
+    } // broadcastStatus()
+
+    void broadcastStatus(VehicleBusCAN can) {
+
         Context context = getApplicationContext();
 
         Intent ibroadcast = new Intent();
@@ -631,22 +823,86 @@ public class VehicleBusService extends Service {
 
         //ibroadcast.putExtra("processId", processId); // so this can be killed?
 
-        if (my_can != null) { // safety
-            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANRX, my_can.isReadReady());
-            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX, my_can.isWriteReady());
-            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANBITRATE, my_can.getBitrate());
-            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANNUMBER, my_can.getCanNumber());
+        if (can != null) { // safety
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANRX, can.isReadReady());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX, can.isWriteReady());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANBITRATE, can.getBitrate());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANNUMBER, can.getCanNumber());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANRX_QUEUE_HIGHWATER, can.getRxQueueHighWaterMark());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANRX_QUEUE_OVERFLOWS, can.getRxQueueOverflowCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANRX_SOFTFILTER_REJECTS, can.getSoftFilterRejectCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUSLOAD_BPS, can.trafficStats.getBusLoadBitsPerSecond(elapsedRealtime));
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUSLOAD_PERCENT, can.trafficStats.getBusLoadPercent(elapsedRealtime, can.getBitrate()));
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX_LATENCY_AVG, can.getTxLatencyAvgMicros());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX_LATENCY_MAX, can.getTxLatencyMaxMicros());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX_DROPPED_NEWEST, can.getTxDroppedNewestCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX_DROPPED_OLDEST, can.getTxDroppedOldestCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CANTX_REJECTED, can.getTxRejectedCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_RECONFIGURE_MS, can.getReconfigureMs());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_RECONFIGURE_RX_GAP_MS, can.getReconfigureRxGapMs());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_RECONFIGURE_IN_PLACE, can.busWrapper.lastReconfigureInPlace);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_LIVE_THREADS, VehicleBusCAN.getLiveThreadCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUS_STATE, can.busWrapper.busState);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUS_STATE_SINCE, can.busWrapper.busStateRealtime);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUS_SETUP_FAILED, can.busWrapper.setupFailed);
         }
 
         if (my_j1708 != null) { // safety
             ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708RX, my_j1708.isReadReady());
             ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708TX, my_j1708.isWriteReady());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708TX_LATENCY_AVG, my_j1708.getTxLatencyAvgMicros());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708TX_LATENCY_MAX, my_j1708.getTxLatencyMaxMicros());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708TX_DROPPED_NEWEST, my_j1708.getTxDroppedNewestCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708TX_DROPPED_OLDEST, my_j1708.getTxDroppedOldestCount());
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_STATUS_J1708TX_REJECTED, my_j1708.getTxRejectedCount());
         }
 
         context.sendBroadcast(ibroadcast);
 
     } // broadcastStatus()
 
+    ///////////////////////////////////////////////////////////////
+    // dump()
+    //  on-demand dump of the CAN traffic statistics of each port:
+    //      adb shell dumpsys activity service com.micronet.dsc.vbs/.VehicleBusService
+    ///////////////////////////////////////////////////////////////
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("CAN threads running: " + VehicleBusCAN.getLiveThreadCount());
+        for (int canNumber = VehicleBusCAN.FIRST_CAN_NUMBER; canNumber <= VehicleBusCAN.LAST_CAN_NUMBER; canNumber++) {
+            VehicleBusCAN can = getRunningCAN(canNumber);
+            if (can == null) {
+                writer.println("CAN" + (canNumber - 1) + " is not running");
+                continue;
+            }
+
+            writer.println("CAN" + (canNumber - 1) + " at " + can.getBitrate() + " bps");
+            writer.println("  TX latency avg " + can.getTxLatencyAvgMicros() + " us, max " + can.getTxLatencyMaxMicros() + " us");
+            writer.println("  Periodic TX " + can.periodicTx.size() + " frames, " + can.periodicTx.getSentCount() +
+                    " sent, " + can.periodicTx.getMissedCount() + " missed");
+            writer.println("  J1939 TX " + can.j1939TpTx.getCompletedCount() + " completed, " + can.j1939TpTx.getAbortedCount() + " failed");
+            writer.println("  J1939 requests " + can.j1939Request.getSentCount() + " sent, " + can.j1939Request.getCachedCount() +
+                    " from cache, " + can.j1939Request.getTimeoutCount() + " timed out");
+            writer.println("  ISO-TP " + can.isoTp.getChannelCount() + " channels, " + can.isoTp.getSentCount() + " sent, " +
+                    can.isoTp.getFailedCount() + " failed, " + can.isoTp.getReceivedCount() + " received, " +
+                    can.isoTp.getRxErrorCount() + " receive errors");
+            writer.println("  State " + VehicleBusWrapper.BUS_STATE_NAMES[can.busWrapper.busState] +
+                    (can.busWrapper.setupFailed ? " (setup failed)" : "") + ": " + can.busWrapper.getStateHistory());
+            VehicleBusSoftFilter hwFilter = can.hardwareSoftFilter;
+            if (hwFilter != null) {
+                writer.println("  Hardware filters applied in software, " + hwFilter.getRejectedCount() + " frames blocked");
+            }
+            writer.println("  Promotion to normal mode: " + can.promotionFramesKept + " frames held and delivered, " +
+                    can.promotionFramesDropped + " dropped");
+            writer.println("  Reconfigured " + can.busWrapper.reconfigureCount + " times (" + can.busWrapper.reconfigureInPlaceCount +
+                    " in place), last " + can.getReconfigureMs() + " ms (RX gap " + can.getReconfigureRxGapMs() +
+                    " ms), max " + can.busWrapper.maxReconfigureMs + " ms (RX gap " + can.maxRxGapMs + " ms)");
+            writer.println("  TX queue " + can.txQueueSize + " frames, dropped newest " + can.getTxDroppedNewestCount() +
+                    ", dropped oldest " + can.getTxDroppedOldestCount() + ", rejected " + can.getTxRejectedCount());
+            can.trafficStats.dump(writer, SystemClock.elapsedRealtime(), can.getBitrate());
+        }
+    } // dump()
+
     ///////////////////////////////////////////////////////////////
     // statusTask()
     //  Timer to broadcast that we are still alive
@@ -0,0 +1,200 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusSoftFilter:
+//  Software filter stage for received CAN frames, for when the hardware filter table is too small
+//      and had to be opened up with wide masks.
+//  A frame is accepted if its id matches any of:
+//      ids[]                   : exact CAN ids, kept in an open-addressing hash set (VehicleBusIdTable)
+//      pgnLows[]..pgnHighs[]   : ranges of J1939 PGNs (inclusive), kept as sorted, merged intervals
+//                                (only 29-bit frames have a PGN, so these never match an 11-bit frame)
+//      maskIds[] / masks[]     : (id & mask) == (maskId & mask), checked one by one, so keep this list short
+//  The source arrays are what is saved to the state file, compile() builds the lookup tables from them.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.Arrays;
+
+
+public class VehicleBusSoftFilter {
+
+    private static final String TAG = "ATS-VBS-SoftFilter"; // for logging
+
+    static final int CAN_ID_MASK = 0x1FFFFFFF; // 29 bits
+    static final int MIN_ID_TABLE_SIZE = 4;
+
+    // what the filter was created from (saved to state)
+    int[] ids;
+    int[] pgnLows;
+    int[] pgnHighs;
+    int[] maskIds;
+    int[] masks;
+
+    // compiled lookup tables
+    transient int[] idTable; // VehicleBusIdTable keys
+    transient int[] rangeLows; // sorted, non-overlapping
+    transient int[] rangeHighs;
+    transient int[] residualIds; // maskIds[] with the mask already applied
+    transient int[] residualMasks;
+
+    // statistics, only written by the CAN dispatch thread
+    transient volatile long acceptedCount;
+    transient volatile long rejectedCount;
+
+
+    ///////////////////////////////////////////////////////
+    // create()
+    //  returns a compiled filter, or null if no filters were given (everything is accepted)
+    //  pgnLows and pgnHighs must be the same length, as must maskIds and masks
+    ///////////////////////////////////////////////////////
+    public static VehicleBusSoftFilter create(int[] ids, int[] pgnLows, int[] pgnHighs, int[] maskIds, int[] masks) {
+
+        int nIds = (ids == null ? 0 : ids.length);
+        int nRanges = ((pgnLows == null) || (pgnHighs == null) ? 0 : Math.min(pgnLows.length, pgnHighs.length));
+        int nMasks = ((maskIds == null) || (masks == null) ? 0 : Math.min(maskIds.length, masks.length));
+
+        if (nIds + nRanges + nMasks == 0) return null;
+
+        VehicleBusSoftFilter filter = new VehicleBusSoftFilter();
+        filter.ids = (nIds == 0 ? new int[0] : Arrays.copyOf(ids, nIds));
+        filter.pgnLows = (nRanges == 0 ? new int[0] : Arrays.copyOf(pgnLows, nRanges));
+        filter.pgnHighs = (nRanges == 0 ? new int[0] : Arrays.copyOf(pgnHighs, nRanges));
+        filter.maskIds = (nMasks == 0 ? new int[0] : Arrays.copyOf(maskIds, nMasks));
+        filter.masks = (nMasks == 0 ? new int[0] : Arrays.copyOf(masks, nMasks));
+        filter.compile();
+
+        return filter;
+    } // create()
+
+
+    ///////////////////////////////////////////////////////
+    // compile()
+    //  builds the lookup tables from the source arrays
+    //  must be called again after the filter was read back from state
+    ///////////////////////////////////////////////////////
+    public void compile() {
+
+        if (ids == null) ids = new int[0];
+        if (pgnLows == null) pgnLows = new int[0];
+        if (pgnHighs == null) pgnHighs = new int[0];
+        if (maskIds == null) maskIds = new int[0];
+        if (masks == null) masks = new int[0];
+
+        // exact ids
+        idTable = VehicleBusIdTable.newKeys(VehicleBusIdTable.getCapacity(ids.length, MIN_ID_TABLE_SIZE));
+        for (int id : ids) {
+            id &= CAN_ID_MASK;
+            idTable[VehicleBusIdTable.find(idTable, id)] = id;
+        }
+
+        // PGN ranges: sort by low end and merge any that overlap or touch
+        int n = Math.min(pgnLows.length, pgnHighs.length);
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            int low = Math.min(pgnLows[i], pgnHighs[i]);
+            int high = Math.max(pgnLows[i], pgnHighs[i]);
+            sorted[i] = ((long) low << 32) | (high & 0xFFFFFFFFL);
+        }
+        Arrays.sort(sorted);
+
+        int[] lows = new int[n];
+        int[] highs = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int low = (int) (sorted[i] >>> 32);
+            int high = (int) sorted[i];
+            if ((count > 0) && (low <= highs[count - 1] + 1)) {
+                if (high > highs[count - 1]) highs[count - 1] = high;
+            } else {
+                lows[count] = low;
+                highs[count] = high;
+                count++;
+            }
+        }
+        rangeLows = Arrays.copyOf(lows, count);
+        rangeHighs = Arrays.copyOf(highs, count);
+
+        // masks
+        int m = Math.min(maskIds.length, masks.length);
+        residualIds = new int[m];
+        residualMasks = new int[m];
+        for (int i = 0; i < m; i++) {
+            residualMasks[i] = masks[i];
+            residualIds[i] = maskIds[i] & masks[i];
+        }
+
+        Log.d(TAG, "Compiled " + ids.length + " ids, " + rangeLows.length + " PGN ranges, " + residualIds.length + " masks");
+    } // compile()
+
+
+    ///////////////////////////////////////////////////////
+    // accept()
+    //  returns true if a frame with this id passes the filter
+    //  isExtended : is this a 29-bit id (PGN ranges are only checked for those)
+    //  called by the CAN dispatch thread for every received frame
+    ///////////////////////////////////////////////////////
+    public boolean accept(int id, boolean isExtended) {
+        if (matches(id, isExtended)) {
+            acceptedCount++;
+            return true;
+        }
+        rejectedCount++;
+        return false;
+    }
+
+    boolean matches(int id, boolean isExtended) {
+
+        id &= CAN_ID_MASK;
+
+        // exact ids
+        if (idTable[VehicleBusIdTable.find(idTable, id)] == id) return true;
+
+        // PGN ranges: find the last range starting at or before this PGN
+        if ((isExtended) && (rangeLows.length > 0)) {
+            int pgn = getPgn(id);
+            int lo = 0;
+            int hi = rangeLows.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rangeLows[mid] <= pgn) lo = mid + 1;
+                else hi = mid - 1;
+            }
+            if ((hi >= 0) && (pgn <= rangeHighs[hi])) return true;
+        }
+
+        // masks
+        for (int i = 0; i < residualIds.length; i++) {
+            if ((id & residualMasks[i]) == residualIds[i]) return true;
+        }
+
+        return false;
+    } // matches()
+
+
+    ///////////////////////////////////////////////////////
+    // getPgn()
+    //  the J1939 PGN of a 29-bit id
+    //  for PDU1 formats (PF < 240) the PS byte is a destination address and is not part of the PGN
+    ///////////////////////////////////////////////////////
+    public static int getPgn(int id) {
+        int pgn = (id >> 8) & 0x3FFFF;
+        if (((pgn >> 8) & 0xFF) < 0xF0) {
+            pgn &= 0x3FF00;
+        }
+        return pgn;
+    }
+
+
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+} // class VehicleBusSoftFilter
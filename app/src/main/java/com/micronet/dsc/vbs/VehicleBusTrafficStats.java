@@ -0,0 +1,305 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusTrafficStats:
+//  Statistics on what is received on the CAN bus:
+//      for each CAN id (11-bit and 29-bit ids are kept apart): frame count, average rate, and the time between frames (min, max and a moving average)
+//          along with a moving average of how far each gap is from that average (jitter)
+//      for the bus: estimated bits per second on the wire, and that as a percentage of the bitrate
+//
+//  Only the CAN dispatch thread writes, and it never takes a lock. Other threads read without locking too,
+//      so a reader may see an id whose values are one frame apart from each other, which is fine for statistics.
+//      The per-id arrays are swapped as a whole (table) when they grow, so a reader never mixes two tables.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+
+public class VehicleBusTrafficStats {
+
+    private static final String TAG = "ATS-VBS-TrafficStats"; // for logging
+
+    static final int INITIAL_CAPACITY = 256;
+    static final int SAFETY_MAX_IDS = 8192; // ids beyond this are only counted in the bus load
+
+    static final float EWMA_WEIGHT = 1.0f / 16; // weight of each new gap in the moving averages
+
+    static final int LOAD_WINDOW_MS = 1000; // bus load is measured over windows of this length
+
+    // Bits of a frame on the wire, not counting stuff bits:
+    //  SOF, id, control, CRC, ACK, EOF and the 3 bit intermission
+    static final int FRAME_BITS_STANDARD = 47;
+    static final int FRAME_BITS_EXTENDED = 67;
+    // the part of those bits that can be stuffed (SOF through CRC)
+    static final int STUFFABLE_BITS_STANDARD = 34;
+    static final int STUFFABLE_BITS_EXTENDED = 54;
+    // a stuff bit is inserted after 5 equal bits, real traffic averages far less than the worst case of 1 in 4
+    static final int STUFF_BIT_RATIO = 10;
+
+
+    ///////////////////////////////////////////////////////
+    // Table : the per-id values, all arrays indexed by slot of keys (a VehicleBusIdTable)
+    ///////////////////////////////////////////////////////
+    static class Table {
+        final int[] keys; // VehicleBusIdTable.key() of the id and frame type
+        final long[] counts;
+        final long[] firstTimestamps;
+        final long[] lastTimestamps;
+        final long[] minGaps;
+        final long[] maxGaps;
+        final float[] avgGaps; // moving average of the time between frames (ms)
+        final float[] jitters; // moving average of |gap - avgGap| (ms)
+        int size = 0;
+
+        Table(int capacity) {
+            keys = VehicleBusIdTable.newKeys(capacity);
+            counts = new long[capacity];
+            firstTimestamps = new long[capacity];
+            lastTimestamps = new long[capacity];
+            minGaps = new long[capacity];
+            maxGaps = new long[capacity];
+            avgGaps = new float[capacity];
+            jitters = new float[capacity];
+        }
+
+        int find(int key) {
+            return VehicleBusIdTable.find(keys, key);
+        }
+    } // Table
+
+    volatile Table table = new Table(INITIAL_CAPACITY);
+
+    // bus load
+    volatile long windowStart = 0;
+    volatile long windowBits = 0;
+    volatile long lastWindowBitsPerSecond = 0;
+    volatile long totalFrames = 0;
+
+
+    ///////////////////////////////////////////////////////
+    // update()
+    //  counts a received frame
+    //  called by the CAN dispatch thread for every received frame
+    ///////////////////////////////////////////////////////
+    public void update(int id, boolean extended, int dataLength, long elapsedRealtime) {
+
+        updateLoad(extended, dataLength, elapsedRealtime);
+
+        int key = VehicleBusIdTable.key(id, extended);
+        Table t = table;
+        int slot = t.find(key);
+
+        if (t.keys[slot] == VehicleBusIdTable.EMPTY_SLOT) {
+            // new id
+            if (t.size >= SAFETY_MAX_IDS) return;
+            if (VehicleBusIdTable.needsGrow(t.keys, t.size)) {
+                t = grow(t);
+                slot = t.find(key);
+            }
+            t.counts[slot] = 1;
+            t.firstTimestamps[slot] = elapsedRealtime;
+            t.lastTimestamps[slot] = elapsedRealtime;
+            t.minGaps[slot] = Long.MAX_VALUE;
+            t.maxGaps[slot] = 0;
+            t.avgGaps[slot] = 0;
+            t.jitters[slot] = 0;
+            t.keys[slot] = key; // last, so a reader does not see the id before its values
+            t.size++;
+            return;
+        }
+
+        long gap = elapsedRealtime - t.lastTimestamps[slot];
+        long count = t.counts[slot];
+
+        if (gap < t.minGaps[slot]) t.minGaps[slot] = gap;
+        if (gap > t.maxGaps[slot]) t.maxGaps[slot] = gap;
+
+        if (count == 1) {
+            // first gap for this id
+            t.avgGaps[slot] = gap;
+        } else {
+            float avg = t.avgGaps[slot];
+            t.jitters[slot] += (Math.abs(gap - avg) - t.jitters[slot]) * EWMA_WEIGHT;
+            t.avgGaps[slot] = avg + (gap - avg) * EWMA_WEIGHT;
+        }
+
+        t.lastTimestamps[slot] = elapsedRealtime;
+        t.counts[slot] = count + 1;
+    } // update()
+
+
+    ///////////////////////////////////////////////////////
+    // updateLoad()
+    //  adds the estimated bits of a frame to the bus load
+    ///////////////////////////////////////////////////////
+    void updateLoad(boolean extended, int dataLength, long elapsedRealtime) {
+
+        int bits;
+        if (extended) {
+            bits = FRAME_BITS_EXTENDED + (dataLength * 8) + (STUFFABLE_BITS_EXTENDED + (dataLength * 8)) / STUFF_BIT_RATIO;
+        } else {
+            bits = FRAME_BITS_STANDARD + (dataLength * 8) + (STUFFABLE_BITS_STANDARD + (dataLength * 8)) / STUFF_BIT_RATIO;
+        }
+
+        long elapsed = elapsedRealtime - windowStart;
+        if (elapsed >= LOAD_WINDOW_MS) {
+            // close the window
+            if (windowStart != 0) {
+                lastWindowBitsPerSecond = windowBits * 1000 / elapsed;
+            }
+            windowStart = elapsedRealtime;
+            windowBits = 0;
+        }
+        windowBits += bits;
+        totalFrames++;
+    } // updateLoad()
+
+
+    ///////////////////////////////////////////////////////
+    // getBusLoadBitsPerSecond()
+    //  estimated bits per second on the bus over the last full window
+    ///////////////////////////////////////////////////////
+    public long getBusLoadBitsPerSecond(long now) {
+        long start = windowStart;
+        if ((start == 0) || (now - start >= 2 * LOAD_WINDOW_MS)) {
+            // no frames for a while, so the window was never closed
+            if (start == 0) return 0;
+            return windowBits * 1000 / (now - start);
+        }
+        return lastWindowBitsPerSecond;
+    } // getBusLoadBitsPerSecond()
+
+    ///////////////////////////////////////////////////////
+    // getBusLoadPercent()
+    //  the bus load as a percentage of the bitrate
+    ///////////////////////////////////////////////////////
+    public float getBusLoadPercent(long now, int bitrate) {
+        if (bitrate <= 0) return 0;
+        return (getBusLoadBitsPerSecond(now) * 100.0f) / bitrate;
+    }
+
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    public int getIdCount() {
+        return table.size;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // snapshot()
+    //  copies the statistics of every id into a Bundle
+    ///////////////////////////////////////////////////////
+    public Bundle snapshot(long now, int bitrate) {
+
+        Table t = table;
+        int n = t.size;
+
+        int[] ids = new int[n];
+        byte[] types = new byte[n];
+        long[] counts = new long[n];
+        float[] rates = new float[n];
+        long[] minGaps = new long[n];
+        long[] maxGaps = new long[n];
+        float[] avgGaps = new float[n];
+        float[] jitters = new float[n];
+
+        int i = 0;
+        for (int slot = 0; (slot < t.keys.length) && (i < n); slot++) {
+            int key = t.keys[slot];
+            if (key == VehicleBusIdTable.EMPTY_SLOT) continue;
+
+            ids[i] = VehicleBusIdTable.getId(key);
+            types[i] = (byte) (VehicleBusIdTable.isExtended(key) ? VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED : VehicleBusConstants.CAN_FRAME_TYPE_STANDARD);
+            counts[i] = t.counts[slot];
+            long span = t.lastTimestamps[slot] - t.firstTimestamps[slot];
+            rates[i] = (span > 0 ? ((counts[i] - 1) * 1000.0f) / span : 0);
+            minGaps[i] = (t.minGaps[slot] == Long.MAX_VALUE ? 0 : t.minGaps[slot]);
+            maxGaps[i] = t.maxGaps[slot];
+            avgGaps[i] = t.avgGaps[slot];
+            jitters[i] = t.jitters[slot];
+            i++;
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putInt(VehicleBusConstants.STATS_EXTRA_COUNT, i);
+        bundle.putIntArray(VehicleBusConstants.STATS_EXTRA_IDS, Arrays.copyOf(ids, i));
+        bundle.putByteArray(VehicleBusConstants.STATS_EXTRA_TYPES, Arrays.copyOf(types, i));
+        bundle.putLongArray(VehicleBusConstants.STATS_EXTRA_FRAME_COUNTS, Arrays.copyOf(counts, i));
+        bundle.putFloatArray(VehicleBusConstants.STATS_EXTRA_RATES, Arrays.copyOf(rates, i));
+        bundle.putLongArray(VehicleBusConstants.STATS_EXTRA_MIN_GAPS, Arrays.copyOf(minGaps, i));
+        bundle.putLongArray(VehicleBusConstants.STATS_EXTRA_MAX_GAPS, Arrays.copyOf(maxGaps, i));
+        bundle.putFloatArray(VehicleBusConstants.STATS_EXTRA_AVG_GAPS, Arrays.copyOf(avgGaps, i));
+        bundle.putFloatArray(VehicleBusConstants.STATS_EXTRA_JITTERS, Arrays.copyOf(jitters, i));
+        bundle.putLong(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUSLOAD_BPS, getBusLoadBitsPerSecond(now));
+        bundle.putFloat(VehicleBusConstants.BROADCAST_EXTRA_STATUS_CAN_BUSLOAD_PERCENT, getBusLoadPercent(now, bitrate));
+        bundle.putLong(VehicleBusConstants.STATS_EXTRA_TOTAL_FRAMES, totalFrames);
+        return bundle;
+    } // snapshot()
+
+
+    ///////////////////////////////////////////////////////
+    // dump()
+    //  writes the statistics as a table (for dumpsys)
+    ///////////////////////////////////////////////////////
+    public void dump(PrintWriter writer, long now, int bitrate) {
+
+        writer.println(String.format(Locale.US, "Bus load: %d bps (%.1f%% of %d), %d frames, %d ids",
+                getBusLoadBitsPerSecond(now), getBusLoadPercent(now, bitrate), bitrate, totalFrames, getIdCount()));
+        writer.println("        id      count   rate/s  minGap  maxGap  avgGap  jitter");
+
+        Table t = table;
+        for (int slot = 0; slot < t.keys.length; slot++) {
+            int key = t.keys[slot];
+            if (key == VehicleBusIdTable.EMPTY_SLOT) continue;
+
+            // 11-bit ids are not zero-padded, so they can be told apart from 29-bit ones
+            String id = String.format(Locale.US, (VehicleBusIdTable.isExtended(key) ? "%08X" : "%8X"), VehicleBusIdTable.getId(key));
+            long count = t.counts[slot];
+            long span = t.lastTimestamps[slot] - t.firstTimestamps[slot];
+            float rate = (span > 0 ? ((count - 1) * 1000.0f) / span : 0);
+            long minGap = (t.minGaps[slot] == Long.MAX_VALUE ? 0 : t.minGaps[slot]);
+
+            writer.println(String.format(Locale.US, "  %s %10d %8.1f %7d %7d %7.1f %7.1f",
+                    id, count, rate, minGap, t.maxGaps[slot], t.avgGaps[slot], t.jitters[slot]));
+        }
+    } // dump()
+
+
+    ///////////////////////////////////////////////////////
+    // grow()
+    //  moves everything to a table twice the size
+    ///////////////////////////////////////////////////////
+    Table grow(Table old) {
+        Table t = new Table(old.keys.length * 2);
+
+        for (int i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] == VehicleBusIdTable.EMPTY_SLOT) continue;
+            int slot = t.find(old.keys[i]);
+            t.keys[slot] = old.keys[i];
+            t.counts[slot] = old.counts[i];
+            t.firstTimestamps[slot] = old.firstTimestamps[i];
+            t.lastTimestamps[slot] = old.lastTimestamps[i];
+            t.minGaps[slot] = old.minGaps[i];
+            t.maxGaps[slot] = old.maxGaps[i];
+            t.avgGaps[slot] = old.avgGaps[i];
+            t.jitters[slot] = old.jitters[i];
+            t.size++;
+        }
+
+        table = t;
+        Log.v(TAG, "Grew to " + t.keys.length + " slots for " + t.size + " ids");
+        return t;
+    } // grow()
+
+} // class VehicleBusTrafficStats
@@ -0,0 +1,194 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusTxCompletions:
+//  Collects what happened to each frame that was queued to send with a txId, and sends them to other
+//      applications in a single txcomplete broadcast (and to the clients bound through VehicleBusBinder)
+//  Each completion has the result and the times the frame was queued, taken by the write thread, and
+//      written, so the time spent waiting in the queue and the time spent in the write can be told apart.
+//  Completions are added by the write thread (and by whichever thread found the queue full). The write thread
+//      calls flushIfDue() on each pass and flush() before it parks, so nothing waits longer than MAX_MS
+//      while frames are being written, and nothing waits at all once the queue is empty.
+//  A full batch is sent by the next flushIfDue(), or by add() if it still has no room.
+//  Frames queued without a txId are not reported.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import android.content.Context;
+import android.content.Intent;
+
+
+public class VehicleBusTxCompletions {
+
+    private static final String TAG = "ATS-VBS-TxComplete"; // for logging
+
+    static final int MAX_COMPLETIONS = 64; // per broadcast
+    static final int MAX_MS = 20; // longest a completion waits to be sent while the write thread is busy
+
+    public static final int NO_TX_ID = 0; // frames with this txId are not reported
+
+    Context context;
+    String bus; // "CAN" or "J1708"
+    int canNumber; // the CAN port, or 0 for J1708
+    VehicleBusBinder binder; // bound clients that also receive each batch (may be null)
+
+    // the batch currently being collected
+    int count = 0;
+    int[] txIds = new int[MAX_COMPLETIONS];
+    byte[] results = new byte[MAX_COMPLETIONS];
+    long[] enqueueMicros = new long[MAX_COMPLETIONS];
+    long[] dequeueMicros = new long[MAX_COMPLETIONS];
+    long[] writeMicros = new long[MAX_COMPLETIONS];
+    long firstAddedNanos;
+
+    volatile boolean hasPending = false; // checked by the write thread without locking
+
+
+    public VehicleBusTxCompletions(Context context, String bus, int canNumber, VehicleBusBinder binder) {
+        this.context = context;
+        this.bus = bus;
+        this.canNumber = canNumber;
+        this.binder = binder;
+    }
+
+
+    // a batch taken out to be sent
+    static class Batch {
+        int count;
+        int[] txIds;
+        byte[] results;
+        long[] enqueueMicros, dequeueMicros, writeMicros;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // add()
+    //  records what happened to one frame, times are System.nanoTime() (0 if it never got that far)
+    ///////////////////////////////////////////////////////
+    public void add(int txId, int result, long enqueueNanos, long dequeueNanos, long writeNanos) {
+
+        if (txId == NO_TX_ID) return;
+
+        Batch full = null;
+        synchronized (this) {
+            if (count == MAX_COMPLETIONS) full = take(); // make room
+
+            if (count == 0) firstAddedNanos = System.nanoTime();
+
+            txIds[count] = txId;
+            results[count] = (byte) result;
+            enqueueMicros[count] = enqueueNanos / 1000;
+            dequeueMicros[count] = dequeueNanos / 1000;
+            writeMicros[count] = writeNanos / 1000;
+            count++;
+            hasPending = true;
+        }
+
+        if (full != null) send(full);
+    } // add()
+
+
+    ///////////////////////////////////////////////////////
+    // flushIfDue()
+    //  sends the batch if it is full or the first completion in it has waited MAX_MS
+    ///////////////////////////////////////////////////////
+    public void flushIfDue(long nowNanos) {
+        if (!hasPending) return;
+
+        Batch batch = null;
+        synchronized (this) {
+            if ((count == MAX_COMPLETIONS) || ((count > 0) && (nowNanos - firstAddedNanos >= MAX_MS * 1000000L))) {
+                batch = take();
+            }
+        }
+        if (batch != null) send(batch);
+    } // flushIfDue()
+
+
+    ///////////////////////////////////////////////////////
+    // flush()
+    //  sends everything in the batch now
+    ///////////////////////////////////////////////////////
+    public void flush() {
+        if (!hasPending) return;
+
+        Batch batch;
+        synchronized (this) {
+            if (count == 0) return;
+            batch = take();
+        }
+        send(batch);
+    } // flush()
+
+
+    ///////////////////////////////////////////////////////
+    // take()
+    //  copies out the batch and starts a new one, called with the lock held
+    ///////////////////////////////////////////////////////
+    Batch take() {
+        Batch batch = new Batch();
+        batch.count = count;
+        batch.txIds = copyOf(txIds, count);
+        batch.results = copyOf(results, count);
+        batch.enqueueMicros = copyOf(enqueueMicros, count);
+        batch.dequeueMicros = copyOf(dequeueMicros, count);
+        batch.writeMicros = copyOf(writeMicros, count);
+
+        count = 0;
+        hasPending = false;
+        return batch;
+    } // take()
+
+
+    ///////////////////////////////////////////////////////
+    // send()
+    //  sends a batch in a txcomplete broadcast and to bound clients
+    ///////////////////////////////////////////////////////
+    void send(Batch batch) {
+
+        Log.vv(TAG, bus + " " + batch.count + " TX completions");
+
+        Intent ibroadcast = new Intent();
+        ibroadcast.setAction(VehicleBusConstants.BROADCAST_TX_COMPLETE);
+
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_BUS, bus);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_COUNT, batch.count);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_IDS, batch.txIds);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_RESULTS, batch.results);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_ENQUEUE_TIMES, batch.enqueueMicros);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_DEQUEUE_TIMES, batch.dequeueMicros);
+        ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_WRITE_TIMES, batch.writeMicros);
+
+        context.sendBroadcast(ibroadcast);
+
+        if ((binder != null) && (binder.hasCallbacks())) {
+            binder.deliverTxComplete(bus, canNumber, batch.count, batch.txIds, batch.results,
+                    batch.enqueueMicros, batch.dequeueMicros, batch.writeMicros);
+        }
+    } // send()
+
+
+    static int[] copyOf(int[] a, int n) {
+        int[] copy = new int[n];
+        System.arraycopy(a, 0, copy, 0, n);
+        return copy;
+    }
+
+    static byte[] copyOf(byte[] a, int n) {
+        byte[] copy = new byte[n];
+        System.arraycopy(a, 0, copy, 0, n);
+        return copy;
+    }
+
+    static long[] copyOf(long[] a, int n) {
+        long[] copy = new long[n];
+        System.arraycopy(a, 0, copy, 0, n);
+        return copy;
+    }
+
+} // class VehicleBusTxCompletions
@@ -0,0 +1,395 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusTxQueue:
+//  Multi-producer/single-consumer queue that hands frames to be transmitted to a write thread
+//  Any thread (broadcast receivers, binder threads) may offer() frames without taking a lock,
+//      only the write thread may poll(). While the queue is empty the write thread is parked,
+//      and the first offer() wakes it, so an idle writer uses no CPU and a new frame is written right away.
+//  Linked nodes: producers swap themselves in as the tail, the consumer follows the next links from the head.
+//  Each frame is timestamped when it is offered, so the write thread can measure enqueue-to-write latency.
+//  A frame may also carry a txId: then what happens to it is reported through VehicleBusTxCompletions
+//      (by the write thread once written, or here if it is dropped, rejected or cleared).
+//  What happens to a frame offered while the queue is full depends on the overflow policy (OVERFLOW_*),
+//      and each policy has its own counter so callers can see what was lost.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class VehicleBusTxQueue<T> {
+
+    // Overflow policies
+    public static final int OVERFLOW_DROP_NEWEST = 0; // the new frame is not queued
+    public static final int OVERFLOW_DROP_OLDEST = 1; // the new frame is queued, the oldest frame still waiting is dropped
+    public static final int OVERFLOW_REJECT = 2; // the new frame is not queued, and the caller tells the sender (NACK broadcast)
+
+    // with OVERFLOW_DROP_OLDEST the oldest frames are dropped by the consumer,
+    //  so also stop accepting frames if the consumer is stuck and the queue reaches this many times its capacity
+    static final int DROP_OLDEST_HARD_LIMIT_FACTOR = 2;
+
+    static final class Node<T> {
+        T item;
+        long enqueueNanos;
+        int txId;
+        int batchLeft; // nodes of the same offerAll() batch that follow this one
+        volatile Node<T> next;
+
+        Node(T item, long enqueueNanos, int txId) {
+            this.item = item;
+            this.enqueueNanos = enqueueNanos;
+            this.txId = txId;
+        }
+    }
+
+    final int capacity;
+    final int overflowPolicy;
+    final VehicleBusTxCompletions completions; // may be null
+    final AtomicInteger count = new AtomicInteger(0);
+
+    // head is only used by the consumer and always points at an already consumed (or stub) node
+    Node<T> head;
+    final AtomicReference<Node<T>> tail;
+
+    // consumer parking
+    volatile Thread consumerThread;
+    volatile boolean consumerWaiting = false;
+
+    // statistics
+    final AtomicLong droppedNewestCount = new AtomicLong(0); // frames not queued because the queue was full
+    final AtomicLong rejectedCount = new AtomicLong(0); // same, with OVERFLOW_REJECT
+    volatile long droppedOldestCount = 0; // frames discarded to make room with OVERFLOW_DROP_OLDEST, only written by the consumer
+    volatile long writtenCount = 0; // only written by the consumer
+    volatile long latencyTotalNanos = 0;
+    volatile long latencyMaxNanos = 0;
+
+    // set by the consumer in poll()
+    long polledEnqueueNanos;
+    int polledTxId;
+    int polledBatchLeft;
+    Node<T> peekedNode; // set by peekBatchSize()
+
+
+    public VehicleBusTxQueue(int capacity) {
+        this(capacity, OVERFLOW_DROP_NEWEST, null);
+    }
+
+    public VehicleBusTxQueue(int capacity, int overflowPolicy, VehicleBusTxCompletions completions) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.completions = completions;
+        head = new Node<T>(null, 0, VehicleBusTxCompletions.NO_TX_ID);
+        tail = new AtomicReference<Node<T>>(head);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // offer()
+    //  called by any thread
+    //  returns false if the queue was full and the frame was dropped or rejected
+    ///////////////////////////////////////////////////////
+    public boolean offer(T item) {
+        return offer(item, VehicleBusTxCompletions.NO_TX_ID);
+    }
+
+    public boolean offer(T item, int txId) {
+
+        long now = System.nanoTime();
+
+        if (count.incrementAndGet() > getLimit()) {
+            count.decrementAndGet();
+            countRefused(1);
+            reportRefused(txId, now);
+            return false;
+        }
+
+        Node<T> node = new Node<T>(item, now, txId);
+        Node<T> previous = tail.getAndSet(node);
+        previous.next = node; // until this is set the consumer sees the queue as ending at previous
+
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+        return true;
+    } // offer()
+
+
+    ///////////////////////////////////////////////////////
+    // offerAll()
+    //  called by any thread
+    //  queues the first n items as one unit: either all of them are queued, back to back
+    //      with nothing from another producer in between, or none are (returns false if there is not room for all)
+    //  the consumer is woken once for the whole batch
+    //  txIds : the txId of each item, or null
+    ///////////////////////////////////////////////////////
+    public boolean offerAll(T[] items, int n) {
+        return offerAll(items, n, null);
+    }
+
+    public boolean offerAll(T[] items, int n, int[] txIds) {
+
+        if (n <= 0) return true;
+
+        long now = System.nanoTime();
+
+        if ((n > capacity) || (count.addAndGet(n) > getLimit())) {
+            // (a batch larger than the capacity would never fit, even if everything else was dropped)
+            if (n <= capacity) count.addAndGet(-n);
+            countRefused(n);
+            if (txIds != null) {
+                for (int i = 0; i < n; i++) {
+                    reportRefused(txIds[i], now);
+                }
+            }
+            return false;
+        }
+
+        // link the batch privately, then swap the whole chain in with a single exchange
+        Node<T> first = new Node<T>(items[0], now, (txIds != null ? txIds[0] : VehicleBusTxCompletions.NO_TX_ID));
+        first.batchLeft = n - 1;
+        Node<T> last = first;
+        for (int i = 1; i < n; i++) {
+            Node<T> node = new Node<T>(items[i], now, (txIds != null ? txIds[i] : VehicleBusTxCompletions.NO_TX_ID));
+            node.batchLeft = n - 1 - i;
+            last.next = node;
+            last = node;
+        }
+
+        Node<T> previous = tail.getAndSet(last);
+        previous.next = first;
+
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+        return true;
+    } // offerAll()
+
+
+    ///////////////////////////////////////////////////////
+    // poll()
+    //  called by the consumer (write thread) only
+    //  returns the next frame (and sets polledEnqueueNanos, polledTxId and polledBatchLeft), or null if the queue is empty
+    //  after peekBatchSize() this is always the frame that was peeked
+    ///////////////////////////////////////////////////////
+    public T poll() {
+
+        if ((peekedNode == null) || (peekedNode != head.next)) {
+            dropOldest();
+        }
+        peekedNode = null;
+
+        Node<T> next = head.next;
+        if (next == null) return null;
+
+        T item = next.item;
+        next.item = null; // next becomes the new stub, don't hold on to the frame
+        polledEnqueueNanos = next.enqueueNanos;
+        polledTxId = next.txId;
+        polledBatchLeft = next.batchLeft;
+        head = next;
+        count.decrementAndGet();
+
+        return item;
+    } // poll()
+
+
+    ///////////////////////////////////////////////////////
+    // peekBatchSize()
+    //  called by the consumer (write thread) only
+    //  returns how many frames are left of the batch the next frame belongs to
+    //      (1 if it was not offered in a batch), or 0 if the queue is empty
+    ///////////////////////////////////////////////////////
+    public int peekBatchSize() {
+        dropOldest();
+        peekedNode = head.next;
+        if (peekedNode == null) return 0;
+        return peekedNode.batchLeft + 1;
+    } // peekBatchSize()
+
+
+    ///////////////////////////////////////////////////////
+    // dropOldest()
+    //  called by the consumer (write thread) only
+    //  with OVERFLOW_DROP_OLDEST, discards the oldest frames until no more than capacity are waiting
+    ///////////////////////////////////////////////////////
+    void dropOldest() {
+
+        if (overflowPolicy != OVERFLOW_DROP_OLDEST) return;
+
+        Node<T> next;
+        while ((count.get() > capacity) && ((next = head.next) != null)) {
+            next.item = null;
+            head = next;
+            count.decrementAndGet();
+            droppedOldestCount++;
+            report(next.txId, VehicleBusConstants.TX_RESULT_DROPPED_OLDEST, next.enqueueNanos);
+        }
+    } // dropOldest()
+
+
+    ///////////////////////////////////////////////////////
+    // getLimit()
+    //  the number of frames at which offer() stops accepting new ones
+    ///////////////////////////////////////////////////////
+    int getLimit() {
+        if (overflowPolicy == OVERFLOW_DROP_OLDEST) return capacity * DROP_OLDEST_HARD_LIMIT_FACTOR;
+        return capacity;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // countRefused()
+    //  counts frames that offer() or offerAll() did not queue
+    ///////////////////////////////////////////////////////
+    void countRefused(int n) {
+        if (overflowPolicy == OVERFLOW_REJECT) {
+            rejectedCount.addAndGet(n);
+        } else {
+            droppedNewestCount.addAndGet(n);
+        }
+    }
+
+    void reportRefused(int txId, long enqueueNanos) {
+        report(txId, (overflowPolicy == OVERFLOW_REJECT ? VehicleBusConstants.TX_RESULT_REJECTED : VehicleBusConstants.TX_RESULT_DROPPED), enqueueNanos);
+    }
+
+    // reports a frame that was never taken by the write thread
+    void report(int txId, int result, long enqueueNanos) {
+        if ((completions != null) && (txId != VehicleBusTxCompletions.NO_TX_ID)) {
+            completions.add(txId, result, enqueueNanos, 0, 0);
+        }
+    }
+
+
+    // when the frame returned by the last poll() was offered
+    public long getPolledEnqueueNanos() {
+        return polledEnqueueNanos;
+    }
+
+    // the txId of the frame returned by the last poll()
+    public int getPolledTxId() {
+        return polledTxId;
+    }
+
+    // how many frames of its batch follow the frame returned by the last poll()
+    public int getPolledBatchLeft() {
+        return polledBatchLeft;
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // await()
+    //  called by the consumer (write thread) only
+    //  parks until a frame is offered or the timeout expires
+    ///////////////////////////////////////////////////////
+    public void await(long timeoutNanos) {
+
+        consumerThread = Thread.currentThread();
+        consumerWaiting = true;
+
+        // re-check after announcing that we are waiting so we can't miss an unpark
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+
+        consumerWaiting = false;
+    } // await()
+
+
+    ///////////////////////////////////////////////////////
+    // wakeConsumer()
+    //  lets a parked consumer notice that it was cancelled
+    ///////////////////////////////////////////////////////
+    public void wakeConsumer() {
+        Thread thread = consumerThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // recordWritten()
+    //  called by the consumer (write thread) only, after the frame from the last poll() was written
+    ///////////////////////////////////////////////////////
+    public void recordWritten() {
+        recordWritten(polledEnqueueNanos);
+    }
+
+    // for a consumer that re-orders polled frames before writing them (see VehicleBusTxScheduler)
+    public void recordWritten(long enqueueNanos) {
+        long latency = System.nanoTime() - enqueueNanos;
+
+        writtenCount++;
+        latencyTotalNanos += latency;
+        if (latency > latencyMaxNanos) latencyMaxNanos = latency;
+    } // recordWritten()
+
+
+    ///////////////////////////////////////////////////////
+    // clear()
+    //  called by the consumer (write thread) only
+    //  discards everything waiting to be sent
+    ///////////////////////////////////////////////////////
+    public void clear() {
+        peekedNode = null;
+        Node<T> next;
+        while ((next = head.next) != null) {
+            next.item = null;
+            head = next;
+            count.decrementAndGet();
+            report(next.txId, VehicleBusConstants.TX_RESULT_ABORTED, next.enqueueNanos);
+        }
+    }
+
+
+    public boolean isEmpty() {
+        return (head.next == null);
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getDroppedNewestCount() {
+        return droppedNewestCount.get();
+    }
+
+    public long getDroppedOldestCount() {
+        return droppedOldestCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    // average time from offer() until the frame was written, since the queue was created
+    public long getLatencyAvgMicros() {
+        long written = writtenCount;
+        if (written == 0) return 0;
+        return (latencyTotalNanos / written) / 1000;
+    }
+
+    public long getLatencyMaxMicros() {
+        return latencyMaxNanos / 1000;
+    }
+
+} // class VehicleBusTxQueue
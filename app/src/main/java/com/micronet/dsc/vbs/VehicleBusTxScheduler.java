@@ -0,0 +1,241 @@
+/*
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE.txt', which is part of this source code package.
+ */
+
+/////////////////////////////////////////////////////////////
+// VehicleBusTxScheduler:
+//  Orders CAN frames waiting to be written the way the bus would arbitrate them
+//  Only used by the CAN write thread: it moves everything offered to its VehicleBusTxQueue in here
+//      and always writes the frame at the top, so a high-priority frame never waits behind
+//      a low-priority frame that happened to be queued first.
+//  Binary min-heap keyed by (deadline tick, arbitration key, sequence):
+//      deadline tick  = the ms the frame was queued + AGING_MS_PER_PRIORITY for each priority level
+//                      (J1939 priority bits of an extended id, top 3 bits of a standard id).
+//                      A waiting frame keeps its deadline while newer frames get later ones,
+//                      so a low-priority frame is delayed at most 7 * AGING_MS_PER_PRIORITY ms by newer frames.
+//      arbitration key = the order the CAN controller arbitrates: base id first, a standard frame before
+//                      an extended frame with the same base id, then the extended bits.
+//      sequence       = queue order, so frames with the same id (e.g. transport data) stay in order.
+//  A TX batch (VehicleBusTxQueue.offerAll()) is scheduled as one unit: every member takes the key of the first one,
+//      so the members leave in queue order, and once the first is written nothing else is written until the last one is.
+/////////////////////////////////////////////////////////////
+
+package com.micronet.dsc.vbs;
+
+
+public class VehicleBusTxScheduler {
+
+    static final long AGING_MS_PER_PRIORITY = 2; // ms a frame may be overtaken per priority level
+
+    static final long NANOS_PER_MS = 1000000L;
+
+    final VehicleBusWrapper.CANFrame[] frames;
+    final long[] enqueueNanos;
+    final long[] keys; // deadline tick and arbitration key, see makeKey()
+    final long[] sequences;
+    final int[] txIds;
+    final int[] batchLefts; // members of the same batch that follow this frame
+
+    int count = 0;
+    long nextSequence = 0;
+
+    int addingBatchLeft = 0; // members still to be added to the batch being added
+    long addingBatchKey;
+    int removingBatchLeft = 0; // members still to be written of the batch being written
+    long removingBatchKey;
+
+
+    public VehicleBusTxScheduler(int capacity) {
+        frames = new VehicleBusWrapper.CANFrame[capacity];
+        enqueueNanos = new long[capacity];
+        keys = new long[capacity];
+        sequences = new long[capacity];
+        txIds = new int[capacity];
+        batchLefts = new int[capacity];
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // getArbitrationKey()
+    //  lower keys win arbitration on the bus
+    ///////////////////////////////////////////////////////
+    static int getArbitrationKey(int id, boolean isExtended) {
+        if (isExtended) {
+            // base id (top 11 bits of the 29), then the recessive SRR/IDE bit, then the extension (18 bits)
+            return (((id >> 18) & 0x7FF) << 19) | (1 << 18) | (id & 0x3FFFF);
+        }
+        return (id & 0x7FF) << 19;
+    } // getArbitrationKey()
+
+
+    ///////////////////////////////////////////////////////
+    // getPriority()
+    //  0 (highest) to 7 (lowest)
+    ///////////////////////////////////////////////////////
+    static int getPriority(int id, boolean isExtended) {
+        if (isExtended) return (id >> 26) & 0x07; // J1939 priority bits
+        return (id >> 8) & 0x07;
+    } // getPriority()
+
+
+    ///////////////////////////////////////////////////////
+    // makeKey()
+    //  deadline tick in the upper bits, arbitration key (30 bits) in the lower bits
+    //  The tick wraps around (every 2^34 ms of System.nanoTime()), so keys are only ever compared by
+    //      subtraction (isBefore()), which is right as long as the frames waiting were queued less than 99 days apart.
+    ///////////////////////////////////////////////////////
+    static long makeKey(int id, boolean isExtended, long enqueueNanos) {
+        long deadlineTick = (enqueueNanos / NANOS_PER_MS) + (getPriority(id, isExtended) * AGING_MS_PER_PRIORITY);
+        return (deadlineTick << 30) | getArbitrationKey(id, isExtended);
+    } // makeKey()
+
+
+    ///////////////////////////////////////////////////////
+    // add()
+    //  returns false if there is no room (caller should write something first)
+    //  batchLeft : how many members of the same batch follow this frame (0 if not part of a batch)
+    //      the members must be added one after the other with nothing else in between, so make sure
+    //      there is room for the whole batch (getRoom()) before adding the first one
+    ///////////////////////////////////////////////////////
+    public boolean add(VehicleBusWrapper.CANFrame frame, long frameEnqueueNanos) {
+        return add(frame, frameEnqueueNanos, VehicleBusTxCompletions.NO_TX_ID, 0);
+    }
+
+    public boolean add(VehicleBusWrapper.CANFrame frame, long frameEnqueueNanos, int txId) {
+        return add(frame, frameEnqueueNanos, txId, 0);
+    }
+
+    public boolean add(VehicleBusWrapper.CANFrame frame, long frameEnqueueNanos, int txId, int batchLeft) {
+
+        if (count == frames.length) return false;
+
+        long key;
+        if (addingBatchLeft > 0) {
+            // the next member of the batch being added
+            key = addingBatchKey;
+        } else {
+            boolean isExtended = (VehicleBusWrapper.CANFrameType.downcast(frame.getType()) == VehicleBusWrapper.CANFrameType.EXTENDED);
+            key = makeKey(frame.getId(), isExtended, frameEnqueueNanos);
+            // nothing may overtake the rest of a batch that is already being written
+            if ((removingBatchLeft > 0) && (key - removingBatchKey < 0)) key = removingBatchKey;
+            addingBatchKey = key;
+        }
+        addingBatchLeft = batchLeft;
+
+        int i = count++;
+        frames[i] = frame;
+        enqueueNanos[i] = frameEnqueueNanos;
+        keys[i] = key;
+        sequences[i] = nextSequence++;
+        txIds[i] = txId;
+        batchLefts[i] = batchLeft;
+
+        // sift up
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (!isBefore(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+        return true;
+    } // add()
+
+
+    ///////////////////////////////////////////////////////
+    // peekEnqueueNanos()
+    //  when the frame that remove() would return was queued
+    ///////////////////////////////////////////////////////
+    public long peekEnqueueNanos() {
+        return enqueueNanos[0];
+    }
+
+    // the txId of the frame that remove() would return
+    public int peekTxId() {
+        return txIds[0];
+    }
+
+
+    ///////////////////////////////////////////////////////
+    // remove()
+    //  returns the frame that should be written next, or null if empty
+    ///////////////////////////////////////////////////////
+    public VehicleBusWrapper.CANFrame remove() {
+
+        if (count == 0) return null;
+
+        VehicleBusWrapper.CANFrame frame = frames[0];
+
+        // the rest of its batch (if any) has the same key and the next sequences, so it is next at the top
+        removingBatchLeft = batchLefts[0];
+        removingBatchKey = keys[0];
+
+        count--;
+        if (count > 0) {
+            swap(0, count);
+        }
+        frames[count] = null;
+
+        // sift down
+        int i = 0;
+        while (true) {
+            int left = (i << 1) + 1;
+            if (left >= count) break;
+            int child = left;
+            if ((left + 1 < count) && (isBefore(left + 1, left))) child = left + 1;
+            if (!isBefore(child, i)) break;
+            swap(i, child);
+            i = child;
+        }
+
+        return frame;
+    } // remove()
+
+
+    ///////////////////////////////////////////////////////
+    // clear()
+    //  discards everything waiting to be written
+    ///////////////////////////////////////////////////////
+    public void clear() {
+        while (count > 0) {
+            frames[--count] = null;
+        }
+        addingBatchLeft = 0;
+        removingBatchLeft = 0;
+    }
+
+
+    public boolean isEmpty() {
+        return (count == 0);
+    }
+
+    public boolean isFull() {
+        return (count == frames.length);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // how many more frames can be added
+    public int getRoom() {
+        return frames.length - count;
+    }
+
+
+    boolean isBefore(int a, int b) {
+        long diff = keys[a] - keys[b]; // not keys[a] < keys[b], see makeKey()
+        if (diff != 0) return (diff < 0);
+        return (sequences[a] < sequences[b]);
+    }
+
+    void swap(int a, int b) {
+        VehicleBusWrapper.CANFrame f = frames[a]; frames[a] = frames[b]; frames[b] = f;
+        long t = enqueueNanos[a]; enqueueNanos[a] = enqueueNanos[b]; enqueueNanos[b] = t;
+        long k = keys[a]; keys[a] = keys[b]; keys[b] = k;
+        long s = sequences[a]; sequences[a] = sequences[b]; sequences[b] = s;
+        int x = txIds[a]; txIds[a] = txIds[b]; txIds[b] = x;
+        x = batchLefts[a]; batchLefts[a] = batchLefts[b]; batchLefts[b] = x;
+    }
+
+} // class VehicleBusTxScheduler
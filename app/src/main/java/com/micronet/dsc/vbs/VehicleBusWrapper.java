@@ -6,14 +6,23 @@
 /////////////////////////////////////////////////////////////
 // VehicleBusWrapper:
 //  1) Extension: provides extra methods that can are used by both J1708 and CAN sub-classes
-//  2) Resource Sharing: allows setup of the singleton interfaces and sockets needed for joint access to can library by CAN and J1708
+//  2) Resource Sharing: allows setup of the interfaces and sockets needed for joint access to can library by CAN and J1708
+//      there is one wrapper for each CAN port, so each port has its own interface and socket.
+//      J1708 shares the wrapper of the default CAN port.
 //  3) Normalization: Provides intermediate layer for access to library so no other classes call library methods directly.
+//  4) Control: setting up and tearing down the interface blocks in the library (for seconds at times), so start(), stop(),
+//      restart() and the characteristics are queued to a control thread of the port and done there in order.
+//      The interface goes through the states CLOSED -> CREATING -> LISTEN or NORMAL -> CLOSING -> CLOSED,
+//      each change is timestamped, logged and sent in a canbusstate broadcast.
 /////////////////////////////////////////////////////////////
 
 package com.micronet.dsc.vbs;
 
+import android.content.Intent;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -27,18 +36,25 @@ import static com.micronet.dsc.vbs.VehicleBusService.service;
 public class VehicleBusWrapper extends VehicleBusHW {
     public static final String TAG = "ATS-VBS-Wrap";
 
-    static int canNumber;
+    final int canNumber; // the CAN port of this wrapper
     static boolean isUnitTesting = true; // we don't actually open sockets when unit testing
 
 
-    // Singleton methods: makes this class a singleton
-    private static VehicleBusWrapper instance = null;
-    private VehicleBusWrapper() {}
+    // Singleton methods: makes this class a singleton for each CAN port
+    private static VehicleBusWrapper[] instances = new VehicleBusWrapper[VehicleBusCAN.MAX_CAN_PORTS];
+    private VehicleBusWrapper(int canNumber) {
+        this.canNumber = canNumber;
+        busSetupRunnable = new BusSetupRunnable();
+    }
     public static VehicleBusWrapper getInstance() {
-        if(instance == null) {
-            instance = new VehicleBusWrapper();
+        return getInstance(VehicleBusCAN.DEFAULT_CAN_NUMBER);
+    }
+    public static synchronized VehicleBusWrapper getInstance(int canNumber) {
+        int index = VehicleBusCAN.getPortIndex(canNumber);
+        if(instances[index] == null) {
+            instances[index] = new VehicleBusWrapper(canNumber);
         }
-        return instance;
+        return instances[index];
     }
 
 
@@ -50,6 +66,23 @@ public class VehicleBusWrapper extends VehicleBusHW {
     // basic handler for posting
     Handler callbackHandler = new Handler(Looper.getMainLooper());
 
+    // handler of the control thread, where the interface is set up and torn down (created when first needed)
+    HandlerThread controlThread;
+    Handler controlHandler;
+
+
+    // state of the interface, only changed on the control thread
+    static final String[] BUS_STATE_NAMES = {"CLOSED", "CREATING", "LISTEN", "NORMAL", "CLOSING"};
+    static final int STATE_HISTORY_SIZE = 16; // transitions remembered for the dump
+
+    volatile int busState = VehicleBusConstants.CAN_BUS_STATE_CLOSED;
+    volatile long busStateRealtime = 0; // when busState was entered
+    volatile boolean setupFailed = false; // the last setup() could not open the interface, so busState is CLOSED
+    final int[] stateHistory = new int[STATE_HISTORY_SIZE];
+    final long[] stateHistoryRealtimes = new long[STATE_HISTORY_SIZE];
+    final boolean[] stateHistoryFailed = new boolean[STATE_HISTORY_SIZE];
+    int stateHistoryCount = 0; // total transitions, the last STATE_HISTORY_SIZE are in the arrays
+
 
     // We need a list of which bus types are currently actively used.
     //  We'll shut down the socket when nobody needs it.
@@ -73,7 +106,24 @@ public class VehicleBusWrapper extends VehicleBusHW {
 
 
     // Create a new class for thread where startup/shutdown work will be performed
-    BusSetupRunnable busSetupRunnable = new BusSetupRunnable();
+    BusSetupRunnable busSetupRunnable;
+
+
+    // After removing an interface, the next one is not created until this long after the removal
+    //  (creating it sooner can lose the filters). This is a minimum interval, not a fixed sleep: any time already
+    //  spent since the teardown (like waiting for the read/write threads to exit) counts towards it.
+    static final int RECREATE_SETTLE_MS = 500;
+
+
+    // Measurements of the last reconfigurations (bitrate/mode changes and restarts) of this port
+    volatile long reconfigureStartedRealtime = 0; // when the last one started (0 = never)
+    volatile int reconfigureCount = 0;
+    volatile int reconfigureInPlaceCount = 0; // how many of them kept the interface and socket
+    volatile boolean lastReconfigureInPlace = false;
+    volatile int lastReconfigureMs = -1; // from the start until the socket was ready again (-1 = not done yet)
+    volatile int maxReconfigureMs = 0;
+
+    volatile boolean filterReconfigureFailed = false; // the library refused to change the filters in place
 
 
 
@@ -107,11 +157,17 @@ public class VehicleBusWrapper extends VehicleBusHW {
     //////////////////////////////////////////////////
     // setCharacteristics()
     //  set details for the CAN, call this before starting a CAN bus
+    //  the CAN port is always the port of this wrapper
     //////////////////////////////////////////////////
-    public boolean setCharacteristics(boolean listen_only, int bitrate, CANHardwareFilter[] hwFilters, int canNumber, ArrayList<VehicleBusHW.CANFlowControl> flowControls) { // Todo: Should I include canNumber in here? since I
+    public boolean setCharacteristics(final boolean listen_only, final int bitrate, final CANHardwareFilter[] hwFilters, final ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
 
         // will take effect on the next bus stop/start cycle
-        busSetupRunnable.setCharacteristics(listen_only, bitrate, hwFilters, canNumber, flowControls);
+        runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                busSetupRunnable.setCharacteristics(listen_only, bitrate, hwFilters, flowControls);
+            }
+        });
         return true;
     } // setCharacteristics()
 
@@ -123,7 +179,12 @@ public class VehicleBusWrapper extends VehicleBusHW {
     public boolean setNormalMode() {
 
         // will take effect on the next bus stop/start cycle
-        busSetupRunnable.setNormalMode();
+        runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                busSetupRunnable.setNormalMode();
+            }
+        });
         return true;
     } // setCharacteristics()
 
@@ -132,8 +193,9 @@ public class VehicleBusWrapper extends VehicleBusHW {
     // start()
     //   startup a bus
     //   name: either "J1708" or "CAN"
+    //  queued to the control thread, readyCallback is posted once the socket is ready
     //////////////////////////////////////////////////
-    public boolean start(String name, Runnable readyCallback, Runnable terminatedCallback) {
+    public boolean start(final String name, final Runnable readyCallback, final Runnable terminatedCallback) {
 
 
         if (isUnitTesting) {
@@ -149,6 +211,22 @@ public class VehicleBusWrapper extends VehicleBusHW {
             return false;
         }
 
+        runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                doStart(name, readyCallback, terminatedCallback);
+            }
+        });
+        return true;
+    } // start()
+
+
+    //////////////////////////////////////////////////
+    // doStart()
+    //  start(), on the control thread
+    //////////////////////////////////////////////////
+    boolean doStart(String name, Runnable readyCallback, Runnable terminatedCallback) {
+
         if (!instanceNames.isEmpty()) {
             if (instanceNames.contains(name)) {
                 //Log.d(TAG, "" + name + " previously started. Start Ignored -- must stop first.");
@@ -157,7 +235,7 @@ public class VehicleBusWrapper extends VehicleBusHW {
         }
 
 
-        Log.d(TAG, "Starting for " + name);
+        Log.d(TAG, "Starting for " + name + " on CAN" + (canNumber - 1));
         // If we are ready, then just call back, otherwise start the thread.
 
 
@@ -196,22 +274,29 @@ public class VehicleBusWrapper extends VehicleBusHW {
             }
         }
 
+        // the interface may only just have been removed
+        waitSettled();
+
         // since we haven't already, we should set-up now
         if (!busSetupRunnable.setup()) {
+            // setup() told the main thread to stop the port, this start never happened
+            instanceNames.remove(name);
+            removeInstanceCallbacks(name);
             return false;
         }
 
 
         return true;
-    } // start()
+    } // doStart()
 
 
     //////////////////////////////////////////////////
     // stop()
     //  stop a bus
     //   name: either "J1708" or "CAN"
+    //  queued to the control thread
     //////////////////////////////////////////////////
-    public void stop(String name) {
+    public void stop(final String name) {
 
 
         if (isUnitTesting) {
@@ -221,13 +306,27 @@ public class VehicleBusWrapper extends VehicleBusHW {
             return;
         }
 
+        runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                doStop(name);
+            }
+        });
+    } // stop()
+
+
+    //////////////////////////////////////////////////
+    // doStop()
+    //  stop(), on the control thread
+    //////////////////////////////////////////////////
+    void doStop(String name) {
 
         if (!instanceNames.contains(name)) {
             //Log.d(TAG, "" + name + " never started. Stop ignored -- must start first");
             return;
         }
 
-        Log.d(TAG, "Stopping for " + name);
+        Log.d(TAG, "Stopping for " + name + " on CAN" + (canNumber - 1));
 
         // remove from list of active buses and remove all callbacks for the bus
         instanceNames.remove(name);
@@ -250,7 +349,7 @@ public class VehicleBusWrapper extends VehicleBusHW {
 
         }
 
-    } // stop()
+    } // doStop()
 
 
     //////////////////////////////////////////////////
@@ -259,16 +358,21 @@ public class VehicleBusWrapper extends VehicleBusHW {
     //      b/c this will prevent re-formation of any buses that you are not explicitly stopping in the regular stop() call
     //////////////////////////////////////////////////
     public void stopAll() {
-        Log.d(TAG, "Stopping All buses");
+        runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Stopping All buses on CAN" + (canNumber - 1));
 
 
-        // remove from list of active buses and remove all callbacks
-        instanceNames.clear();
-        clearInstanceCallbacks();
+                // remove from list of active buses and remove all callbacks
+                instanceNames.clear();
+                clearInstanceCallbacks();
 
-        // teardown the socket & interface
-        if (busSetupRunnable != null)
-            busSetupRunnable.teardown();
+                // teardown the socket & interface
+                if (busSetupRunnable != null)
+                    busSetupRunnable.teardown();
+            }
+        });
     }
 
     //////////////////////////////////////////////////
@@ -276,11 +380,14 @@ public class VehicleBusWrapper extends VehicleBusHW {
     //  restarts the buses
     //  used for changing the speed or mode of CAN without having to start/stop J1708 twice (once to remove CAN and once to re-add CAN)
     //      using this call, J1708 is only restarted once when CAN is changed.
+    //  If only the bitrate or filters changed, the interface is reconfigured in place and the socket stays open,
+    //      so the read/write threads keep going and nothing is torn down.
     //   name: "CAN"
+    //  queued to the control thread
     //////////////////////////////////////////////////
-    public boolean restart(String replaceCallbacksName,
-                           Runnable newReadyCallback,
-                           Runnable newTerminatedCallback) {
+    public boolean restart(final String replaceCallbacksName,
+                           final Runnable newReadyCallback,
+                           final Runnable newTerminatedCallback) {
 
         if (isUnitTesting) {
             // since we are unit testing and not on real device, even creating the CanbusInterface will fail fatally,
@@ -294,7 +401,27 @@ public class VehicleBusWrapper extends VehicleBusHW {
             return false;
         }
 
-        Log.d(TAG, "Restarting buses");
+        beginReconfigure();
+
+        runOnControlThread(new Runnable() {
+            @Override
+            public void run() {
+                doRestart(replaceCallbacksName, newReadyCallback, newTerminatedCallback);
+            }
+        });
+        return true;
+    } // restart()
+
+
+    //////////////////////////////////////////////////
+    // doRestart()
+    //  restart(), on the control thread
+    //////////////////////////////////////////////////
+    void doRestart(String replaceCallbacksName,
+                   Runnable newReadyCallback,
+                   Runnable newTerminatedCallback) {
+
+        Log.d(TAG, "Restarting buses on CAN" + (canNumber - 1));
 
         // If we are ready, then just call back, otherwise start the thread.
 
@@ -304,27 +431,205 @@ public class VehicleBusWrapper extends VehicleBusHW {
         }
 
 
+        if (busSetupRunnable.reconfigure()) {
+            // the socket never went away, so only new callbacks need to be told that it is ready
+            if ((replaceCallbacksName != null) && (newReadyCallback != null)) {
+                callbackHandler.post(newReadyCallback);
+            }
+            endReconfigure(true);
+            return;
+        }
+
         // we must teardown and restart the interface
 
-        if (busSetupRunnable != null)
-            busSetupRunnable.teardown();
+        busSetupRunnable.teardown();
+
+        waitSettled();
+
+        busSetupRunnable.setup(); // this will also call callback array
+
+    } // doRestart()
+
+
+    //////////////////////////////////////////////////
+    // canReconfigureFilters()
+    //  can the hardware filters of this port be changed without re-creating the interface?
+    //////////////////////////////////////////////////
+    public boolean canReconfigureFilters() {
+        return (isReconfigureSupported()) && (!filterReconfigureFailed);
+    } // canReconfigureFilters()
+
+
+    //////////////////////////////////////////////////
+    // reconfigureFilters()
+    //  changes the hardware filters, in place if the interface is set up, only call this on the control thread
+    //  returns false if the interface is set up but could not be changed (the filters are still used at its next setup)
+    //////////////////////////////////////////////////
+    boolean reconfigureFilters(CANHardwareFilter[] hwFilters) {
+        busSetupRunnable.hardwareFilters = hwFilters;
+        if (!busSetupRunnable.isSetup()) return true; // taken when it is set up
+
+        if (!busSetupRunnable.reconfigure()) {
+            filterReconfigureFailed = true;
+            return false;
+        }
+        return true;
+    } // reconfigureFilters()
+
+
+    //////////////////////////////////////////////////
+    // doRecreate()
+    //  re-creates the interface with these hardware filters without trying to change it in place first,
+    //  only call this on the control thread
+    //////////////////////////////////////////////////
+    void doRecreate(CANHardwareFilter[] hwFilters) {
+
+        Log.d(TAG, "Re-creating interface of CAN" + (canNumber - 1));
+
+        beginReconfigure();
+        busSetupRunnable.hardwareFilters = hwFilters;
+        busSetupRunnable.teardown();
+
+        waitSettled();
+
+        busSetupRunnable.setup(); // this will also call callback array
+
+    } // doRecreate()
+
+
+    //////////////////////////////////////////////////
+    // getWideFilters()
+    //  hardware filters that pass every frame, for when filtering is done in software
+    //////////////////////////////////////////////////
+    static CANHardwareFilter[] getWideFilters() {
+        CANHardwareFilter[] filters = new CANHardwareFilter[2];
+        filters[0] = new CANHardwareFilter(0, 0, CANFrameType.EXTENDED);
+        filters[1] = new CANHardwareFilter(0, 0, CANFrameType.STANDARD);
+        return filters;
+    } // getWideFilters()
+
 
-        // Sleep to avoid filter dropping issue.
+    //////////////////////////////////////////////////
+    // runOnControlThread()
+    //  queues a task to the control thread of this port, tasks are done in the order they were queued
+    //////////////////////////////////////////////////
+    public void runOnControlThread(Runnable task) {
+        Handler handler;
+        synchronized (this) {
+            if (controlHandler == null) {
+                controlThread = new HandlerThread("CAN" + (canNumber - 1) + "-Control");
+                controlThread.start();
+                controlHandler = new Handler(controlThread.getLooper());
+            }
+            handler = controlHandler;
+        }
+        handler.post(task);
+    } // runOnControlThread()
+
+
+    //////////////////////////////////////////////////
+    // setBusState()
+    //  records a change of state of the interface, on the control thread
+    //////////////////////////////////////////////////
+    void setBusState(int newState) {
+        if (newState == busState) return;
+
+        long now = SystemClock.elapsedRealtime();
+        Log.d(TAG, "CAN" + (canNumber - 1) + " " + BUS_STATE_NAMES[busState] + " -> " + BUS_STATE_NAMES[newState] +
+                (busStateRealtime == 0 ? "" : " after " + (now - busStateRealtime) + " ms") +
+                (setupFailed ? " (setup failed)" : ""));
+
+        synchronized (stateHistory) {
+            stateHistory[stateHistoryCount % STATE_HISTORY_SIZE] = newState;
+            stateHistoryRealtimes[stateHistoryCount % STATE_HISTORY_SIZE] = now;
+            stateHistoryFailed[stateHistoryCount % STATE_HISTORY_SIZE] = setupFailed;
+            stateHistoryCount++;
+        }
+        busStateRealtime = now;
+        busState = newState;
+
+        if (service != null) {
+            Intent ibroadcast = new Intent();
+            ibroadcast.setAction(VehicleBusConstants.BROADCAST_CAN_BUS_STATE);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, canNumber);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BUS_STATE, newState);
+            ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_TIMESTAMP, now);
+            if (newState == VehicleBusConstants.CAN_BUS_STATE_CLOSED) {
+                ibroadcast.putExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BUS_SETUP_FAILED, setupFailed);
+            }
+            service.getApplicationContext().sendBroadcast(ibroadcast);
+        }
+    } // setBusState()
+
+
+    //////////////////////////////////////////////////
+    // getStateHistory()
+    //  the last state changes of the interface, oldest first, for the dump
+    //////////////////////////////////////////////////
+    public String getStateHistory() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (stateHistory) {
+            int first = Math.max(0, stateHistoryCount - STATE_HISTORY_SIZE);
+            for (int i = first; i < stateHistoryCount; i++) {
+                if (sb.length() > 0) sb.append(", ");
+                sb.append(BUS_STATE_NAMES[stateHistory[i % STATE_HISTORY_SIZE]]);
+                if (stateHistoryFailed[i % STATE_HISTORY_SIZE]) sb.append(" (setup failed)");
+                sb.append(" @ ").append(stateHistoryRealtimes[i % STATE_HISTORY_SIZE]);
+            }
+        }
+        return sb.toString();
+    } // getStateHistory()
+
+
+
+    //////////////////////////////////////////////////
+    // waitSettled()
+    //  waits until RECREATE_SETTLE_MS have passed since the interface was removed, call before creating it again
+    //  only call this on the control thread
+    //////////////////////////////////////////////////
+    void waitSettled() {
+        if (busSetupRunnable == null) return;
+
+        long wait = busSetupRunnable.teardownRealtime + RECREATE_SETTLE_MS - SystemClock.elapsedRealtime();
+        if ((busSetupRunnable.teardownRealtime == 0) || (wait <= 0)) return;
+
+        Log.v(TAG, "Waiting " + wait + " ms after teardown of CAN" + (canNumber - 1));
         try {
-            Thread.sleep(500);
+            Thread.sleep(wait);
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+    } // waitSettled()
 
-        if (busSetupRunnable != null) {
-            busSetupRunnable.setup(); // this will also call callback array
-        }
 
+    //////////////////////////////////////////////////
+    // beginReconfigure()
+    //  marks the start of a reconfiguration of this port so the time until the socket is ready again can be measured
+    //  The measurement ends when the socket is ready, either in setup() or by restart() itself if done in place.
+    //////////////////////////////////////////////////
+    public void beginReconfigure() {
+        lastReconfigureMs = -1;
+        reconfigureStartedRealtime = SystemClock.elapsedRealtime();
+        if (busSetupRunnable != null) busSetupRunnable.reconfigurePending = true;
+    } // beginReconfigure()
 
-        return true;
 
-    } // restart()
+    //////////////////////////////////////////////////
+    // endReconfigure()
+    //  records the time a reconfiguration took, called once the socket is ready again
+    //////////////////////////////////////////////////
+    void endReconfigure(boolean inPlace) {
+        if (busSetupRunnable != null) busSetupRunnable.reconfigurePending = false;
+
+        int ms = (int) (SystemClock.elapsedRealtime() - reconfigureStartedRealtime);
+        lastReconfigureInPlace = inPlace;
+        lastReconfigureMs = ms;
+        if (ms > maxReconfigureMs) maxReconfigureMs = ms;
+        reconfigureCount++;
+        if (inPlace) reconfigureInPlaceCount++;
 
+        Log.d(TAG, "CAN" + (canNumber - 1) + " reconfigured " + (inPlace ? "in place" : "by re-creating") + " in " + ms + " ms");
+    } // endReconfigure()
 
 
     ///////////////////////////////////////////////////
@@ -356,7 +661,7 @@ public class VehicleBusWrapper extends VehicleBusHW {
         if (busSetupRunnable == null) return 0; // no bitrate -- class doesnt even exit
         if (!busSetupRunnable.isSetup()) return 0; // no bitrate -- socket wasn't even created yet
 
-        return busSetupRunnable.bitrate;
+        return busSetupRunnable.createdBitrate; // the bitrate in use, a new one may be waiting on the control thread
     }
 
 
@@ -474,11 +779,17 @@ public class VehicleBusWrapper extends VehicleBusHW {
         volatile boolean isSocketReady = false;
 
         InterfaceWrapper setupInterface;
-        SocketWrapper setupSocket;
+        volatile SocketWrapper setupSocket; // read by other threads to start reading and writing
+
+        // what the current interface was created with (the bitrate is remembered after teardown too)
+        boolean createdListenOnly = true;
+        volatile int createdBitrate = 0;
+        long teardownRealtime = 0; // when the interface was last removed (0 = never)
+        volatile boolean reconfigurePending = false; // a reconfiguration is being measured
 
         boolean listen_only = true; // default listen_only
         int bitrate = 250000; // default bit rate
-        int canNumber = 2;
+        int canNumber = VehicleBusWrapper.this.canNumber;
         CANHardwareFilter[] hardwareFilters = null;
         ArrayList<VehicleBusHW.CANFlowControl> flowControls;
 
@@ -494,12 +805,11 @@ public class VehicleBusWrapper extends VehicleBusHW {
 
 
 
-        public void setCharacteristics(boolean new_listen_only, int new_bitrate, CANHardwareFilter[] new_hardwareFilters, int new_canNumber, ArrayList<VehicleBusHW.CANFlowControl> flowControlsArr) {
+        public void setCharacteristics(boolean new_listen_only, int new_bitrate, CANHardwareFilter[] new_hardwareFilters, ArrayList<VehicleBusHW.CANFlowControl> flowControlsArr) {
             // these take effect at next Setup()
             listen_only = new_listen_only;
             bitrate = new_bitrate;
             hardwareFilters = new_hardwareFilters;
-            canNumber = new_canNumber;
             flowControls = flowControlsArr;
         }
 
@@ -516,7 +826,6 @@ public class VehicleBusWrapper extends VehicleBusHW {
             // these take effect at next Setup()
             listen_only = true;
             bitrate = 250000;
-            canNumber = 2;
             setDefaultFilters(); // block everything
         }
 
@@ -526,8 +835,27 @@ public class VehicleBusWrapper extends VehicleBusHW {
         }
 
         // setup() : External call to setup the bus
+        //  if it fails, the port stays CLOSED (with setupFailed) and the service is told to stop it
         public boolean setup() {
+            setupFailed = false;
+            setBusState(VehicleBusConstants.CAN_BUS_STATE_CREATING);
             boolean result = doInternalSetup();
+            if (result) {
+                setBusState(createdListenOnly ? VehicleBusConstants.CAN_BUS_STATE_LISTEN : VehicleBusConstants.CAN_BUS_STATE_NORMAL);
+            } else {
+                setupFailed = true;
+                setBusState(VehicleBusConstants.CAN_BUS_STATE_CLOSED);
+
+                // the service is only changed from the main thread
+                if (service != null) {
+                    callbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            service.forceStopCAN(canNumber);
+                        }
+                    });
+                }
+            }
 
 
             /*
@@ -538,10 +866,35 @@ public class VehicleBusWrapper extends VehicleBusHW {
             return result;
         }
 
+        ///////////////////////////////////////////
+        // reconfigure()
+        //  applies the bitrate, filters and flow controls to the interface that is already open, keeping its socket
+        //  returns false if that can't be done (nothing is open, listen-only mode changed, or the library refused),
+        //      and then the bus has to be torn down and set up again
+        ///////////////////////////////////////////
+        public boolean reconfigure() {
+            if (!isSocketReady) return false;
+            if (listen_only != createdListenOnly) return false; // the mode can only be chosen when creating the interface
+
+            if (!reconfigureInterface(canNumber, setupInterface, bitrate, hardwareFilters, flowControls)) return false;
+
+            // frames already buffered at the old bitrate must not be taken as proof of the new one
+            if ((listen_only) && (bitrate != createdBitrate)) {
+                discardSocketBuffer(setupSocket);
+            }
+            createdBitrate = bitrate;
+            return true;
+        } // reconfigure()
+
+
         // teardown () : External call to teardown the bus
         public void teardown() {
 
+            if (busState != VehicleBusConstants.CAN_BUS_STATE_CLOSED) {
+                setBusState(VehicleBusConstants.CAN_BUS_STATE_CLOSING);
+            }
             doInternalTeardown(canNumber);
+            setBusState(VehicleBusConstants.CAN_BUS_STATE_CLOSED);
 
             // do the teardown in a separate thread:
             // cancelThread = true;
@@ -553,10 +906,9 @@ public class VehicleBusWrapper extends VehicleBusHW {
         //  does all setup steps
         //  returns true if setup was successful, otherwise false
         ///////////////////////////////////////////
-        boolean doInternalSetup() { // Todo: deleted parameter-canNumber. This method should be getting it from the global.
+        boolean doInternalSetup() {
             setupInterface = createInterface(canNumber, listen_only, bitrate, hardwareFilters, flowControls); /**Stage 1: Create interface**/
             if (setupInterface == null) {
-                service.forceStopCAN();
                 return false;
             }
 
@@ -564,24 +916,31 @@ public class VehicleBusWrapper extends VehicleBusHW {
             setupSocket = createSocket(canNumber, setupInterface); /**Stage 2: Create Socket**/
             if (setupSocket == null) {
                 removeInterface(canNumber, setupInterface);
+                teardownRealtime = SystemClock.elapsedRealtime();
                 isClosed = true;
                 return false;
             }
 
             Log.v(TAG, "opening socket");
 
-            // we want to discard buffer when opening listen-only sockets because this means we
-            //      may be switching bitrates (unless we are only starting J1708, in which case only downside
-            //      is it takes 3 seconds longer than it otherwise would to start getting packets).
+            // we want to discard buffer when opening listen-only sockets at a different bitrate than before because
+            //      anything left over was received at the old bitrate (discarding costs about 3 seconds
+            //      before packets start arriving, so it is not done when the bitrate stays the same).
 
-            if (!openSocket(canNumber, setupSocket, listen_only)) {
+            boolean discardBuffer = (listen_only) && (bitrate != createdBitrate);
+            if (!openSocket(canNumber, setupSocket, discardBuffer)) {
                 removeInterface(canNumber, setupInterface);
+                teardownRealtime = SystemClock.elapsedRealtime();
                 isClosed = true;
                 return false;
             }
 
+            createdListenOnly = listen_only;
+            createdBitrate = bitrate;
             isSocketReady = true;
 
+            if (reconfigurePending) endReconfigure(false);
+
             // Notify the main thread that our socket is ready
             callbackNowReady();
 
@@ -603,8 +962,10 @@ public class VehicleBusWrapper extends VehicleBusHW {
 
             setupSocket = null;
 
-            if (setupInterface != null)
+            if (setupInterface != null) {
                 removeInterface(canNumber, setupInterface);
+                teardownRealtime = SystemClock.elapsedRealtime();
+            }
 
             setupInterface = null;
 
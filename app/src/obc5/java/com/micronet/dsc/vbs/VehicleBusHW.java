@@ -45,6 +45,13 @@ class VehicleBusHW {
             return new CANFrame(mFrame.getId(), mFrame.getData(), CANFrameType.downcast(mFrame.getType()));
         }
 
+        // re-use this frame for a frame that was read (takes over the data array, does not copy it)
+        public void set(com.micronet.canbus.CanbusFramePort1 mFrame) {
+            setId(mFrame.getId());
+            setData(mFrame.getData());
+            setType(CANFrameType.upcast(CANFrameType.downcast(mFrame.getType())));
+        }
+
         public int getId() {
             return super.getId();
         }
@@ -70,6 +77,26 @@ class VehicleBusHW {
             return CANFrame.downcast(socket.readPort1());
         }
 
+        // read the next frame into a frame that is re-used by the caller, returns false if nothing was read
+        public boolean read(CANFrame into) {
+            com.micronet.canbus.CanbusFramePort1 mFrame = socket.readPort1();
+            if (mFrame == null) return false;
+            into.set(mFrame);
+            return true;
+        }
+
+        // same as read(into), but gives up after timeoutMs
+        public boolean read(CANFrame into, long timeoutMs) {
+            com.micronet.canbus.CanbusFramePort1 mFrame = socket.readPort1(timeoutMs);
+            if (mFrame == null) return false;
+            into.set(mFrame);
+            return true;
+        }
+
+        public boolean isSameSocket(CANSocket other) {
+            return (other != null) && (other.socket == socket);
+        }
+
         public void write(CANFrame frame) {
             socket.write1939Port1(frame);
         }
@@ -388,6 +415,27 @@ class VehicleBusHW {
     } // createInterface()
 
 
+    // the obc5 library can't change an interface once it is created, it always has to be re-created
+    static boolean isReconfigureSupported() {
+        return false;
+    }
+
+    boolean reconfigureInterface(int canNumber, InterfaceWrapper wrappedInterface, int bitrate, CANHardwareFilter[] hardwareFilters, ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
+        return false;
+    } // reconfigureInterface()
+
+
+    boolean discardSocketBuffer(SocketWrapper wrappedSocket) {
+        try {
+            wrappedSocket.canbusSocket.discardInBuffer();
+        } catch (Exception e) {
+            Log.e(TAG, "Exception discarding Socket buffer: " + e.toString(), e);
+            return false;
+        }
+        return true;
+    } // discardSocketBuffer()
+
+
     void removeInterface(InterfaceWrapper wrappedInterface) {
         try {
             wrappedInterface.canbusInterface.removeCAN1();
@@ -70,6 +70,24 @@ class VehicleBusHW {
             return new CANFrame(mFrame.getId(), mFrame.getData(), CANFrameType.downcast(mFrame.getType()));
         }
 
+        /**
+         * Re-use this frame for a frame read from port 1 (takes over the data array, does not copy it).
+         */
+        public void set(com.micronet.canbus.CanbusFramePort1 mFrame) {
+            setId(mFrame.getId());
+            setData(mFrame.getData());
+            setType(CANFrameType.upcast(CANFrameType.downcast(mFrame.getType())));
+        }
+
+        /**
+         * Re-use this frame for a frame read from port 2 (takes over the data array, does not copy it).
+         */
+        public void set(CanbusFramePort2 mFrame) {
+            setId(mFrame.getId());
+            setData(mFrame.getData());
+            setType(CANFrameType.upcast(CANFrameType.downcast(mFrame.getType())));
+        }
+
         public int getId() {
             return super.getId();
         }
@@ -112,6 +130,9 @@ class VehicleBusHW {
         CanbusSocket socket;
         int canNumber;
 
+        // re-used for every write to port 2 so writing does not allocate (only the write thread writes)
+        final CAN2Frame writeFrame2 = new CAN2Frame(0, new byte[0], CANFrameType.EXTENDED);
+
         public CANSocket(SocketWrapper in, int port) {
             if (in != null) {
                 socket = in.canbusSocket;
@@ -130,11 +151,57 @@ class VehicleBusHW {
             }
         }
 
+        /**
+         * Read the next frame into a frame that is re-used by the caller.
+         * Returns false if nothing was read.
+         */
+        public boolean read(CANFrame into) {
+            if (canNumber == CAN_PORT1) {
+                com.micronet.canbus.CanbusFramePort1 mFrame = socket.readPort1();
+                if (mFrame == null) return false;
+                into.set(mFrame);
+            } else {
+                CanbusFramePort2 mFrame = socket.readPort2();
+                if (mFrame == null) return false;
+                into.set(mFrame);
+            }
+            return true;
+        }
+
+        /**
+         * Same as read(into), but gives up after timeoutMs so the caller can see that it should stop
+         * or read from another socket. Returns false if nothing was read.
+         */
+        public boolean read(CANFrame into, long timeoutMs) {
+            if (canNumber == CAN_PORT1) {
+                com.micronet.canbus.CanbusFramePort1 mFrame = socket.readPort1(timeoutMs);
+                if (mFrame == null) return false;
+                into.set(mFrame);
+            } else {
+                CanbusFramePort2 mFrame = socket.readPort2(timeoutMs);
+                if (mFrame == null) return false;
+                into.set(mFrame);
+            }
+            return true;
+        }
+
+        /**
+         * Is this the same library socket as other (the wrapper creates a new CANSocket each time it is asked)?
+         */
+        public boolean isSameSocket(CANSocket other) {
+            return (other != null) && (other.socket == socket) && (other.canNumber == canNumber);
+        }
+
         public void write(CANFrame frame) {
             if (canNumber == CAN_PORT1) {
                 socket.write1939Port1(frame);
             } else {
-                socket.write1939Port2(new CAN2Frame(frame));
+                synchronized (writeFrame2) {
+                    writeFrame2.setId(frame.getId());
+                    writeFrame2.setData(frame.getData());
+                    writeFrame2.setType(frame.getType());
+                    socket.write1939Port2(writeFrame2);
+                }
             }
         }
     } // CANSocket
@@ -266,6 +333,46 @@ class VehicleBusHW {
         return new InterfaceWrapper(canInterface);
     } // createInterface()
 
+    /**
+     * Can the bitrate and filters of an interface be changed without re-creating it on the Tab8?
+     */
+    static boolean isReconfigureSupported() {
+        return true;
+    }
+
+    /**
+     * Hardware Abstraction for changing the bitrate, filters and flow controls of an interface that is already created,
+     * without removing it or closing its socket, on the Tab8. The listen-only mode can only be chosen by create().
+     * Returns false if it could not be done (then the interface has to be re-created).
+     */
+    boolean reconfigureInterface(int canNumber, InterfaceWrapper wrappedInterface, int bitrate, CANHardwareFilter[] hardwareFilters, ArrayList<VehicleBusHW.CANFlowControl> flowControls) {
+
+        Log.v(TAG, "reconfigureInterface: setBitrate(" + bitrate + ", filterArray, " + canNumber + ", flowControlMessages)");
+        try {
+            wrappedInterface.canbusInterface.setBitrate(bitrate, setFilters(hardwareFilters), canNumber, setFlowControlMessages(flowControls));
+        } catch (Exception e) {
+            Log.e(TAG, "Can" + (canNumber - 1) + ": Unable to reconfigure CanbusInterface() " + e.toString());
+            return false;
+        }
+
+        Log.d(TAG, "Interface reconfigured @ " + bitrate + "kb");
+        return true;
+    } // reconfigureInterface()
+
+    /**
+     * Hardware abstraction for discarding anything received but not read yet on the Tab8.
+     */
+    boolean discardSocketBuffer(SocketWrapper wrappedSocket) {
+        try {
+            wrappedSocket.canbusSocket.discardInBuffer();
+            Log.d(TAG, "Socket discarded");
+        } catch (Exception e) {
+            Log.e(TAG, "Exception discarding Socket buffer: " + e.toString(), e);
+            return false;
+        }
+        return true;
+    } // discardSocketBuffer()
+
     /**
      * Hardware abstraction for removing interface on the Tab8.
      */
@@ -0,0 +1,79 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusFrameBufferTest {
+
+    @Test
+    public void packAndUnpack() {
+        byte[] data = new byte[] {1, 2, 3, (byte) 0xFF, 5, 6, 7, (byte) 0x80};
+        long payload = VehicleBusFrameBuffer.pack(data, 8);
+        assertEquals(0x80070605FF030201L, payload);
+
+        byte[] out = new byte[8];
+        VehicleBusFrameBuffer.unpack(payload, out, 0, 8);
+        assertArrayEquals(data, out);
+    }
+
+    @Test
+    public void addAndGet() {
+        VehicleBusFrameBuffer buffer = new VehicleBusFrameBuffer(4);
+
+        assertTrue(buffer.add(0x18FEF100, true, new byte[] {1, 2, 3}, 100));
+        assertTrue(buffer.add(new VehicleBusWrapper.CANFrame(0x123, new byte[] {4}, VehicleBusWrapper.CANFrameType.STANDARD), 101));
+        assertEquals(2, buffer.size());
+
+        assertEquals(0x18FEF100, buffer.getId(0));
+        assertTrue(buffer.isExtended(0));
+        assertEquals(3, buffer.getLength(0));
+        assertEquals(100, buffer.getTimestamp(0));
+
+        assertEquals(0x123, buffer.getId(1));
+        assertFalse(buffer.isExtended(1));
+        byte[] data = new byte[8];
+        assertEquals(1, buffer.getData(1, data));
+        assertEquals(4, data[0]);
+    }
+
+    @Test
+    public void longDataIsCutAndNullIsEmpty() {
+        VehicleBusFrameBuffer buffer = new VehicleBusFrameBuffer(4);
+        buffer.add(1, true, new byte[12], 0);
+        buffer.add(2, true, null, 0);
+
+        assertEquals(VehicleBusFrameBuffer.MAX_DATA_LENGTH, buffer.getLength(0));
+        assertEquals(0, buffer.getLength(1));
+    }
+
+    @Test
+    public void full() {
+        VehicleBusFrameBuffer buffer = new VehicleBusFrameBuffer(2);
+        assertTrue(buffer.add(1, true, new byte[1], 0));
+        assertFalse(buffer.isFull());
+        assertTrue(buffer.add(2, true, new byte[1], 0));
+        assertTrue(buffer.isFull());
+        assertFalse(buffer.add(3, true, new byte[1], 0));
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertTrue(buffer.add(3, true, new byte[1], 0));
+    }
+
+    @Test
+    public void copies() {
+        VehicleBusFrameBuffer buffer = new VehicleBusFrameBuffer(4);
+        buffer.add(0x18FEF100, true, new byte[] {1, 2}, 100);
+        buffer.add(0x7E8, false, new byte[] {3, 4, 5, 6, 7, 8, 9, 10}, 200);
+
+        assertArrayEquals(new int[] {0x18FEF100, 0x7E8}, buffer.copyIds());
+        assertArrayEquals(new byte[] {VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED, VehicleBusConstants.CAN_FRAME_TYPE_STANDARD},
+                buffer.copyTypes());
+        assertArrayEquals(new long[] {100, 200}, buffer.copyTimestamps());
+        assertArrayEquals(new byte[] {2, 8}, buffer.copyLengths());
+
+        // 8 bytes for each frame, unused bytes are 0
+        assertArrayEquals(new byte[] {1, 2, 0, 0, 0, 0, 0, 0, 3, 4, 5, 6, 7, 8, 9, 10}, buffer.copyDataBlock());
+    }
+}
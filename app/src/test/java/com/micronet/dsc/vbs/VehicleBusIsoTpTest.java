@@ -0,0 +1,280 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusIsoTpTest {
+
+    static final long MS = 1000000L;
+    static final int HANDLE = 1;
+    static final int TX_ID = 0x7E0;
+    static final int RX_ID = 0x7E8;
+    static final byte PAD = (byte) 0xCC;
+
+    VehicleBusIsoTp isoTp;
+    VehicleBusTxScheduler scheduler;
+    ArrayList<byte[]> messages;
+    ArrayList<Long> messageTimestamps;
+    ArrayList<Integer> txResults;
+    byte[] message;
+
+    @Before
+    public void setUp() {
+        messages = new ArrayList<byte[]>();
+        messageTimestamps = new ArrayList<Long>();
+        txResults = new ArrayList<Integer>();
+        isoTp = new VehicleBusIsoTp(new VehicleBusIsoTp.Listener() {
+            @Override
+            public void onIsoTpMessage(int handle, byte[] data, long timestamp) {
+                messages.add(data);
+                messageTimestamps.add(timestamp);
+            }
+
+            @Override
+            public void onIsoTpTxResult(int handle, int messageId, int result) {
+                txResults.add(result);
+            }
+        });
+        scheduler = new VehicleBusTxScheduler(64);
+        message = new byte[30];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i + 1);
+        }
+    }
+
+    void open(int blockSize, int stMin) {
+        assertTrue(isoTp.open(HANDLE, TX_ID, RX_ID, VehicleBusWrapper.CANFrameType.STANDARD, blockSize, stMin));
+    }
+
+    int receive(long elapsedRealtime, int... bytes) {
+        byte[] data = new byte[8];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (i < bytes.length ? (byte) bytes[i] : PAD);
+        }
+        return isoTp.receive(RX_ID, false, data, elapsedRealtime);
+    }
+
+    @Test
+    public void openChecksParameters() {
+        assertFalse(isoTp.open(HANDLE, 0x800, RX_ID, VehicleBusWrapper.CANFrameType.STANDARD, 0, 0));
+        assertFalse(isoTp.open(HANDLE, TX_ID, TX_ID, VehicleBusWrapper.CANFrameType.STANDARD, 0, 0));
+        assertFalse(isoTp.open(HANDLE, TX_ID, RX_ID, VehicleBusWrapper.CANFrameType.STANDARD, 0, 0x80));
+        assertTrue(isoTp.open(HANDLE, TX_ID, RX_ID, VehicleBusWrapper.CANFrameType.STANDARD, 0, 0xF5));
+        // the rx id is taken by another channel
+        assertFalse(isoTp.open(HANDLE + 1, 0x7E1, RX_ID, VehicleBusWrapper.CANFrameType.STANDARD, 0, 0));
+    }
+
+    @Test
+    public void getStMinNanos() {
+        assertEquals(0, VehicleBusIsoTp.getStMinNanos(0));
+        assertEquals(127 * MS, VehicleBusIsoTp.getStMinNanos(0x7F));
+        assertEquals(100000L, VehicleBusIsoTp.getStMinNanos(0xF1));
+        assertEquals(900000L, VehicleBusIsoTp.getStMinNanos(0xF9));
+        // reserved
+        assertEquals(127 * MS, VehicleBusIsoTp.getStMinNanos(0x80));
+    }
+
+    @Test
+    public void sendSingleFrame() {
+        open(0, 0);
+        assertTrue(isoTp.send(HANDLE, 5, new byte[] {1, 2, 3}));
+        isoTp.service(0, scheduler);
+
+        VehicleBusWrapper.CANFrame frame = scheduler.remove();
+        assertEquals(TX_ID, frame.getId());
+        assertArrayEquals(new byte[] {0x03, 1, 2, 3, PAD, PAD, PAD, PAD}, frame.getData());
+        assertEquals(1, txResults.size());
+        assertEquals(VehicleBusConstants.ISOTP_RESULT_SUCCESS, (int) txResults.get(0));
+    }
+
+    @Test
+    public void sendSegmentedWithBlockSizeAndStMin() {
+        open(0, 0);
+        assertTrue(isoTp.send(HANDLE, 5, message));
+        isoTp.service(0, scheduler);
+
+        VehicleBusWrapper.CANFrame first = scheduler.remove();
+        assertArrayEquals(new byte[] {0x10, 30, 1, 2, 3, 4, 5, 6}, first.getData());
+        assertNull(scheduler.remove());
+
+        // flow control: 2 frames per block, 10 ms apart
+        assertEquals(VehicleBusIsoTp.RESULT_WAKE_WRITER, receive(0, 0x30, 2, 10));
+        isoTp.service(1 * MS, scheduler);
+        VehicleBusWrapper.CANFrame cf1 = scheduler.remove();
+        assertArrayEquals(new byte[] {0x21, 7, 8, 9, 10, 11, 12, 13}, cf1.getData());
+        assertNull(scheduler.remove());
+
+        // STmin starts when the frame is written, not when it was queued
+        isoTp.service(50 * MS, scheduler);
+        assertTrue(scheduler.isEmpty());
+        isoTp.frameWritten(cf1, 50 * MS);
+        isoTp.service(59 * MS, scheduler);
+        assertTrue(scheduler.isEmpty());
+        isoTp.service(60 * MS, scheduler);
+        VehicleBusWrapper.CANFrame cf2 = scheduler.remove();
+        assertArrayEquals(new byte[] {0x22, 14, 15, 16, 17, 18, 19, 20}, cf2.getData());
+        isoTp.frameWritten(cf2, 61 * MS);
+
+        // end of the block: wait for the next flow control
+        isoTp.service(200 * MS, scheduler);
+        assertTrue(scheduler.isEmpty());
+        receive(0, 0x30, 0, 0);
+        isoTp.service(201 * MS, scheduler);
+        VehicleBusWrapper.CANFrame cf3 = scheduler.remove();
+        assertArrayEquals(new byte[] {0x23, 21, 22, 23, 24, 25, 26, 27}, cf3.getData());
+        isoTp.frameWritten(cf3, 202 * MS);
+        isoTp.service(202 * MS, scheduler);
+        VehicleBusWrapper.CANFrame cf4 = scheduler.remove();
+        assertArrayEquals(new byte[] {0x24, 28, 29, 30, PAD, PAD, PAD, PAD}, cf4.getData());
+
+        assertEquals(1, txResults.size());
+        assertEquals(VehicleBusConstants.ISOTP_RESULT_SUCCESS, (int) txResults.get(0));
+    }
+
+    @Test
+    public void noFlowControlTimesOut() {
+        open(0, 0);
+        isoTp.send(HANDLE, 5, message);
+        isoTp.service(0, scheduler);
+
+        isoTp.service(VehicleBusIsoTp.TIMEOUT_N_BS_MS * MS - 1, scheduler);
+        assertTrue(txResults.isEmpty());
+        isoTp.service(VehicleBusIsoTp.TIMEOUT_N_BS_MS * MS, scheduler);
+        assertEquals(1, txResults.size());
+        assertEquals(VehicleBusConstants.ISOTP_RESULT_TIMEOUT, (int) txResults.get(0));
+    }
+
+    @Test
+    public void flowControlTimeoutStartsWhenBlockIsWritten() {
+        open(0, 0);
+        isoTp.send(HANDLE, 5, message);
+        isoTp.service(0, scheduler);
+        scheduler.remove();
+
+        receive(0, 0x30, 1, 0);
+        isoTp.service(0, scheduler);
+        VehicleBusWrapper.CANFrame cf1 = scheduler.remove();
+        isoTp.frameWritten(cf1, 500 * MS);
+
+        isoTp.service((500 + VehicleBusIsoTp.TIMEOUT_N_BS_MS) * MS - 1, scheduler);
+        assertTrue(txResults.isEmpty());
+        isoTp.service((500 + VehicleBusIsoTp.TIMEOUT_N_BS_MS) * MS, scheduler);
+        assertEquals(VehicleBusConstants.ISOTP_RESULT_TIMEOUT, (int) txResults.get(0));
+    }
+
+    @Test
+    public void receiverOverflow() {
+        open(0, 0);
+        isoTp.send(HANDLE, 5, message);
+        isoTp.service(0, scheduler);
+
+        receive(0, 0x32, 0, 0);
+        isoTp.service(1 * MS, scheduler);
+        assertEquals(VehicleBusConstants.ISOTP_RESULT_OVERFLOW, (int) txResults.get(0));
+    }
+
+    @Test
+    public void messagesOnAChannelAreSentOneAtATime() {
+        open(0, 0);
+        isoTp.send(HANDLE, 5, message);
+        isoTp.send(HANDLE, 6, new byte[] {1});
+        isoTp.service(0, scheduler);
+
+        // only the first frame of the first message
+        scheduler.remove();
+        assertNull(scheduler.remove());
+
+        receive(0, 0x32, 0, 0);
+        isoTp.service(1 * MS, scheduler);
+        assertArrayEquals(new byte[] {0x01, 1, PAD, PAD, PAD, PAD, PAD, PAD}, scheduler.remove().getData());
+    }
+
+    @Test
+    public void receiveSingleFrame() {
+        open(0, 0);
+        assertEquals(VehicleBusIsoTp.RESULT_CONSUMED, receive(100, 0x03, 0xA, 0xB, 0xC));
+
+        assertEquals(1, messages.size());
+        assertArrayEquals(new byte[] {0xA, 0xB, 0xC}, messages.get(0));
+        assertEquals(100, (long) messageTimestamps.get(0));
+    }
+
+    @Test
+    public void receiveIgnoresOtherIds() {
+        open(0, 0);
+        byte[] data = new byte[] {0x03, 1, 2, 3, PAD, PAD, PAD, PAD};
+        assertEquals(VehicleBusIsoTp.RESULT_NOT_ISOTP, isoTp.receive(0x7E9, false, data, 0));
+        // same number, but a 29-bit id
+        assertEquals(VehicleBusIsoTp.RESULT_NOT_ISOTP, isoTp.receive(RX_ID, true, data, 0));
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    public void receiveSegmented() {
+        open(0, 5);
+        assertEquals(VehicleBusIsoTp.RESULT_WAKE_WRITER, receive(100, 0x10, 10, 1, 2, 3, 4, 5, 6));
+
+        // our flow control goes out on the tx id
+        isoTp.service(0, scheduler);
+        VehicleBusWrapper.CANFrame flowControl = scheduler.remove();
+        assertEquals(TX_ID, flowControl.getId());
+        assertArrayEquals(new byte[] {0x30, 0, 5, PAD, PAD, PAD, PAD, PAD}, flowControl.getData());
+
+        assertEquals(VehicleBusIsoTp.RESULT_CONSUMED, receive(150, 0x21, 7, 8, 9, 10));
+        assertEquals(1, messages.size());
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, messages.get(0));
+        // timestamped with the first frame
+        assertEquals(100, (long) messageTimestamps.get(0));
+    }
+
+    @Test
+    public void receiveAsksForEachBlock() {
+        open(1, 0);
+        receive(0, 0x10, 20, 1, 2, 3, 4, 5, 6);
+        assertEquals(VehicleBusIsoTp.RESULT_WAKE_WRITER, receive(10, 0x21, 7, 8, 9, 10, 11, 12, 13));
+        assertEquals(VehicleBusIsoTp.RESULT_CONSUMED, receive(20, 0x22, 14, 15, 16, 17, 18, 19, 20));
+
+        isoTp.service(0, scheduler);
+        assertEquals(2, scheduler.size());
+        assertEquals(1, messages.size());
+    }
+
+    @Test
+    public void receiveConsecutiveFrameTimesOut() {
+        open(0, 0);
+        receive(0, 0x10, 10, 1, 2, 3, 4, 5, 6);
+        receive(VehicleBusIsoTp.TIMEOUT_N_CR_MS + 1, 0x21, 7, 8, 9, 10);
+
+        assertTrue(messages.isEmpty());
+        assertEquals(1, isoTp.getRxErrorCount());
+    }
+
+    @Test
+    public void receiveWrongSequence() {
+        open(0, 0);
+        receive(0, 0x10, 20, 1, 2, 3, 4, 5, 6);
+        receive(10, 0x22, 7, 8, 9, 10, 11, 12, 13);
+
+        assertEquals(1, isoTp.getRxErrorCount());
+        // the rest of the message is ignored
+        receive(20, 0x21, 7, 8, 9, 10, 11, 12, 13);
+        receive(30, 0x22, 14, 15, 16, 17, 18, 19, 20);
+        assertTrue(messages.isEmpty());
+    }
+
+    @Test
+    public void closeCancelsMessage() {
+        open(0, 0);
+        isoTp.send(HANDLE, 5, message);
+        isoTp.service(0, scheduler);
+
+        assertTrue(isoTp.close(HANDLE));
+        isoTp.service(1 * MS, scheduler);
+        assertEquals(VehicleBusConstants.ISOTP_RESULT_CANCELLED, (int) txResults.get(0));
+        assertFalse(isoTp.send(HANDLE, 6, message));
+    }
+}
@@ -0,0 +1,278 @@
+package com.micronet.dsc.vbs;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+// Robolectric for the timeout HandlerThread and SystemClock
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class VehicleBusJ1939RequestTest {
+
+    static final int PGN = 0xFEE5;
+    static final int US = 0x21; // our address
+    static final int NODE = 0x00;
+
+    static class Result {
+        int requestId;
+        int responder;
+        byte[] data;
+        int result;
+    }
+
+    VehicleBusJ1939Request request;
+    ArrayList<VehicleBusWrapper.CANFrame> sent;
+    ArrayList<Result> results;
+    boolean sendFails = false;
+
+    @Before
+    public void setUp() {
+        sent = new ArrayList<VehicleBusWrapper.CANFrame>();
+        results = new ArrayList<Result>();
+        request = new VehicleBusJ1939Request(new VehicleBusJ1939Request.Sender() {
+            @Override
+            public boolean sendFrame(VehicleBusWrapper.CANFrame frame) {
+                if (sendFails) return false;
+                sent.add(frame);
+                return true;
+            }
+        }, new VehicleBusJ1939Request.ResultListener() {
+            @Override
+            public void onJ1939RequestResult(int requestId, int pgn, int destination, int responder, byte[] data, long timestamp, int result) {
+                Result r = new Result();
+                r.requestId = requestId;
+                r.responder = responder;
+                r.data = data;
+                r.result = result;
+                results.add(r);
+            }
+        });
+        request.start("can1");
+    }
+
+    @After
+    public void tearDown() {
+        request.stop();
+    }
+
+    static byte[] cm(int control, int b1, int b2, int b3, int pgn) {
+        return new byte[] {(byte) control, (byte) b1, (byte) b2, (byte) b3, (byte) 0xFF,
+                (byte) pgn, (byte) (pgn >> 8), (byte) (pgn >> 16)};
+    }
+
+    static byte[] dt(byte[] message, int packet) {
+        byte[] data = new byte[8];
+        data[0] = (byte) packet;
+        for (int i = 0; i < 7; i++) {
+            int offset = (packet - 1) * 7 + i;
+            data[i + 1] = (offset < message.length ? message[offset] : (byte) 0xFF);
+        }
+        return data;
+    }
+
+    @Test
+    public void sendsRequest() {
+        assertTrue(request.request(1, PGN, US, 0xFF, 0, 0));
+
+        assertEquals(1, sent.size());
+        assertEquals(0x18EAFF21, sent.get(0).getId());
+        assertArrayEquals(new byte[] {(byte) 0xE5, (byte) 0xFE, 0}, sent.get(0).getData());
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void invalidRequests() {
+        assertFalse(request.request(1, 0x40000, US, 0xFF, 0, 0));
+        assertFalse(request.request(1, PGN, 0xFE, 0xFF, 0, 0));
+        assertFalse(request.request(1, PGN, US, 0xFF, VehicleBusJ1939Request.MAX_TIMEOUT_MS + 1, 0));
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void notStarted() {
+        request.stop();
+        assertFalse(request.request(1, PGN, US, 0xFF, 0, 0));
+    }
+
+    @Test
+    public void singleFrameReply() {
+        request.request(1, PGN, US, 0xFF, 0, 0);
+
+        byte[] reply = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+        request.receive(0x18FEE500, true, reply, SystemClock.elapsedRealtime());
+
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_REPLY, results.get(0).result);
+        assertEquals(NODE, results.get(0).responder);
+        assertArrayEquals(reply, results.get(0).data);
+    }
+
+    @Test
+    public void replyFromTheCache() {
+        request.request(1, PGN, US, 0xFF, 0, 0);
+        request.receive(0x18FEE500, true, new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, SystemClock.elapsedRealtime());
+
+        assertTrue(request.request(2, PGN, US, NODE, 0, 1000));
+        assertEquals(1, sent.size());
+        assertEquals(2, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_CACHED, results.get(1).result);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, results.get(1).data);
+
+        // maxAgeMs 0 always asks the bus
+        assertTrue(request.request(3, PGN, US, NODE, 0, 0));
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void sameRequestIsSentOnce() {
+        request.request(1, PGN, US, 0xFF, 0, 0);
+        request.request(2, PGN, US, 0xFF, 0, 0);
+        assertEquals(1, sent.size());
+
+        request.receive(0x18FEE500, true, new byte[8], SystemClock.elapsedRealtime());
+        assertEquals(2, results.size());
+        assertEquals(1, results.get(0).requestId);
+        assertEquals(2, results.get(1).requestId);
+    }
+
+    @Test
+    public void unrequestedFramesAreIgnored() {
+        request.request(1, PGN, US, NODE, 0, 0);
+
+        // another PGN, and the right PGN from another node
+        request.receive(0x18FEE600, true, new byte[8], SystemClock.elapsedRealtime());
+        request.receive(0x18FEE503, true, new byte[8], SystemClock.elapsedRealtime());
+        request.receive(0x7E5, false, new byte[8], SystemClock.elapsedRealtime());
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void nack() {
+        request.request(1, PGN, US, NODE, 0, 0);
+
+        int ackId = (6 << 26) | (VehicleBusJ1939Request.PF_ACK << 16) | (0xFF << 8) | NODE;
+        request.receive(ackId, true, cm(VehicleBusJ1939Request.ACK_NACK, 0xFF, 0xFF, 0xFF, PGN), SystemClock.elapsedRealtime());
+
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_NACK, results.get(0).result);
+    }
+
+    @Test
+    public void timeout() {
+        request.request(1, PGN, US, NODE, 100, 0);
+
+        // as if the timeout had passed
+        synchronized (request) {
+            request.pending.get(0).deadline = 0;
+        }
+        request.timeoutTask.run();
+
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_TIMEOUT, results.get(0).result);
+
+        // a late reply is not a result any more
+        request.receive(0x18FEE500, true, new byte[8], SystemClock.elapsedRealtime());
+        assertEquals(1, results.size());
+    }
+
+    @Test
+    public void notYetTimedOut() {
+        request.request(1, PGN, US, NODE, 10000, 0);
+        request.timeoutTask.run();
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void rtsCtsReply() {
+        request.request(1, PGN, US, NODE, 0, 0);
+        sent.clear();
+
+        byte[] reply = new byte[20];
+        for (int i = 0; i < reply.length; i++) {
+            reply[i] = (byte) (i + 1);
+        }
+        long now = SystemClock.elapsedRealtime();
+        int cmFromNode = (7 << 26) | (VehicleBusJ1939Tp.PF_TP_CM << 16) | (US << 8) | NODE;
+        int dtFromNode = (7 << 26) | (VehicleBusJ1939Tp.PF_TP_DT << 16) | (US << 8) | NODE;
+        int cmToNode = (7 << 26) | (VehicleBusJ1939Tp.PF_TP_CM << 16) | (NODE << 8) | US;
+
+        // the RTS is answered with a CTS for all 3 packets
+        request.receive(cmFromNode, true, cm(VehicleBusJ1939Tp.CM_RTS, 20, 0, 3, PGN), now);
+        assertEquals(1, sent.size());
+        assertEquals(cmToNode, sent.get(0).getId());
+        assertArrayEquals(cm(VehicleBusJ1939Tp.CM_CTS, 3, 1, 0xFF, PGN), sent.get(0).getData());
+
+        request.receive(dtFromNode, true, dt(reply, 1), now);
+        request.receive(dtFromNode, true, dt(reply, 2), now);
+        assertTrue(results.isEmpty());
+        request.receive(dtFromNode, true, dt(reply, 3), now);
+
+        // the end is acknowledged
+        assertEquals(2, sent.size());
+        assertEquals(cmToNode, sent.get(1).getId());
+        assertArrayEquals(cm(VehicleBusJ1939Tp.CM_EOM_ACK, 20, 0, 3, PGN), sent.get(1).getData());
+
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_REPLY, results.get(0).result);
+        assertArrayEquals(reply, results.get(0).data);
+    }
+
+    @Test
+    public void bamReplyToGlobalRequest() {
+        request.request(1, PGN, US, 0xFF, 0, 0);
+
+        byte[] reply = new byte[10];
+        long now = SystemClock.elapsedRealtime();
+        request.receive((7 << 26) | (VehicleBusJ1939Tp.PF_TP_CM << 16) | (0xFF << 8) | NODE, true,
+                cm(VehicleBusJ1939Tp.CM_BAM, 10, 0, 2, PGN), now);
+        request.receive((7 << 26) | (VehicleBusJ1939Tp.PF_TP_DT << 16) | (0xFF << 8) | NODE, true, dt(reply, 1), now);
+        request.receive((7 << 26) | (VehicleBusJ1939Tp.PF_TP_DT << 16) | (0xFF << 8) | NODE, true, dt(reply, 2), now);
+
+        // nothing is sent back for a BAM
+        assertEquals(1, sent.size());
+        assertEquals(1, results.size());
+        assertEquals(NODE, results.get(0).responder);
+        assertArrayEquals(reply, results.get(0).data);
+    }
+
+    @Test
+    public void notSent() {
+        sendFails = true;
+        assertFalse(request.request(1, PGN, US, NODE, 0, 0));
+        assertTrue(results.isEmpty());
+
+        // and it is not left waiting
+        sendFails = false;
+        assertTrue(request.request(2, PGN, US, NODE, 0, 0));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void stopCancels() {
+        request.request(1, PGN, US, NODE, 0, 0);
+        request.stop();
+
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_CANCELLED, results.get(0).result);
+    }
+
+    @Test
+    public void cancelKeepsTheThread() {
+        request.request(1, PGN, US, NODE, 0, 0);
+        request.cancel();
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_REQUEST_RESULT_CANCELLED, results.get(0).result);
+
+        // still started, for the bus that comes back
+        assertTrue(request.request(2, PGN, US, NODE, 0, 0));
+    }
+}
@@ -0,0 +1,169 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+// Robolectric because the sessions are kept in a SparseArray
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class VehicleBusJ1939TpTest {
+
+    static final int PGN = 0xFEE3;
+    static final int SENDER = 0x00;
+    static final int RECEIVER = 0x21;
+
+    VehicleBusJ1939Tp tp;
+    byte[] message;
+
+    @Before
+    public void setUp() {
+        tp = new VehicleBusJ1939Tp();
+        message = new byte[20];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i + 1);
+        }
+    }
+
+    static int cmId(int source, int destination) {
+        return (7 << 26) | (VehicleBusJ1939Tp.PF_TP_CM << 16) | (destination << 8) | source;
+    }
+
+    static int dtId(int source, int destination) {
+        return (7 << 26) | (VehicleBusJ1939Tp.PF_TP_DT << 16) | (destination << 8) | source;
+    }
+
+    static byte[] cm(int control, int size, int packets, int pgn) {
+        return new byte[] {(byte) control, (byte) size, (byte) (size >> 8), (byte) packets, (byte) 0xFF,
+                (byte) pgn, (byte) (pgn >> 8), (byte) (pgn >> 16)};
+    }
+
+    static byte[] dt(byte[] message, int packet) {
+        byte[] data = new byte[8];
+        data[0] = (byte) packet;
+        for (int i = 0; i < 7; i++) {
+            int offset = (packet - 1) * 7 + i;
+            data[i + 1] = (offset < message.length ? message[offset] : (byte) 0xFF);
+        }
+        return data;
+    }
+
+    @Test
+    public void notTransportProtocol() {
+        assertEquals(VehicleBusJ1939Tp.RESULT_NOT_TP, tp.receive(0x18FEF100, true, new byte[8], 0));
+        // 11-bit frames never are, even with the same low bits
+        assertEquals(VehicleBusJ1939Tp.RESULT_NOT_TP, tp.receive(cmId(SENDER, 0xFF) & 0x7FF, false, new byte[8], 0));
+    }
+
+    @Test
+    public void bam() {
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED,
+                tp.receive(cmId(SENDER, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 20, 3, PGN), 1000));
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, 0xFF), true, dt(message, 1), 1050));
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, 0xFF), true, dt(message, 2), 1100));
+        assertEquals(VehicleBusJ1939Tp.RESULT_COMPLETE, tp.receive(dtId(SENDER, 0xFF), true, dt(message, 3), 1150));
+
+        assertArrayEquals(message, tp.completedData);
+        assertEquals(PGN, tp.completedPgn);
+        assertEquals(SENDER, tp.completedSource);
+        assertEquals(VehicleBusJ1939Tp.GLOBAL_ADDRESS, tp.completedDestination);
+        assertEquals(7, tp.completedPriority);
+        assertEquals(1000, tp.completedTimestamp);
+        assertEquals(1, tp.getCompletedCount());
+    }
+
+    @Test
+    public void rtsCtsWithRepeatedAndOutOfOrderPackets() {
+        tp.receive(cmId(SENDER, RECEIVER), true, cm(VehicleBusJ1939Tp.CM_RTS, 20, 3, PGN), 0);
+
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 2), 10));
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 2), 20));
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 1), 30));
+        assertEquals(VehicleBusJ1939Tp.RESULT_COMPLETE, tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 3), 40));
+
+        assertArrayEquals(message, tp.completedData);
+        assertEquals(RECEIVER, tp.completedDestination);
+    }
+
+    @Test
+    public void transfersFromDifferentSourcesAreKeptApart() {
+        byte[] other = new byte[9];
+        tp.receive(cmId(SENDER, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 20, 3, PGN), 0);
+        tp.receive(cmId(0x03, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 9, 2, 0xFECA), 0);
+
+        tp.receive(dtId(SENDER, 0xFF), true, dt(message, 1), 10);
+        tp.receive(dtId(0x03, 0xFF), true, dt(other, 1), 10);
+        tp.receive(dtId(SENDER, 0xFF), true, dt(message, 2), 20);
+        assertEquals(VehicleBusJ1939Tp.RESULT_COMPLETE, tp.receive(dtId(0x03, 0xFF), true, dt(other, 2), 20));
+        assertEquals(0xFECA, tp.completedPgn);
+        assertArrayEquals(other, tp.completedData);
+
+        assertEquals(VehicleBusJ1939Tp.RESULT_COMPLETE, tp.receive(dtId(SENDER, 0xFF), true, dt(message, 3), 30));
+        assertEquals(PGN, tp.completedPgn);
+        assertArrayEquals(message, tp.completedData);
+    }
+
+    @Test
+    public void bamTimesOut() {
+        tp.receive(cmId(SENDER, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 20, 3, PGN), 0);
+        tp.receive(dtId(SENDER, 0xFF), true, dt(message, 1), 100);
+        tp.receive(dtId(SENDER, 0xFF), true, dt(message, 2), 100 + VehicleBusJ1939Tp.TIMEOUT_BAM_MS + 1);
+
+        assertEquals(1, tp.getTimeoutCount());
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, 0xFF), true, dt(message, 3), 900));
+        assertEquals(0, tp.getCompletedCount());
+    }
+
+    @Test
+    public void rtsCtsWaitsLongerThanBam() {
+        tp.receive(cmId(SENDER, RECEIVER), true, cm(VehicleBusJ1939Tp.CM_RTS, 20, 3, PGN), 0);
+        tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 1), 100);
+        tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 2), 100 + VehicleBusJ1939Tp.TIMEOUT_BAM_MS + 1);
+        assertEquals(0, tp.getTimeoutCount());
+
+        // a CTS from the receiver also keeps the transfer alive
+        tp.receive(cmId(RECEIVER, SENDER), true, cm(VehicleBusJ1939Tp.CM_CTS, 1, 3, PGN), 2000);
+        assertEquals(VehicleBusJ1939Tp.RESULT_COMPLETE,
+                tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 3), 2000 + VehicleBusJ1939Tp.TIMEOUT_RTS_CTS_MS));
+        assertEquals(0, tp.getTimeoutCount());
+    }
+
+    @Test
+    public void abortEndsTheTransfer() {
+        tp.receive(cmId(SENDER, RECEIVER), true, cm(VehicleBusJ1939Tp.CM_RTS, 20, 3, PGN), 0);
+        tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 1), 10);
+        // the receiver aborts
+        tp.receive(cmId(RECEIVER, SENDER), true, cm(VehicleBusJ1939Tp.CM_ABORT, 0, 0, PGN), 20);
+
+        assertEquals(1, tp.getAbortCount());
+        tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 2), 30);
+        assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, RECEIVER), true, dt(message, 3), 40));
+    }
+
+    @Test
+    public void invalidAnnouncementIsIgnored() {
+        // 20 bytes need 3 packets
+        tp.receive(cmId(SENDER, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 20, 4, PGN), 0);
+        for (int packet = 1; packet <= 4; packet++) {
+            assertEquals(VehicleBusJ1939Tp.RESULT_CONSUMED, tp.receive(dtId(SENDER, 0xFF), true, dt(message, packet), 10));
+        }
+        assertEquals(0, tp.getCompletedCount());
+    }
+
+    @Test
+    public void newAnnouncementReplacesTransferInProgress() {
+        byte[] second = new byte[10];
+        tp.receive(cmId(SENDER, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 20, 3, PGN), 0);
+        tp.receive(dtId(SENDER, 0xFF), true, dt(message, 1), 10);
+        tp.receive(cmId(SENDER, 0xFF), true, cm(VehicleBusJ1939Tp.CM_BAM, 10, 2, 0xFECA), 20);
+
+        tp.receive(dtId(SENDER, 0xFF), true, dt(second, 1), 30);
+        assertEquals(VehicleBusJ1939Tp.RESULT_COMPLETE, tp.receive(dtId(SENDER, 0xFF), true, dt(second, 2), 40));
+        assertEquals(0xFECA, tp.completedPgn);
+        assertArrayEquals(second, tp.completedData);
+    }
+}
@@ -0,0 +1,228 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusJ1939TpTxTest {
+
+    static final long MS = 1000000L;
+    static final int SOURCE = 0x21;
+    static final int DESTINATION = 0x33;
+
+    static class Result {
+        int transferId;
+        int pgn;
+        int result;
+    }
+
+    VehicleBusJ1939TpTx tpTx;
+    VehicleBusTxScheduler scheduler;
+    ArrayList<Result> results;
+    byte[] message;
+
+    @Before
+    public void setUp() {
+        results = new ArrayList<Result>();
+        tpTx = new VehicleBusJ1939TpTx(new VehicleBusJ1939TpTx.ResultListener() {
+            @Override
+            public void onJ1939TxResult(int transferId, int pgn, int source, int destination, int result) {
+                Result r = new Result();
+                r.transferId = transferId;
+                r.pgn = pgn;
+                r.result = result;
+                results.add(r);
+            }
+        });
+        scheduler = new VehicleBusTxScheduler(64);
+        message = new byte[20];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i + 1);
+        }
+    }
+
+    // a TP.CM frame from the node we are sending to
+    static byte[] cm(int control, int b1, int b2, int pgn) {
+        return new byte[] {(byte) control, (byte) b1, (byte) b2, (byte) 0xFF, (byte) 0xFF,
+                (byte) pgn, (byte) (pgn >> 8), (byte) (pgn >> 16)};
+    }
+
+    static int cmIdFromDestination() {
+        return (7 << 26) | (VehicleBusJ1939Tp.PF_TP_CM << 16) | (SOURCE << 8) | DESTINATION;
+    }
+
+    @Test
+    public void getId() {
+        // PDU2: the PS byte is part of the PGN
+        assertEquals(0x18FEF121, VehicleBusJ1939TpTx.getId(6, 0xFEF1, 0x33, 0x21));
+        // PDU1: the PS byte is the destination
+        assertEquals(0x18EF3321, VehicleBusJ1939TpTx.getId(6, 0xEF00, 0x33, 0x21));
+    }
+
+    @Test
+    public void singleFrame() {
+        byte[] data = new byte[] {1, 2, 3, 4, 5, 6, 7, 8};
+        assertTrue(tpTx.send(7, 6, 0xFEF1, SOURCE, 0xFF, data));
+        tpTx.service(0, scheduler);
+
+        VehicleBusWrapper.CANFrame frame = scheduler.remove();
+        assertEquals(0x18FEF121, frame.getId());
+        assertArrayEquals(data, frame.getData());
+        assertNull(scheduler.remove());
+
+        assertEquals(1, results.size());
+        assertEquals(7, results.get(0).transferId);
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_SUCCESS, results.get(0).result);
+    }
+
+    @Test
+    public void invalidMessages() {
+        assertFalse(tpTx.send(1, 6, 0xFEF1, SOURCE, 0xFF, new byte[0]));
+        assertFalse(tpTx.send(1, 6, 0xFEF1, SOURCE, 0xFF, new byte[VehicleBusJ1939Tp.MAX_MESSAGE_SIZE + 1]));
+        assertFalse(tpTx.send(1, 8, 0xFEF1, SOURCE, 0xFF, message));
+        // a PDU2 PGN can not be sent to one address
+        assertFalse(tpTx.send(1, 6, 0xFEF1, SOURCE, DESTINATION, message));
+    }
+
+    @Test
+    public void bamIsPacedFromWhenEachFrameIsWritten() {
+        assertTrue(tpTx.send(1, 7, 0xFEE3, SOURCE, 0xFF, message));
+        tpTx.service(0, scheduler);
+
+        VehicleBusWrapper.CANFrame bam = scheduler.remove();
+        assertEquals((7 << 26) | (0xEC << 16) | (0xFF << 8) | SOURCE, bam.getId());
+        assertArrayEquals(new byte[] {(byte) VehicleBusJ1939Tp.CM_BAM, 20, 0, 3, (byte) 0xFF, (byte) 0xE3, (byte) 0xFE, 0},
+                bam.getData());
+
+        // nothing more until the announcement is written, however long that takes
+        tpTx.service(500 * MS, scheduler);
+        assertTrue(scheduler.isEmpty());
+        tpTx.frameWritten(bam, 510 * MS);
+
+        long written = 510 * MS;
+        for (int packet = 1; packet <= 3; packet++) {
+            long due = written + VehicleBusJ1939TpTx.BAM_PACKET_INTERVAL_MS * MS;
+            tpTx.service(due - 1, scheduler);
+            assertTrue(scheduler.isEmpty());
+            tpTx.service(due, scheduler);
+
+            VehicleBusWrapper.CANFrame dt = scheduler.remove();
+            assertNotNull(dt);
+            assertNull(scheduler.remove());
+            assertEquals((7 << 26) | (0xEB << 16) | (0xFF << 8) | SOURCE, dt.getId());
+            assertEquals(packet, dt.getData()[0]);
+
+            written = due + 5 * MS;
+            tpTx.frameWritten(dt, written);
+        }
+
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_SUCCESS, results.get(0).result);
+    }
+
+    @Test
+    public void lastPacketIsPadded() {
+        tpTx.send(1, 7, 0xFEE3, SOURCE, 0xFF, message);
+        tpTx.service(0, scheduler);
+        tpTx.frameWritten(scheduler.remove(), 0);
+
+        VehicleBusWrapper.CANFrame dt = null;
+        long now = 0;
+        for (int packet = 1; packet <= 3; packet++) {
+            now += VehicleBusJ1939TpTx.BAM_PACKET_INTERVAL_MS * MS;
+            tpTx.service(now, scheduler);
+            dt = scheduler.remove();
+            tpTx.frameWritten(dt, now);
+        }
+        // packet 3 holds bytes 15..20, then padding
+        assertArrayEquals(new byte[] {3, 15, 16, 17, 18, 19, 20, (byte) 0xFF}, dt.getData());
+    }
+
+    @Test
+    public void rtsCts() {
+        assertTrue(tpTx.send(1, 7, 0xEF00, SOURCE, DESTINATION, message));
+        tpTx.service(0, scheduler);
+
+        VehicleBusWrapper.CANFrame rts = scheduler.remove();
+        assertEquals((7 << 26) | (0xEC << 16) | (DESTINATION << 8) | SOURCE, rts.getId());
+        assertEquals(VehicleBusJ1939Tp.CM_RTS, rts.getData()[0]);
+
+        // the receiver asks for 2 packets starting at 1
+        assertTrue(tpTx.receive(cmIdFromDestination(), true, cm(VehicleBusJ1939Tp.CM_CTS, 2, 1, 0xEF00)));
+        tpTx.service(10 * MS, scheduler);
+        assertEquals(1, scheduler.remove().getData()[0]);
+        assertEquals(2, scheduler.remove().getData()[0]);
+        assertNull(scheduler.remove());
+
+        // then for packet 3
+        tpTx.receive(cmIdFromDestination(), true, cm(VehicleBusJ1939Tp.CM_CTS, 1, 3, 0xEF00));
+        tpTx.service(20 * MS, scheduler);
+        assertEquals(3, scheduler.remove().getData()[0]);
+        assertTrue(results.isEmpty());
+
+        // and acknowledges the end
+        tpTx.receive(cmIdFromDestination(), true, cm(VehicleBusJ1939Tp.CM_EOM_ACK, 20, 0, 0xEF00));
+        tpTx.service(30 * MS, scheduler);
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_SUCCESS, results.get(0).result);
+    }
+
+    @Test
+    public void rtsCtsTimesOut() {
+        tpTx.send(1, 7, 0xEF00, SOURCE, DESTINATION, message);
+        tpTx.service(0, scheduler);
+        scheduler.remove();
+
+        tpTx.service(VehicleBusJ1939TpTx.TIMEOUT_T3_MS * MS - 1, scheduler);
+        assertTrue(results.isEmpty());
+
+        tpTx.service(VehicleBusJ1939TpTx.TIMEOUT_T3_MS * MS, scheduler);
+        VehicleBusWrapper.CANFrame abort = scheduler.remove();
+        assertEquals((byte) VehicleBusJ1939Tp.CM_ABORT, abort.getData()[0]);
+        assertEquals(VehicleBusJ1939TpTx.ABORT_REASON_TIMEOUT, abort.getData()[1]);
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusJ1939TpTx.ABORT_REASON_TIMEOUT, results.get(0).result);
+    }
+
+    @Test
+    public void abortedByReceiver() {
+        tpTx.send(1, 7, 0xEF00, SOURCE, DESTINATION, message);
+        tpTx.service(0, scheduler);
+
+        tpTx.receive(cmIdFromDestination(), true, cm(VehicleBusJ1939Tp.CM_ABORT, 0, 0xFF, 0xEF00));
+        tpTx.service(10 * MS, scheduler);
+        assertEquals(1, results.size());
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_ABORTED, results.get(0).result);
+    }
+
+    @Test
+    public void oneTransferAtATimeToEachDestination() {
+        tpTx.send(1, 7, 0xEF00, SOURCE, DESTINATION, message);
+        tpTx.send(2, 7, 0xEF00, SOURCE, DESTINATION, message);
+        tpTx.service(0, scheduler);
+
+        assertEquals(1, results.size());
+        assertEquals(2, results.get(0).transferId);
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_BUSY, results.get(0).result);
+    }
+
+    @Test
+    public void ignoresControlFramesWithoutTransfers() {
+        assertFalse(tpTx.receive(cmIdFromDestination(), true, cm(VehicleBusJ1939Tp.CM_CTS, 1, 1, 0xEF00)));
+    }
+
+    @Test
+    public void cancelAll() {
+        tpTx.send(1, 7, 0xEF00, SOURCE, DESTINATION, message);
+        tpTx.service(0, scheduler);
+        tpTx.send(2, 7, 0xFEE3, SOURCE, 0xFF, message);
+
+        tpTx.cancelAll();
+        assertEquals(2, results.size());
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_CANCELLED, results.get(0).result);
+        assertEquals(VehicleBusConstants.J1939_TX_RESULT_CANCELLED, results.get(1).result);
+    }
+}
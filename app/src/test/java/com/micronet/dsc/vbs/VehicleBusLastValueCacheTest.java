@@ -0,0 +1,95 @@
+package com.micronet.dsc.vbs;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+// Robolectric for the snapshot Bundle
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class VehicleBusLastValueCacheTest {
+
+    @Test
+    public void keepsTheLatestValue() {
+        VehicleBusLastValueCache cache = new VehicleBusLastValueCache();
+        cache.update(0x18FEF100, true, new byte[] {1, 2}, 100);
+        cache.update(0x18FEF100, true, new byte[] {3}, 200);
+        assertEquals(1, cache.size());
+
+        Bundle bundle = cache.snapshot(null);
+        assertEquals(1, bundle.getInt(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT));
+        assertArrayEquals(new int[] {0x18FEF100}, bundle.getIntArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS));
+        assertArrayEquals(new long[] {200}, bundle.getLongArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS));
+        assertArrayEquals(new byte[] {1}, bundle.getByteArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_LENGTHS));
+        assertArrayEquals(new byte[] {3, 0, 0, 0, 0, 0, 0, 0}, bundle.getByteArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_DATA));
+        assertArrayEquals(new long[] {2}, bundle.getLongArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_CACHE_COUNTS));
+    }
+
+    @Test
+    public void standardAndExtendedAreKeptApart() {
+        VehicleBusLastValueCache cache = new VehicleBusLastValueCache();
+        cache.update(0x100, false, new byte[] {1}, 100);
+        cache.update(0x100, true, new byte[] {2}, 200);
+        assertEquals(2, cache.size());
+
+        // asked for by id, the 11-bit frame comes first
+        Bundle bundle = cache.snapshot(new int[] {0x100});
+        assertEquals(2, bundle.getInt(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT));
+        assertArrayEquals(new int[] {0x100, 0x100}, bundle.getIntArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS));
+        assertArrayEquals(new byte[] {VehicleBusConstants.CAN_FRAME_TYPE_STANDARD, VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED},
+                bundle.getByteArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TYPES));
+        assertArrayEquals(new long[] {100, 200}, bundle.getLongArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS));
+    }
+
+    @Test
+    public void idsNeverReceivedAreLeftOut() {
+        VehicleBusLastValueCache cache = new VehicleBusLastValueCache();
+        cache.update(0x18FEF100, true, new byte[] {1}, 100);
+
+        Bundle bundle = cache.snapshot(new int[] {0x18FEF200, 0x18FEF100, 0x123});
+        assertEquals(1, bundle.getInt(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT));
+        assertArrayEquals(new int[] {0x18FEF100}, bundle.getIntArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS));
+    }
+
+    @Test
+    public void growsAndKeepsEverything() {
+        VehicleBusLastValueCache cache = new VehicleBusLastValueCache();
+        int n = VehicleBusLastValueCache.INITIAL_CAPACITY * 2;
+        for (int i = 0; i < n; i++) {
+            cache.update(0x18FE0000 + i, true, new byte[] {(byte) i}, i);
+        }
+        assertEquals(n, cache.size());
+
+        Bundle bundle = cache.snapshot(new int[] {0x18FE0000 + 300});
+        assertArrayEquals(new long[] {300}, bundle.getLongArray(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS));
+        assertEquals(n, cache.snapshot(null).getInt(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT));
+    }
+
+    @Test
+    public void stopsAddingIdsWhenFull() {
+        VehicleBusLastValueCache cache = new VehicleBusLastValueCache();
+        for (int i = 0; i < VehicleBusLastValueCache.SAFETY_MAX_IDS + 5; i++) {
+            cache.update(i, true, new byte[1], 0);
+        }
+        assertEquals(VehicleBusLastValueCache.SAFETY_MAX_IDS, cache.size());
+        assertEquals(5, cache.droppedIdCount);
+
+        // ids already cached are still updated
+        cache.update(0, true, new byte[1], 0);
+        assertEquals(5, cache.droppedIdCount);
+    }
+
+    @Test
+    public void clear() {
+        VehicleBusLastValueCache cache = new VehicleBusLastValueCache();
+        cache.update(0x123, false, new byte[1], 0);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.snapshot(null).getInt(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT));
+    }
+}
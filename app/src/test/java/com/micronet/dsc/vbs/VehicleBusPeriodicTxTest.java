@@ -0,0 +1,174 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusPeriodicTxTest {
+
+    static final long MS = 1000000L;
+    static final long BASE = 5000 * MS; // any time the write thread might start at
+
+    VehicleBusPeriodicTx periodicTx;
+    VehicleBusTxScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        periodicTx = new VehicleBusPeriodicTx();
+        scheduler = new VehicleBusTxScheduler(16);
+        periodicTx.restart(BASE);
+    }
+
+    @Test
+    public void invalidRegistrations() {
+        assertFalse(periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[0], 100, null));
+        assertFalse(periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 0, null));
+        assertEquals(0, periodicTx.size());
+    }
+
+    @Test
+    public void sentRightAwayThenEveryPeriod() {
+        assertTrue(periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1, 2}, 100, null));
+
+        periodicTx.collectDue(BASE, scheduler);
+        VehicleBusWrapper.CANFrame frame = scheduler.remove();
+        assertEquals(0x18FEF121, frame.getId());
+        assertArrayEquals(new byte[] {1, 2}, frame.getData());
+
+        periodicTx.collectDue(BASE + 99 * MS, scheduler);
+        assertTrue(scheduler.isEmpty());
+
+        periodicTx.collectDue(BASE + 100 * MS, scheduler);
+        assertNotNull(scheduler.remove());
+        // queued at its deadline, so it ages from when it was due
+        periodicTx.collectDue(BASE + 205 * MS, scheduler);
+        assertEquals(BASE + 200 * MS, scheduler.peekEnqueueNanos());
+
+        assertEquals(3, periodicTx.getSentCount());
+        assertEquals(0, periodicTx.getMissedCount());
+    }
+
+    @Test
+    public void getNanosUntilNext() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 100, null);
+        assertEquals(0, periodicTx.getNanosUntilNext(BASE, 1000 * MS));
+
+        periodicTx.collectDue(BASE, scheduler);
+        assertEquals(100 * MS, periodicTx.getNanosUntilNext(BASE, 1000 * MS));
+        assertEquals(60 * MS, periodicTx.getNanosUntilNext(BASE + 40 * MS, 1000 * MS));
+        assertEquals(10 * MS, periodicTx.getNanosUntilNext(BASE, 10 * MS));
+    }
+
+    @Test
+    public void periodLongerThanTheWheel() {
+        int periodMs = VehicleBusPeriodicTx.WHEEL_SLOTS * 3 + 7;
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, periodMs, null);
+        periodicTx.collectDue(BASE, scheduler);
+        scheduler.remove();
+
+        // checked every ms, as the write thread would
+        long now = BASE;
+        while (scheduler.isEmpty()) {
+            now += MS;
+            periodicTx.collectDue(now, scheduler);
+        }
+        assertEquals(BASE + periodMs * MS, now);
+    }
+
+    @Test
+    public void missedPeriodsAreSkipped() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 10, null);
+        periodicTx.collectDue(BASE, scheduler);
+
+        // the write thread was away for 35 ms: one frame for the 10 ms deadline, 20 and 30 are skipped
+        periodicTx.collectDue(BASE + 35 * MS, scheduler);
+        assertEquals(2, periodicTx.getSentCount());
+        assertEquals(2, periodicTx.getMissedCount());
+        assertEquals(10 * MS, periodicTx.getNanosUntilNext(BASE + 30 * MS, 1000 * MS));
+    }
+
+    @Test
+    public void schedulerFullCountsAsMissed() {
+        VehicleBusTxScheduler full = new VehicleBusTxScheduler(1);
+        full.add(new VehicleBusWrapper.CANFrame(0x123, new byte[] {0}, VehicleBusWrapper.CANFrameType.STANDARD), 0);
+
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 10, null);
+        periodicTx.collectDue(BASE, full);
+        assertEquals(0, periodicTx.getSentCount());
+        assertEquals(1, periodicTx.getMissedCount());
+    }
+
+    @Test
+    public void updaterChangesEachFrame() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {0, 9}, 10,
+                new VehicleBusPeriodicTx.PayloadUpdater() {
+                    int counter = 0;
+
+                    @Override
+                    public void update(int handle, byte[] data) {
+                        data[0] = (byte) ++counter;
+                    }
+                });
+
+        for (int i = 1; i <= 3; i++) {
+            periodicTx.collectDue(BASE + (i - 1) * 10 * MS, scheduler);
+            assertArrayEquals(new byte[] {(byte) i, 9}, scheduler.remove().getData());
+        }
+    }
+
+    @Test
+    public void dataChangeKeepsSchedule() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 100, null);
+        periodicTx.collectDue(BASE, scheduler);
+        scheduler.remove();
+
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {2}, 100, null);
+        periodicTx.collectDue(BASE + 50 * MS, scheduler);
+        assertTrue(scheduler.isEmpty());
+
+        periodicTx.collectDue(BASE + 100 * MS, scheduler);
+        assertArrayEquals(new byte[] {2}, scheduler.remove().getData());
+    }
+
+    @Test
+    public void periodChangeSendsRightAway() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 100, null);
+        periodicTx.collectDue(BASE, scheduler);
+        scheduler.remove();
+
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 20, null);
+        periodicTx.collectDue(BASE + 50 * MS, scheduler);
+        assertNotNull(scheduler.remove());
+
+        // only the new registration is left
+        periodicTx.collectDue(BASE + 100 * MS, scheduler);
+        assertEquals(1, scheduler.size());
+        assertEquals(1, periodicTx.size());
+    }
+
+    @Test
+    public void cancelStopsSending() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 10, null);
+        periodicTx.set(2, 0x18FEF221, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {2}, 10, null);
+        periodicTx.collectDue(BASE, scheduler);
+        scheduler.clear();
+
+        assertTrue(periodicTx.cancel(1));
+        assertFalse(periodicTx.cancel(1));
+        periodicTx.collectDue(BASE + 10 * MS, scheduler);
+        assertEquals(1, scheduler.size());
+        assertEquals(0x18FEF221, scheduler.remove().getId());
+    }
+
+    @Test
+    public void restartSendsEverythingRightAway() {
+        periodicTx.set(1, 0x18FEF121, VehicleBusWrapper.CANFrameType.EXTENDED, new byte[] {1}, 1000, null);
+        periodicTx.collectDue(BASE, scheduler);
+        scheduler.clear();
+
+        periodicTx.restart(BASE + 10 * MS);
+        periodicTx.collectDue(BASE + 10 * MS, scheduler);
+        assertEquals(1, scheduler.size());
+    }
+}
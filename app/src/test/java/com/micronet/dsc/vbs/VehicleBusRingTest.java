@@ -0,0 +1,143 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusRingTest {
+
+    static final int CAPACITY = 4;
+
+    ByteBuffer region;
+    VehicleBusRing ring;
+    VehicleBusRingReader.Frame frame;
+
+    @Before
+    public void setUp() {
+        region = ByteBuffer.allocate(VehicleBusRing.getSize(CAPACITY));
+        ring = new VehicleBusRing(region, CAPACITY);
+        frame = new VehicleBusRingReader.Frame();
+    }
+
+    // the reader gets its own view of the region, like a client mapping it
+    VehicleBusRingReader newReader() {
+        return new VehicleBusRingReader(region.duplicate());
+    }
+
+    void writeCan(int marker) {
+        ring.write(VehicleBusConstants.RING_BUS_CAN, 0x18FEF100, VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED, 6,
+                new byte[] {(byte) marker}, marker);
+    }
+
+    @Test
+    public void readsWhatWasWritten() {
+        VehicleBusRingReader reader = newReader();
+
+        ring.write(VehicleBusConstants.RING_BUS_CAN2, 0x0CF00400, VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED, 3,
+                new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, 1234);
+        ring.write(VehicleBusConstants.RING_BUS_CAN, 0x123, VehicleBusConstants.CAN_FRAME_TYPE_STANDARD, 0,
+                new byte[] {9}, 1235);
+
+        assertEquals(2, reader.available());
+        assertTrue(reader.next(frame));
+        assertEquals(0, frame.seq);
+        assertEquals(VehicleBusConstants.RING_BUS_CAN2, frame.bus);
+        assertEquals(0x0CF00400, frame.id);
+        assertEquals(VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED, frame.type);
+        assertEquals(3, frame.priority);
+        assertEquals(1234, frame.elapsedRealtime);
+        assertEquals(8, frame.length);
+        assertEquals(8, frame.data[7]);
+
+        assertTrue(reader.next(frame));
+        assertEquals(1, frame.seq);
+        assertEquals(0x123, frame.id);
+        assertEquals(VehicleBusConstants.CAN_FRAME_TYPE_STANDARD, frame.type);
+        assertEquals(1, frame.length);
+        assertEquals(9, frame.data[0]);
+
+        assertFalse(reader.next(frame));
+        assertEquals(0, reader.getLostCount());
+    }
+
+    @Test
+    public void startsWithTheNextFrameWritten() {
+        writeCan(1);
+        VehicleBusRingReader reader = newReader();
+        assertFalse(reader.next(frame));
+
+        writeCan(2);
+        assertTrue(reader.next(frame));
+        assertEquals(2, frame.data[0]);
+    }
+
+    @Test
+    public void longDataIsCut() {
+        VehicleBusRingReader reader = newReader();
+        ring.write(VehicleBusConstants.RING_BUS_J1708, 0x80, 0, 3, new byte[40], 0);
+
+        assertTrue(reader.next(frame));
+        assertEquals(VehicleBusConstants.RING_RECORD_MAX_DATA, frame.length);
+    }
+
+    @Test
+    public void lappedReaderCountsWhatItLost() {
+        VehicleBusRingReader reader = newReader();
+        for (int i = 0; i < CAPACITY + 3; i++) {
+            writeCan(i);
+        }
+
+        // the oldest frame still in the ring
+        assertTrue(reader.next(frame));
+        assertEquals(3, frame.seq);
+        assertEquals(3, frame.lostBefore);
+        assertEquals(3, frame.data[0]);
+        assertEquals(3, reader.getLostCount());
+
+        for (int i = 4; i < CAPACITY + 3; i++) {
+            assertTrue(reader.next(frame));
+            assertEquals(0, frame.lostBefore);
+        }
+        assertFalse(reader.next(frame));
+    }
+
+    @Test
+    public void recordBeingWrittenIsNotRead() {
+        VehicleBusRingReader reader = newReader();
+        writeCan(1);
+
+        // as if the writer was in the middle of the record
+        region.putLong(VehicleBusConstants.RING_HEADER_SIZE + VehicleBusConstants.RING_RECORD_OFFSET_SEQ,
+                VehicleBusConstants.RING_SEQ_WRITING);
+        assertFalse(reader.next(frame));
+
+        region.putLong(VehicleBusConstants.RING_HEADER_SIZE + VehicleBusConstants.RING_RECORD_OFFSET_SEQ, 0);
+        assertTrue(reader.next(frame));
+    }
+
+    @Test
+    public void halfWrittenRecordFailsTheChecksum() {
+        VehicleBusRingReader reader = newReader();
+        writeCan(1);
+
+        region.put(VehicleBusConstants.RING_HEADER_SIZE + VehicleBusConstants.RING_RECORD_OFFSET_DATA, (byte) 2);
+        assertFalse(reader.next(frame));
+        assertEquals(1, reader.available());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notARing() {
+        new VehicleBusRingReader(ByteBuffer.allocate(VehicleBusRing.getSize(CAPACITY)));
+    }
+
+    @Test
+    public void closedRingIgnoresWrites() {
+        VehicleBusRingReader reader = newReader();
+        ring.close();
+        writeCan(1);
+        assertEquals(0, reader.available());
+    }
+}
@@ -0,0 +1,106 @@
+package com.micronet.dsc.vbs;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+// Robolectric for the Intent extras
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class VehicleBusRxBatchTest {
+
+    ArrayList<Intent> broadcasts;
+    ContextWrapper context;
+
+    @Before
+    public void setUp() {
+        broadcasts = new ArrayList<Intent>();
+        context = new ContextWrapper(null) {
+            @Override
+            public void sendBroadcast(Intent intent) {
+                broadcasts.add(intent);
+            }
+        };
+    }
+
+    static VehicleBusWrapper.CANFrame frame(int id, VehicleBusWrapper.CANFrameType type, int marker) {
+        return new VehicleBusWrapper.CANFrame(id, new byte[] {(byte) marker}, type);
+    }
+
+    @Test
+    public void limits() {
+        VehicleBusRxBatch batch = new VehicleBusRxBatch(context, 2, null, true, 0, 0);
+        assertEquals(VehicleBusRxBatch.DEFAULT_MAX_FRAMES, batch.maxFrames);
+        assertEquals(VehicleBusRxBatch.DEFAULT_MAX_MS, batch.maxMs);
+
+        batch.configure(true, 100000, 5);
+        assertEquals(VehicleBusRxBatch.SAFETY_MAX_FRAMES, batch.maxFrames);
+        assertEquals(5, batch.maxMs);
+    }
+
+    @Test
+    public void sentWhenFull() {
+        VehicleBusRxBatch batch = new VehicleBusRxBatch(context, 2, null, true, 2, 1000);
+
+        batch.add(frame(0x18FEF100, VehicleBusWrapper.CANFrameType.EXTENDED, 1), 100);
+        assertTrue(broadcasts.isEmpty());
+        batch.add(frame(0x7E8, VehicleBusWrapper.CANFrameType.STANDARD, 2), 101);
+        assertEquals(1, broadcasts.size());
+
+        Intent intent = broadcasts.get(0);
+        assertEquals(VehicleBusConstants.BROADCAST_CAN_RX_BATCH, intent.getAction());
+        assertEquals(2, intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, -1));
+        assertEquals(2, intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT, -1));
+        assertArrayEquals(new int[] {0x18FEF100, 0x7E8}, intent.getIntArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_IDS));
+        assertArrayEquals(new byte[] {VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED, VehicleBusConstants.CAN_FRAME_TYPE_STANDARD},
+                intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TYPES));
+        assertArrayEquals(new long[] {100, 101}, intent.getLongArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_TIMESTAMPS));
+        assertArrayEquals(new byte[] {1, 1}, intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_LENGTHS));
+        assertEquals(16, intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_DATA).length);
+    }
+
+    @Test
+    public void flushSendsWhatIsWaiting() {
+        VehicleBusRxBatch batch = new VehicleBusRxBatch(context, 1, null, true, 8, 1000);
+
+        batch.flush();
+        assertTrue(broadcasts.isEmpty());
+
+        batch.add(frame(0x18FEF100, VehicleBusWrapper.CANFrameType.EXTENDED, 1), 100);
+        batch.flush();
+        assertEquals(1, broadcasts.size());
+        assertEquals(1, broadcasts.get(0).getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_BATCH_COUNT, -1));
+    }
+
+    @Test
+    public void configureSendsWhatIsWaiting() {
+        VehicleBusRxBatch batch = new VehicleBusRxBatch(context, 1, null, true, 8, 1000);
+        batch.add(frame(0x18FEF100, VehicleBusWrapper.CANFrameType.EXTENDED, 1), 100);
+
+        // nothing changed, so the batch keeps collecting
+        batch.configure(true, 8, 1000);
+        assertTrue(broadcasts.isEmpty());
+
+        batch.configure(true, 4, 1000);
+        assertEquals(1, broadcasts.size());
+        assertEquals(4, batch.frames.capacity);
+    }
+
+    @Test
+    public void noBroadcastWithoutClients() {
+        VehicleBusRxBatch batch = new VehicleBusRxBatch(context, 1, null, false, 1, 1000);
+        assertFalse(batch.isWanted());
+
+        batch.add(frame(0x18FEF100, VehicleBusWrapper.CANFrameType.EXTENDED, 1), 100);
+        assertTrue(broadcasts.isEmpty());
+    }
+}
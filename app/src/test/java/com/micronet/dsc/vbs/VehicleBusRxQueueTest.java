@@ -0,0 +1,84 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusRxQueueTest {
+
+    @Test
+    public void publishAndPeekInOrder() {
+        VehicleBusRxQueue queue = new VehicleBusRxQueue(4);
+
+        VehicleBusWrapper.CANFrame first = queue.claim();
+        assertTrue(queue.publish(first, 100));
+        VehicleBusWrapper.CANFrame second = queue.claim();
+        assertNotSame(first, second);
+        assertTrue(queue.publish(second, 200));
+        assertEquals(2, queue.size());
+
+        assertSame(first, queue.peek());
+        assertEquals(100, queue.polledTimestamp);
+        // peek() without release() keeps returning the same frame
+        assertSame(first, queue.peek());
+        queue.release();
+
+        assertSame(second, queue.peek());
+        assertEquals(200, queue.polledTimestamp);
+        queue.release();
+
+        assertNull(queue.peek());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void capacityRoundsUpToPowerOf2() {
+        VehicleBusRxQueue queue = new VehicleBusRxQueue(5);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(queue.publish(queue.claim(), i));
+        }
+        assertFalse(queue.publish(queue.claim(), 8));
+        assertEquals(8, queue.size());
+    }
+
+    @Test
+    public void overflowDropsNewest() {
+        VehicleBusRxQueue queue = new VehicleBusRxQueue(2);
+
+        VehicleBusWrapper.CANFrame first = queue.claim();
+        queue.publish(first, 1);
+        queue.publish(queue.claim(), 2);
+
+        assertFalse(queue.publish(queue.claim(), 3));
+        assertFalse(queue.publish(queue.claim(), 4));
+        assertEquals(2, queue.getOverflowCount());
+        assertEquals(2, queue.getHighWaterMark());
+
+        // the frames that were queued are untouched
+        assertSame(first, queue.peek());
+        assertEquals(1, queue.polledTimestamp);
+        queue.release();
+
+        // and the released slot can be used again
+        VehicleBusWrapper.CANFrame reused = queue.claim();
+        assertSame(first, reused);
+        assertTrue(queue.publish(reused, 5));
+    }
+
+    @Test
+    public void slotsAreReusedAroundTheRing() {
+        VehicleBusRxQueue queue = new VehicleBusRxQueue(4);
+
+        for (int i = 0; i < 100; i++) {
+            VehicleBusWrapper.CANFrame frame = queue.claim();
+            assertTrue(queue.publish(frame, i));
+            assertSame(frame, queue.peek());
+            assertEquals(i, queue.polledTimestamp);
+            queue.release();
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(1, queue.getHighWaterMark());
+        assertEquals(0, queue.getOverflowCount());
+    }
+}
@@ -0,0 +1,128 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusSoftFilterTest {
+
+    // 29-bit id for a PGN, priority 6
+    static int j1939Id(int pgn, int source) {
+        return (6 << 26) | (pgn << 8) | source;
+    }
+
+    @Test
+    public void noFiltersAcceptsEverything() {
+        assertNull(VehicleBusSoftFilter.create(null, null, null, null, null));
+        assertNull(VehicleBusSoftFilter.create(new int[0], new int[0], new int[0], new int[0], new int[0]));
+    }
+
+    @Test
+    public void getPgn() {
+        assertEquals(0xFEF1, VehicleBusSoftFilter.getPgn(0x18FEF100));
+        // PDU1: the destination address is not part of the PGN
+        assertEquals(0xEA00, VehicleBusSoftFilter.getPgn(0x18EA21F9));
+        assertEquals(0xEA00, VehicleBusSoftFilter.getPgn(0x18EAFFF9));
+        // the data page bit is
+        assertEquals(0x1FEF1, VehicleBusSoftFilter.getPgn(0x19FEF100));
+    }
+
+    @Test
+    public void exactIds() {
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(new int[] {0x18FEF100, 0x123}, null, null, null, null);
+
+        assertTrue(filter.accept(0x18FEF100, true));
+        assertTrue(filter.accept(0x123, false));
+        assertFalse(filter.accept(0x18FEF200, true));
+        assertFalse(filter.accept(0x124, false));
+
+        assertEquals(2, filter.getAcceptedCount());
+        assertEquals(2, filter.getRejectedCount());
+    }
+
+    @Test
+    public void manyExactIds() {
+        int[] ids = new int[200];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = j1939Id(0xFF00 + i, i);
+        }
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(ids, null, null, null, null);
+
+        for (int id : ids) {
+            assertTrue(filter.accept(id, true));
+            assertFalse(filter.accept(id + 1, true));
+        }
+    }
+
+    @Test
+    public void pgnRange() {
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(null, new int[] {0xFEF0}, new int[] {0xFEFF}, null, null);
+
+        assertTrue(filter.accept(j1939Id(0xFEF0, 0x00), true));
+        assertTrue(filter.accept(j1939Id(0xFEF1, 0x21), true));
+        assertTrue(filter.accept(j1939Id(0xFEFF, 0xFE), true));
+        assertFalse(filter.accept(j1939Id(0xFEEF, 0x00), true));
+        assertFalse(filter.accept(j1939Id(0xFF00, 0x00), true));
+    }
+
+    @Test
+    public void pgnRangeDoesNotMatchStandardFrames() {
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(null, new int[] {0}, new int[] {0xFF}, null, null);
+
+        // an extended id with PGN 0 matches
+        assertTrue(filter.accept(0x18000701, true));
+        // the same low bits in an 11-bit id have no PGN
+        assertFalse(filter.accept(0x701, false));
+        assertFalse(filter.accept(0x7FF, false));
+    }
+
+    @Test
+    public void pgnRangeOfPdu1IgnoresDestination() {
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(null, new int[] {0xEA00}, new int[] {0xEA00}, null, null);
+
+        assertTrue(filter.accept(0x18EA21F9, true));
+        assertTrue(filter.accept(0x18EAFFF9, true));
+        assertFalse(filter.accept(0x18EB21F9, true));
+    }
+
+    @Test
+    public void overlappingRangesAreMerged() {
+        // given out of order, reversed and overlapping
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(null,
+                new int[] {0xF020, 0xF010, 0xF000, 0xF011},
+                new int[] {0xF020, 0xF003, 0xF004, 0xF012}, null, null);
+
+        assertFalse(filter.accept(j1939Id(0xEFFF, 0), true));
+        assertTrue(filter.accept(j1939Id(0xF000, 0), true));
+        assertTrue(filter.accept(j1939Id(0xF008, 0), true));
+        assertTrue(filter.accept(j1939Id(0xF012, 0), true));
+        assertFalse(filter.accept(j1939Id(0xF013, 0), true));
+        assertFalse(filter.accept(j1939Id(0xF01F, 0), true));
+        assertTrue(filter.accept(j1939Id(0xF020, 0), true));
+        assertFalse(filter.accept(j1939Id(0xF021, 0), true));
+    }
+
+    @Test
+    public void masks() {
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(null, null, null,
+                new int[] {0x18FF0000, 0x700}, new int[] {0x1FFF0000, 0x7F0});
+
+        assertTrue(filter.accept(0x18FF1234, true));
+        assertFalse(filter.accept(0x18FE1234, true));
+        assertTrue(filter.accept(0x70F, false));
+        assertFalse(filter.accept(0x71F, false));
+    }
+
+    @Test
+    public void anyKindOfFilterMatches() {
+        VehicleBusSoftFilter filter = VehicleBusSoftFilter.create(new int[] {0x123},
+                new int[] {0xFEF1}, new int[] {0xFEF1},
+                new int[] {0x18FF0000}, new int[] {0x1FFF0000});
+
+        assertTrue(filter.accept(0x123, false));
+        assertTrue(filter.accept(j1939Id(0xFEF1, 0x00), true));
+        assertTrue(filter.accept(0x18FF0001, true));
+        assertFalse(filter.accept(0x124, false));
+        assertFalse(filter.accept(j1939Id(0xFEF2, 0x00), true));
+    }
+}
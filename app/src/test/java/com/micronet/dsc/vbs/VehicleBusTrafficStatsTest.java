@@ -0,0 +1,117 @@
+package com.micronet.dsc.vbs;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+// Robolectric for the snapshot Bundle
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class VehicleBusTrafficStatsTest {
+
+    static final float DELTA = 0.001f;
+
+    @Test
+    public void gapsOfOneId() {
+        VehicleBusTrafficStats stats = new VehicleBusTrafficStats();
+        stats.update(0x18FEF100, true, 8, 1000);
+        stats.update(0x18FEF100, true, 8, 1100);
+        stats.update(0x18FEF100, true, 8, 1150);
+
+        Bundle bundle = stats.snapshot(1150, 250000);
+        assertEquals(1, bundle.getInt(VehicleBusConstants.STATS_EXTRA_COUNT));
+        assertArrayEquals(new int[] {0x18FEF100}, bundle.getIntArray(VehicleBusConstants.STATS_EXTRA_IDS));
+        assertArrayEquals(new long[] {3}, bundle.getLongArray(VehicleBusConstants.STATS_EXTRA_FRAME_COUNTS));
+        assertArrayEquals(new long[] {50}, bundle.getLongArray(VehicleBusConstants.STATS_EXTRA_MIN_GAPS));
+        assertArrayEquals(new long[] {100}, bundle.getLongArray(VehicleBusConstants.STATS_EXTRA_MAX_GAPS));
+        // 2 gaps in 150 ms
+        assertEquals(2 * 1000.0f / 150, bundle.getFloatArray(VehicleBusConstants.STATS_EXTRA_RATES)[0], DELTA);
+        // the first gap sets the average, the second moves it by 1/16 of the difference
+        assertEquals(100 - 50 * VehicleBusTrafficStats.EWMA_WEIGHT, bundle.getFloatArray(VehicleBusConstants.STATS_EXTRA_AVG_GAPS)[0], DELTA);
+        assertEquals(50 * VehicleBusTrafficStats.EWMA_WEIGHT, bundle.getFloatArray(VehicleBusConstants.STATS_EXTRA_JITTERS)[0], DELTA);
+    }
+
+    @Test
+    public void singleFrameHasNoGaps() {
+        VehicleBusTrafficStats stats = new VehicleBusTrafficStats();
+        stats.update(0x123, false, 1, 1000);
+
+        Bundle bundle = stats.snapshot(1000, 250000);
+        assertArrayEquals(new long[] {0}, bundle.getLongArray(VehicleBusConstants.STATS_EXTRA_MIN_GAPS));
+        assertEquals(0, bundle.getFloatArray(VehicleBusConstants.STATS_EXTRA_RATES)[0], DELTA);
+    }
+
+    @Test
+    public void standardAndExtendedAreKeptApart() {
+        VehicleBusTrafficStats stats = new VehicleBusTrafficStats();
+        stats.update(0x100, false, 8, 1000);
+        stats.update(0x100, true, 8, 1000);
+        stats.update(0x100, true, 8, 1010);
+        assertEquals(2, stats.getIdCount());
+
+        Bundle bundle = stats.snapshot(1010, 250000);
+        byte[] types = bundle.getByteArray(VehicleBusConstants.STATS_EXTRA_TYPES);
+        long[] counts = bundle.getLongArray(VehicleBusConstants.STATS_EXTRA_FRAME_COUNTS);
+        for (int i = 0; i < 2; i++) {
+            assertEquals((types[i] == VehicleBusConstants.CAN_FRAME_TYPE_EXTENDED ? 2 : 1), counts[i]);
+        }
+    }
+
+    @Test
+    public void busLoad() {
+        VehicleBusTrafficStats stats = new VehicleBusTrafficStats();
+        assertEquals(0, stats.getBusLoadBitsPerSecond(0));
+
+        // 100 frames in the first window, each 67 + 64 bits plus (54 + 64) / 10 stuff bits
+        for (int i = 0; i < 100; i++) {
+            stats.update(0x18FEF100, true, 8, 1000 + i * 10);
+        }
+        // the first frame of the next window closes it
+        stats.update(0x18FEF100, true, 8, 2000);
+
+        assertEquals(14200, stats.getBusLoadBitsPerSecond(2000));
+        assertEquals(14200 * 100.0f / 250000, stats.getBusLoadPercent(2000, 250000), DELTA);
+        assertEquals(0, stats.getBusLoadPercent(2000, 0), DELTA);
+        assertEquals(101, stats.getTotalFrames());
+
+        // a quiet bus is measured from the start of the window that was never closed
+        assertEquals(142 / 2, stats.getBusLoadBitsPerSecond(4000));
+    }
+
+    @Test
+    public void growsAndKeepsEverything() {
+        VehicleBusTrafficStats stats = new VehicleBusTrafficStats();
+        int n = VehicleBusTrafficStats.INITIAL_CAPACITY * 2;
+        for (int i = 0; i < n; i++) {
+            stats.update(0x18FE0000 + i, true, 8, i);
+            stats.update(0x18FE0000 + i, true, 8, i + 10);
+        }
+        assertEquals(n, stats.getIdCount());
+
+        long[] counts = stats.snapshot(0, 250000).getLongArray(VehicleBusConstants.STATS_EXTRA_FRAME_COUNTS);
+        assertEquals(n, counts.length);
+        for (long count : counts) {
+            assertEquals(2, count);
+        }
+    }
+
+    @Test
+    public void dump() {
+        VehicleBusTrafficStats stats = new VehicleBusTrafficStats();
+        stats.update(0x7E8, false, 8, 1000);
+        stats.update(0x7E8, true, 8, 1000);
+
+        StringWriter out = new StringWriter();
+        stats.dump(new PrintWriter(out), 1000, 250000);
+        assertTrue(out.toString().contains("     7E8 "));
+        assertTrue(out.toString().contains("000007E8 "));
+    }
+}
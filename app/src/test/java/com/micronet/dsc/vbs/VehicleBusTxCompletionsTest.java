@@ -0,0 +1,104 @@
+package com.micronet.dsc.vbs;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+// Robolectric for the Intent extras
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class VehicleBusTxCompletionsTest {
+
+    static final long MS = 1000000L;
+
+    ArrayList<Intent> broadcasts;
+    VehicleBusTxCompletions completions;
+
+    @Before
+    public void setUp() {
+        broadcasts = new ArrayList<Intent>();
+        ContextWrapper context = new ContextWrapper(null) {
+            @Override
+            public void sendBroadcast(Intent intent) {
+                broadcasts.add(intent);
+            }
+        };
+        completions = new VehicleBusTxCompletions(context, "CAN", 2, null);
+    }
+
+    @Test
+    public void framesWithoutTxIdAreNotReported() {
+        completions.add(VehicleBusTxCompletions.NO_TX_ID, VehicleBusConstants.TX_RESULT_WRITTEN, 0, 0, 0);
+        assertFalse(completions.hasPending);
+        completions.flush();
+        assertTrue(broadcasts.isEmpty());
+    }
+
+    @Test
+    public void flushSendsOneBroadcast() {
+        completions.add(7, VehicleBusConstants.TX_RESULT_WRITTEN, 1000, 2000, 3000);
+        completions.add(8, VehicleBusConstants.TX_RESULT_DROPPED, 4000, 0, 0);
+        completions.flush();
+
+        assertEquals(1, broadcasts.size());
+        Intent intent = broadcasts.get(0);
+        assertEquals(VehicleBusConstants.BROADCAST_TX_COMPLETE, intent.getAction());
+        assertEquals("CAN", intent.getStringExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_BUS));
+        assertEquals(2, intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_CAN_NUMBER, -1));
+        assertEquals(2, intent.getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_COUNT, -1));
+        assertArrayEquals(new int[] {7, 8}, intent.getIntArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_IDS));
+        assertArrayEquals(new byte[] {VehicleBusConstants.TX_RESULT_WRITTEN, VehicleBusConstants.TX_RESULT_DROPPED},
+                intent.getByteArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_RESULTS));
+        // sent in microseconds
+        assertArrayEquals(new long[] {1, 4}, intent.getLongArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_ENQUEUE_TIMES));
+        assertArrayEquals(new long[] {2, 0}, intent.getLongArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_DEQUEUE_TIMES));
+        assertArrayEquals(new long[] {3, 0}, intent.getLongArrayExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_WRITE_TIMES));
+
+        // nothing left to send
+        assertFalse(completions.hasPending);
+        completions.flush();
+        assertEquals(1, broadcasts.size());
+    }
+
+    @Test
+    public void flushIfDueWaitsMaxMs() {
+        completions.add(7, VehicleBusConstants.TX_RESULT_WRITTEN, 0, 0, 0);
+        long added = completions.firstAddedNanos;
+
+        completions.flushIfDue(added + VehicleBusTxCompletions.MAX_MS * MS - 1);
+        assertTrue(broadcasts.isEmpty());
+
+        completions.flushIfDue(added + VehicleBusTxCompletions.MAX_MS * MS);
+        assertEquals(1, broadcasts.size());
+    }
+
+    @Test
+    public void fullBatchIsSentRightAway() {
+        for (int i = 1; i <= VehicleBusTxCompletions.MAX_COMPLETIONS; i++) {
+            completions.add(i, VehicleBusConstants.TX_RESULT_WRITTEN, 0, 0, 0);
+        }
+        long added = completions.firstAddedNanos;
+        completions.flushIfDue(added);
+        assertEquals(1, broadcasts.size());
+        assertEquals(VehicleBusTxCompletions.MAX_COMPLETIONS, broadcasts.get(0).getIntExtra(VehicleBusConstants.BROADCAST_EXTRA_TX_COUNT, -1));
+    }
+
+    @Test
+    public void addMakesRoomWhenFull() {
+        for (int i = 1; i <= VehicleBusTxCompletions.MAX_COMPLETIONS + 1; i++) {
+            completions.add(i, VehicleBusConstants.TX_RESULT_WRITTEN, 0, 0, 0);
+        }
+        assertEquals(1, broadcasts.size());
+        assertEquals(1, completions.count);
+        assertEquals(VehicleBusTxCompletions.MAX_COMPLETIONS + 1, completions.txIds[0]);
+    }
+}
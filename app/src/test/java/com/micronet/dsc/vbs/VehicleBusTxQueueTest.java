@@ -0,0 +1,153 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusTxQueueTest {
+
+    @Test
+    public void offerAndPollInOrder() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(4);
+
+        assertTrue(queue.offer("a", 5));
+        assertTrue(queue.offer("b"));
+        assertEquals(2, queue.size());
+
+        assertEquals("a", queue.poll());
+        assertEquals(5, queue.getPolledTxId());
+        assertEquals(0, queue.getPolledBatchLeft());
+        assertEquals("b", queue.poll());
+        assertEquals(VehicleBusTxCompletions.NO_TX_ID, queue.getPolledTxId());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropNewestWhenFull() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(2, VehicleBusTxQueue.OVERFLOW_DROP_NEWEST, null);
+
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals(1, queue.getDroppedNewestCount());
+        assertEquals(0, queue.getRejectedCount());
+
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void rejectWhenFull() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(2, VehicleBusTxQueue.OVERFLOW_REJECT, null);
+
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(0, queue.getDroppedNewestCount());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void dropOldestWhenFull() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(2, VehicleBusTxQueue.OVERFLOW_DROP_OLDEST, null);
+
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertTrue(queue.offer("c"));
+
+        assertEquals("b", queue.poll());
+        assertEquals(1, queue.getDroppedOldestCount());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void dropOldestHardLimit() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(2, VehicleBusTxQueue.OVERFLOW_DROP_OLDEST, null);
+
+        // nobody is polling, so stop accepting at DROP_OLDEST_HARD_LIMIT_FACTOR times the capacity
+        int limit = 2 * VehicleBusTxQueue.DROP_OLDEST_HARD_LIMIT_FACTOR;
+        for (int i = 0; i < limit; i++) {
+            assertTrue(queue.offer("f" + i));
+        }
+        assertFalse(queue.offer("late"));
+        assertEquals(1, queue.getDroppedNewestCount());
+    }
+
+    @Test
+    public void offerAllIsAllOrNothing() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(4);
+
+        assertTrue(queue.offer("x"));
+        assertFalse(queue.offerAll(new String[] {"a", "b", "c", "d"}, 4));
+        assertEquals(4, queue.getDroppedNewestCount());
+        assertEquals(1, queue.size());
+
+        assertTrue(queue.offerAll(new String[] {"a", "b", "c", "unused"}, 3));
+        assertEquals(4, queue.size());
+
+        assertEquals(1, queue.peekBatchSize());
+        assertEquals("x", queue.poll());
+
+        assertEquals(3, queue.peekBatchSize());
+        assertEquals("a", queue.poll());
+        assertEquals(2, queue.getPolledBatchLeft());
+        assertEquals("b", queue.poll());
+        assertEquals(1, queue.getPolledBatchLeft());
+        assertEquals("c", queue.poll());
+        assertEquals(0, queue.getPolledBatchLeft());
+        assertEquals(0, queue.peekBatchSize());
+    }
+
+    @Test
+    public void batchLargerThanCapacityIsRefused() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(2, VehicleBusTxQueue.OVERFLOW_DROP_OLDEST, null);
+
+        assertFalse(queue.offerAll(new String[] {"a", "b", "c"}, 3));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void offerAllTxIds() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(4);
+
+        assertTrue(queue.offerAll(new String[] {"a", "b"}, 2, new int[] {21, 22}));
+        queue.poll();
+        assertEquals(21, queue.getPolledTxId());
+        queue.poll();
+        assertEquals(22, queue.getPolledTxId());
+    }
+
+    @Test
+    public void peekedFrameIsNotDropped() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(2, VehicleBusTxQueue.OVERFLOW_DROP_OLDEST, null);
+
+        queue.offer("a");
+        assertEquals(1, queue.peekBatchSize());
+
+        // the writer already made room for "a", so it is what poll() returns even though the queue overflowed since
+        queue.offer("b");
+        queue.offer("c");
+        assertEquals("a", queue.poll());
+        assertEquals(0, queue.getDroppedOldestCount());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+    }
+
+    @Test
+    public void clear() {
+        VehicleBusTxQueue<String> queue = new VehicleBusTxQueue<String>(4);
+
+        queue.offer("a");
+        queue.offerAll(new String[] {"b", "c"}, 2);
+        queue.clear();
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        assertTrue(queue.offer("d"));
+        assertEquals("d", queue.poll());
+    }
+}
@@ -0,0 +1,198 @@
+package com.micronet.dsc.vbs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VehicleBusTxSchedulerTest {
+
+    static final long MS = 1000000L;
+
+    static VehicleBusWrapper.CANFrame extended(int id, int marker) {
+        return new VehicleBusWrapper.CANFrame(id, new byte[] {(byte) marker}, VehicleBusWrapper.CANFrameType.EXTENDED);
+    }
+
+    static VehicleBusWrapper.CANFrame standard(int id, int marker) {
+        return new VehicleBusWrapper.CANFrame(id, new byte[] {(byte) marker}, VehicleBusWrapper.CANFrameType.STANDARD);
+    }
+
+    @Test
+    public void getPriority() {
+        assertEquals(3, VehicleBusTxScheduler.getPriority(0x0CF00400, true));
+        assertEquals(6, VehicleBusTxScheduler.getPriority(0x18FEF100, true));
+        assertEquals(7, VehicleBusTxScheduler.getPriority(0x1CFEF100, true));
+        assertEquals(1, VehicleBusTxScheduler.getPriority(0x123, false));
+        assertEquals(7, VehicleBusTxScheduler.getPriority(0x7FF, false));
+    }
+
+    @Test
+    public void higherPriorityFirst() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        VehicleBusWrapper.CANFrame low = extended(0x18FEF100, 1);
+        VehicleBusWrapper.CANFrame high = extended(0x0CF00400, 2);
+        assertTrue(scheduler.add(low, 0));
+        assertTrue(scheduler.add(high, 0));
+
+        assertSame(high, scheduler.remove());
+        assertSame(low, scheduler.remove());
+        assertNull(scheduler.remove());
+    }
+
+    @Test
+    public void standardBeforeExtendedWithSameBaseId() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        // same base id and priority, the standard frame wins arbitration even though it was queued second
+        VehicleBusWrapper.CANFrame ext = extended((0x123 << 18) | 1, 1);
+        VehicleBusWrapper.CANFrame std = standard(0x123, 2);
+        scheduler.add(ext, 0);
+        scheduler.add(std, 0);
+
+        assertSame(std, scheduler.remove());
+        assertSame(ext, scheduler.remove());
+    }
+
+    @Test
+    public void sameIdKeepsQueueOrder() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(16);
+
+        VehicleBusWrapper.CANFrame[] frames = new VehicleBusWrapper.CANFrame[10];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = extended(0x1CEBFF00, i);
+            scheduler.add(frames[i], 0);
+        }
+
+        for (int i = 0; i < frames.length; i++) {
+            assertSame(frames[i], scheduler.remove());
+        }
+    }
+
+    @Test
+    public void newerHighPriorityFrameOvertakesWithinAgingWindow() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        // priority 7 queued at 0 ms has a deadline of 14 ms, priority 0 queued at 10 ms has 10 ms
+        VehicleBusWrapper.CANFrame low = extended(0x1CFEF100, 1);
+        VehicleBusWrapper.CANFrame high = extended(0x00FEF100, 2);
+        scheduler.add(low, 0);
+        scheduler.add(high, 10 * MS);
+
+        assertSame(high, scheduler.remove());
+        assertSame(low, scheduler.remove());
+    }
+
+    @Test
+    public void agedLowPriorityFrameIsNotOvertaken() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        // priority 7 queued at 0 ms has waited longer than 7 * AGING_MS_PER_PRIORITY by 15 ms
+        VehicleBusWrapper.CANFrame low = extended(0x1CFEF100, 1);
+        VehicleBusWrapper.CANFrame high = extended(0x00FEF100, 2);
+        scheduler.add(low, 0);
+        scheduler.add(high, (7 * VehicleBusTxScheduler.AGING_MS_PER_PRIORITY + 1) * MS);
+
+        assertSame(low, scheduler.remove());
+        assertSame(high, scheduler.remove());
+    }
+
+    @Test
+    public void orderKeptWhenTheTickWrapsAround() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        // the deadline tick of the second frame makes its key negative (after about 99 days of System.nanoTime())
+        long wrap = (1L << 33) * MS;
+        VehicleBusWrapper.CANFrame first = extended(0x18FEF100, 1);
+        VehicleBusWrapper.CANFrame second = extended(0x18FEF100, 2);
+        scheduler.add(first, wrap - 20 * MS);
+        scheduler.add(second, wrap + 20 * MS);
+
+        assertSame(first, scheduler.remove());
+        assertSame(second, scheduler.remove());
+    }
+
+    @Test
+    public void batchLeavesInQueueOrder() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        // the second member has the lower id, but a batch is written in the order it was queued
+        VehicleBusWrapper.CANFrame first = extended(0x18FEF200, 1);
+        VehicleBusWrapper.CANFrame second = extended(0x18FEF100, 2);
+        scheduler.add(first, 0, VehicleBusTxCompletions.NO_TX_ID, 1);
+        scheduler.add(second, 0, VehicleBusTxCompletions.NO_TX_ID, 0);
+
+        assertSame(first, scheduler.remove());
+        assertSame(second, scheduler.remove());
+    }
+
+    @Test
+    public void nothingOvertakesABatchBeingWritten() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        VehicleBusWrapper.CANFrame first = extended(0x18FEF100, 1);
+        VehicleBusWrapper.CANFrame second = extended(0x18FEF100, 2);
+        VehicleBusWrapper.CANFrame third = extended(0x18FEF100, 3);
+        scheduler.add(first, 0, VehicleBusTxCompletions.NO_TX_ID, 2);
+        scheduler.add(second, 0, VehicleBusTxCompletions.NO_TX_ID, 1);
+        scheduler.add(third, 0, VehicleBusTxCompletions.NO_TX_ID, 0);
+
+        assertSame(first, scheduler.remove());
+
+        // a higher priority frame queued now waits for the rest of the batch
+        VehicleBusWrapper.CANFrame high = extended(0x00FEF100, 4);
+        scheduler.add(high, 0);
+
+        assertSame(second, scheduler.remove());
+        assertSame(third, scheduler.remove());
+        assertSame(high, scheduler.remove());
+    }
+
+    @Test
+    public void batchNotStartedCanBeOvertaken() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        VehicleBusWrapper.CANFrame first = extended(0x18FEF100, 1);
+        VehicleBusWrapper.CANFrame second = extended(0x18FEF100, 2);
+        scheduler.add(first, 0, VehicleBusTxCompletions.NO_TX_ID, 1);
+        scheduler.add(second, 0, VehicleBusTxCompletions.NO_TX_ID, 0);
+
+        VehicleBusWrapper.CANFrame high = extended(0x00FEF100, 3);
+        scheduler.add(high, 0);
+
+        assertSame(high, scheduler.remove());
+        assertSame(first, scheduler.remove());
+        assertSame(second, scheduler.remove());
+    }
+
+    @Test
+    public void peekTxIdAndEnqueueNanos() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(8);
+
+        scheduler.add(extended(0x18FEF100, 1), 5 * MS, 11);
+        scheduler.add(extended(0x0CF00400, 2), 6 * MS, 12);
+
+        assertEquals(12, scheduler.peekTxId());
+        assertEquals(6 * MS, scheduler.peekEnqueueNanos());
+        scheduler.remove();
+        assertEquals(11, scheduler.peekTxId());
+        assertEquals(5 * MS, scheduler.peekEnqueueNanos());
+    }
+
+    @Test
+    public void capacity() {
+        VehicleBusTxScheduler scheduler = new VehicleBusTxScheduler(2);
+
+        assertTrue(scheduler.isEmpty());
+        assertEquals(2, scheduler.getRoom());
+        assertTrue(scheduler.add(extended(0x18FEF100, 1), 0));
+        assertTrue(scheduler.add(extended(0x18FEF100, 2), 0));
+        assertTrue(scheduler.isFull());
+        assertEquals(0, scheduler.getRoom());
+        assertFalse(scheduler.add(extended(0x18FEF100, 3), 0));
+        assertEquals(2, scheduler.size());
+
+        scheduler.clear();
+        assertTrue(scheduler.isEmpty());
+        assertNull(scheduler.remove());
+    }
+}